@@ -0,0 +1,237 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+// measures loading (and so weaving and class hierarchy analysis) of a large synthetic class
+// hierarchy as the number of threads concurrently loading classes grows, similar to application
+// server deployers and spring context startup
+//
+// each invocation uses a new class loader so that every class is analyzed again
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ConcurrentClassLoadingBenchmark {
+
+    private static final String PACKAGE_NAME = "org/glowroot/microbenchmarks/synthetic/";
+
+    private static final int INTERFACE_COUNT = 100;
+    private static final int INTERFACE_METHOD_COUNT = 2;
+    private static final int BASE_CLASS_COUNT = 100;
+    private static final int INTERFACES_PER_BASE_CLASS = 3;
+    private static final int SUBCLASS_LEVELS = 4;
+    private static final int SUBCLASSES_PER_LEVEL = 2500;
+    private static final int METHODS_PER_CLASS = 5;
+
+    @Param({"1", "2", "4", "8", "16"})
+    private int threadCount;
+
+    private File classesDir;
+    private List<String> classNames;
+    private ExecutorService executor;
+
+    private ClassLoader loader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        classesDir = Files.createTempDir();
+        classNames = generateClassHierarchy(classesDir);
+        executor = Executors.newFixedThreadPool(threadCount);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException {
+        loader = new URLClassLoader(new URL[] {classesDir.toURI().toURL()},
+                ConcurrentClassLoadingBenchmark.class.getClassLoader());
+        // load subclasses before their super classes, so that super classes are analyzed from
+        // their class files during weaving, as happens at startup
+        Collections.shuffle(classNames, new Random(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        executor.shutdown();
+        deleteRecursively(classesDir);
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        List<Future<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < threadCount; i++) {
+            final int threadIndex = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws ClassNotFoundException {
+                    for (int j = threadIndex; j < classNames.size(); j += threadCount) {
+                        Class.forName(classNames.get(j), false, loader);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+
+    private static List<String> generateClassHierarchy(File classesDir) throws IOException {
+        List<String> classNames = Lists.newArrayList();
+        File packageDir = new File(classesDir, PACKAGE_NAME);
+        if (!packageDir.mkdirs()) {
+            throw new IOException("Could not create directory: " + packageDir);
+        }
+        for (int i = 0; i < INTERFACE_COUNT; i++) {
+            String name = "Interface" + i;
+            Files.write(generateInterface(PACKAGE_NAME + name), new File(packageDir,
+                    name + ".class"));
+            classNames.add(getClassName(name));
+        }
+        for (int i = 0; i < BASE_CLASS_COUNT; i++) {
+            String name = "Level0Class" + i;
+            String[] interfaceNames = new String[INTERFACES_PER_BASE_CLASS];
+            List<String> methodNames = Lists.newArrayList();
+            for (int j = 0; j < INTERFACES_PER_BASE_CLASS; j++) {
+                int interfaceNum = (i + j) % INTERFACE_COUNT;
+                interfaceNames[j] = PACKAGE_NAME + "Interface" + interfaceNum;
+                for (int k = 0; k < INTERFACE_METHOD_COUNT; k++) {
+                    methodNames.add(getInterfaceMethodName(interfaceNum, k));
+                }
+            }
+            for (int j = 0; j < METHODS_PER_CLASS; j++) {
+                methodNames.add("method" + j);
+            }
+            Files.write(generateClass(PACKAGE_NAME + name, "java/lang/Object", interfaceNames,
+                    methodNames), new File(packageDir, name + ".class"));
+            classNames.add(getClassName(name));
+        }
+        int superClassCount = BASE_CLASS_COUNT;
+        for (int level = 1; level <= SUBCLASS_LEVELS; level++) {
+            for (int i = 0; i < SUBCLASSES_PER_LEVEL; i++) {
+                String name = "Level" + level + "Class" + i;
+                int superClassNum = i % superClassCount;
+                List<String> methodNames = Lists.newArrayList();
+                // override one of the interface methods implemented by the base class
+                methodNames.add(getInterfaceMethodName(superClassNum % INTERFACE_COUNT, 0));
+                for (int j = 0; j < METHODS_PER_CLASS; j++) {
+                    methodNames.add("level" + level + "Method" + j);
+                }
+                Files.write(generateClass(PACKAGE_NAME + name,
+                        PACKAGE_NAME + "Level" + (level - 1) + "Class" + superClassNum,
+                        new String[0], methodNames), new File(packageDir, name + ".class"));
+                classNames.add(getClassName(name));
+            }
+            superClassCount = SUBCLASSES_PER_LEVEL;
+        }
+        return classNames;
+    }
+
+    private static byte[] generateInterface(String internalName) {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(V1_6, ACC_PUBLIC + ACC_ABSTRACT + ACC_INTERFACE, internalName, null,
+                "java/lang/Object", null);
+        int interfaceNum = Integer.parseInt(internalName.substring(
+                internalName.lastIndexOf("Interface") + "Interface".length()));
+        for (int i = 0; i < INTERFACE_METHOD_COUNT; i++) {
+            cw.visitMethod(ACC_PUBLIC + ACC_ABSTRACT, getInterfaceMethodName(interfaceNum, i),
+                    "()V", null, null).visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static byte[] generateClass(String internalName, String superInternalName,
+            String[] interfaceInternalNames, List<String> methodNames) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, internalName, null, superInternalName,
+                interfaceInternalNames);
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, superInternalName, "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        for (String methodName : methodNames) {
+            mv = cw.visitMethod(ACC_PUBLIC, methodName, "()V", null, null);
+            mv.visitCode();
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static String getInterfaceMethodName(int interfaceNum, int methodNum) {
+        return "interface" + interfaceNum + "Method" + methodNum;
+    }
+
+    private static String getClassName(String simpleName) {
+        return (PACKAGE_NAME + simpleName).replace('/', '.');
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete()) {
+            throw new IOException("Could not delete: " + file);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TraceEntryWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// compares the allocation per transaction with and without recycling of timers and query data maps
+// (glowroot.internal.transaction.recycleObjects), run with "-prof gc" and compare
+// gc.alloc.rate.norm (bytes allocated per transaction) between the two benchmark methods
+//
+// each transaction has trace entries (captured via both the plugin api and instrumentation config),
+// so that each transaction creates (or reuses) a nested timer in addition to the root timer (timers
+// that are returned directly to plugins via ThreadContext.startTimer() are never reused, see
+// TimerImpl.escaped)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class RecycleObjectsBenchmark extends TransactionWorthy {
+
+    private TraceEntryWorthy traceEntryWorthy;
+
+    @Setup
+    public void setup() {
+        traceEntryWorthy = new TraceEntryWorthy();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.transaction.recycleObjects=false")
+    public void withoutRecycling() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.transaction.recycleObjects=true")
+    public void withRecycling() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            traceEntryWorthy.doSomethingTraceEntryWorthy();
+            traceEntryWorthy.doSomethingTraceEntryWorthy2();
+        }
+    }
+}
@@ -117,6 +117,10 @@ public class CentralCollector implements Collector {
                 agentId, inConnectionFailure, sharedQueryTextLimiter);
     }
 
+    public int getPendingRequestCount() {
+        return centralConnection.getPendingRequestCount();
+    }
+
     @Override
     public void init(File confDir, @Nullable File sharedConfDir, final Environment environment,
             AgentConfig agentConfig, final AgentConfigUpdater agentConfigUpdater) {
@@ -36,7 +36,9 @@ import com.google.common.collect.Lists;
 import io.grpc.Attributes;
 import io.grpc.EquivalentAddressGroup;
 import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
 import io.grpc.NameResolver;
+import io.grpc.Status;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NegotiationType;
 import io.grpc.netty.NettyChannelBuilder;
@@ -51,6 +53,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.Constants;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -63,6 +66,11 @@ class CentralConnection {
     // back pressure on connection to the central collector
     private static final int PENDING_LIMIT = 100;
 
+    // back pressure from the central collector (see org.glowroot.central.CollectorServiceImpl)
+    private static final Metadata.Key<String> RETRY_AFTER_MILLIS_KEY =
+            Metadata.Key.of(Constants.GRPC_RETRY_AFTER_MILLIS_HEADER,
+                    Metadata.ASCII_STRING_MARSHALLER);
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private final ThreadLocal<Boolean> suppressLogCollector = new ThreadLocal<Boolean>() {
         @Override
@@ -154,6 +162,12 @@ class CentralConnection {
         return channel;
     }
 
+    int getPendingRequestCount() {
+        synchronized (discardingDataLogger) {
+            return pendingRequestCount;
+        }
+    }
+
     <T extends /*@NonNull*/ Object> void callOnce(GrpcCall<T> call) {
         callWithAFewRetries(0, -1, call);
     }
@@ -335,6 +349,23 @@ class CentralConnection {
         }
     }
 
+    private static @Nullable Long getRetryAfterMillis(Throwable t) {
+        Metadata trailers = Status.trailersFromThrowable(t);
+        if (trailers == null) {
+            return null;
+        }
+        String retryAfterMillis = trailers.get(RETRY_AFTER_MILLIS_KEY);
+        if (retryAfterMillis == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(retryAfterMillis);
+        } catch (NumberFormatException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
     @Value.Immutable
     interface ParsedCollectorAddress {
         boolean https();
@@ -415,8 +446,16 @@ class CentralConnection {
 
             // retry delay doubles on average each time, randomized +/- 50%
             double randomizedDoubling = 0.5 + random.nextDouble();
-            long currDelay = (long) (nextDelayInSeconds * randomizedDoubling);
+            long currDelayMillis =
+                    (long) (SECONDS.toMillis(nextDelayInSeconds) * randomizedDoubling);
             nextDelayInSeconds = Math.min(nextDelayInSeconds * 2, maxSingleDelayInSeconds);
+            Long retryAfterMillis = getRetryAfterMillis(t);
+            if (retryAfterMillis != null) {
+                // central collector rejected the request due to backlog, randomized +0-50% so that
+                // agents that were rejected at the same time do not all retry at the same time
+                currDelayMillis = Math.max(currDelayMillis,
+                        (long) (retryAfterMillis * (1 + random.nextDouble() / 2)));
+            }
 
             // TODO revisit retry/backoff after next grpc version
             retryExecutor.schedule(new Runnable() {
@@ -435,7 +474,7 @@ class CentralConnection {
                         });
                     }
                 }
-            }, currDelay, SECONDS);
+            }, currDelayMillis, MILLISECONDS);
         }
 
         @Override
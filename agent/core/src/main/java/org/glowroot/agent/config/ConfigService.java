@@ -396,6 +396,20 @@ public class ConfigService {
                     .addMbeanAttributes(ImmutableMBeanAttribute.of("SystemCpuLoad", false));
         }
         defaultGaugeConfigs.add(operatingSystemMBean.build());
+        defaultGaugeConfigs.add(ImmutableGaugeConfig.builder()
+                .mbeanObjectName("org.glowroot:type=AgentOverhead")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("AggregationTime", true))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("StackTraceCaptureTime", true))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("WeavingTime", true))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("AllocatedBytes", true))
+                .addMbeanAttributes(
+                        ImmutableMBeanAttribute.of("AggregatedTransactionCount", true))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("AggregatorQueueDepth", false))
+                .addMbeanAttributes(
+                        ImmutableMBeanAttribute.of("TransactionCollectorQueueDepth", false))
+                .addMbeanAttributes(
+                        ImmutableMBeanAttribute.of("CentralConnectionQueueDepth", false))
+                .build());
         return ImmutableList.copyOf(defaultGaugeConfigs);
     }
 
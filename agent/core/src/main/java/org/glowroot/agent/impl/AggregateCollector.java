@@ -51,7 +51,7 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-// must be used under an appropriate lock
+// must be used under its own monitor (see AggregateIntervalCollector)
 @Styles.Private
 class AggregateCollector {
 
@@ -60,6 +60,7 @@ class AggregateCollector {
     private double totalDurationNanos;
     private long transactionCount;
     private long errorCount;
+    private long timersAndCountsOnlyTransactionCount;
     private boolean asyncTransactions;
     private final RootTimerCollectorImpl mainThreadRootTimers = new RootTimerCollectorImpl();
     private final RootTimerCollectorImpl auxThreadRootTimers = new RootTimerCollectorImpl();
@@ -85,6 +86,11 @@ class AggregateCollector {
         this.maxServiceCallAggregates = maxServiceCallAggregates;
     }
 
+    @Nullable
+    String getTransactionName() {
+        return transactionName;
+    }
+
     void add(Transaction transaction) {
         long totalDurationNanos = transaction.getDurationNanos();
         this.totalDurationNanos += totalDurationNanos;
@@ -92,6 +98,9 @@ class AggregateCollector {
         if (transaction.getErrorMessage() != null) {
             errorCount++;
         }
+        if (transaction.isTimersAndCountsOnly()) {
+            timersAndCountsOnlyTransactionCount++;
+        }
         if (transaction.isAsync()) {
             asyncTransactions = true;
         }
@@ -153,6 +162,7 @@ class AggregateCollector {
                 .setTotalDurationNanos(totalDurationNanos)
                 .setTransactionCount(transactionCount)
                 .setErrorCount(errorCount)
+                .setTimersAndCountsOnlyTransactionCount(timersAndCountsOnlyTransactionCount)
                 .setAsyncTransactions(asyncTransactions)
                 .addAllMainThreadRootTimer(mainThreadRootTimers.toProto())
                 .addAllAuxThreadRootTimer(auxThreadRootTimers.toProto())
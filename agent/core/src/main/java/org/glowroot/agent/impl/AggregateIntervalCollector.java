@@ -18,8 +18,7 @@ package org.glowroot.agent.impl;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
-import javax.annotation.concurrent.GuardedBy;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -55,10 +54,14 @@ public class AggregateIntervalCollector {
     private final int maxServiceCallAggregates;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+    // type collectors and their aggregate collectors are only created by the aggregate processing
+    // thread, while each aggregate collector is guarded by its own monitor so that aggregate
+    // collectors can be merged into from different aggregate worker threads
+    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newConcurrentMap();
 
-    private final Object lock = new Object();
+    // time spent merging transactions into this interval (on the aggregate processing thread or
+    // across the aggregate worker threads), recorded once when the interval is flushed
+    private final AtomicLong aggregationNanos = new AtomicLong();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
@@ -74,33 +77,52 @@ public class AggregateIntervalCollector {
         return captureTime;
     }
 
+    void recordAggregation(long nanos) {
+        aggregationNanos.addAndGet(nanos);
+    }
+
+    long getAggregationNanos() {
+        return aggregationNanos.get();
+    }
+
     public void add(Transaction transaction) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector =
-                    getTypeCollector(transaction.getTransactionType());
-            typeCollector.add(transaction);
-        }
+        IntervalTypeCollector typeCollector = getTypeCollector(transaction.getTransactionType());
+        merge(transaction, typeCollector.overallAggregateCollector);
+        merge(transaction,
+                typeCollector.getTransactionAggregateCollector(transaction.getTransactionName()));
+    }
+
+    // must be called by the aggregate processing thread
+    AggregateCollector getOverallAggregateCollector(String transactionType) {
+        return getTypeCollector(transactionType).overallAggregateCollector;
+    }
+
+    // must be called by the aggregate processing thread
+    AggregateCollector getTransactionAggregateCollector(String transactionType,
+            String transactionName) {
+        return getTypeCollector(transactionType).getTransactionAggregateCollector(transactionName);
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        AggregateCollector aggregateCollector = typeCollector.overallAggregateCollector;
+        synchronized (aggregateCollector) {
+            aggregateCollector.mergeOverallSummaryInto(collector);
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
+                .values()) {
+            synchronized (aggregateCollector) {
                 aggregateCollector.mergeTransactionSummariesInto(collector);
             }
         }
@@ -108,24 +130,25 @@ public class AggregateIntervalCollector {
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        AggregateCollector aggregateCollector = typeCollector.overallAggregateCollector;
+        synchronized (aggregateCollector) {
+            aggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
+                .values()) {
+            synchronized (aggregateCollector) {
                 aggregateCollector.mergeTransactionErrorSummariesInto(collector);
             }
         }
@@ -133,122 +156,130 @@ public class AggregateIntervalCollector {
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
-            }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        synchronized (aggregateCollector) {
             return aggregateCollector.getOverviewAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
-            }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        synchronized (aggregateCollector) {
             return aggregateCollector.getPercentileAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
-            }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        synchronized (aggregateCollector) {
             return aggregateCollector.getThroughputAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
-            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
-                }
+        for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
+            String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+            if (fullQueryText != null) {
+                return fullQueryText;
             }
-            return null;
         }
+        return null;
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return;
+        }
+        synchronized (aggregateCollector) {
             aggregateCollector.mergeQueriesInto(collector);
         }
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return;
+        }
+        synchronized (aggregateCollector) {
             aggregateCollector.mergeServiceCallsInto(collector);
         }
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return;
+        }
+        synchronized (aggregateCollector) {
             aggregateCollector.mergeMainThreadProfilesInto(collector);
         }
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return;
+        }
+        synchronized (aggregateCollector) {
             aggregateCollector.mergeAuxThreadProfilesInto(collector);
         }
     }
 
-    // TODO report checker framework issue that occurs without this suppression
-    @SuppressWarnings("return.type.incompatible")
     Set<String> getTransactionTypes() {
-        synchronized (lock) {
-            return typeCollectors.keySet();
-        }
+        return typeCollectors.keySet();
     }
 
     void flush(Collector collector) throws Exception {
         collector.collectAggregates(new AggregatesImpl(captureTime));
     }
 
-    void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
+    static void merge(Transaction transaction, AggregateCollector aggregateCollector) {
+        synchronized (aggregateCollector) {
+            aggregateCollector.add(transaction);
+            aggregateCollector.getMainThreadRootTimers()
+                    .mergeRootTimer(transaction.getMainThreadRootTimer());
+            transaction.mergeAuxThreadTimersInto(aggregateCollector.getAuxThreadRootTimers());
+            transaction.mergeAsyncTimersInto(aggregateCollector.getAsyncTimers());
+            transaction.mergeWeightedQueriesInto(aggregateCollector.getQueryCollector());
+            transaction.mergeWeightedServiceCallsInto(
+                    aggregateCollector.getServiceCallCollector());
+            ThreadProfile mainThreadProfile = transaction.getMainThreadProfile();
+            if (mainThreadProfile != null) {
+                aggregateCollector.mergeMainThreadProfile(mainThreadProfile);
+            }
+            ThreadProfile auxThreadProfile = transaction.getAuxThreadProfile();
+            if (auxThreadProfile != null) {
+                aggregateCollector.mergeAuxThreadProfile(auxThreadProfile);
+            }
         }
     }
 
-    @GuardedBy("lock")
     private IntervalTypeCollector getTypeCollector(String transactionType) {
         IntervalTypeCollector typeCollector;
         typeCollector = typeCollectors.get(transactionType);
@@ -259,7 +290,6 @@ public class AggregateIntervalCollector {
         return typeCollector;
     }
 
-    @GuardedBy("lock")
     private @Nullable AggregateCollector getAggregateCollector(String transactionType,
             @Nullable String transactionName) {
         IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
@@ -284,14 +314,13 @@ public class AggregateIntervalCollector {
                     new AggregateCollector(null, maxQueryAggregates, maxServiceCallAggregates);
         }
 
-        private void add(Transaction transaction) {
-            merge(transaction, overallAggregateCollector);
+        private AggregateCollector getTransactionAggregateCollector(String transactionName) {
             AggregateCollector transactionAggregateCollector =
-                    transactionAggregateCollectors.get(transaction.getTransactionName());
+                    transactionAggregateCollectors.get(transactionName);
             if (transactionAggregateCollector == null) {
                 if (transactionAggregateCollectors.size() < maxTransactionAggregates) {
                     transactionAggregateCollector =
-                            createTransactionAggregateCollector(transaction.getTransactionName());
+                            createTransactionAggregateCollector(transactionName);
                 } else {
                     transactionAggregateCollector =
                             transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
@@ -301,7 +330,7 @@ public class AggregateIntervalCollector {
                     }
                 }
             }
-            merge(transaction, transactionAggregateCollector);
+            return transactionAggregateCollector;
         }
 
         private AggregateCollector createTransactionAggregateCollector(String transactionName) {
@@ -311,31 +340,18 @@ public class AggregateIntervalCollector {
             return transactionAggregateCollector;
         }
 
-        private void merge(Transaction transaction, AggregateCollector aggregateCollector) {
-            aggregateCollector.add(transaction);
-            aggregateCollector.getMainThreadRootTimers()
-                    .mergeRootTimer(transaction.getMainThreadRootTimer());
-            transaction.mergeAuxThreadTimersInto(aggregateCollector.getAuxThreadRootTimers());
-            transaction.mergeAsyncTimersInto(aggregateCollector.getAsyncTimers());
-            transaction.mergeQueriesInto(aggregateCollector.getQueryCollector());
-            transaction.mergeServiceCallsInto(aggregateCollector.getServiceCallCollector());
-            ThreadProfile mainThreadProfile = transaction.getMainThreadProfile();
-            if (mainThreadProfile != null) {
-                aggregateCollector.mergeMainThreadProfile(mainThreadProfile);
-            }
-            ThreadProfile auxThreadProfile = transaction.getAuxThreadProfile();
-            if (auxThreadProfile != null) {
-                aggregateCollector.mergeAuxThreadProfile(auxThreadProfile);
-            }
-        }
-
         private @Nullable String getFullQueryText(String fullQueryTextSha1) {
-            String fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
+            String fullQueryText;
+            synchronized (overallAggregateCollector) {
+                fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
+            }
             if (fullQueryText != null) {
                 return fullQueryText;
             }
             for (AggregateCollector aggregateCollector : transactionAggregateCollectors.values()) {
-                fullQueryText = aggregateCollector.getFullQueryText(fullQueryTextSha1);
+                synchronized (aggregateCollector) {
+                    fullQueryText = aggregateCollector.getFullQueryText(fullQueryTextSha1);
+                }
                 if (fullQueryText != null) {
                     return fullQueryText;
                 }
@@ -359,29 +375,35 @@ public class AggregateIntervalCollector {
 
         @Override
         public void accept(AggregateVisitor aggregateVisitor) throws Exception {
-            synchronized (lock) {
-                SharedQueryTextCollectionImpl sharedQueryTextCollector =
-                        new SharedQueryTextCollectionImpl();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                    String transactionType = e.getKey();
-                    IntervalTypeCollector intervalTypeCollector = e.getValue();
-                    Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                            .build(sharedQueryTextCollector, scratchBuffer);
-                    aggregateVisitor.visitOverallAggregate(transactionType,
+            SharedQueryTextCollectionImpl sharedQueryTextCollector =
+                    new SharedQueryTextCollectionImpl();
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+                String transactionType = e.getKey();
+                IntervalTypeCollector intervalTypeCollector = e.getValue();
+                Aggregate overallAggregate = build(intervalTypeCollector.overallAggregateCollector,
+                        sharedQueryTextCollector, scratchBuffer);
+                aggregateVisitor.visitOverallAggregate(transactionType,
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        overallAggregate);
+                for (Map.Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
+                        .entrySet()) {
+                    Aggregate transactionAggregate =
+                            build(f.getValue(), sharedQueryTextCollector, scratchBuffer);
+                    aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
                             sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                            overallAggregate);
-                    for (Map.Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                            .entrySet()) {
-                        Aggregate transactionAggregate =
-                                f.getValue().build(sharedQueryTextCollector, scratchBuffer);
-                        aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
-                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                                transactionAggregate);
-                    }
+                            transactionAggregate);
                 }
             }
         }
+
+        private Aggregate build(AggregateCollector aggregateCollector,
+                SharedQueryTextCollectionImpl sharedQueryTextCollector,
+                ScratchBuffer scratchBuffer) {
+            synchronized (aggregateCollector) {
+                return aggregateCollector.build(sharedQueryTextCollector, scratchBuffer);
+            }
+        }
     }
 
     private static class SharedQueryTextCollectionImpl implements SharedQueryTextCollection {
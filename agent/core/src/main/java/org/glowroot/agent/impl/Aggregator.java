@@ -15,13 +15,23 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
-import javax.annotation.concurrent.GuardedBy;
-
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -31,6 +41,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.util.AgentOverheadCounters;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.Clock;
@@ -49,26 +60,49 @@ public class Aggregator {
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
+    // the queue length and the interval phase registrations are counted in stripes (indexed by
+    // thread id) so that concurrent producers do not all contend on a single counter
+    private static final int COUNTER_STRIPES = getCounterStripes();
+    // the transaction pending limit is enforced per stripe (see StripedCounter.incrementIfBelow())
+    private static final int TRANSACTION_PENDING_LIMIT_PER_STRIPE =
+            Math.max(TRANSACTION_PENDING_LIMIT / COUNTER_STRIPES, 1);
+
+    // zero means that transactions are merged into the aggregates directly by the aggregate
+    // processing thread
+    private static final int DEFAULT_WORKER_THREADS = Integer.getInteger(
+            "glowroot.internal.aggregate.workerThreads", getDefaultWorkerThreads());
+
     private volatile AggregateIntervalCollector activeIntervalCollector;
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
 
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
+    private final @Nullable ExecutorService workerExecutor;
+    // one queue per aggregate worker, empty when there are no aggregate workers
+    private final List<BlockingQueue<Runnable>> workerQueues;
     private final Collector collector;
     private final ConfigService configService;
     private final Clock clock;
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
+    // transactions are handed off to the processing thread through a lock-free multi-producer
+    // single-consumer linked queue: producers atomically swap the tail and then link the previous
+    // tail to the new node, and the processing thread (the only consumer) walks forward from head
+    private final AtomicReference<PendingTransaction> tail;
+    private final StripedCounter queueLength = new StripedCounter();
+
+    // capture times are read while registered in the current interval phase, which is how the
+    // processing thread knows when all transactions that could have a capture time inside of a
+    // closing interval have been placed into the queue (see enterPhase() and exitPhase())
+    private volatile IntervalPhase currentPhase = new IntervalPhase();
+
+    // clearing the in-memory aggregate is done by the processing thread, see clearInMemoryAggregate()
+    private final Queue<CountDownLatch> clearRequests = new ConcurrentLinkedQueue<CountDownLatch>();
+
+    private volatile @Nullable Thread processingThread;
+    private volatile boolean processingThreadParked;
 
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
@@ -76,20 +110,42 @@ public class Aggregator {
 
     public Aggregator(Collector collector, ConfigService configService,
             long aggregateIntervalMillis, Clock clock) {
+        this(collector, configService, aggregateIntervalMillis, clock, DEFAULT_WORKER_THREADS);
+    }
+
+    Aggregator(Collector collector, ConfigService configService, long aggregateIntervalMillis,
+            Clock clock, int workerThreads) {
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
+        PendingTransaction head = new PendingTransaction(null, 0, 0);
+        tail = new AtomicReference<PendingTransaction>(head);
         processingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
+        if (workerThreads == 0) {
+            workerExecutor = null;
+            workerQueues = ImmutableList.of();
+        } else {
+            workerExecutor = Executors.newFixedThreadPool(workerThreads,
+                    ThreadFactories.create("Glowroot-Aggregate-Worker-%d"));
+            List<BlockingQueue<Runnable>> workerQueues = Lists.newArrayList();
+            for (int i = 0; i < workerThreads; i++) {
+                BlockingQueue<Runnable> workerQueue =
+                        new LinkedBlockingQueue<Runnable>(TRANSACTION_PENDING_LIMIT);
+                workerQueues.add(workerQueue);
+                workerExecutor.execute(new AggregateWorker(workerQueue));
+            }
+            this.workerQueues = ImmutableList.copyOf(workerQueues);
+        }
         activeIntervalCollector =
                 new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
                         configService.getAdvancedConfig().maxTransactionAggregates(),
                         configService.getAdvancedConfig().maxQueryAggregates(),
                         configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
-        processingExecutor.execute(new TransactionProcessor());
+        processingExecutor.execute(new TransactionProcessor(head));
     }
 
     public Set<String> getTransactionTypes() {
@@ -114,33 +170,92 @@ public class Aggregator {
         return intervalCollectors;
     }
 
+    public int getQueueDepth() {
+        return queueLength.sum();
+    }
+
     public void clearInMemoryAggregate() {
-        activeIntervalCollector.clear();
+        // the active interval collector cannot be cleared in place, since merge tasks that are
+        // already queued for the aggregate worker threads would put their transactions back into
+        // it, so instead the processing thread replaces it with an empty interval collector (which
+        // the queued merge tasks do not reference)
+        CountDownLatch latch = new CountDownLatch(1);
+        clearRequests.add(latch);
+        unparkProcessingThread();
+        try {
+            if (!latch.await(10, SECONDS)) {
+                logger.warn("timed out waiting for the in-memory aggregate to be cleared");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
+        int stripe = getStripe();
+        // the queue slot is reserved with a compare and set loop, since checking the queue length
+        // and then incrementing it would allow concurrent producers to overshoot the limit
+        int queueStripe =
+                queueLength.incrementIfBelow(stripe, TRANSACTION_PENDING_LIMIT_PER_STRIPE);
+        if (queueStripe == -1) {
+            backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                    + " backlog of {} transactions already waiting to be aggregated",
+                    TRANSACTION_PENDING_LIMIT);
+            transaction.removeFromActiveTransactions();
+            return clock.currentTimeMillis();
+        }
+        // released once the transaction has been merged into the aggregates
+        transaction.retainForRecycling();
+        // the capture time is read and the transaction is linked into the queue while registered
+        // in the current interval phase, so that the queue reader can tell when no more
+        // transactions can arrive with a capture time inside of an interval that it wants to flush
+        IntervalPhase phase = enterPhase(stripe);
         long captureTime;
-        synchronized (queueLock) {
+        try {
             captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
-                backPressureLogger.warn("not aggregating a transaction because of an excessive"
-                        + " backlog of {} transactions already waiting to be aggregated",
-                        TRANSACTION_PENDING_LIMIT);
-                transaction.removeFromActiveTransactions();
-            } else {
-                newTail.captureTime = captureTime;
-                tail.next = newTail;
-                tail = newTail;
-                queueLength++;
-            }
+            PendingTransaction newTail =
+                    new PendingTransaction(transaction, captureTime, queueStripe);
+            PendingTransaction prevTail = tail.getAndSet(newTail);
+            prevTail.next = newTail;
+        } finally {
+            exitPhase(phase, stripe);
+        }
+        if (processingThreadParked) {
+            unparkProcessingThread();
         }
         return captureTime;
     }
 
+    // the same stripe must be passed to exitPhase()
+    private IntervalPhase enterPhase(int stripe) {
+        while (true) {
+            IntervalPhase phase = currentPhase;
+            phase.inFlight.increment(stripe);
+            if (phase == currentPhase) {
+                return phase;
+            }
+            // phase was closed concurrently, back out and register in the new phase instead
+            exitPhase(phase, stripe);
+        }
+    }
+
+    private void exitPhase(IntervalPhase phase, int stripe) {
+        phase.inFlight.decrement(stripe);
+        if (phase.closed) {
+            // processing thread may be waiting for the closed phase to drain (this is not worth
+            // narrowing down to the last thread to exit, since it only happens to the few threads
+            // that straddle the end of an interval)
+            unparkProcessingThread();
+        }
+    }
+
+    private void unparkProcessingThread() {
+        Thread thread = processingThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
         // grab active first then pending (and de-dup) to make sure one is not missed between states
         AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
@@ -160,20 +275,57 @@ public class Aggregator {
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
+        unparkProcessingThread();
         processingExecutor.shutdown();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (workerExecutor != null) {
+            workerExecutor.shutdownNow();
+            if (!workerExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
         flushingExecutor.shutdown();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
     }
 
+    private static int getStripe() {
+        // thread ids are assigned sequentially, so this spreads threads evenly across the stripes
+        return (int) (Thread.currentThread().getId() & (COUNTER_STRIPES - 1));
+    }
+
+    private static int getCounterStripes() {
+        // power of two so that the stripe can be selected by masking the thread id
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Math.min(Integer.highestOneBit(processors * 2 - 1), 16);
+    }
+
+    private static int getDefaultWorkerThreads() {
+        int workerThreads = Math.min(Runtime.getRuntime().availableProcessors() / 4, 4);
+        // a single worker thread would only add a hand-off to the aggregate processing thread
+        return workerThreads < 2 ? 0 : workerThreads;
+    }
+
     private class TransactionProcessor implements Runnable {
 
+        // last consumed node of the transaction queue (or the initial stub node)
+        private PendingTransaction head;
+
+        // intervals that have ended but may still receive transactions from threads that
+        // registered in the interval's phase and have not yet placed their transaction into the
+        // queue, ordered by capture time
+        private final Deque<ClosingInterval> closingIntervals = new ArrayDeque<ClosingInterval>();
+
+        private TransactionProcessor(PendingTransaction head) {
+            this.head = head;
+        }
+
         @Override
         public void run() {
+            processingThread = Thread.currentThread();
             while (!closed) {
                 try {
                     processOne();
@@ -185,79 +337,213 @@ public class Aggregator {
         }
 
         private void processOne() throws InterruptedException {
+            if (!clearRequests.isEmpty()) {
+                clearActiveInterval();
+            }
             PendingTransaction pendingTransaction = head.next;
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
-                    maybeEndOfInterval();
+                if (flushClosingIntervals()) {
+                    return;
+                }
+                long currentTime = clock.currentTimeMillis();
+                long activeCaptureTime = activeIntervalCollector.getCaptureTime();
+                if (currentTime > activeCaptureTime) {
+                    endActiveInterval(currentTime);
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    MILLISECONDS.sleep(1);
+                    park(MILLISECONDS.toNanos(activeCaptureTime - currentTime + 1));
                 }
                 return;
             }
+            head = pendingTransaction;
+            queueLength.decrement(pendingTransaction.stripe);
             // remove transaction from list of active transactions
             // used to do this at the very end of Transaction.end(), but moved to here to remove the
             // (minor) cost from the transaction main path
             Transaction transaction = checkNotNull(pendingTransaction.transaction);
+            // clear reference since the consumed node remains reachable as the queue head
+            pendingTransaction.transaction = null;
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
+            long captureTime = pendingTransaction.captureTime;
+            if (captureTime > activeIntervalCollector.getCaptureTime()) {
+                endActiveInterval(captureTime);
             }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+            aggregate(getIntervalCollector(captureTime), transaction);
+            AgentOverheadCounters.recordAggregatedTransaction();
+
+            ClosingInterval oldestClosingInterval = closingIntervals.peekFirst();
+            if (oldestClosingInterval != null
+                    && oldestClosingInterval.lastPendingTransaction == pendingTransaction) {
+                oldestClosingInterval.lastPendingTransactionProcessed = true;
             }
-            activeIntervalCollector.add(transaction);
+            flushClosingIntervals();
         }
 
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
+        private void aggregate(AggregateIntervalCollector intervalCollector,
+                Transaction transaction) throws InterruptedException {
+            if (workerQueues.isEmpty()) {
+                long startNanos = System.nanoTime();
+                try {
+                    intervalCollector.add(transaction);
+                } finally {
+                    transaction.releaseForRecycling();
+                    intervalCollector.recordAggregation(System.nanoTime() - startNanos);
                 }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
+                return;
             }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+            // overall aggregates are sharded by transaction type and transaction aggregates by
+            // transaction type and name, so each aggregate collector is only ever merged into by
+            // a single worker, and in the same order as on a single thread
+            String transactionType = transaction.getTransactionType();
+            AggregateCollector overallAggregateCollector =
+                    intervalCollector.getOverallAggregateCollector(transactionType);
+            AggregateCollector transactionAggregateCollector = intervalCollector
+                    .getTransactionAggregateCollector(transactionType,
+                            transaction.getTransactionName());
+            int typeHash = transactionType.hashCode();
+            // transaction name of the aggregate collector is used (instead of the transaction
+            // name) since it may be the limit exceeded bucket
+            int nameHash =
+                    checkNotNull(transactionAggregateCollector.getTransactionName()).hashCode();
+            // the processing thread's hold is handed over to the two merge tasks
+            transaction.retainForRecycling();
+            getWorkerQueue(typeHash).put(
+                    new MergeTask(transaction, overallAggregateCollector, intervalCollector));
+            getWorkerQueue(31 * typeHash + nameHash).put(
+                    new MergeTask(transaction, transactionAggregateCollector, intervalCollector));
+        }
+
+        private BlockingQueue<Runnable> getWorkerQueue(int hash) {
+            // spread bits the same way as java.util.HashMap
+            int h = hash ^ (hash >>> 16);
+            return workerQueues.get((h & Integer.MAX_VALUE) % workerQueues.size());
+        }
+
+        private AggregateIntervalCollector getIntervalCollector(long captureTime) {
+            // capture time is always after the end of any interval that has already been flushed
+            for (ClosingInterval closingInterval : closingIntervals) {
+                if (captureTime <= closingInterval.intervalCollector.getCaptureTime()) {
+                    return closingInterval.intervalCollector;
+                }
             }
+            return activeIntervalCollector;
         }
 
-        private void flushActiveIntervalCollector() {
+        private void endActiveInterval(long currentTime) {
+            IntervalPhase phase = currentPhase;
+            // any thread that registers in the new phase reads its capture time after this point,
+            // and so (since current time is past the end of the active interval) cannot end up
+            // with a capture time inside of the active interval
+            currentPhase = new IntervalPhase();
+            phase.closed = true;
+            AggregateIntervalCollector intervalCollector = activeIntervalCollector;
+            boolean store;
             if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
                 logger.warn("not storing an aggregate because of an excessive backlog of {}"
                         + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+                store = false;
+            } else {
+                pendingIntervalCollectors.add(intervalCollector);
+                store = true;
+            }
+            closingIntervals.addLast(new ClosingInterval(intervalCollector, phase, store));
+            activeIntervalCollector = new AggregateIntervalCollector(currentTime,
+                    aggregateIntervalMillis,
+                    configService.getAdvancedConfig().maxTransactionAggregates(),
+                    configService.getAdvancedConfig().maxQueryAggregates(),
+                    configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+        }
+
+        private void clearActiveInterval() {
+            activeIntervalCollector = new AggregateIntervalCollector(
+                    activeIntervalCollector.getCaptureTime(), aggregateIntervalMillis,
+                    configService.getAdvancedConfig().maxTransactionAggregates(),
+                    configService.getAdvancedConfig().maxQueryAggregates(),
+                    configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+            CountDownLatch latch;
+            while ((latch = clearRequests.poll()) != null) {
+                latch.countDown();
+            }
+        }
+
+        // returns true if any interval was flushed
+        private boolean flushClosingIntervals() throws InterruptedException {
+            boolean flushed = false;
+            ClosingInterval closingInterval;
+            while ((closingInterval = closingIntervals.peekFirst()) != null
+                    && isReadyToFlush(closingInterval)) {
+                closingIntervals.removeFirst();
+                if (closingInterval.store) {
+                    flush(closingInterval.intervalCollector);
+                }
+                flushed = true;
+            }
+            return flushed;
+        }
+
+        private boolean isReadyToFlush(ClosingInterval closingInterval) {
+            if (closingInterval.lastPendingTransaction == null) {
+                // a thread that registers in the closed phase after its stripe has been summed here
+                // is guaranteed to see the new phase and back out (see enterPhase())
+                if (closingInterval.phase.inFlight.sum() != 0) {
+                    return false;
+                }
+                // all transactions from the closed phase have been linked into the queue, so
+                // they are all at or before the current tail
+                PendingTransaction currTail = tail.get();
+                closingInterval.lastPendingTransaction = currTail;
+                closingInterval.lastPendingTransactionProcessed = currTail == head;
+            }
+            return closingInterval.lastPendingTransactionProcessed;
+        }
+
+        private void park(long timeoutNanos) {
+            processingThreadParked = true;
+            try {
+                // re-check after advertising that the processing thread is parked, so that a
+                // concurrent producer either sees the flag (and unparks) or its transaction is seen
+                // here
+                if (head.next == null && !closed && clearRequests.isEmpty()) {
+                    ClosingInterval oldestClosingInterval = closingIntervals.peekFirst();
+                    if (oldestClosingInterval == null || !isReadyToFlush(oldestClosingInterval)) {
+                        LockSupport.parkNanos(timeoutNanos);
+                    }
+                }
+            } finally {
+                processingThreadParked = false;
+            }
+        }
+
+        private void flush(final AggregateIntervalCollector intervalCollector)
+                throws InterruptedException {
+            if (workerQueues.isEmpty()) {
+                submitFlush(intervalCollector);
                 return;
             }
-            final AggregateIntervalCollector intervalCollector = activeIntervalCollector;
-            pendingIntervalCollectors.add(intervalCollector);
+            // flush once every aggregate worker has merged all of its transactions from the
+            // interval (which were all queued before this point)
+            final AtomicInteger remainingWorkers = new AtomicInteger(workerQueues.size());
+            for (BlockingQueue<Runnable> workerQueue : workerQueues) {
+                workerQueue.put(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (remainingWorkers.decrementAndGet() == 0) {
+                            submitFlush(intervalCollector);
+                        }
+                    }
+                });
+            }
+        }
+
+        private void submitFlush(final AggregateIntervalCollector intervalCollector) {
             // flush in separate thread to avoid pending transactions from piling up quickly
             flushingExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
+                    // recorded once per interval, since the aggregation of an interval may be
+                    // spread across the aggregate worker threads
+                    AgentOverheadCounters
+                            .recordAggregation(intervalCollector.getAggregationNanos());
                     try {
                         intervalCollector.flush(collector);
                     } catch (Throwable t) {
@@ -270,14 +556,142 @@ public class Aggregator {
         }
     }
 
+    private static class AggregateWorker implements Runnable {
+
+        private final BlockingQueue<Runnable> workerQueue;
+
+        private AggregateWorker(BlockingQueue<Runnable> workerQueue) {
+            this.workerQueue = workerQueue;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                try {
+                    task = workerQueue.take();
+                } catch (InterruptedException e) {
+                    // shutdownNow() was called
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    // log and continue processing
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }
+    }
+
+    private static class MergeTask implements Runnable {
+
+        private final Transaction transaction;
+        private final AggregateCollector aggregateCollector;
+        private final AggregateIntervalCollector intervalCollector;
+
+        private MergeTask(Transaction transaction, AggregateCollector aggregateCollector,
+                AggregateIntervalCollector intervalCollector) {
+            this.transaction = transaction;
+            this.aggregateCollector = aggregateCollector;
+            this.intervalCollector = intervalCollector;
+        }
+
+        @Override
+        public void run() {
+            long startNanos = System.nanoTime();
+            try {
+                AggregateIntervalCollector.merge(transaction, aggregateCollector);
+            } finally {
+                transaction.releaseForRecycling();
+                intervalCollector.recordAggregation(System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    private static class ClosingInterval {
+
+        private final AggregateIntervalCollector intervalCollector;
+        private final IntervalPhase phase;
+        private final boolean store;
+
+        private @Nullable PendingTransaction lastPendingTransaction;
+        private boolean lastPendingTransactionProcessed;
+
+        private ClosingInterval(AggregateIntervalCollector intervalCollector, IntervalPhase phase,
+                boolean store) {
+            this.intervalCollector = intervalCollector;
+            this.phase = phase;
+            this.store = store;
+        }
+    }
+
+    private static class IntervalPhase {
+
+        private final StripedCounter inFlight = new StripedCounter();
+        private volatile boolean closed;
+    }
+
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
+        // only null for initial stub and after being consumed
+        private @Nullable Transaction transaction;
+        private final long captureTime;
+        // the queue length stripe that was incremented for this transaction
+        private final int stripe;
         private volatile @Nullable PendingTransaction next;
 
-        private PendingTransaction(@Nullable Transaction transaction) {
+        private PendingTransaction(@Nullable Transaction transaction, long captureTime,
+                int stripe) {
             this.transaction = transaction;
+            this.captureTime = captureTime;
+            this.stripe = stripe;
+        }
+    }
+
+    // not using LongAdder since it is not available in java 6
+    @VisibleForTesting
+    static class StripedCounter {
+
+        // each stripe is spaced out to its own cache line to avoid false sharing
+        private static final int SPACING = 16;
+
+        private final AtomicIntegerArray counts =
+                new AtomicIntegerArray(COUNTER_STRIPES * SPACING);
+
+        void increment(int stripe) {
+            counts.incrementAndGet(stripe * SPACING);
+        }
+
+        void decrement(int stripe) {
+            counts.decrementAndGet(stripe * SPACING);
+        }
+
+        // returns the stripe that was incremented, starting with the given stripe and moving on to
+        // the other stripes if it is full, or -1 if all stripes are already at the limit
+        int incrementIfBelow(int stripe, int stripeLimit) {
+            for (int i = 0; i < COUNTER_STRIPES; i++) {
+                int currStripe = (stripe + i) & (COUNTER_STRIPES - 1);
+                int index = currStripe * SPACING;
+                while (true) {
+                    int count = counts.get(index);
+                    if (count >= stripeLimit) {
+                        break;
+                    }
+                    if (counts.compareAndSet(index, count, count + 1)) {
+                        return currStripe;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        int sum() {
+            int sum = 0;
+            for (int i = 0; i < COUNTER_STRIPES; i++) {
+                sum += counts.get(i * SPACING);
+            }
+            return sum;
         }
     }
 }
@@ -34,6 +34,7 @@ import org.glowroot.agent.model.ImmutableTimerImplSnapshot;
 import org.glowroot.agent.model.MutableAggregateTimer;
 import org.glowroot.agent.model.MutableTraceTimer;
 import org.glowroot.agent.model.QueryCollector;
+import org.glowroot.agent.model.QueryTextStore;
 import org.glowroot.agent.model.ServiceCallCollector;
 import org.glowroot.agent.model.TimerNameImpl;
 import org.glowroot.agent.plugin.api.TimerName;
@@ -219,6 +220,7 @@ class AsyncComponents {
 
     private static AsyncQueryData createQueryData(Map<String, AsyncQueryData> queriesForType,
             String queryText) {
+        queryText = QueryTextStore.share(queryText);
         AsyncQueryData queryData = new AsyncQueryData(queryText, null);
         queriesForType.put(queryText, queryData);
         return queryData;
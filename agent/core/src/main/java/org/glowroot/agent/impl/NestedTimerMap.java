@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Arrays;
+
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.model.TimerNameImpl;
@@ -57,6 +59,12 @@ class NestedTimerMap {
         putWithoutRehashCheck(key, value);
     }
 
+    // retains the current capacity, used when the owning timer is reused
+    void clear() {
+        Arrays.fill(table, null);
+        size = 0;
+    }
+
     private void putWithoutRehashCheck(TimerNameImpl key, @Nullable Object value) {
         // this mask requires capacity to be a power of 2
         int bucket = (key.specialHashCode() & (capacity - 1)) << 1;
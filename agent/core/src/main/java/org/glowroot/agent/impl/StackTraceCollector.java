@@ -28,6 +28,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
+import org.glowroot.agent.util.AgentOverheadCounters;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -37,6 +38,11 @@ public class StackTraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // when there are more active threads than this, their stack traces are captured in batches
+    // spread across the profiling interval, instead of all at once
+    private static final int THREAD_BATCH_SIZE =
+            Integer.getInteger("glowroot.internal.profiling.threadBatchSize", 100);
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
@@ -84,6 +90,7 @@ public class StackTraceCollector {
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
             return;
         }
+        long startNanos = System.nanoTime();
         long[] threadIds = new long[threadContexts.size()];
         for (int i = 0; i < threadContexts.size(); i++) {
             threadIds[i] = threadContexts.get(i).getThreadId();
@@ -98,6 +105,7 @@ public class StackTraceCollector {
                 threadContext.captureStackTrace(threadInfo);
             }
         }
+        AgentOverheadCounters.recordStackTraceCapture(System.nanoTime() - startNanos);
     }
 
     private class InternalRunnable implements Runnable {
@@ -105,6 +113,9 @@ public class StackTraceCollector {
         private volatile int currIntervalMillis;
         private volatile boolean closed;
 
+        // used to pick the number of batches for the next interval
+        private int lastActiveThreadContextCount;
+
         @Override
         public void run() {
             // delay for first
@@ -122,11 +133,23 @@ public class StackTraceCollector {
                         continue;
                     }
                 }
-                long randomDelayMillisFromIntervalStart =
-                        (long) (random.nextFloat() * currIntervalMillis);
+                int batchCount = Math.max(1,
+                        (lastActiveThreadContextCount + THREAD_BATCH_SIZE - 1) / THREAD_BATCH_SIZE);
+                long batchIntervalMillis = Math.max(1, currIntervalMillis / batchCount);
                 try {
-                    MILLISECONDS
-                            .sleep(remainingMillisInInterval + randomDelayMillisFromIntervalStart);
+                    for (int batch = 0; batch < batchCount; batch++) {
+                        long randomDelayMillisFromBatchStart =
+                                (long) (random.nextFloat() * batchIntervalMillis);
+                        MILLISECONDS.sleep(
+                                remainingMillisInInterval + randomDelayMillisFromBatchStart);
+                        remainingMillisInInterval =
+                                batchIntervalMillis - randomDelayMillisFromBatchStart;
+                        try {
+                            runInternal(batch, batchCount);
+                        } catch (Throwable t) {
+                            logger.error(t.getMessage(), t);
+                        }
+                    }
                 } catch (InterruptedException e) {
                     // probably interrupt from config listener (see above)
                     logger.debug(e.getMessage(), e);
@@ -134,32 +157,48 @@ public class StackTraceCollector {
                     remainingMillisInInterval = 0;
                     continue;
                 }
-                remainingMillisInInterval = currIntervalMillis - randomDelayMillisFromIntervalStart;
-                try {
-                    runInternal();
-                } catch (Throwable t) {
-                    logger.error(t.getMessage(), t);
-                }
+                // add back any rounding down from dividing the interval into batches
+                remainingMillisInInterval =
+                        Math.max(0, remainingMillisInInterval + currIntervalMillis
+                                - batchCount * batchIntervalMillis);
             }
         }
 
-        private void runInternal() {
+        // each thread is captured by only one of the batches in an interval (based on its thread
+        // id), and the active threads are re-read for each batch so that (same as with a single
+        // batch) a thread is captured if it is active at its batch's randomly chosen capture time
+        private void runInternal(int batch, int batchCount) {
             List<Transaction> transactions =
                     ImmutableList.copyOf(transactionRegistry.getTransactions());
             if (transactions.isEmpty()) {
+                lastActiveThreadContextCount = 0;
                 return;
             }
             List<ThreadContextImpl> activeThreadContexts =
-                    Lists.newArrayListWithCapacity(2 * transactions.size());
+                    Lists.newArrayListWithCapacity(2 * transactions.size() / batchCount);
+            int activeThreadContextCount = 0;
             for (int i = 0; i < transactions.size(); i++) {
                 Transaction transaction = transactions.get(i);
                 ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
                 if (mainThreadContext.isActive()) {
-                    activeThreadContexts.add(mainThreadContext);
+                    activeThreadContextCount++;
+                    addIfInBatch(mainThreadContext, batch, batchCount, activeThreadContexts);
+                }
+                for (ThreadContextImpl auxThreadContext : transaction
+                        .getActiveAuxThreadContexts()) {
+                    activeThreadContextCount++;
+                    addIfInBatch(auxThreadContext, batch, batchCount, activeThreadContexts);
                 }
-                activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
             }
+            lastActiveThreadContextCount = activeThreadContextCount;
             captureStackTraces(activeThreadContexts);
         }
+
+        private void addIfInBatch(ThreadContextImpl threadContext, int batch, int batchCount,
+                List<ThreadContextImpl> activeThreadContexts) {
+            if (batchCount == 1 || threadContext.getThreadId() % batchCount == batch) {
+                activeThreadContexts.add(threadContext);
+            }
+        }
     }
 }
@@ -44,6 +44,7 @@ import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.model.QueryDataMap;
 import org.glowroot.agent.model.QueryEntryBase;
+import org.glowroot.agent.model.QueryTextStore;
 import org.glowroot.agent.model.ServiceCallCollector;
 import org.glowroot.agent.model.SyncQueryData;
 import org.glowroot.agent.model.ThreadStats;
@@ -85,6 +86,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
     // it is used to help place aux thread context in the correct place inside parent
     private final @Nullable TraceEntryImpl parentThreadContextPriorEntry;
 
+    // this is null for auxiliary threads and when transaction objects are not being recycled
+    private final @Nullable TransactionObjectPool objectPool;
+    // only used while this thread context is on its pool's stack of released thread contexts
+    private @Nullable ThreadContextImpl nextReleased;
+
     private final TimerImpl rootTimer;
     // only accessed by the thread context's thread
     private @Nullable TimerImpl currentTimer;
@@ -145,9 +151,12 @@ public class ThreadContextImpl implements ThreadContextPlus {
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             boolean limitExceededAuxThreadContext, Ticker ticker,
             ThreadContextThreadLocal.Holder threadContextHolder,
-            @Nullable ServletRequestInfo servletRequestInfo) {
+            @Nullable ServletRequestInfo servletRequestInfo,
+            @Nullable TransactionObjectPool objectPool) {
         this.transaction = transaction;
         this.parentTraceEntry = parentTraceEntry;
+        // object pool needs to be set before the root timer is created
+        this.objectPool = objectPool;
         rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName);
         rootTimer.start(startTick);
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
@@ -186,6 +195,34 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return rootTimer;
     }
 
+    @Nullable
+    TransactionObjectPool getObjectPool() {
+        return objectPool;
+    }
+
+    @Nullable
+    ThreadContextImpl getNextReleased() {
+        return nextReleased;
+    }
+
+    void setNextReleased(@Nullable ThreadContextImpl nextReleased) {
+        this.nextReleased = nextReleased;
+    }
+
+    // called by the transaction once it has been aggregated and will not be read again
+    void releaseToObjectPool() {
+        if (objectPool != null) {
+            objectPool.release(this);
+        }
+    }
+
+    // only called by the owning thread's pool, after releaseToObjectPool()
+    void recycleInto(TransactionObjectPool objectPool) {
+        objectPool.addFreeTimer(rootTimer);
+        recycleInto(objectPool, queriesForFirstType, allQueryTypesMap);
+        recycleInto(objectPool, serviceCallsForFirstType, allServiceCallTypesMap);
+    }
+
     ThreadStats getThreadStats() {
         if (threadStatsComponent == null) {
             return ThreadStats.NA;
@@ -281,7 +318,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private SyncQueryData getOrCreateQueryData(String queryType, String queryText,
             boolean bypassLimit) {
         if (headQueryData == null) {
-            queriesForFirstType = new QueryDataMap(queryType);
+            queriesForFirstType = newQueryDataMap(queryType);
             return createQueryData(queriesForFirstType, queryType, queryText, bypassLimit);
         }
         QueryDataMap queriesForType = checkNotNull(queriesForFirstType);
@@ -311,6 +348,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     private SyncQueryData createQueryData(QueryDataMap queriesForType, String queryType,
             String queryText) {
+        queryText = QueryTextStore.share(queryText);
         SyncQueryData queryData = new SyncQueryData(queryType, queryText, headQueryData, null);
         queriesForType.put(queryText, queryData);
         headQueryData = queryData;
@@ -321,7 +359,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private SyncQueryData getOrCreateServiceCallData(String serviceCallType, String serviceCallText,
             boolean bypassLimit) {
         if (headServiceCallData == null) {
-            serviceCallsForFirstType = new QueryDataMap(serviceCallType);
+            serviceCallsForFirstType = newQueryDataMap(serviceCallType);
             return createServiceCallData(serviceCallsForFirstType, serviceCallType, serviceCallText,
                     bypassLimit);
         }
@@ -503,16 +541,23 @@ public class ThreadContextImpl implements ThreadContextPlus {
         detachedTime = ticker.read();
     }
 
+    private QueryDataMap newQueryDataMap(String type) {
+        if (objectPool == null) {
+            return new QueryDataMap(type);
+        }
+        return objectPool.acquireQueryDataMap(type);
+    }
+
     private QueryDataMap getOrCreateQueriesForType(String queryType) {
         if (allQueryTypesMap == null) {
             allQueryTypesMap = new HashMap<String, QueryDataMap>(2);
-            QueryDataMap queriesForType = new QueryDataMap(queryType);
+            QueryDataMap queriesForType = newQueryDataMap(queryType);
             allQueryTypesMap.put(queryType, queriesForType);
             return queriesForType;
         }
         QueryDataMap queriesForType = allQueryTypesMap.get(queryType);
         if (queriesForType == null) {
-            queriesForType = new QueryDataMap(queryType);
+            queriesForType = newQueryDataMap(queryType);
             allQueryTypesMap.put(queryType, queriesForType);
         }
         return queriesForType;
@@ -521,13 +566,13 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private QueryDataMap getOrCreateServiceCallsForType(String type) {
         if (allServiceCallTypesMap == null) {
             allServiceCallTypesMap = new HashMap<String, QueryDataMap>(2);
-            QueryDataMap serviceCallsForType = new QueryDataMap(type);
+            QueryDataMap serviceCallsForType = newQueryDataMap(type);
             allServiceCallTypesMap.put(type, serviceCallsForType);
             return serviceCallsForType;
         }
         QueryDataMap serviceCallsForType = allServiceCallTypesMap.get(type);
         if (serviceCallsForType == null) {
-            serviceCallsForType = new QueryDataMap(type);
+            serviceCallsForType = newQueryDataMap(type);
             allServiceCallTypesMap.put(type, serviceCallsForType);
         }
         return serviceCallsForType;
@@ -651,7 +696,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
             return traceEntryComponent.pushEntry(startTick, queryMessageSupplier, timer, null,
                     queryData, 1);
         } else {
-            SyncQueryData queryData = getOrCreateQueryData(queryType, queryText, false);
+            SyncQueryData queryData = transaction.isTimersAndCountsOnly() ? null
+                    : getOrCreateQueryData(queryType, queryText, false);
             return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
                     queryData, 1);
         }
@@ -687,7 +733,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
             return traceEntryComponent.pushEntry(startTick, queryMessageSupplier, timer, null,
                     queryData, queryExecutionCount);
         } else {
-            SyncQueryData queryData = getOrCreateQueryData(queryType, queryText, false);
+            SyncQueryData queryData = transaction.isTimersAndCountsOnly() ? null
+                    : getOrCreateQueryData(queryType, queryText, false);
             return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
                     queryData, queryExecutionCount);
         }
@@ -722,8 +769,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
             return startAsyncQueryEntry(startTick, queryMessageSupplier, syncTimer, asyncTimer,
                     queryData, 1);
         } else {
-            AsyncQueryData queryData =
-                    transaction.getOrCreateAsyncQueryData(queryType, queryText, false);
+            AsyncQueryData queryData = transaction.isTimersAndCountsOnly() ? null
+                    : transaction.getOrCreateAsyncQueryData(queryType, queryText, false);
             return new DummyTraceEntryOrQuery(syncTimer, asyncTimer, startTick,
                     queryMessageSupplier, queryData, 1);
         }
@@ -756,8 +803,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
             return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, queryData,
                     1);
         } else {
-            SyncQueryData queryData =
-                    getOrCreateServiceCallData(serviceCallType, serviceCallText, false);
+            SyncQueryData queryData = transaction.isTimersAndCountsOnly() ? null
+                    : getOrCreateServiceCallData(serviceCallType, serviceCallText, false);
             return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, queryData,
                     1);
         }
@@ -794,8 +841,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             return startAsyncServiceCallEntry(startTick, messageSupplier, syncTimer, asyncTimer,
                     queryData);
         } else {
-            AsyncQueryData queryData = transaction.getOrCreateAsyncServiceCallData(serviceCallType,
-                    serviceCallText, false);
+            AsyncQueryData queryData = transaction.isTimersAndCountsOnly() ? null
+                    : transaction.getOrCreateAsyncServiceCallData(serviceCallType,
+                            serviceCallText, false);
             return new DummyTraceEntryOrQuery(syncTimer, asyncTimer, startTick, messageSupplier,
                     queryData, 1);
         }
@@ -811,7 +859,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
             logger.warn("startTimer(): called on completed thread context");
             return NopTimer.INSTANCE;
         }
-        return currentTimer.startNestedTimer(timerName);
+        return currentTimer.startNestedTimer(timerName).markEscaped();
     }
 
     @Override
@@ -1075,6 +1123,18 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return currentTimer.startNestedTimer(timerName, startTick);
     }
 
+    private static void recycleInto(TransactionObjectPool objectPool,
+            @Nullable QueryDataMap firstTypeMap, @Nullable Map<String, QueryDataMap> allTypesMap) {
+        if (firstTypeMap != null) {
+            objectPool.addFreeQueryDataMap(firstTypeMap);
+        }
+        if (allTypesMap != null) {
+            for (QueryDataMap queryDataMap : allTypesMap.values()) {
+                objectPool.addFreeQueryDataMap(queryDataMap);
+            }
+        }
+    }
+
     private @Nullable Object getParentThreadContextDisplay() {
         if (parentTraceEntry == null) {
             return null;
@@ -1097,6 +1157,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private class DummyTraceEntryOrQuery extends QueryEntryBase implements AsyncQueryEntry, Timer {
 
         private final TimerImpl syncTimer;
+        // see TimerImpl.generation
+        private final int syncTimerGeneration;
         private final @Nullable AsyncTimerImpl asyncTimer;
         private final long startTick;
         private final Object messageSupplier;
@@ -1105,6 +1167,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         private int selfNestingLevel;
         // only used by transaction thread
         private @Nullable TimerImpl extendedTimer;
+        private int extendedTimerGeneration;
 
         private boolean initialComplete;
 
@@ -1113,6 +1176,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 long queryExecutionCount) {
             super(queryData, startTick, queryExecutionCount);
             this.syncTimer = syncTimer;
+            syncTimerGeneration = syncTimer.getGeneration();
             this.asyncTimer = asyncTimer;
             this.startTick = startTick;
             this.messageSupplier = messageSupplier;
@@ -1173,7 +1237,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 return;
             }
             if (asyncTimer == null) {
-                syncTimer.end(endTick);
+                syncTimer.end(endTick, syncTimerGeneration);
             } else {
                 asyncTimer.end(endTick);
             }
@@ -1195,6 +1259,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
         private void extendSync(long currTick) {
             extendedTimer = syncTimer.extend(currTick);
+            extendedTimerGeneration = extendedTimer.getGeneration();
             extendQueryData(currTick);
         }
 
@@ -1229,7 +1294,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
         private void stopSync(long endTick) {
             // the timer interface for this class is only expose through return value of extend()
-            checkNotNull(extendedTimer).end(endTick);
+            checkNotNull(extendedTimer).end(endTick, extendedTimerGeneration);
             endQueryData(endTick);
         }
 
@@ -1254,7 +1319,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
         @Override
         public void stopSyncTimer() {
-            syncTimer.stop();
+            syncTimer.stop(syncTimerGeneration);
         }
 
         @Override
@@ -1262,7 +1327,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
             if (currThreadContext != this) {
                 return NopTimer.INSTANCE;
             }
-            return syncTimer.extend();
+            return syncTimer.extend().markEscaped();
         }
 
         @EnsuresNonNullIf(expression = "asyncTimer", result = true)
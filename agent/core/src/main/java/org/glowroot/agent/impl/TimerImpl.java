@@ -21,7 +21,6 @@ import java.util.List;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,9 +60,10 @@ public class TimerImpl implements Timer, CommonTimerImpl {
 
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TimerImpl parent;
-    private final TimerNameImpl timerName;
+    // these fields are only non-final so that the timer can be reused by TransactionObjectPool
+    private ThreadContextImpl threadContext;
+    private @Nullable TimerImpl parent;
+    private TimerNameImpl timerName;
 
     // nanosecond rollover (292 years) isn't a concern for total time on a single transaction
     private long totalNanos;
@@ -76,15 +76,40 @@ public class TimerImpl implements Timer, CommonTimerImpl {
     // synchronized access during timer capture which is important
     //
     // lazy initialize to save memory in common case where this is a leaf timer
-    private @MonotonicNonNull NestedTimerMap nestedTimers;
+    private @Nullable NestedTimerMap nestedTimers;
 
     // separate linked list for safe iterating by other threads (e.g. partial trace capture and
     // active trace viewer)
-    private @MonotonicNonNull TimerImpl headChild;
-    private final @Nullable TimerImpl nextSibling;
+    private @Nullable TimerImpl headChild;
+    private @Nullable TimerImpl nextSibling;
+
+    // only used while this timer is in a TransactionObjectPool free list
+    private @Nullable TimerImpl nextFree;
+
+    // incremented each time this timer is reused by TransactionObjectPool, so that a late end() or
+    // stop() from a trace entry of a prior transaction (which captures the generation when it is
+    // created) is ignored instead of being applied to the transaction that is now using this timer
+    private int generation;
+
+    // set once this timer has been returned to a plugin, which can hold on to it (without any
+    // generation), so it is never reused after that (see TransactionObjectPool.addFreeTimer())
+    private boolean escaped;
 
     static TimerImpl createRootTimer(ThreadContextImpl threadContext, TimerNameImpl timerName) {
-        return new TimerImpl(threadContext, null, null, timerName);
+        return create(threadContext, null, null, timerName);
+    }
+
+    private static TimerImpl create(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
+            @Nullable TimerImpl nextSibling, TimerNameImpl timerName) {
+        TransactionObjectPool objectPool = threadContext.getObjectPool();
+        if (objectPool != null) {
+            TimerImpl timer = objectPool.acquireTimer();
+            if (timer != null) {
+                timer.reset(threadContext, parent, nextSibling, timerName);
+                return timer;
+            }
+        }
+        return new TimerImpl(threadContext, parent, nextSibling, timerName);
     }
 
     private TimerImpl(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
@@ -150,7 +175,7 @@ public class TimerImpl implements Timer, CommonTimerImpl {
         }
     }
 
-    public Timer extend() {
+    public TimerImpl extend() {
         return extend(ticker.read());
     }
 
@@ -160,6 +185,20 @@ public class TimerImpl implements Timer, CommonTimerImpl {
         }
     }
 
+    // no-op if this timer has been reused since the given generation
+    void end(long endTick, int generation) {
+        if (generation == this.generation) {
+            end(endTick);
+        }
+    }
+
+    // no-op if this timer has been reused since the given generation
+    void stop(int generation) {
+        if (generation == this.generation) {
+            stop();
+        }
+    }
+
     @Override
     public String getName() {
         return timerName.name();
@@ -289,6 +328,57 @@ public class TimerImpl implements Timer, CommonTimerImpl {
         threadContext.setCurrentTimer(parent);
     }
 
+    // only called by the owning thread's TransactionObjectPool when this timer is being reused
+    void releaseChildTimers(TransactionObjectPool objectPool) {
+        TimerImpl curr = headChild;
+        while (curr != null) {
+            TimerImpl next = curr.nextSibling;
+            objectPool.addFreeTimer(curr);
+            curr = next;
+        }
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    // called before returning this timer to a plugin
+    TimerImpl markEscaped() {
+        escaped = true;
+        return this;
+    }
+
+    boolean isEscaped() {
+        return escaped;
+    }
+
+    @Nullable
+    TimerImpl getNextFree() {
+        return nextFree;
+    }
+
+    void setNextFree(@Nullable TimerImpl nextFree) {
+        this.nextFree = nextFree;
+    }
+
+    private void reset(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
+            @Nullable TimerImpl nextSibling, TimerNameImpl timerName) {
+        this.threadContext = threadContext;
+        this.parent = parent;
+        this.nextSibling = nextSibling;
+        this.timerName = timerName;
+        totalNanos = 0;
+        count = 0;
+        startTick = 0;
+        selfNestingLevel = 0;
+        headChild = null;
+        nextFree = null;
+        generation++;
+        if (nestedTimers != null) {
+            nestedTimers.clear();
+        }
+    }
+
     private TimerImpl startNestedTimerInternal(TimerName timerName, long nestedTimerStartTick) {
         if (nestedTimers == null) {
             nestedTimers = new NestedTimerMap();
@@ -299,7 +389,7 @@ public class TimerImpl implements Timer, CommonTimerImpl {
             nestedTimer.start(nestedTimerStartTick);
             return nestedTimer;
         }
-        nestedTimer = new TimerImpl(threadContext, this, headChild, timerNameImpl);
+        nestedTimer = create(threadContext, this, headChild, timerNameImpl);
         nestedTimer.start(nestedTimerStartTick);
         nestedTimers.put(timerNameImpl, nestedTimer);
         headChild = nestedTimer;
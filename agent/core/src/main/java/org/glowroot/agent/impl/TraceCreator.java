@@ -179,6 +179,7 @@ public class TraceCreator {
         builder.setAuxThreadStats(auxThreadStats.toProto());
         builder.setEntryCount(entryCount);
         builder.setEntryLimitExceeded(transaction.isEntryLimitExceeded(entryCount));
+        builder.setTimersAndCountsOnly(transaction.isTimersAndCountsOnly());
         builder.setQueryCount(queryCount);
         builder.setQueryLimitExceeded(transaction.isQueryLimitExceeded(queryCount));
         builder.setMainThreadProfileSampleCount(mainProfileSampleCount);
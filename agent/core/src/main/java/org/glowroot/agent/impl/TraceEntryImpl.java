@@ -76,6 +76,8 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
 
     // only null for trace entries added using addEntryEntry()
     private final @Nullable TimerImpl syncTimer;
+    // see TimerImpl.generation
+    private final int syncTimerGeneration;
     private final @Nullable AsyncTimerImpl asyncTimer;
     // not volatile, so depends on memory barrier in Transaction for visibility
     private @Nullable ImmutableList<StackTraceElement> locationStackTrace;
@@ -84,6 +86,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private long locationStackTraceThreshold;
     // only used by transaction thread
     private @Nullable TimerImpl extendedTimer;
+    private int extendedTimerGeneration;
 
     static TraceEntryImpl createCompletedErrorEntry(ThreadContextImpl threadContext,
             TraceEntryImpl parentTraceEntry, @Nullable Object messageSupplier,
@@ -111,6 +114,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         this.messageSupplier = messageSupplier;
         this.startTick = startTick;
         this.syncTimer = syncTimer;
+        syncTimerGeneration = syncTimer == null ? 0 : syncTimer.getGeneration();
         this.asyncTimer = asyncTimer;
         revisedStartTick = startTick;
         selfNestingLevel = 1;
@@ -278,6 +282,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         long priorDurationNanos = endTick - revisedStartTick;
         revisedStartTick = currTick - priorDurationNanos;
         extendedTimer = syncTimer.extend(currTick);
+        extendedTimerGeneration = extendedTimer.getGeneration();
         extendQueryData(currTick);
     }
 
@@ -312,7 +317,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private void stopSync(long endTick) {
         this.endTick = endTick;
         // the timer interface for this class is only expose through return value of extend()
-        checkNotNull(extendedTimer).end(endTick);
+        checkNotNull(extendedTimer).end(endTick, extendedTimerGeneration);
         endQueryData(endTick);
         // it is not helpful to capture stack trace at end of async trace entry since it is
         // ended by a different thread (and by not capturing, it reduces thread safety needs)
@@ -422,7 +427,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         if (isAsync()) {
             asyncTimer.end(endTick);
         } else {
-            syncTimer.end(endTick);
+            syncTimer.end(endTick, syncTimerGeneration);
         }
         endQueryData(endTick);
         this.errorMessage = errorMessage;
@@ -454,7 +459,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         // syncTimer is only null for trace entries added using addEntryEntry(), and these trace
         // entries are not returned from plugin api so no way for stopSyncTimer() to be called
         checkNotNull(syncTimer);
-        syncTimer.stop();
+        syncTimer.stop(syncTimerGeneration);
         selfNestingLevel--;
         threadContext.popNonRootEntry(this);
     }
@@ -467,7 +472,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         // syncTimer is only null for trace entries added using addEntryEntry(), and these trace
         // entries are not returned from plugin api so no way for extendSyncTimer() to be called
         checkNotNull(syncTimer);
-        return syncTimer.extend();
+        return syncTimer.extend().markEscaped();
     }
 
     // this is used for logging, in particular in TraceEntryComponent.popEntryBailout()
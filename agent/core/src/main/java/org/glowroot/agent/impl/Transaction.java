@@ -134,6 +134,9 @@ public class Transaction {
     private final int maxServiceCallAggregates;
     private final int maxProfileSamples;
 
+    // see TransactionSampler
+    private final int sampleWeight;
+
     private final TransactionRegistry transactionRegistry;
     private final TransactionService transactionService;
     private final ConfigService configService;
@@ -176,6 +179,11 @@ public class Transaction {
 
     private final ThreadContextImpl mainThreadContext;
 
+    // number of holds (the completion path, plus any pending aggregate merges) that must be
+    // released before the main thread context's objects can be recycled (see
+    // TransactionObjectPool), or -1 if they will not be recycled
+    private final AtomicInteger recycleHolds;
+
     @GuardedBy("mainThreadContext")
     private @MonotonicNonNull List<ThreadContextImpl> auxThreadContexts;
     @GuardedBy("mainThreadContext")
@@ -213,7 +221,8 @@ public class Transaction {
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
             int maxTraceEntries, int maxQueryAggregates, int maxServiceCallAggregates,
-            int maxProfileSamples, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            int maxProfileSamples, int sampleWeight,
+            @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
             TransactionRegistry transactionRegistry, TransactionService transactionService,
             ConfigService configService, UserProfileScheduler userProfileScheduler,
@@ -226,22 +235,31 @@ public class Transaction {
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.maxProfileSamples = maxProfileSamples;
+        this.sampleWeight = sampleWeight;
         this.completionCallback = completionCallback;
         this.ticker = ticker;
         this.userProfileScheduler = userProfileScheduler;
         this.transactionRegistry = transactionRegistry;
         this.transactionService = transactionService;
         this.configService = configService;
+        // transactions are always started on their main thread
+        TransactionObjectPool objectPool = TransactionObjectPool.forCurrentThread();
         mainThreadContext = new ThreadContextImpl(castInitialized(this), null, null,
                 messageSupplier, timerName, startTick, captureThreadStats, maxQueryAggregates,
                 maxServiceCallAggregates, threadAllocatedBytes, false, ticker, threadContextHolder,
-                null);
+                null, objectPool);
+        recycleHolds = new AtomicInteger(objectPool == null ? -1 : 1);
     }
 
     long getStartTime() {
         return startTime;
     }
 
+    // queries and service calls are not collected for these transactions, see TransactionSampler
+    boolean isTimersAndCountsOnly() {
+        return sampleWeight == TransactionSampler.TIMERS_AND_COUNTS_ONLY;
+    }
+
     public String getTraceId() {
         if (traceId == null) {
             // double-checked locking works here because traceId is volatile
@@ -426,12 +444,30 @@ public class Transaction {
 
     private List<Aggregate.Query> getQueriesInternal(
             SharedQueryTextCollection sharedQueryTextCollection) {
-        QueryCollector collector = new QueryCollector(maxQueryAggregates,
-                AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER);
+        QueryCollector collector = newQueryCollector();
         mergeQueriesInto(collector);
         return collector.toAggregateProto(sharedQueryTextCollection, true);
     }
 
+    private QueryCollector newQueryCollector() {
+        return new QueryCollector(maxQueryAggregates,
+                AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER);
+    }
+
+    // queries are scaled by the sample weight so that this transaction stands in for the other
+    // transactions with the same name that were only captured as timers and counts, see
+    // TransactionSampler
+    void mergeWeightedQueriesInto(QueryCollector collector) {
+        if (sampleWeight == 1) {
+            mergeQueriesInto(collector);
+        } else if (sampleWeight > 1) {
+            QueryCollector queries = newQueryCollector();
+            mergeQueriesInto(queries);
+            queries.scale(sampleWeight);
+            queries.mergeQueriesInto(collector);
+        }
+    }
+
     public List<String> getSharedQueryTexts() {
         synchronized (sharedQueryTextCollectionLock) {
             if (sharedQueryTextCollection == null) {
@@ -441,6 +477,19 @@ public class Transaction {
         }
     }
 
+    // see mergeWeightedQueriesInto()
+    void mergeWeightedServiceCallsInto(ServiceCallCollector collector) {
+        if (sampleWeight == 1) {
+            mergeServiceCallsInto(collector);
+        } else if (sampleWeight > 1) {
+            ServiceCallCollector serviceCalls = new ServiceCallCollector(maxServiceCallAggregates,
+                    AdvancedConfig.OVERALL_AGGREGATE_SERVICE_CALLS_HARD_LIMIT_MULTIPLIER);
+            mergeServiceCallsInto(serviceCalls);
+            serviceCalls.scale(sampleWeight);
+            serviceCalls.mergeServiceCallsInto(collector);
+        }
+    }
+
     void mergeServiceCallsInto(ServiceCallCollector collector) {
         memoryBarrierRead();
         mainThreadContext.mergeServiceCallsInto(collector);
@@ -461,11 +510,21 @@ public class Transaction {
 
     // this method has side effect of incrementing counter
     boolean allowAnotherEntry() {
+        if (isTimersAndCountsOnly()) {
+            // this does not count against the entry limit, so that a trace captured for this
+            // transaction (e.g. because it was slow) is not reported as exceeding the entry limit
+            return false;
+        }
         return entryLimitCounter++ < maxTraceEntries;
     }
 
     // this method has side effect of incrementing counter
     boolean allowAnotherErrorEntry() {
+        if (isTimersAndCountsOnly()) {
+            // error entries are still captured (against the normal entry limit) since these are
+            // the only entries of the transaction
+            return entryLimitCounter++ < maxTraceEntries;
+        }
         // use higher entry limit when adding errors, but still need some kind of cap
         return entryLimitCounter++ < maxTraceEntries
                 || extraErrorEntryLimitCounter++ < maxTraceEntries;
@@ -704,14 +763,14 @@ public class Transaction {
                         parentThreadContextPriorEntry, AuxThreadRootMessageSupplier.INSTANCE,
                         auxTimerName, startTick, mainThreadContext.getCaptureThreadStats(),
                         maxQueryAggregates, maxServiceCallAggregates, threadAllocatedBytes, false,
-                        ticker, threadContextHolder, servletRequestInfo);
+                        ticker, threadContextHolder, servletRequestInfo, null);
                 auxThreadContexts.add(auxThreadContext);
             } else {
                 auxThreadContext = new ThreadContextImpl(this, mainThreadContext.getRootEntry(),
                         mainThreadContext.getTailEntry(), AuxThreadRootMessageSupplier.INSTANCE,
                         auxTimerName, startTick, mainThreadContext.getCaptureThreadStats(),
                         maxQueryAggregates, maxServiceCallAggregates, threadAllocatedBytes, true,
-                        ticker, threadContextHolder, servletRequestInfo);
+                        ticker, threadContextHolder, servletRequestInfo, null);
                 if (unmergedLimitExceededAuxThreadContexts == null) {
                     unmergedLimitExceededAuxThreadContexts = Sets.newHashSet();
                 }
@@ -821,6 +880,49 @@ public class Transaction {
         completionCallback.completed(this);
     }
 
+    // this must be called before reading timers or query data maps of a transaction from another
+    // thread (e.g. the UI), returns false if they have already been recycled, in which case the
+    // transaction was neither stored nor active, and so can just be ignored
+    public boolean preventRecycling() {
+        while (true) {
+            int holds = recycleHolds.get();
+            if (holds == -1) {
+                return true;
+            }
+            if (holds == 0) {
+                return false;
+            }
+            if (recycleHolds.compareAndSet(holds, -1)) {
+                return true;
+            }
+        }
+    }
+
+    // must only be called by holders of an existing hold
+    void retainForRecycling() {
+        while (true) {
+            int holds = recycleHolds.get();
+            if (holds == -1 || recycleHolds.compareAndSet(holds, holds + 1)) {
+                return;
+            }
+        }
+    }
+
+    void releaseForRecycling() {
+        while (true) {
+            int holds = recycleHolds.get();
+            if (holds == -1) {
+                return;
+            }
+            if (recycleHolds.compareAndSet(holds, holds - 1)) {
+                if (holds == 1) {
+                    mainThreadContext.releaseToObjectPool();
+                }
+                return;
+            }
+        }
+    }
+
     // called by the transaction thread
     void onCompleteWillStoreTrace(long captureTime) {
         this.captureTime = captureTime;
@@ -130,8 +130,15 @@ public class TransactionCollector {
         long captureTime = aggregator.add(transaction);
         final boolean slow = shouldStoreSlow(transaction);
         if (!slow && !shouldStoreError(transaction)) {
+            if (transaction.isAsync()) {
+                // the main thread context may still be referenced from other threads
+                transaction.preventRecycling();
+            } else {
+                transaction.releaseForRecycling();
+            }
             return;
         }
+        transaction.preventRecycling();
         // limit doesn't apply to transactions that were already (partially) stored to make sure
         // they don't get left out in case they cause an avalanche of slowness
         if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
@@ -165,6 +172,10 @@ public class TransactionCollector {
     // no need to throttle partial trace storage since throttling is handled upstream by using a
     // single thread executor in PartialTraceStorageWatcher
     public void storePartialTrace(Transaction transaction) {
+        if (!transaction.preventRecycling()) {
+            // transaction has already completed and was not stored
+            return;
+        }
         try {
             TraceReader traceReader = TraceCreator.createTraceReaderForPartial(transaction,
                     clock.currentTimeMillis(), ticker.read());
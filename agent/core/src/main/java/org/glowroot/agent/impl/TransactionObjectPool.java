@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.model.QueryDataMap;
+
+// per-thread pool of the timers and query data maps of main thread contexts, so that these can be
+// reused by the next transaction on the same thread instead of becoming garbage
+//
+// a main thread context is only released back to its pool once its transaction has been merged
+// into the aggregates and is known not to be stored as a trace or read by the UI (see
+// Transaction.preventRecycling()), which happens on another thread, so released thread contexts
+// are handed back through a lock-free stack and are only taken apart by the owning thread
+//
+// this is opt-in since it relies on plugins not holding onto timers or thread contexts after the
+// transaction has completed
+final class TransactionObjectPool {
+
+    static final boolean ENABLED =
+            Boolean.getBoolean("glowroot.internal.transaction.recycleObjects");
+
+    // these limits bound the memory held by each thread's pool
+    private static final int MAX_RELEASED_THREAD_CONTEXTS = 64;
+    private static final int MAX_FREE_TIMERS = 1024;
+    private static final int MAX_FREE_QUERY_DATA_MAPS = 64;
+
+    private static final ThreadLocal<TransactionObjectPool> pools =
+            new ThreadLocal<TransactionObjectPool>() {
+                @Override
+                protected TransactionObjectPool initialValue() {
+                    return new TransactionObjectPool();
+                }
+            };
+
+    // thread contexts released by other threads, linked through ThreadContextImpl.nextReleased
+    private final AtomicReference</*@Nullable*/ ThreadContextImpl> releasedThreadContexts =
+            new AtomicReference</*@Nullable*/ ThreadContextImpl>();
+    private final AtomicInteger releasedThreadContextCount = new AtomicInteger();
+
+    // the free lists are only accessed by the owning thread
+    //
+    // free timers are linked through TimerImpl.nextFree, and the child timers of a free timer are
+    // only added to the free list once that timer is reused, which avoids walking the timer tree
+    private @Nullable TimerImpl freeTimers;
+    private int freeTimerCount;
+    private final Deque<QueryDataMap> freeQueryDataMaps = new ArrayDeque<QueryDataMap>();
+
+    @VisibleForTesting
+    TransactionObjectPool() {}
+
+    static @Nullable TransactionObjectPool forCurrentThread() {
+        return ENABLED ? pools.get() : null;
+    }
+
+    // called by any thread, once the thread context's transaction can no longer be read
+    void release(ThreadContextImpl threadContext) {
+        if (releasedThreadContextCount.incrementAndGet() > MAX_RELEASED_THREAD_CONTEXTS) {
+            // owning thread has not been taking them, leave this one to the garbage collector
+            releasedThreadContextCount.decrementAndGet();
+            return;
+        }
+        while (true) {
+            ThreadContextImpl head = releasedThreadContexts.get();
+            threadContext.setNextReleased(head);
+            if (releasedThreadContexts.compareAndSet(head, threadContext)) {
+                return;
+            }
+        }
+    }
+
+    // only called by the owning thread, caller must re-initialize the returned timer
+    @Nullable
+    TimerImpl acquireTimer() {
+        TimerImpl timer = freeTimers;
+        if (timer == null) {
+            takeReleasedThreadContexts();
+            timer = freeTimers;
+            if (timer == null) {
+                return null;
+            }
+        }
+        freeTimers = timer.getNextFree();
+        freeTimerCount--;
+        timer.releaseChildTimers(this);
+        return timer;
+    }
+
+    // only called by the owning thread
+    QueryDataMap acquireQueryDataMap(String type) {
+        QueryDataMap queryDataMap = freeQueryDataMaps.poll();
+        if (queryDataMap == null) {
+            takeReleasedThreadContexts();
+            queryDataMap = freeQueryDataMaps.poll();
+            if (queryDataMap == null) {
+                return new QueryDataMap(type);
+            }
+        }
+        queryDataMap.reset(type);
+        return queryDataMap;
+    }
+
+    // only called by the owning thread
+    void addFreeTimer(TimerImpl timer) {
+        if (timer.isEscaped()) {
+            // a plugin may still hold on to this timer, but its child timers can still be reused
+            timer.releaseChildTimers(this);
+            return;
+        }
+        if (freeTimerCount < MAX_FREE_TIMERS) {
+            timer.setNextFree(freeTimers);
+            freeTimers = timer;
+            freeTimerCount++;
+        }
+    }
+
+    // only called by the owning thread
+    void addFreeQueryDataMap(QueryDataMap queryDataMap) {
+        if (freeQueryDataMaps.size() < MAX_FREE_QUERY_DATA_MAPS) {
+            freeQueryDataMaps.add(queryDataMap);
+        }
+    }
+
+    private void takeReleasedThreadContexts() {
+        if (releasedThreadContexts.get() == null) {
+            // avoid the more expensive atomic swap in the common case where there are none
+            return;
+        }
+        ThreadContextImpl threadContext = releasedThreadContexts.getAndSet(null);
+        int count = 0;
+        while (threadContext != null) {
+            threadContext.recycleInto(this);
+            ThreadContextImpl next = threadContext.getNextReleased();
+            threadContext.setNextReleased(null);
+            threadContext = next;
+            count++;
+        }
+        if (count > 0) {
+            releasedThreadContextCount.addAndGet(-count);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// adaptive per transaction name sampling, used to cap the overhead of very high volume (and
+// typically low value) transactions, e.g. health checks and static assets
+//
+// once a transaction name goes over the target rate, only one out of every N of its transactions
+// is fully captured (trace entries, queries and service calls), and the rest are only captured as
+// timers and counts
+//
+// the fully captured transaction is given a sample weight of N, so that its queries and service
+// calls stand in for the N - 1 transactions that were only captured as timers and counts, which
+// keeps the aggregated query and service call totals statistically correct (transaction counts,
+// timers and percentiles are still collected from every transaction, so need no weighting)
+class TransactionSampler {
+
+    // sample weight of transactions that are only captured as timers and counts
+    static final int TIMERS_AND_COUNTS_ONLY = 0;
+
+    private static final int TARGET_RATE_PER_SECOND =
+            Integer.getInteger("glowroot.internal.sampling.targetRatePerSecond", 0);
+
+    private static final double SAMPLE_FRACTION =
+            parseDouble(System.getProperty("glowroot.internal.sampling.fraction"), 0.01);
+
+    // bounds the memory used for tracking rates, transaction names beyond this are not sampled
+    private static final int MAX_TRACKED_TRANSACTION_NAMES = 10000;
+
+    private final int targetRatePerSecond;
+    private final int sampleEvery;
+
+    // key is transaction type + '\0' + transaction name
+    private final ConcurrentMap<String, RateTracker> rateTrackers = Maps.newConcurrentMap();
+    private final AtomicInteger rateTrackerCount = new AtomicInteger();
+
+    static TransactionSampler create() {
+        return new TransactionSampler(TARGET_RATE_PER_SECOND, SAMPLE_FRACTION);
+    }
+
+    @VisibleForTesting
+    TransactionSampler(int targetRatePerSecond, double sampleFraction) {
+        this.targetRatePerSecond = targetRatePerSecond;
+        if (sampleFraction <= 0 || sampleFraction >= 1) {
+            sampleEvery = 1;
+        } else {
+            sampleEvery = (int) Math.round(1 / sampleFraction);
+        }
+    }
+
+    // returns TIMERS_AND_COUNTS_ONLY, or the (positive) sample weight of a fully captured
+    // transaction
+    int getSampleWeight(String transactionType, String transactionName, long currentTimeMillis) {
+        if (targetRatePerSecond <= 0 || sampleEvery == 1) {
+            return 1;
+        }
+        RateTracker rateTracker = getRateTracker(transactionType, transactionName,
+                currentTimeMillis);
+        if (rateTracker == null) {
+            return 1;
+        }
+        return rateTracker.getSampleWeight(currentTimeMillis);
+    }
+
+    private @Nullable RateTracker getRateTracker(String transactionType, String transactionName,
+            long currentTimeMillis) {
+        String key = transactionType + '\0' + transactionName;
+        RateTracker rateTracker = rateTrackers.get(key);
+        if (rateTracker != null) {
+            return rateTracker;
+        }
+        if (rateTrackerCount.get() >= MAX_TRACKED_TRANSACTION_NAMES) {
+            return null;
+        }
+        rateTracker = new RateTracker(currentTimeMillis);
+        RateTracker existing = rateTrackers.putIfAbsent(key, rateTracker);
+        if (existing != null) {
+            return existing;
+        }
+        rateTrackerCount.incrementAndGet();
+        return rateTracker;
+    }
+
+    private static double parseDouble(@Nullable String value, double defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private class RateTracker {
+
+        private final AtomicLong windowStartMillis;
+        private final AtomicInteger windowCount = new AtomicInteger();
+
+        // once over the target rate, this stays set until a full window under the target rate
+        private volatile boolean overTargetRate;
+
+        private final AtomicInteger sampleCounter = new AtomicInteger();
+
+        private RateTracker(long currentTimeMillis) {
+            windowStartMillis = new AtomicLong(currentTimeMillis);
+        }
+
+        private int getSampleWeight(long currentTimeMillis) {
+            long windowStart = windowStartMillis.get();
+            long windowMillis = currentTimeMillis - windowStart;
+            if (windowMillis >= 1000
+                    && windowStartMillis.compareAndSet(windowStart, currentTimeMillis)) {
+                // it's ok if a few transactions from the next window are counted in this window
+                int count = windowCount.getAndSet(0);
+                overTargetRate = count > targetRatePerSecond * windowMillis / 1000.0;
+            }
+            if (windowCount.incrementAndGet() > targetRatePerSecond) {
+                // switch over without waiting for the end of the current window
+                overTargetRate = true;
+            }
+            if (!overTargetRate) {
+                return 1;
+            }
+            // the sample counter is never reset, so that the weights stay correct across windows
+            if ((sampleCounter.getAndIncrement() & Integer.MAX_VALUE) % sampleEvery == 0) {
+                return sampleEvery;
+            }
+            return TIMERS_AND_COUNTS_ONLY;
+        }
+    }
+}
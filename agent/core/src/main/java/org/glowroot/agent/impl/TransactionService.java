@@ -43,6 +43,8 @@ public class TransactionService implements ConfigListener {
     private final TransactionCompletionCallback transactionCompletionCallback =
             new TransactionCompletionCallback();
 
+    private final TransactionSampler transactionSampler = TransactionSampler.create();
+
     // cache for fast read access
     // visibility is provided by memoryBarrier below
     private boolean captureThreadStats;
@@ -90,9 +92,12 @@ public class TransactionService implements ConfigListener {
         // ensure visibility of recent configuration updates
         configService.readMemoryBarrier();
         long startTick = ticker.read();
-        Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
-                transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
-                maxTraceEntries, maxQueryAggregates, maxServiceCallAggregates, maxProfileSamples,
+        long startTime = clock.currentTimeMillis();
+        int sampleWeight =
+                transactionSampler.getSampleWeight(transactionType, transactionName, startTime);
+        Transaction transaction = new Transaction(startTime, startTick, transactionType,
+                transactionName, messageSupplier, timerName, captureThreadStats, maxTraceEntries,
+                maxQueryAggregates, maxServiceCallAggregates, maxProfileSamples, sampleWeight,
                 threadAllocatedBytes, transactionCompletionCallback, ticker, transactionRegistry,
                 this, configService, userProfileScheduler, threadContextHolder);
         SelfRemovableEntry transactionEntry = transactionRegistry.addTransaction(transaction);
@@ -66,6 +66,7 @@ import org.glowroot.agent.util.JavaVersion;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
 import org.glowroot.agent.util.OptionalService;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.agent.util.Tickers;
 import org.glowroot.agent.weaving.AdviceCache;
 import org.glowroot.agent.weaving.AnalyzedWorld;
@@ -73,6 +74,7 @@ import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.PointcutClassFileTransformer;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -102,6 +104,7 @@ public class AgentModule {
     private final AdviceCache adviceCache;
     private final AnalyzedWorld analyzedWorld;
     private final Weaver weaver;
+    private final @Nullable WeavingCache weavingCache;
     private final Random random;
 
     private final UserProfileScheduler userProfileScheduler;
@@ -109,12 +112,14 @@ public class AgentModule {
     private final BytecodeServiceImpl bytecodeService;
 
     private volatile @MonotonicNonNull DeadlockedActiveWeavingRunnable deadlockedActiveWeavingRunnable;
+    private volatile @MonotonicNonNull WeavingCacheFlushRunnable weavingCacheFlushRunnable;
     private volatile @MonotonicNonNull Aggregator aggregator;
     private volatile @MonotonicNonNull TransactionCollector transactionCollector;
 
     private volatile @MonotonicNonNull LazyPlatformMBeanServer lazyPlatformMBeanServer;
 
     private volatile @MonotonicNonNull GaugeCollector gaugeCollector;
+    private volatile @MonotonicNonNull AgentOverhead agentOverhead;
     private volatile @MonotonicNonNull StackTraceCollector stackTraceCollector;
 
     private volatile @MonotonicNonNull ImmediateTraceStoreWatcher immedateTraceStoreWatcher;
@@ -157,6 +162,10 @@ public class AgentModule {
         weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, ticker,
                 timerNameCache, configService);
+        weavingCache = WeavingCache.create(tmpDir, adviceCache, analyzedWorld, ticker);
+        if (weavingCache != null) {
+            weaver.setWeavingCache(weavingCache);
+        }
 
         // need to initialize glowroot-agent-api, glowroot-agent-plugin-api and glowroot-weaving-api
         // services before enabling instrumentation
@@ -262,12 +271,17 @@ public class AgentModule {
 
         deadlockedActiveWeavingRunnable = new DeadlockedActiveWeavingRunnable(weaver);
         deadlockedActiveWeavingRunnable.scheduleWithFixedDelay(backgroundExecutor, 5, 5, SECONDS);
+        if (weavingCache != null) {
+            weavingCacheFlushRunnable = new WeavingCacheFlushRunnable(weavingCache);
+            weavingCacheFlushRunnable.scheduleWithFixedDelay(backgroundExecutor, 10, 10, SECONDS);
+        }
 
         // complete initialization of glowroot-agent-api, glowroot-agent-plugin-api and
         // glowroot-weaving-api services
         userProfileScheduler.setBackgroundExecutor(backgroundExecutor);
         OptionalService<ThreadAllocatedBytes> threadAllocatedBytes = ThreadAllocatedBytes.create();
         transactionService.setThreadAllocatedBytes(threadAllocatedBytes.getService());
+        ThreadFactories.setThreadAllocatedBytes(threadAllocatedBytes.getService());
         aggregator = new Aggregator(collector, configService, ROLLUP_0_INTERVAL_MILLIS, clock);
         transactionCollector =
                 new TransactionCollector(configService, collector, aggregator, clock, ticker);
@@ -294,6 +308,9 @@ public class AgentModule {
                         "org.glowroot:type=FileSystem,name=" + name);
             }
         }
+        agentOverhead = new AgentOverhead(aggregator, transactionCollector);
+        lazyPlatformMBeanServer.lazyRegisterMBean(agentOverhead,
+                "org.glowroot:type=AgentOverhead");
         gaugeCollector = new GaugeCollector(configService, collector, lazyPlatformMBeanServer,
                 instrumentation, clock, ticker);
         // using fixed rate to keep gauge collections close to on the second mark
@@ -320,6 +337,13 @@ public class AgentModule {
         return configService;
     }
 
+    AgentOverhead getAgentOverhead() {
+        if (agentOverhead == null) {
+            throw new IllegalStateException("onEnteringMain() was never called");
+        }
+        return agentOverhead;
+    }
+
     public LazyPlatformMBeanServer getLazyPlatformMBeanServer() {
         if (lazyPlatformMBeanServer == null) {
             throw new IllegalStateException("onEnteringMain() was never called");
@@ -474,6 +498,9 @@ public class AgentModule {
         if (deadlockedActiveWeavingRunnable != null) {
             deadlockedActiveWeavingRunnable.cancel();
         }
+        if (weavingCacheFlushRunnable != null) {
+            weavingCacheFlushRunnable.cancel();
+        }
     }
 
     private static class DeadlockedActiveWeavingRunnable extends ScheduledRunnable {
@@ -489,4 +516,18 @@ public class AgentModule {
             weaver.checkForDeadlockedActiveWeaving();
         }
     }
+
+    private static class WeavingCacheFlushRunnable extends ScheduledRunnable {
+
+        private final WeavingCache weavingCache;
+
+        private WeavingCacheFlushRunnable(WeavingCache weavingCache) {
+            this.weavingCache = weavingCache;
+        }
+
+        @Override
+        public void runInternal() {
+            weavingCache.flush();
+        }
+    }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.central.CentralCollector;
+import org.glowroot.agent.impl.Aggregator;
+import org.glowroot.agent.impl.TransactionCollector;
+import org.glowroot.agent.util.AgentOverheadCounters;
+import org.glowroot.agent.util.ThreadFactories;
+
+// times are in nanoseconds
+//
+// all of the cumulative values are monotonic and this mbean keeps no state between reads, so that
+// any number of jmx readers can read it without affecting each other (per transaction, per capture
+// and per class averages can be derived from the rates of the cumulative times and counts)
+class AgentOverhead implements AgentOverheadMXBean {
+
+    private final Aggregator aggregator;
+    private final TransactionCollector transactionCollector;
+
+    private volatile @Nullable CentralCollector centralCollector;
+
+    AgentOverhead(Aggregator aggregator, TransactionCollector transactionCollector) {
+        this.aggregator = aggregator;
+        this.transactionCollector = transactionCollector;
+    }
+
+    void setCentralCollector(CentralCollector centralCollector) {
+        this.centralCollector = centralCollector;
+    }
+
+    @Override
+    public long getAggregationTime() {
+        return AgentOverheadCounters.getAggregationNanos();
+    }
+
+    @Override
+    public long getStackTraceCaptureTime() {
+        return AgentOverheadCounters.getStackTraceCaptureNanos();
+    }
+
+    @Override
+    public long getWeavingTime() {
+        return AgentOverheadCounters.getWeavingNanos();
+    }
+
+    // bytes allocated by the agent's own threads, e.g. aggregating, storing traces, collecting
+    // gauges and sending data to the central collector (including threads that have exited, so
+    // that this is monotonic and can be collected as a counter)
+    @Override
+    public long getAllocatedBytes() {
+        return ThreadFactories.getAgentAllocatedBytes();
+    }
+
+    @Override
+    public long getAggregatedTransactionCount() {
+        return AgentOverheadCounters.getAggregatedTransactionCount();
+    }
+
+    @Override
+    public long getStackTraceCaptureCount() {
+        return AgentOverheadCounters.getStackTraceCaptureCount();
+    }
+
+    @Override
+    public long getWovenClassCount() {
+        return AgentOverheadCounters.getWovenClassCount();
+    }
+
+    @Override
+    public int getAggregatorQueueDepth() {
+        return aggregator.getQueueDepth();
+    }
+
+    @Override
+    public int getTransactionCollectorQueueDepth() {
+        return transactionCollector.getPendingTransactions().size();
+    }
+
+    @Override
+    public int getCentralConnectionQueueDepth() {
+        CentralCollector centralCollector = this.centralCollector;
+        return centralCollector == null ? 0 : centralCollector.getPendingRequestCount();
+    }
+
+    @Override
+    public long getWeavingCacheHitCount() {
+        return AgentOverheadCounters.getWeavingCacheHitCount();
+    }
+
+    @Override
+    public long getWeavingCacheMissCount() {
+        return AgentOverheadCounters.getWeavingCacheMissCount();
+    }
+
+    @Override
+    public double getWeavingCacheHitPercentage() {
+        long hitCount = AgentOverheadCounters.getWeavingCacheHitCount();
+        long totalCount = hitCount + AgentOverheadCounters.getWeavingCacheMissCount();
+        if (totalCount == 0) {
+            return 0;
+        }
+        return 100.0 * hitCount / totalCount;
+    }
+
+    @Override
+    public long getWeavingCacheTimeSaved() {
+        return AgentOverheadCounters.getWeavingCacheSavedNanos();
+    }
+}
@@ -133,6 +133,7 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
                             agentModule.getLiveWeavingService(),
                             agentModule.getLiveTraceRepository(), agentConfigUpdater,
                             configService);
+                    agentModule.getAgentOverhead().setCentralCollector(centralCollector);
                     if (collectorProxyConstructor == null) {
                         collector = centralCollector;
                     } else {
@@ -66,11 +66,14 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
 
     // checks active traces first, then pending traces (and finally caller should check stored
     // traces) to make sure that the trace is not missed if it is in transition between these states
+    //
+    // transaction.preventRecycling() returns false if the transaction has completed in the meantime
+    // without being stored, in which case it is no longer available
     @Override
     public Trace. /*@Nullable*/ Header getHeader(String agentId, String traceId) throws Exception {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
+            if (transaction.getTraceId().equals(traceId) && transaction.preventRecycling()) {
                 return createTraceHeader(transaction);
             }
         }
@@ -81,7 +84,7 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
     public @Nullable Entries getEntries(String agentId, String traceId) throws Exception {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
+            if (transaction.getTraceId().equals(traceId) && transaction.preventRecycling()) {
                 CollectingEntryVisitor visitor = new CollectingEntryVisitor();
                 transaction.visitEntries(ticker.read(), visitor);
                 return ImmutableEntries.builder()
@@ -98,7 +101,7 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
     public @Nullable Queries getQueries(String agentId, String traceId) throws Exception {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
+            if (transaction.getTraceId().equals(traceId) && transaction.preventRecycling()) {
                 return ImmutableQueries.builder()
                         .addAllQueries(transaction.getQueries())
                         .addAllSharedQueryTexts(
@@ -114,7 +117,7 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
             throws IOException {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
+            if (transaction.getTraceId().equals(traceId) && transaction.preventRecycling()) {
                 return transaction.getMainThreadProfileProtobuf();
             }
         }
@@ -126,7 +129,7 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
             throws IOException {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
+            if (transaction.getTraceId().equals(traceId) && transaction.preventRecycling()) {
                 return transaction.getAuxThreadProfileProtobuf();
             }
         }
@@ -137,7 +140,7 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
     public @Nullable Trace getFullTrace(String agentId, String traceId) throws Exception {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
+            if (transaction.getTraceId().equals(traceId) && transaction.preventRecycling()) {
                 CollectingTraceVisitor traceVisitor = new CollectingTraceVisitor();
                 TraceReader traceReader = createTraceReader(transaction);
                 traceReader.accept(traceVisitor);
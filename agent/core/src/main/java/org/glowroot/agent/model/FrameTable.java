@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// interns stack trace elements so that captured stack traces can be retained as int arrays of frame
+// ids, instead of retaining a separate StackTraceElement instance for every frame of every sample
+//
+// this only reduces what is retained, capturing a sample still allocates the StackTraceElement[]
+// (and its elements) returned by ThreadInfo.getStackTrace()
+public class FrameTable {
+
+    private static final int DEFAULT_MAX_FRAMES =
+            Integer.getInteger("glowroot.internal.profiling.frameTableLimit", 100000);
+
+    private static final AtomicReference<FrameTable> SHARED =
+            new AtomicReference<FrameTable>(new FrameTable(DEFAULT_MAX_FRAMES));
+
+    private final int maxFrames;
+
+    private final ConcurrentMap<StackTraceElement, Integer> frameIds = Maps.newConcurrentMap();
+
+    // array reference is only replaced (when growing) under lock, and each element is written
+    // before its frame id is published via frameIds
+    private volatile StackTraceElement[] frames = new StackTraceElement[1024];
+
+    private final Object lock = new Object();
+    @GuardedBy("lock")
+    private int size;
+
+    private volatile boolean full;
+
+    @VisibleForTesting
+    FrameTable(int maxFrames) {
+        this.maxFrames = maxFrames;
+    }
+
+    // once the shared frame table is full, it is replaced by a new (empty) frame table for profiles
+    // that start after that, instead of the frame table being bypassed from then on
+    //
+    // frame ids are only meaningful to the frame table that assigned them, so each profile holds on
+    // to the frame table it started with, and a replaced frame table is collected along with the
+    // last profile that references it
+    public static FrameTable shared() {
+        return getOrReplaceIfFull(SHARED, DEFAULT_MAX_FRAMES);
+    }
+
+    @VisibleForTesting
+    static FrameTable getOrReplaceIfFull(AtomicReference<FrameTable> frameTableHolder,
+            int maxFrames) {
+        FrameTable frameTable = frameTableHolder.get();
+        if (!frameTable.full) {
+            return frameTable;
+        }
+        FrameTable newFrameTable = new FrameTable(maxFrames);
+        if (frameTableHolder.compareAndSet(frameTable, newFrameTable)) {
+            return newFrameTable;
+        }
+        // another thread replaced it first
+        return frameTableHolder.get();
+    }
+
+    // returns null if the table is full (this cap is in case of unbounded generation of distinct
+    // frames, e.g. from dynamically generated classes)
+    public int /*@Nullable*/ [] intern(StackTraceElement[] stackTrace) {
+        int[] ids = new int[stackTrace.length];
+        for (int i = 0; i < stackTrace.length; i++) {
+            StackTraceElement frame = stackTrace[i];
+            Integer id = frameIds.get(frame);
+            if (id == null) {
+                id = add(frame);
+                if (id == null) {
+                    return null;
+                }
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    public StackTraceElement get(int id) {
+        return frames[id];
+    }
+
+    public List<StackTraceElement> asList(int[] ids) {
+        return new FrameList(ids);
+    }
+
+    @VisibleForTesting
+    int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    private @Nullable Integer add(StackTraceElement frame) {
+        synchronized (lock) {
+            Integer id = frameIds.get(frame);
+            if (id != null) {
+                return id;
+            }
+            if (size == maxFrames) {
+                full = true;
+                return null;
+            }
+            if (size == frames.length) {
+                frames = Arrays.copyOf(frames, Math.min(size * 2, maxFrames));
+            }
+            frames[size] = frame;
+            id = size++;
+            frameIds.put(frame, id);
+            return id;
+        }
+    }
+
+    private class FrameList extends AbstractList<StackTraceElement> implements RandomAccess {
+
+        private final int[] ids;
+
+        private FrameList(int[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public StackTraceElement get(int index) {
+            return frames[ids[index]];
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+    }
+}
@@ -67,6 +67,12 @@ class MutableQuery {
         this.active = active;
     }
 
+    void scale(int weight) {
+        totalDurationNanos *= weight;
+        executionCount *= weight;
+        totalRows *= weight;
+    }
+
     void add(MutableQuery query) {
         addToTotalDurationNanos(query.totalDurationNanos);
         addToExecutionCount(query.executionCount);
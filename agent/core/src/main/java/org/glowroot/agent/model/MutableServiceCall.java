@@ -38,6 +38,11 @@ class MutableServiceCall {
         this.executionCount += executionCount;
     }
 
+    void scale(int weight) {
+        totalDurationNanos *= weight;
+        executionCount *= weight;
+    }
+
     void add(MutableServiceCall serviceCall) {
         addToTotalDurationNanos(serviceCall.totalDurationNanos);
         addToExecutionCount(serviceCall.executionCount);
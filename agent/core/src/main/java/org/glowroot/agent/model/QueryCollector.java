@@ -22,15 +22,12 @@ import java.util.Map;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.hash.Hashing;
 import com.google.common.primitives.Doubles;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.common.Constants;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
-import static com.google.common.base.Charsets.UTF_8;
-
 public class QueryCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
@@ -114,6 +111,18 @@ public class QueryCollector {
         aggregateQuery.setActive(active);
     }
 
+    // used to apply a sample weight, see TransactionSampler
+    public void scale(int weight) {
+        for (Map<String, MutableQuery> queriesForType : queries.values()) {
+            for (MutableQuery query : queriesForType.values()) {
+                query.scale(weight);
+            }
+        }
+        for (MutableQuery limitExceededBucket : limitExceededBuckets.values()) {
+            limitExceededBucket.scale(weight);
+        }
+    }
+
     public void mergeQueriesInto(QueryCollector collector) {
         for (Map.Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
             for (Map.Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
@@ -139,7 +148,7 @@ public class QueryCollector {
                 if (fullQueryText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     truncatedQueryText =
                             fullQueryText.substring(0, Constants.AGGREGATE_QUERY_TEXT_TRUNCATE);
-                    fullQueryTextSha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
+                    fullQueryTextSha1 = QueryTextStore.sha1(fullQueryText);
                 } else {
                     truncatedQueryText = fullQueryText;
                     fullQueryTextSha1 = null;
@@ -165,8 +174,7 @@ public class QueryCollector {
                 if (fullQueryText.length() <= Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     continue;
                 }
-                String sha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
-                if (fullQueryTextSha1.equals(sha1)) {
+                if (fullQueryTextSha1.equals(QueryTextStore.sha1(fullQueryText))) {
                     return fullQueryText;
                 }
             }
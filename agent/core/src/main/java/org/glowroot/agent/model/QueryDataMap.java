@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.model;
 
+import java.util.Arrays;
+
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -24,7 +26,8 @@ public class QueryDataMap {
 
     private static final Object CHAINED_KEY = new Object();
 
-    private final String type;
+    // only non-final so that the map can be reused by TransactionObjectPool
+    private String type;
 
     // capacity must always be a power of 2, see comments in get() and put()
     private int capacity = 4;
@@ -37,6 +40,13 @@ public class QueryDataMap {
         this.type = type;
     }
 
+    // retains the current capacity
+    public void reset(String type) {
+        this.type = type;
+        Arrays.fill(table, null);
+        size = 0;
+    }
+
     public String getType() {
         return type;
     }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.hash.Hashing;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// applications (and especially ORMs) commonly build a new (but equal) query text string for every
+// execution, which results in a separate copy of the (possibly multi-kilobyte) query text being
+// retained by every transaction that is in progress or pending storage, so query texts are shared
+// by content across all transactions, traces and aggregate intervals
+//
+// the sha1 that traces and aggregates use to reference a full query text is computed once per
+// shared query text, instead of once per trace and aggregate that references it
+//
+// query texts and their sha1s are held weakly, so they are released as soon as no transaction,
+// trace or aggregate interval references them any more (the garbage collector does the reference
+// counting, since transactions do not have an explicit end of life once a trace is captured)
+public class QueryTextStore {
+
+    private static final QueryTextStore INSTANCE =
+            new QueryTextStore(!Boolean.getBoolean("glowroot.internal.queryText.disableSharing"));
+
+    private final boolean sharingEnabled;
+    private final Interner<String> interner = Interners.newWeakInterner();
+
+    // weak keys use identity equality, which is what makes this cheap once query texts are shared
+    private final Cache<String, String> sha1s = CacheBuilder.newBuilder().weakKeys().build();
+
+    @VisibleForTesting
+    QueryTextStore(boolean sharingEnabled) {
+        this.sharingEnabled = sharingEnabled;
+    }
+
+    // this is only called when a query is first added to a transaction's query map (not on every
+    // execution), since it hashes the query text on the application thread
+    public static String share(String queryText) {
+        return INSTANCE.shareInternal(queryText);
+    }
+
+    public static String sha1(String queryText) {
+        return INSTANCE.sha1Internal(queryText);
+    }
+
+    @VisibleForTesting
+    String shareInternal(String queryText) {
+        if (!sharingEnabled) {
+            return queryText;
+        }
+        return interner.intern(queryText);
+    }
+
+    @VisibleForTesting
+    String sha1Internal(String queryText) {
+        String sha1 = sha1s.getIfPresent(queryText);
+        if (sha1 == null) {
+            sha1 = Hashing.sha1().hashString(queryText, UTF_8).toString();
+            sha1s.put(queryText, sha1);
+        }
+        return sha1;
+    }
+
+    @VisibleForTesting
+    long getCachedSha1Count() {
+        sha1s.cleanUp();
+        return sha1s.size();
+    }
+}
@@ -109,6 +109,18 @@ public class ServiceCallCollector {
         aggregateServiceCall.addToExecutionCount(executionCount);
     }
 
+    // used to apply a sample weight, see TransactionSampler
+    public void scale(int weight) {
+        for (Map<String, MutableServiceCall> serviceCallsForType : serviceCalls.values()) {
+            for (MutableServiceCall serviceCall : serviceCallsForType.values()) {
+                serviceCall.scale(weight);
+            }
+        }
+        for (MutableServiceCall limitExceededBucket : limitExceededBuckets.values()) {
+            limitExceededBucket.scale(weight);
+        }
+    }
+
     public void mergeServiceCallsInto(ServiceCallCollector collector) {
         for (Map.Entry<String, Map<String, MutableServiceCall>> outerEntry : serviceCalls
                 .entrySet()) {
@@ -29,10 +29,18 @@ import org.glowroot.common.model.MutableProfile;
 
 public class ThreadProfile {
 
+    // truncation drops the leaf frames and keeps the root frames, since the profile tree is merged
+    // starting from the root frame (this only limits what is retained, the full stack trace is
+    // still captured)
+    private static final int MAX_STACK_TRACE_DEPTH =
+            Integer.getInteger("glowroot.internal.profiling.maxStackTraceDepth", Integer.MAX_VALUE);
+
     private final int maxSamples;
+    private final FrameTable frameTable;
     private final Object lock = new Object();
+    // stack traces are retained as frame ids from the frame table until they are merged
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
+    private final List<int[]> unmergedStackTraces = Lists.newArrayList();
     @GuardedBy("lock")
     private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
     @GuardedBy("lock")
@@ -40,9 +48,14 @@ public class ThreadProfile {
     @GuardedBy("lock")
     private long sampleCount;
 
-    @VisibleForTesting
     public ThreadProfile(int maxSamples) {
+        this(maxSamples, FrameTable.shared());
+    }
+
+    @VisibleForTesting
+    ThreadProfile(int maxSamples, FrameTable frameTable) {
         this.maxSamples = maxSamples;
+        this.frameTable = frameTable;
     }
 
     public void mergeInto(MutableProfile profile) {
@@ -88,28 +101,45 @@ public class ThreadProfile {
             if (++sampleCount > maxSamples) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
+            StackTraceElement[] stackTrace =
+                    truncate(threadInfo.getStackTrace(), MAX_STACK_TRACE_DEPTH);
             Thread.State threadState = threadInfo.getThreadState();
             if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
-                unmergedStackTraceThreadStates.add(threadState);
-                if (unmergedStackTraces.size() >= 10) {
-                    // merged stack tree takes up less memory
-                    profile = new MutableProfile();
-                    mergeTheUnmergedInto(profile);
-                    unmergedStackTraces.clear();
-                    unmergedStackTraceThreadStates.clear();
+                int[] frameIds = frameTable.intern(stackTrace);
+                if (frameIds != null) {
+                    unmergedStackTraces.add(frameIds);
+                    unmergedStackTraceThreadStates.add(threadState);
+                    if (unmergedStackTraces.size() < 10) {
+                        return;
+                    }
+                }
+                // merged stack tree takes up less memory (and doesn't need the frame table,
+                // which is only full in the unusual case of a huge number of distinct frames)
+                profile = new MutableProfile();
+                mergeTheUnmergedInto(profile);
+                unmergedStackTraces.clear();
+                unmergedStackTraceThreadStates.clear();
+                if (frameIds != null) {
+                    return;
                 }
-            } else {
-                profile.merge(stackTrace, threadState);
             }
+            profile.merge(Arrays.asList(stackTrace), threadState);
+        }
+    }
+
+    // stack trace elements are ordered from leaf to root
+    @VisibleForTesting
+    static StackTraceElement[] truncate(StackTraceElement[] stackTrace, int maxDepth) {
+        if (stackTrace.length <= maxDepth) {
+            return stackTrace;
         }
+        return Arrays.copyOfRange(stackTrace, stackTrace.length - maxDepth, stackTrace.length);
     }
 
     @GuardedBy("lock")
     private void mergeTheUnmergedInto(MutableProfile profile) {
         for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
+            List<StackTraceElement> stackTrace = frameTable.asList(unmergedStackTraces.get(i));
             Thread.State threadState = unmergedStackTraceThreadStates.get(i);
             profile.merge(stackTrace, threadState);
         }
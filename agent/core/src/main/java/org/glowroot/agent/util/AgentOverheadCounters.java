@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// cumulative counters of the agent's own overhead, these are exposed as gauges through the
+// org.glowroot:type=AgentOverhead mbean
+//
+// these are static since they are recorded from places that are not otherwise wired together
+// (e.g. the weaving class file transformer)
+public class AgentOverheadCounters {
+
+    private static final AtomicLong aggregationNanos = new AtomicLong();
+    private static final AtomicLong aggregatedTransactionCount = new AtomicLong();
+
+    private static final AtomicLong stackTraceCaptureNanos = new AtomicLong();
+    private static final AtomicLong stackTraceCaptureCount = new AtomicLong();
+
+    private static final AtomicLong weavingNanos = new AtomicLong();
+    private static final AtomicLong wovenClassCount = new AtomicLong();
+
+    private static final AtomicLong weavingCacheHitCount = new AtomicLong();
+    private static final AtomicLong weavingCacheMissCount = new AtomicLong();
+    private static final AtomicLong weavingCacheSavedNanos = new AtomicLong();
+
+    private AgentOverheadCounters() {}
+
+    public static void recordAggregation(long nanos) {
+        aggregationNanos.addAndGet(nanos);
+    }
+
+    public static void recordAggregatedTransaction() {
+        aggregatedTransactionCount.incrementAndGet();
+    }
+
+    public static void recordStackTraceCapture(long nanos) {
+        stackTraceCaptureNanos.addAndGet(nanos);
+        stackTraceCaptureCount.incrementAndGet();
+    }
+
+    public static void recordWeaving(long nanos) {
+        weavingNanos.addAndGet(nanos);
+        wovenClassCount.incrementAndGet();
+    }
+
+    // saved nanos is the time originally spent analyzing the class minus the time spent on the
+    // cache hit
+    public static void recordWeavingCacheHit(long savedNanos) {
+        weavingCacheHitCount.incrementAndGet();
+        weavingCacheSavedNanos.addAndGet(savedNanos);
+    }
+
+    public static void recordWeavingCacheMiss() {
+        weavingCacheMissCount.incrementAndGet();
+    }
+
+    public static long getAggregationNanos() {
+        return aggregationNanos.get();
+    }
+
+    public static long getAggregatedTransactionCount() {
+        return aggregatedTransactionCount.get();
+    }
+
+    public static long getStackTraceCaptureNanos() {
+        return stackTraceCaptureNanos.get();
+    }
+
+    public static long getStackTraceCaptureCount() {
+        return stackTraceCaptureCount.get();
+    }
+
+    public static long getWeavingNanos() {
+        return weavingNanos.get();
+    }
+
+    public static long getWovenClassCount() {
+        return wovenClassCount.get();
+    }
+
+    public static long getWeavingCacheHitCount() {
+        return weavingCacheHitCount.get();
+    }
+
+    public static long getWeavingCacheMissCount() {
+        return weavingCacheMissCount.get();
+    }
+
+    public static long getWeavingCacheSavedNanos() {
+        return weavingCacheSavedNanos.get();
+    }
+}
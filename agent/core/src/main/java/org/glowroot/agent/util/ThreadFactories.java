@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 the original author or authors.
+ * Copyright 2017-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,12 +15,31 @@
  */
 package org.glowroot.agent.util;
 
+import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.ThreadFactory;
 
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 public class ThreadFactories {
 
+    // threads created by the agent, so that their allocations can be attributed to the agent
+    @GuardedBy("agentThreads")
+    private static final Set<Thread> agentThreads =
+            Collections.newSetFromMap(new MapMaker().weakKeys().<Thread, Boolean>makeMap());
+
+    // allocated bytes of agent threads that have exited, so that the total allocated bytes does not
+    // go down when an agent thread exits
+    @GuardedBy("agentThreads")
+    private static long exitedThreadAllocatedBytes;
+
+    private static volatile @Nullable ThreadAllocatedBytes threadAllocatedBytes;
+
     private ThreadFactories() {}
 
     public static ThreadFactory create(String name) {
@@ -30,11 +49,68 @@ public class ThreadFactories {
                 .build();
         return new ThreadFactory() {
             @Override
-            public Thread newThread(Runnable r) {
-                Thread thread = backingThreadFactory.newThread(r);
+            public Thread newThread(final Runnable r) {
+                Thread thread = backingThreadFactory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            onAgentThreadExit();
+                        }
+                    }
+                });
                 thread.setContextClassLoader(ThreadFactories.class.getClassLoader());
+                synchronized (agentThreads) {
+                    agentThreads.add(thread);
+                }
                 return thread;
             }
         };
     }
+
+    public static void setThreadAllocatedBytes(
+            @Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+        ThreadFactories.threadAllocatedBytes = threadAllocatedBytes;
+    }
+
+    // returns the total bytes allocated by agent threads, including threads that have exited, or -1
+    // if not available
+    public static long getAgentAllocatedBytes() {
+        ThreadAllocatedBytes threadAllocatedBytes = ThreadFactories.threadAllocatedBytes;
+        if (threadAllocatedBytes == null) {
+            return -1;
+        }
+        synchronized (agentThreads) {
+            long total = exitedThreadAllocatedBytes;
+            for (Thread thread : ImmutableList.copyOf(agentThreads)) {
+                if (!thread.isAlive()) {
+                    // not started yet (exited threads are already removed)
+                    continue;
+                }
+                long allocatedBytes =
+                        threadAllocatedBytes.getThreadAllocatedBytesSafely(thread.getId());
+                if (allocatedBytes == -1) {
+                    return -1;
+                }
+                total += allocatedBytes;
+            }
+            return total;
+        }
+    }
+
+    private static void onAgentThreadExit() {
+        Thread thread = Thread.currentThread();
+        ThreadAllocatedBytes threadAllocatedBytes = ThreadFactories.threadAllocatedBytes;
+        synchronized (agentThreads) {
+            if (threadAllocatedBytes != null) {
+                long allocatedBytes =
+                        threadAllocatedBytes.getThreadAllocatedBytesSafely(thread.getId());
+                if (allocatedBytes != -1) {
+                    exitedThreadAllocatedBytes += allocatedBytes;
+                }
+            }
+            agentThreads.remove(thread);
+        }
+    }
 }
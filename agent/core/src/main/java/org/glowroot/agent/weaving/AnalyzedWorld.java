@@ -21,12 +21,11 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.security.CodeSource;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
@@ -47,6 +46,7 @@ import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
 import org.glowroot.common.util.Styles;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class AnalyzedWorld {
 
@@ -66,25 +66,22 @@ public class AnalyzedWorld {
     }
 
     // weak keys to prevent retention of class loaders
-    // it's important that the weak keys point directly to the class loaders themselves (as opposed
-    // to through another instance, e.g. Optional<ClassLoader>) so that the keys won't be cleared
-    // while their associated class loaders are still being used
-    //
-    // not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
-    // additional classes that must then be pre-initialized since this is called from inside
-    // ClassFileTransformer.transform() (see PreInitializeClasses)
-    private final Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> world = Collections
-            .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>());
+    private final WeakClassLoaderMap<ConcurrentMap<String, AnalyzedClass>> world =
+            new WeakClassLoaderMap<ConcurrentMap<String, AnalyzedClass>>();
 
     // the analyzed classes for the bootstrap class loader (null) have to be stored separately since
-    // LoadingCache doesn't accept null keys, and using an Optional<ClassLoader> for the key makes
-    // the weakness on the Optional instance which is not strongly referenced from anywhere and
-    // therefore the keys will most likely be cleared while their class loaders are still being used
+    // the weak keys above point directly to the class loaders (see WeakClassLoaderMap)
     //
-    // intentionally avoiding Maps.newConcurrentMap() for the same reason as above
+    // intentionally avoiding Maps.newConcurrentMap() since it uses additional classes that must
+    // then be pre-initialized (see PreInitializeWeavingClasses)
     private final ConcurrentMap<String, AnalyzedClass> bootstrapLoaderWorld =
             new ConcurrentHashMap<String, AnalyzedClass>();
 
+    // when multiple threads concurrently need the analysis of the same class (e.g. a common super
+    // class during startup), only one of them performs the analysis and the others wait for it
+    private final ConcurrentMap<String, InFlightAnalysis> inFlightAnalyses =
+            new ConcurrentHashMap<String, InFlightAnalysis>();
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
@@ -117,9 +114,7 @@ public class AnalyzedWorld {
     }
 
     public ImmutableList<ClassLoader> getClassLoaders() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.keySet());
-        }
+        return world.getKeys();
     }
 
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
@@ -221,12 +216,46 @@ public class AnalyzedWorld {
                     return analyzedClass;
                 }
             }
-            analyzedClass = createAnalyzedClass(className, analyzedClassLoader);
-            analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
+            analyzedClass = createAnalyzedClassDeduplicated(className, analyzedClassLoader,
+                    loaderAnalyzedClasses);
         }
         return analyzedClass;
     }
 
+    private AnalyzedClass createAnalyzedClassDeduplicated(String className,
+            @Nullable ClassLoader loader,
+            ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses)
+            throws ClassNotFoundException, IOException {
+        InFlightAnalysis inFlightAnalysis = new InFlightAnalysis(loader);
+        InFlightAnalysis existingInFlightAnalysis =
+                inFlightAnalyses.putIfAbsent(className, inFlightAnalysis);
+        if (existingInFlightAnalysis != null) {
+            if (existingInFlightAnalysis.loader == loader) {
+                AnalyzedClass analyzedClass = existingInFlightAnalysis.await();
+                if (analyzedClass != null) {
+                    return analyzedClass;
+                }
+            }
+            // same class name in a different class loader, or the other analysis failed or is
+            // taking too long
+            return putAnalyzedClass(loaderAnalyzedClasses,
+                    createAnalyzedClass(className, loader));
+        }
+        AnalyzedClass analyzedClass = null;
+        try {
+            // re-check since another thread may have completed the analysis in the meantime
+            analyzedClass = loaderAnalyzedClasses.get(className);
+            if (analyzedClass == null) {
+                analyzedClass = putAnalyzedClass(loaderAnalyzedClasses,
+                        createAnalyzedClass(className, loader));
+            }
+            return analyzedClass;
+        } finally {
+            inFlightAnalyses.remove(className, inFlightAnalysis);
+            inFlightAnalysis.complete(analyzedClass);
+        }
+    }
+
     private List<Class<?>> getClassesWithReweavableAdvice(@Nullable ClassLoader loader,
             boolean remove) {
         List<Class<?>> classes = Lists.newArrayList();
@@ -347,22 +376,20 @@ public class AnalyzedWorld {
         if (loader == null) {
             return bootstrapLoaderWorld;
         } else {
-            // this synchronization is for atomicity of get/put
-            synchronized (world) {
-                ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
-                if (map == null) {
-                    map = new ConcurrentHashMap<String, AnalyzedClass>();
-                    world.put(loader, map);
+            ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
+            if (map == null) {
+                map = new ConcurrentHashMap<String, AnalyzedClass>();
+                ConcurrentMap<String, AnalyzedClass> existingMap = world.putIfAbsent(loader, map);
+                if (existingMap != null) {
+                    map = existingMap;
                 }
-                return map;
             }
+            return map;
         }
     }
 
-    private ImmutableList<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.values());
-        }
+    private List<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
+        return world.getValues();
     }
 
     private static AnalyzedClass putAnalyzedClass(
@@ -554,6 +581,44 @@ public class AnalyzedWorld {
         return matchingAdvisors;
     }
 
+    private static class InFlightAnalysis {
+
+        // bounds the wait, e.g. in case the analyzing thread is itself blocked on a class loader
+        // lock held by the waiting thread
+        private static final long MAX_WAIT_MILLIS = 1000;
+
+        private final @Nullable ClassLoader loader;
+        private final Thread thread;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile @Nullable AnalyzedClass analyzedClass;
+
+        private InFlightAnalysis(@Nullable ClassLoader loader) {
+            this.loader = loader;
+            thread = Thread.currentThread();
+        }
+
+        private void complete(@Nullable AnalyzedClass analyzedClass) {
+            this.analyzedClass = analyzedClass;
+            latch.countDown();
+        }
+
+        private @Nullable AnalyzedClass await() {
+            if (thread == Thread.currentThread()) {
+                // re-entrant analysis of the same class, e.g. malformed circular hierarchy
+                return null;
+            }
+            try {
+                if (!latch.await(MAX_WAIT_MILLIS, MILLISECONDS)) {
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return analyzedClass;
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParseContext {
@@ -235,6 +235,10 @@ class ClassAnalyzer {
         return analyzedClassBuilder.build();
     }
 
+    ImmutableList<AnalyzedClass> getSuperAnalyzedClasses() {
+        return superAnalyzedClasses;
+    }
+
     List<AnalyzedMethod> getMethodsThatOnlyNowFulfillAdvice() {
         return checkNotNull(methodsThatOnlyNowFulfillAdvice);
     }
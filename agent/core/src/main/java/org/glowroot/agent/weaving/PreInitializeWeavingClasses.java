@@ -260,8 +260,11 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.impl.NestedTimerMap");
         types.add("org.glowroot.agent.impl.ThreadContextImpl");
         types.add("org.glowroot.agent.impl.TimerImpl");
+        types.add("org.glowroot.agent.impl.TransactionObjectPool");
+        types.add("org.glowroot.agent.impl.TransactionObjectPool$1");
         types.add("org.glowroot.agent.impl.TransactionRegistry");
         types.add("org.glowroot.agent.model.CommonTimerImpl");
+        types.add("org.glowroot.agent.model.QueryDataMap");
         types.add("org.glowroot.agent.model.TimerNameImpl");
         types.add("org.glowroot.agent.plugin.api.MessageSupplier");
         types.add("org.glowroot.agent.plugin.api.MessageSupplier$1");
@@ -287,6 +290,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.plugin.api.weaving.OnThrow");
         types.add("org.glowroot.agent.plugin.api.weaving.Pointcut");
         types.add("org.glowroot.agent.plugin.api.weaving.Shim");
+        types.add("org.glowroot.agent.util.AgentOverheadCounters");
         types.add("org.glowroot.agent.util.IterableWithSelfRemovableEntries");
         types.add("org.glowroot.agent.util.IterableWithSelfRemovableEntries$ElementIterator");
         types.add("org.glowroot.agent.util.IterableWithSelfRemovableEntries$Entry");
@@ -314,6 +318,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AnalyzedClass");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$InFlightAnalysis");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$ParseContext");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$ClassMetaHolder");
@@ -389,7 +394,15 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ValueAnnotationVisitor");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinClass");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinMethod");
+        types.add("org.glowroot.agent.weaving.WeakClassLoaderMap");
+        types.add("org.glowroot.agent.weaving.WeakClassLoaderMap$LookupKey");
+        types.add("org.glowroot.agent.weaving.WeakClassLoaderMap$WeakKey");
         types.add("org.glowroot.agent.weaving.Weaver");
+        types.add("org.glowroot.agent.weaving.WeavingCache");
+        types.add("org.glowroot.agent.weaving.WeavingCache$AdvisorsState");
+        types.add("org.glowroot.agent.weaving.WeavingCache$Entry");
+        types.add("org.glowroot.agent.weaving.WeavingCache$Key");
+        types.add("org.glowroot.agent.weaving.WeavingCache$KeyedEntry");
         types.add("org.glowroot.agent.weaving.WeavingClassFileTransformer");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$InitMixins");
@@ -502,6 +515,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.Advice$1");
         types.add("org.glowroot.agent.weaving.AnalyzedClass$1");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod$1");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$1");
         types.add("org.glowroot.agent.weaving.AnalyzedMethodKey$1");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$1");
         types.add("org.glowroot.agent.weaving.ClassAnalyzer$1");
@@ -524,6 +538,8 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.Weaver$2");
         types.add("org.glowroot.agent.weaving.Weaver$FelixOsgiHackClassVisitor$1");
         types.add("org.glowroot.agent.weaving.Weaver$EclipseOsgiHackClassVisitor$1");
+        types.add("org.glowroot.agent.weaving.WeakClassLoaderMap$1");
+        types.add("org.glowroot.agent.weaving.WeavingCache$1");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$1");
         // this is referenced and picked up via org.glowroot.agent.weaving.Weaver$1
         types.add("org.glowroot.agent.plugin.api.config.ConfigListener");
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// concurrent map with weak class loader keys (compared by identity), so that class loading on
+// multiple threads does not contend on a single monitor (as it would with a synchronized
+// WeakHashMap)
+//
+// it's important that the weak keys point directly to the class loaders themselves (as opposed
+// to through another instance, e.g. Optional<ClassLoader>) so that the keys won't be cleared
+// while their associated class loaders are still being used
+//
+// not using guava MapMaker/CacheBuilder with weak keys since they use many additional classes
+// that must then be pre-initialized since this is called from inside
+// ClassFileTransformer.transform() (see PreInitializeWeavingClasses)
+class WeakClassLoaderMap<V> {
+
+    // keys are either WeakKey (stored) or LookupKey (only used for lookups)
+    private final ConcurrentMap<Object, V> map = new ConcurrentHashMap<Object, V>();
+
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+
+    @Nullable
+    V get(ClassLoader loader) {
+        expungeStaleEntries();
+        return map.get(new LookupKey(loader));
+    }
+
+    // returns the existing value if there is one, otherwise null
+    @Nullable
+    V putIfAbsent(ClassLoader loader, V value) {
+        expungeStaleEntries();
+        return map.putIfAbsent(new WeakKey(loader, queue), value);
+    }
+
+    ImmutableList<ClassLoader> getKeys() {
+        expungeStaleEntries();
+        ImmutableList.Builder<ClassLoader> keys = ImmutableList.builder();
+        for (Object key : map.keySet()) {
+            ClassLoader loader = ((WeakKey) key).get();
+            if (loader != null) {
+                keys.add(loader);
+            }
+        }
+        return keys.build();
+    }
+
+    List<V> getValues() {
+        expungeStaleEntries();
+        return ImmutableList.copyOf(map.values());
+    }
+
+    private void expungeStaleEntries() {
+        // ReferenceQueue.poll() does not acquire a lock when the queue is empty
+        Reference<? extends ClassLoader> ref;
+        while ((ref = queue.poll()) != null) {
+            // cleared weak keys are only equal to themselves
+            map.remove(ref);
+        }
+    }
+
+    private static class WeakKey extends WeakReference<ClassLoader> {
+
+        private final int hashCode;
+
+        private WeakKey(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            hashCode = System.identityHashCode(loader);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            ClassLoader loader = get();
+            if (loader == null) {
+                return false;
+            }
+            if (obj instanceof WeakKey) {
+                return ((WeakKey) obj).get() == loader;
+            }
+            if (obj instanceof LookupKey) {
+                return ((LookupKey) obj).loader == loader;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static class LookupKey {
+
+        private final ClassLoader loader;
+
+        private LookupKey(ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj instanceof WeakKey) {
+                return ((WeakKey) obj).get() == loader;
+            }
+            if (obj instanceof LookupKey) {
+                return ((LookupKey) obj).loader == loader;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(loader);
+        }
+    }
+}
@@ -94,6 +94,8 @@ public class Weaver {
 
     private volatile boolean weavingDisabledForLoggingDeadlock;
 
+    private volatile @Nullable WeavingCache weavingCache;
+
     private final IterableWithSelfRemovableEntries<ActiveWeaving> activeWeavings =
             new IterableWithSelfRemovableEntries<ActiveWeaving>();
 
@@ -116,6 +118,10 @@ public class Weaver {
         this.timerName = timerNameCache.getTimerName(OnlyForTheTimerName.class);
     }
 
+    public void setWeavingCache(WeavingCache weavingCache) {
+        this.weavingCache = weavingCache;
+    }
+
     public void setNoLongerNeedToWeaveMainMethods() {
         noLongerNeedToWeaveMainMethods = true;
     }
@@ -178,7 +184,19 @@ public class Weaver {
     private byte /*@Nullable*/ [] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable Class<?> classBeingRedefined, @Nullable CodeSource codeSource,
             @Nullable ClassLoader loader) {
-        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+        long startTick = ticker.read();
+        List<Advice> unmergedAdvisors = this.advisors.get();
+        WeavingCache weavingCache = this.weavingCache;
+        WeavingCache.Key cacheKey = null;
+        if (weavingCache != null) {
+            cacheKey = weavingCache.getKey(classBytes, unmergedAdvisors,
+                    noLongerNeedToWeaveMainMethods);
+            if (cacheKey != null && weavingCache.addCachedAnalyzedClass(cacheKey, loader,
+                    codeSource, startTick)) {
+                return null;
+            }
+        }
+        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(unmergedAdvisors,
                 classBytes, loader, className);
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
@@ -246,7 +264,13 @@ public class Weaver {
                 noLongerNeedToWeaveMainMethods);
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
-            analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+            analyzedWorld.add(analyzedClass, loader);
+            if (weavingCache != null && cacheKey != null && maybeProcessedBytes == null
+                    && advisors == unmergedAdvisors) {
+                weavingCache.put(cacheKey, analyzedClass,
+                        classAnalyzer.getSuperAnalyzedClasses(), ticker.read() - startTick);
+            }
             return maybeProcessedBytes;
         }
         List<ShimType> matchedShimTypes = classAnalyzer.getMatchedShimTypes();
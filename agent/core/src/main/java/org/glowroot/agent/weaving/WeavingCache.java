@@ -0,0 +1,594 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.AgentOverheadCounters;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// persistent cache of the analysis of classes that did not need weaving, so that restarts with
+// unchanged jars can skip the ASM parsing and method analysis of those classes
+//
+// the cache key is a hash of the class bytes plus a hash of all advisors, so any change to the
+// plugins or to the instrumentation config results in cache misses, and since the analysis also
+// depends on the super types of the class, the cache entry also records a fingerprint of the
+// analyzed super types, which is re-checked on every hit
+//
+// classes that need weaving are not cached, since weaving has side effects beyond the woven
+// bytes (e.g. defining meta holder classes in the class loader)
+public class WeavingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final boolean ENABLED = Boolean.getBoolean("glowroot.internal.weaving.cache");
+
+    // bounds the memory and disk space used by the cache
+    private static final int MAX_ENTRIES =
+            Integer.getInteger("glowroot.internal.weaving.cacheMaxEntries", 200000);
+
+    @VisibleForTesting
+    static final String FILE_NAME = "weaving-cache.dat";
+
+    private static final int MAGIC = 0x67726377;
+    private static final int FORMAT_VERSION = 1;
+
+    private final File file;
+    private final Supplier<List<Advice>> advisors;
+    private final byte[] shimAndMixinTypesDigest;
+    private final AnalyzedWorld analyzedWorld;
+    private final Ticker ticker;
+
+    private volatile @Nullable AdvisorsState advisorsState;
+
+    private final ConcurrentMap<Key, Entry> entries = Maps.newConcurrentMap();
+    private final AtomicInteger entryCount = new AtomicInteger();
+    private final Queue<KeyedEntry> pendingEntries = new ConcurrentLinkedQueue<KeyedEntry>();
+
+    private final Object flushLock = new Object();
+    @GuardedBy("flushLock")
+    private boolean fileHeaderWritten;
+
+    public static @Nullable WeavingCache create(File tmpDir, AdviceCache adviceCache,
+            AnalyzedWorld analyzedWorld, Ticker ticker) {
+        if (!ENABLED) {
+            return null;
+        }
+        return new WeavingCache(new File(tmpDir, FILE_NAME), adviceCache.getAdvisorsSupplier(),
+                adviceCache.getShimTypes(), adviceCache.getMixinTypes(), analyzedWorld, ticker);
+    }
+
+    @VisibleForTesting
+    WeavingCache(File file, Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld, Ticker ticker) {
+        this.file = file;
+        this.advisors = advisors;
+        this.analyzedWorld = analyzedWorld;
+        this.ticker = ticker;
+        MessageDigest digest = newDigest();
+        for (ShimType shimType : shimTypes) {
+            update(digest, shimType.toString());
+        }
+        for (MixinType mixinType : mixinTypes) {
+            update(digest, mixinType.toString());
+        }
+        shimAndMixinTypesDigest = digest.digest();
+        load();
+    }
+
+    @Nullable
+    Key getKey(byte[] classBytes, List<Advice> advisors, boolean noLongerNeedToWeaveMainMethods) {
+        AdvisorsState advisorsState = getAdvisorsState(advisors);
+        if (advisorsState.adviceByType == null) {
+            return null;
+        }
+        MessageDigest digest = newDigest();
+        digest.update(classBytes);
+        digest.update(advisorsState.digest);
+        digest.update((byte) (noLongerNeedToWeaveMainMethods ? 1 : 0));
+        return Key.of(digest.digest());
+    }
+
+    // returns true if the class was found in the cache, in which case its analyzed class has been
+    // added to the analyzed world, and the class does not need weaving
+    boolean addCachedAnalyzedClass(Key key, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, long startTick) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            AgentOverheadCounters.recordWeavingCacheMiss();
+            return false;
+        }
+        AnalyzedClass analyzedClass = entry.readAnalyzedClass(getAdvisorsState(advisors.get()));
+        if (analyzedClass == null) {
+            AgentOverheadCounters.recordWeavingCacheMiss();
+            return false;
+        }
+        List<AnalyzedClass> superAnalyzedClasses =
+                getSuperAnalyzedClasses(analyzedClass, loader, codeSource);
+        if (getFingerprint(superAnalyzedClasses) != entry.superAnalyzedClassesFingerprint) {
+            AgentOverheadCounters.recordWeavingCacheMiss();
+            return false;
+        }
+        analyzedWorld.add(analyzedClass, loader);
+        AgentOverheadCounters.recordWeavingCacheHit(
+                entry.analysisNanos - (ticker.read() - startTick));
+        return true;
+    }
+
+    void put(Key key, AnalyzedClass analyzedClass, List<AnalyzedClass> superAnalyzedClasses,
+            long analysisNanos) {
+        if (!analyzedClass.shimTypes().isEmpty() || !analyzedClass.mixinTypes().isEmpty()
+                || analyzedClass.ejbRemote()) {
+            return;
+        }
+        if (entryCount.get() >= MAX_ENTRIES) {
+            return;
+        }
+        byte[] analyzedClassBytes;
+        try {
+            analyzedClassBytes = writeAnalyzedClass(analyzedClass);
+        } catch (IOException e) {
+            // e.g. UTFDataFormatException for an unusually long generic signature
+            logger.debug(e.getMessage(), e);
+            return;
+        }
+        Entry entry = new Entry(getFingerprint(superAnalyzedClasses), analysisNanos,
+                analyzedClassBytes);
+        if (entries.put(key, entry) == null) {
+            entryCount.incrementAndGet();
+        }
+        pendingEntries.add(new KeyedEntry(key, entry));
+    }
+
+    public void flush() {
+        synchronized (flushLock) {
+            if (pendingEntries.isEmpty()) {
+                return;
+            }
+            try {
+                flushInternal();
+            } catch (IOException e) {
+                logger.warn("error writing weaving cache: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    @GuardedBy("flushLock")
+    private void flushInternal() throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, fileHeaderWritten)));
+        try {
+            if (!fileHeaderWritten) {
+                writeHeader(out);
+                // the file was truncated above, so all entries need to be written
+                pendingEntries.clear();
+                for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+                    writeEntry(out, entry.getKey(), entry.getValue());
+                }
+                fileHeaderWritten = true;
+            } else {
+                KeyedEntry keyedEntry;
+                while ((keyedEntry = pendingEntries.poll()) != null) {
+                    writeEntry(out, keyedEntry.key, keyedEntry.entry);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            loadInternal();
+        } catch (IOException e) {
+            logger.warn("error reading weaving cache, starting with an empty cache: {}",
+                    e.getMessage(), e);
+            entries.clear();
+            entryCount.set(0);
+        }
+    }
+
+    private void loadInternal() throws IOException {
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] startupAdvisorsDigest = getAdvisorsState(advisors.get()).digest;
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            byte[] advisorsDigest = new byte[startupAdvisorsDigest.length];
+            in.readFully(advisorsDigest);
+            if (!MessageDigest.isEqual(advisorsDigest, startupAdvisorsDigest)) {
+                // plugins or instrumentation config have changed, the file will be rewritten with
+                // new entries on the next flush
+                return;
+            }
+            long position = 8 + advisorsDigest.length;
+            long fileLength = file.length();
+            while (position < fileLength && entryCount.get() < MAX_ENTRIES) {
+                Key key;
+                Entry entry;
+                try {
+                    key = new Key(in.readLong(), in.readLong());
+                    long superAnalyzedClassesFingerprint = in.readLong();
+                    long analysisNanos = in.readLong();
+                    byte[] analyzedClassBytes = new byte[in.readInt()];
+                    in.readFully(analyzedClassBytes);
+                    entry = new Entry(superAnalyzedClassesFingerprint, analysisNanos,
+                            analyzedClassBytes);
+                    position += 36 + analyzedClassBytes.length;
+                } catch (EOFException e) {
+                    // partially written entry from a prior JVM that was killed during flush
+                    break;
+                }
+                if (entries.put(key, entry) == null) {
+                    entryCount.incrementAndGet();
+                }
+            }
+            synchronized (flushLock) {
+                // only append to the existing file if it was read cleanly to the end, otherwise
+                // it is rewritten on the next flush
+                fileHeaderWritten = position == fileLength;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private AdvisorsState getAdvisorsState(List<Advice> advisors) {
+        AdvisorsState advisorsState = this.advisorsState;
+        if (advisorsState == null || advisorsState.advisors != advisors) {
+            // advisors list instance only changes on re-weaving (after instrumentation config
+            // changes)
+            advisorsState = new AdvisorsState(advisors, shimAndMixinTypesDigest);
+            this.advisorsState = advisorsState;
+        }
+        return advisorsState;
+    }
+
+    private List<AnalyzedClass> getSuperAnalyzedClasses(AnalyzedClass analyzedClass,
+            @Nullable ClassLoader loader, @Nullable CodeSource codeSource) {
+        // this needs to match the super analyzed classes collected in ClassAnalyzer
+        AnalyzedWorld.ParseContext parseContext =
+                ImmutableParseContext.of(analyzedClass.name(), codeSource);
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        for (String interfaceName : analyzedClass.interfaceNames()) {
+            superAnalyzedClasses.addAll(
+                    analyzedWorld.getAnalyzedHierarchy(interfaceName, loader, parseContext));
+        }
+        if (!analyzedClass.isInterface()) {
+            superAnalyzedClasses.addAll(analyzedWorld.getAnalyzedHierarchy(
+                    analyzedClass.superName(), loader, parseContext));
+        }
+        return superAnalyzedClasses;
+    }
+
+    // only the parts of the super analyzed classes that affect the analysis of a class that does
+    // not need weaving
+    @VisibleForTesting
+    static long getFingerprint(List<AnalyzedClass> superAnalyzedClasses) {
+        MessageDigest digest = newDigest();
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            update(digest, superAnalyzedClass.name());
+            for (AnalyzedMethod analyzedMethod : superAnalyzedClass.analyzedMethods()) {
+                update(digest, analyzedMethod.name());
+                for (String parameterType : analyzedMethod.parameterTypes()) {
+                    update(digest, parameterType);
+                }
+                update(digest, Integer.toString(analyzedMethod.modifiers()));
+                for (Advice advice : analyzedMethod.advisors()) {
+                    update(digest, advice.adviceType().getInternalName());
+                }
+                update(digest, "");
+                for (Advice advice : analyzedMethod.subTypeRestrictedAdvisors()) {
+                    update(digest, advice.adviceType().getInternalName());
+                }
+            }
+            update(digest, "");
+            for (ShimType shimType : superAnalyzedClass.shimTypes()) {
+                update(digest, shimType.iface().getInternalName());
+            }
+            for (MixinType mixinType : superAnalyzedClass.mixinTypes()) {
+                update(digest, mixinType.toString());
+            }
+            update(digest, "");
+        }
+        byte[] bytes = digest.digest();
+        long fingerprint = 0;
+        for (int i = 0; i < 8; i++) {
+            fingerprint = (fingerprint << 8) | (bytes[i] & 0xFF);
+        }
+        return fingerprint;
+    }
+
+    private static byte[] writeAnalyzedClass(AnalyzedClass analyzedClass) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(analyzedClass.modifiers());
+        out.writeUTF(analyzedClass.name());
+        writeNullableString(out, analyzedClass.superName());
+        writeStrings(out, analyzedClass.interfaceNames());
+        out.writeInt(analyzedClass.analyzedMethods().size());
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            out.writeUTF(analyzedMethod.name());
+            writeStrings(out, analyzedMethod.parameterTypes());
+            out.writeUTF(analyzedMethod.returnType());
+            out.writeInt(analyzedMethod.modifiers());
+            writeNullableString(out, analyzedMethod.signature());
+            writeStrings(out, analyzedMethod.exceptions());
+            writeAdvisors(out, analyzedMethod.advisors());
+            writeAdvisors(out, analyzedMethod.subTypeRestrictedAdvisors());
+        }
+        out.writeInt(analyzedClass.publicFinalMethods().size());
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            out.writeUTF(publicFinalMethod.name());
+            writeStrings(out, publicFinalMethod.parameterTypes());
+        }
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private static @Nullable AnalyzedClass readAnalyzedClass(byte[] bytes,
+            Map<String, Advice> adviceByType) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(in.readInt())
+                .name(in.readUTF())
+                .superName(readNullableString(in))
+                .addAllInterfaceNames(readStrings(in))
+                .ejbRemote(false);
+        int analyzedMethodCount = in.readInt();
+        for (int i = 0; i < analyzedMethodCount; i++) {
+            ImmutableAnalyzedMethod.Builder methodBuilder = ImmutableAnalyzedMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .returnType(in.readUTF())
+                    .modifiers(in.readInt())
+                    .signature(readNullableString(in))
+                    .addAllExceptions(readStrings(in));
+            List<Advice> advisors = readAdvisors(in, adviceByType);
+            List<Advice> subTypeRestrictedAdvisors = readAdvisors(in, adviceByType);
+            if (advisors == null || subTypeRestrictedAdvisors == null) {
+                return null;
+            }
+            builder.addAnalyzedMethods(methodBuilder.addAllAdvisors(advisors)
+                    .addAllSubTypeRestrictedAdvisors(subTypeRestrictedAdvisors)
+                    .build());
+        }
+        int publicFinalMethodCount = in.readInt();
+        for (int i = 0; i < publicFinalMethodCount; i++) {
+            builder.addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .build());
+        }
+        return builder.build();
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values)
+            throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> values = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            values.add(in.readUTF());
+        }
+        return values;
+    }
+
+    private static void writeNullableString(DataOutputStream out, @Nullable String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // advisors are written by advice type, which is unique across advisors (see AdvisorsState)
+    private static void writeAdvisors(DataOutputStream out, List<Advice> advisors)
+            throws IOException {
+        out.writeInt(advisors.size());
+        for (Advice advice : advisors) {
+            out.writeUTF(advice.adviceType().getInternalName());
+        }
+    }
+
+    private static @Nullable List<Advice> readAdvisors(DataInputStream in,
+            Map<String, Advice> adviceByType) throws IOException {
+        int size = in.readInt();
+        List<Advice> advisors = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            Advice advice = adviceByType.get(in.readUTF());
+            if (advice == null) {
+                return null;
+            }
+            advisors.add(advice);
+        }
+        return advisors;
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.write(getAdvisorsState(advisors.get()).digest);
+    }
+
+    private static void writeEntry(DataOutputStream out, Key key, Entry entry)
+            throws IOException {
+        out.writeLong(key.high);
+        out.writeLong(key.low);
+        out.writeLong(entry.superAnalyzedClassesFingerprint);
+        out.writeLong(entry.analysisNanos);
+        out.writeInt(entry.analyzedClassBytes.length);
+        out.write(entry.analyzedClassBytes);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // MD5 is required to be supported by every implementation of the java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(UTF_8));
+        // separator, so that adjacent values cannot be confused
+        digest.update((byte) 0);
+    }
+
+    private static class AdvisorsState {
+
+        private final List<Advice> advisors;
+        private final byte[] digest;
+        // null if advice types are not unique, in which case caching is disabled
+        private final @Nullable Map<String, Advice> adviceByType;
+
+        private AdvisorsState(List<Advice> advisors, byte[] shimAndMixinTypesDigest) {
+            this.advisors = advisors;
+            MessageDigest digest = newDigest();
+            digest.update(shimAndMixinTypesDigest);
+            Map<String, Advice> adviceByType = Maps.newHashMap();
+            for (Advice advice : advisors) {
+                // the generated toString() includes the pointcut and all advice methods
+                update(digest, advice.toString());
+                adviceByType.put(advice.adviceType().getInternalName(), advice);
+            }
+            this.digest = digest.digest();
+            this.adviceByType = adviceByType.size() == advisors.size() ? adviceByType : null;
+        }
+    }
+
+    @VisibleForTesting
+    static class Key {
+
+        private final long high;
+        private final long low;
+
+        private Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        private static Key of(byte[] digest) {
+            long high = 0;
+            long low = 0;
+            for (int i = 0; i < 8; i++) {
+                high = (high << 8) | (digest[i] & 0xFF);
+                low = (low << 8) | (digest[i + 8] & 0xFF);
+            }
+            return new Key(high, low);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) obj;
+            return high == that.high && low == that.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (low ^ (low >>> 32));
+        }
+    }
+
+    private static class Entry {
+
+        private final long superAnalyzedClassesFingerprint;
+        // time spent analyzing the class when it was originally cached
+        private final long analysisNanos;
+        private final byte[] analyzedClassBytes;
+
+        private Entry(long superAnalyzedClassesFingerprint, long analysisNanos,
+                byte[] analyzedClassBytes) {
+            this.superAnalyzedClassesFingerprint = superAnalyzedClassesFingerprint;
+            this.analysisNanos = analysisNanos;
+            this.analyzedClassBytes = analyzedClassBytes;
+        }
+
+        private @Nullable AnalyzedClass readAnalyzedClass(AdvisorsState advisorsState) {
+            Map<String, Advice> adviceByType = advisorsState.adviceByType;
+            if (adviceByType == null) {
+                return null;
+            }
+            try {
+                return WeavingCache.readAnalyzedClass(analyzedClassBytes, adviceByType);
+            } catch (IOException e) {
+                logger.debug(e.getMessage(), e);
+                return null;
+            }
+        }
+    }
+
+    private static class KeyedEntry {
+
+        private final Key key;
+        private final Entry entry;
+
+        private KeyedEntry(Key key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+}
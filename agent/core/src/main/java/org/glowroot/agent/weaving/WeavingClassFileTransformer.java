@@ -27,6 +27,8 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.util.AgentOverheadCounters;
+
 public class WeavingClassFileTransformer implements ClassFileTransformer {
 
     private static final boolean ALLOW_WEAVING_AGENT_CLASSES =
@@ -114,7 +116,12 @@ public class WeavingClassFileTransformer implements ClassFileTransformer {
             return null;
         }
         CodeSource codeSource = protectionDomain == null ? null : protectionDomain.getCodeSource();
-        return weaver.weave(bytes, className, classBeingRedefined, codeSource, loader);
+        long startNanos = System.nanoTime();
+        try {
+            return weaver.weave(bytes, className, classBeingRedefined, codeSource, loader);
+        } finally {
+            AgentOverheadCounters.recordWeaving(System.nanoTime() - startNanos);
+        }
     }
 
     private static boolean ignoreClass(String className, @Nullable ClassLoader loader) {
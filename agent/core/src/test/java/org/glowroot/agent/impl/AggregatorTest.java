@@ -17,6 +17,10 @@ package org.glowroot.agent.impl;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.Test;
@@ -33,6 +37,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -74,6 +79,123 @@ public class AggregatorTest {
         aggregator.close();
     }
 
+    @Test
+    public void shouldAggregateAllFromConcurrentProducers() throws Exception {
+        shouldAggregateAllFromConcurrentProducers(0);
+    }
+
+    @Test
+    public void shouldAggregateAllFromConcurrentProducersWithWorkerThreads() throws Exception {
+        shouldAggregateAllFromConcurrentProducers(3);
+    }
+
+    private void shouldAggregateAllFromConcurrentProducers(int workerThreads) throws Exception {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        final Aggregator aggregator = new Aggregator(aggregateCollector, configService, 100,
+                Clock.systemClock(), workerThreads);
+        final Transaction transaction = buildTransaction();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // when
+        for (int i = 0; i < 4; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // span several aggregate intervals
+                    for (int j = 0; j < 50; j++) {
+                        for (int k = 0; k < 2; k++) {
+                            aggregator.add(transaction);
+                        }
+                        try {
+                            MILLISECONDS.sleep(5);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(30, SECONDS)).isTrue();
+
+        // then
+        // aggregation is done in a separate thread, so give it a little time to complete
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000) {
+            if (aggregateCollector.getTotalTransactionCount() == 4 * 50 * 2
+                    && aggregateCollector.getTotalTransactionAggregateCount() == 4 * 50 * 2) {
+                break;
+            }
+            MILLISECONDS.sleep(10);
+        }
+        assertThat(aggregateCollector.getTotalTransactionCount()).isEqualTo(4 * 50 * 2);
+        assertThat(aggregateCollector.getTotalTransactionAggregateCount()).isEqualTo(4 * 50 * 2);
+        aggregator.close();
+    }
+
+    @Test
+    public void shouldClearInMemoryAggregateWithWorkerThreads() throws Exception {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        Aggregator aggregator = new Aggregator(aggregateCollector, configService, 60000,
+                Clock.systemClock(), 3);
+        Transaction transaction = buildTransaction();
+        for (int i = 0; i < 100; i++) {
+            aggregator.add(transaction);
+        }
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000
+                && (aggregator.getQueueDepth() > 0 || aggregator.getTransactionTypes().isEmpty())) {
+            MILLISECONDS.sleep(10);
+        }
+        assertThat(aggregator.getTransactionTypes()).containsExactly("a type");
+
+        // when
+        aggregator.clearInMemoryAggregate();
+
+        // then
+        assertThat(aggregator.getTransactionTypes()).isEmpty();
+        aggregator.close();
+    }
+
+    @Test
+    public void shouldNotOvershootLimitFromConcurrentProducers() throws Exception {
+        // given
+        final Aggregator.StripedCounter counter = new Aggregator.StripedCounter();
+        final AtomicInteger accepted = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        // when
+        for (int i = 0; i < 8; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        if (counter.incrementIfBelow(0, 10) != -1) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(30, SECONDS)).isTrue();
+
+        // then
+        assertThat(counter.sum()).isEqualTo(accepted.get());
+        // every stripe is at the limit
+        assertThat(accepted.get() % 10).isEqualTo(0);
+        assertThat(counter.incrementIfBelow(0, 10)).isEqualTo(-1);
+    }
+
     private static Transaction buildTransaction() {
         Transaction transaction = mock(Transaction.class);
         TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
@@ -91,10 +213,21 @@ public class AggregatorTest {
         // volatile needed for visibility from other thread
         private volatile double totalDurationNanos;
 
+        private final AtomicLong totalTransactionCount = new AtomicLong();
+        private final AtomicLong totalTransactionAggregateCount = new AtomicLong();
+
         private double getTotalDurationNanos() {
             return totalDurationNanos;
         }
 
+        private long getTotalTransactionCount() {
+            return totalTransactionCount.get();
+        }
+
+        private long getTotalTransactionAggregateCount() {
+            return totalTransactionAggregateCount.get();
+        }
+
         @Override
         public void init(File confDir, @Nullable File sharedConfDir, Environment environment,
                 AgentConfig agentConfig, AgentConfigUpdater agentConfigUpdater) {}
@@ -109,11 +242,15 @@ public class AggregatorTest {
                     if (totalDurationNanos == 0) {
                         totalDurationNanos = overallAggregate.getTotalDurationNanos();
                     }
+                    totalTransactionCount.addAndGet(overallAggregate.getTransactionCount());
                 }
                 @Override
                 public void visitTransactionAggregate(String transactionType,
                         String transactionName, List<String> sharedQueryTexts,
-                        Aggregate transactionAggregate) {}
+                        Aggregate transactionAggregate) {
+                    totalTransactionAggregateCount
+                            .addAndGet(transactionAggregate.getTransactionCount());
+                }
             });
         }
 
@@ -48,6 +48,22 @@ public class QueryCollectorTest {
         test(queries);
     }
 
+    @Test
+    public void testScale() throws Exception {
+        // given
+        QueryCollector queries = new QueryCollector(100, 4);
+        queries.mergeQuery("SQL", "select 1", 10, 2, true, 3, false);
+        // when
+        queries.scale(10);
+        // then
+        List<Aggregate.Query> list =
+                queries.toAggregateProto(new SharedQueryTextCollectionImpl(), false);
+        assertThat(list).hasSize(1);
+        assertThat(list.get(0).getTotalDurationNanos()).isEqualTo(100);
+        assertThat(list.get(0).getExecutionCount()).isEqualTo(20);
+        assertThat(list.get(0).getTotalRows().getValue()).isEqualTo(30);
+    }
+
     private void test(QueryCollector collector) throws Exception {
         // when
         SharedQueryTextCollectionImpl sharedQueryTextCollection =
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.QueryDataMap;
+import org.glowroot.agent.model.SyncQueryData;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TransactionObjectPoolTest {
+
+    @Test
+    public void shouldReuseTimersOfReleasedThreadContext() {
+        // given
+        TransactionObjectPool objectPool = new TransactionObjectPool();
+        ThreadContextImpl threadContext = createThreadContext(objectPool);
+        TimerImpl rootTimer = threadContext.getRootTimer();
+        TimerImpl nestedTimer =
+                rootTimer.startNestedTimer(ImmutableTimerNameImpl.of("nested", false), 1);
+        nestedTimer.end(2);
+        rootTimer.end(3);
+        // when
+        threadContext.releaseToObjectPool();
+        ThreadContextImpl nextThreadContext = createThreadContext(objectPool);
+        TimerImpl nextRootTimer = nextThreadContext.getRootTimer();
+        TimerImpl nextNestedTimer =
+                nextRootTimer.startNestedTimer(ImmutableTimerNameImpl.of("other", false), 5);
+        // then
+        assertThat(nextRootTimer).isSameAs(rootTimer);
+        assertThat(nextRootTimer.getName()).isEqualTo("root");
+        assertThat(nextRootTimer.getCount()).isZero();
+        assertThat(nextRootTimer.getTotalNanos()).isZero();
+        assertThat(nextNestedTimer).isSameAs(nestedTimer);
+        assertThat(nextNestedTimer.getName()).isEqualTo("other");
+        assertThat(nextNestedTimer.getCount()).isZero();
+        assertThat(nextThreadContext.getCurrentTimer()).isSameAs(nextNestedTimer);
+    }
+
+    @Test
+    public void shouldNotReuseTimersOfThreadContextThatWasNotReleased() {
+        // given
+        TransactionObjectPool objectPool = new TransactionObjectPool();
+        ThreadContextImpl threadContext = createThreadContext(objectPool);
+        // when
+        ThreadContextImpl nextThreadContext = createThreadContext(objectPool);
+        // then
+        assertThat(nextThreadContext.getRootTimer()).isNotSameAs(threadContext.getRootTimer());
+    }
+
+    @Test
+    public void shouldIgnoreStaleEndOfReusedTimer() {
+        // given
+        TransactionObjectPool objectPool = new TransactionObjectPool();
+        ThreadContextImpl threadContext = createThreadContext(objectPool);
+        TimerImpl rootTimer = threadContext.getRootTimer();
+        TimerImpl nestedTimer =
+                rootTimer.startNestedTimer(ImmutableTimerNameImpl.of("nested", false), 1);
+        int staleGeneration = nestedTimer.getGeneration();
+        nestedTimer.end(2);
+        rootTimer.end(3);
+        threadContext.releaseToObjectPool();
+        ThreadContextImpl nextThreadContext = createThreadContext(objectPool);
+        TimerImpl nextNestedTimer = nextThreadContext.getRootTimer()
+                .startNestedTimer(ImmutableTimerNameImpl.of("other", false), 5);
+        // when
+        nextNestedTimer.end(100, staleGeneration);
+        nextNestedTimer.stop(staleGeneration);
+        // then
+        assertThat(nextNestedTimer).isSameAs(nestedTimer);
+        assertThat(nextNestedTimer.getSnapshot().active()).isTrue();
+        assertThat(nextNestedTimer.getCount()).isZero();
+        assertThat(nextThreadContext.getCurrentTimer()).isSameAs(nextNestedTimer);
+    }
+
+    @Test
+    public void shouldNotReuseTimerReturnedToPlugin() {
+        // given
+        TransactionObjectPool objectPool = new TransactionObjectPool();
+        ThreadContextImpl threadContext = createThreadContext(objectPool);
+        TimerImpl rootTimer = threadContext.getRootTimer();
+        TimerImpl nestedTimer = rootTimer
+                .startNestedTimer(ImmutableTimerNameImpl.of("nested", false), 1).markEscaped();
+        TimerImpl nestedNestedTimer =
+                nestedTimer.startNestedTimer(ImmutableTimerNameImpl.of("nested2", false), 2);
+        nestedNestedTimer.end(3);
+        nestedTimer.end(4);
+        rootTimer.end(5);
+        threadContext.releaseToObjectPool();
+        // when
+        ThreadContextImpl nextThreadContext = createThreadContext(objectPool);
+        TimerImpl nextRootTimer = nextThreadContext.getRootTimer();
+        TimerImpl nextNestedTimer =
+                nextRootTimer.startNestedTimer(ImmutableTimerNameImpl.of("other", false), 6);
+        // then
+        assertThat(nextRootTimer).isSameAs(rootTimer);
+        // the escaped timer is skipped, but its child timer is reused
+        assertThat(nextNestedTimer).isSameAs(nestedNestedTimer);
+    }
+
+    @Test
+    public void shouldResetReusedQueryDataMap() {
+        // given
+        TransactionObjectPool objectPool = new TransactionObjectPool();
+        QueryDataMap queryDataMap = objectPool.acquireQueryDataMap("SQL");
+        queryDataMap.put("select 1", mock(SyncQueryData.class));
+        // when
+        objectPool.addFreeQueryDataMap(queryDataMap);
+        QueryDataMap nextQueryDataMap = objectPool.acquireQueryDataMap("CQL");
+        // then
+        assertThat(nextQueryDataMap).isSameAs(queryDataMap);
+        assertThat(nextQueryDataMap.getType()).isEqualTo("CQL");
+        assertThat(nextQueryDataMap.get("select 1")).isNull();
+    }
+
+    private static ThreadContextImpl createThreadContext(TransactionObjectPool objectPool) {
+        return new ThreadContextImpl(mock(Transaction.class), null, null,
+                mock(MessageSupplier.class), ImmutableTimerNameImpl.of("root", false), 0, false, 0,
+                0, null, false, mock(Ticker.class), mock(ThreadContextThreadLocal.Holder.class),
+                null, objectPool);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransactionSamplerTest {
+
+    @Test
+    public void shouldNotSampleWhenDisabled() {
+        // given
+        TransactionSampler transactionSampler = new TransactionSampler(0, 0.01);
+        // when
+        int totalWeight = 0;
+        for (int i = 0; i < 1000; i++) {
+            totalWeight += transactionSampler.getSampleWeight("Web", "/health", 0);
+        }
+        // then
+        assertThat(totalWeight).isEqualTo(1000);
+    }
+
+    @Test
+    public void shouldNotSampleUnderTargetRate() {
+        // given
+        TransactionSampler transactionSampler = new TransactionSampler(100, 0.1);
+        // when
+        int totalWeight = 0;
+        for (int i = 0; i < 1000; i++) {
+            // 50 per second
+            totalWeight += transactionSampler.getSampleWeight("Web", "/health", i * 20);
+        }
+        // then
+        assertThat(totalWeight).isEqualTo(1000);
+    }
+
+    @Test
+    public void shouldSampleOverTargetRate() {
+        // given
+        TransactionSampler transactionSampler = new TransactionSampler(100, 0.1);
+        // when
+        int timersAndCountsOnlyCount = 0;
+        int totalWeight = 0;
+        for (int i = 0; i < 10000; i++) {
+            // 1000 per second
+            int sampleWeight = transactionSampler.getSampleWeight("Web", "/health", i);
+            if (sampleWeight == TransactionSampler.TIMERS_AND_COUNTS_ONLY) {
+                timersAndCountsOnlyCount++;
+            }
+            totalWeight += sampleWeight;
+        }
+        // then
+        assertThat(timersAndCountsOnlyCount).isGreaterThan(8000);
+        // sample weights add back up to the total number of transactions
+        assertThat(totalWeight).isBetween(10000, 10010);
+    }
+
+    @Test
+    public void shouldTrackTransactionNamesSeparately() {
+        // given
+        TransactionSampler transactionSampler = new TransactionSampler(100, 0.1);
+        for (int i = 0; i < 1000; i++) {
+            transactionSampler.getSampleWeight("Web", "/health", 0);
+        }
+        // when
+        int sampleWeight = transactionSampler.getSampleWeight("Web", "/checkout", 0);
+        // then
+        assertThat(sampleWeight).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldStopSamplingOnceBackUnderTargetRate() {
+        // given
+        TransactionSampler transactionSampler = new TransactionSampler(100, 0.1);
+        for (int i = 0; i < 1000; i++) {
+            transactionSampler.getSampleWeight("Web", "/health", 0);
+        }
+        // when
+        transactionSampler.getSampleWeight("Web", "/health", 1000);
+        int sampleWeight = transactionSampler.getSampleWeight("Web", "/health", 2000);
+        // then
+        assertThat(sampleWeight).isEqualTo(1);
+    }
+}
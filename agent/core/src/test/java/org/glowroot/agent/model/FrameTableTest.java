@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FrameTableTest {
+
+    private static final StackTraceElement A = new StackTraceElement("a.A", "a", "A.java", 1);
+    private static final StackTraceElement B = new StackTraceElement("b.B", "b", "B.java", 2);
+    private static final StackTraceElement C = new StackTraceElement("c.C", "c", "C.java", 3);
+
+    @Test
+    public void shouldInternFrames() {
+        // given
+        FrameTable frameTable = new FrameTable(100);
+
+        // when
+        int[] ids1 = frameTable.intern(new StackTraceElement[] {A, B, C});
+        int[] ids2 = frameTable.intern(new StackTraceElement[] {C, A});
+
+        // then
+        assertThat(ids1).containsExactly(0, 1, 2);
+        assertThat(ids2).containsExactly(2, 0);
+        assertThat(frameTable.size()).isEqualTo(3);
+        assertThat(frameTable.asList(ids1)).containsExactly(A, B, C);
+        assertThat(frameTable.asList(ids2)).containsExactly(C, A);
+    }
+
+    @Test
+    public void shouldGrow() {
+        // given
+        FrameTable frameTable = new FrameTable(10000);
+        StackTraceElement[] stackTrace = new StackTraceElement[5000];
+        for (int i = 0; i < stackTrace.length; i++) {
+            stackTrace[i] = new StackTraceElement("a.A", "a", "A.java", i);
+        }
+
+        // when
+        int[] ids = frameTable.intern(stackTrace);
+
+        // then
+        assertThat(frameTable.asList(ids)).containsExactly(stackTrace);
+    }
+
+    @Test
+    public void shouldReturnNullWhenFull() {
+        // given
+        FrameTable frameTable = new FrameTable(2);
+
+        // when
+        int[] ids1 = frameTable.intern(new StackTraceElement[] {A, B});
+        int[] ids2 = frameTable.intern(new StackTraceElement[] {A, C});
+
+        // then
+        assertThat(ids1).containsExactly(0, 1);
+        assertThat(ids2).isNull();
+        assertThat(frameTable.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldReplaceFullSharedFrameTable() {
+        // given
+        FrameTable frameTable = new FrameTable(2);
+        AtomicReference<FrameTable> frameTableHolder = new AtomicReference<FrameTable>(frameTable);
+        int[] ids = frameTable.intern(new StackTraceElement[] {A, B});
+        FrameTable sameFrameTable = FrameTable.getOrReplaceIfFull(frameTableHolder, 2);
+        frameTable.intern(new StackTraceElement[] {C});
+
+        // when
+        FrameTable newFrameTable = FrameTable.getOrReplaceIfFull(frameTableHolder, 2);
+
+        // then
+        assertThat(sameFrameTable).isSameAs(frameTable);
+        assertThat(newFrameTable).isNotSameAs(frameTable);
+        assertThat(newFrameTable.intern(new StackTraceElement[] {C})).containsExactly(0);
+        assertThat(FrameTable.getOrReplaceIfFull(frameTableHolder, 2)).isSameAs(newFrameTable);
+        // frame ids from the replaced frame table are still valid against that frame table
+        assertThat(frameTable.asList(ids)).containsExactly(A, B);
+    }
+}
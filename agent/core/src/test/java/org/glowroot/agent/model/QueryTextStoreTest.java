@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.ref.WeakReference;
+
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextStoreTest {
+
+    @Test
+    public void shouldShareEqualQueryTexts() {
+        // given
+        QueryTextStore store = new QueryTextStore(true);
+        String queryText = new String("select * from abc");
+        String equalQueryText = new String("select * from abc");
+
+        // when
+        String shared = store.shareInternal(queryText);
+        String sharedEqual = store.shareInternal(equalQueryText);
+
+        // then
+        assertThat(shared).isSameAs(queryText);
+        assertThat(sharedEqual).isSameAs(queryText);
+    }
+
+    @Test
+    public void shouldNotShareWhenDisabled() {
+        // given
+        QueryTextStore store = new QueryTextStore(false);
+        String queryText = new String("select * from abc");
+        String equalQueryText = new String("select * from abc");
+
+        // when
+        store.shareInternal(queryText);
+        String sharedEqual = store.shareInternal(equalQueryText);
+
+        // then
+        assertThat(sharedEqual).isSameAs(equalQueryText);
+    }
+
+    @Test
+    public void shouldHashSharedQueryTextOnce() {
+        // given
+        QueryTextStore store = new QueryTextStore(true);
+        String queryText = store.shareInternal(new String("select * from abc where xyz = ?"));
+
+        // when
+        String sha1 = store.sha1Internal(queryText);
+        String sha1Again = store.sha1Internal(store.shareInternal(
+                new String("select * from abc where xyz = ?")));
+
+        // then
+        assertThat(sha1).isEqualTo(Hashing.sha1().hashString(queryText, UTF_8).toString());
+        assertThat(sha1Again).isEqualTo(sha1);
+        assertThat(store.getCachedSha1Count()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReleaseUnreferencedQueryTexts() throws Exception {
+        // given
+        QueryTextStore store = new QueryTextStore(true);
+        WeakReference<String> queryTextRef = shareAndHash(store, new String("select 1"));
+
+        // when
+        for (int i = 0; i < 100 && queryTextRef.get() != null; i++) {
+            System.gc();
+            MILLISECONDS.sleep(10);
+        }
+
+        // then
+        assertThat(queryTextRef.get()).isNull();
+        assertThat(store.getCachedSha1Count()).isZero();
+        String equalQueryText = new String("select 1");
+        assertThat(store.shareInternal(equalQueryText)).isSameAs(equalQueryText);
+    }
+
+    private static WeakReference<String> shareAndHash(QueryTextStore store, String queryText) {
+        String shared = store.shareInternal(queryText);
+        store.sha1Internal(shared);
+        return new WeakReference<String>(shared);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadProfileTest {
+
+    private static final StackTraceElement LEAF = new StackTraceElement("a.A", "a", "A.java", 1);
+    private static final StackTraceElement MIDDLE = new StackTraceElement("b.B", "b", "B.java", 2);
+    private static final StackTraceElement ROOT = new StackTraceElement("c.C", "c", "C.java", 3);
+
+    @Test
+    public void shouldTruncateLeafFrames() {
+        // when
+        StackTraceElement[] stackTrace =
+                ThreadProfile.truncate(new StackTraceElement[] {LEAF, MIDDLE, ROOT}, 2);
+
+        // then
+        assertThat(stackTrace).containsExactly(MIDDLE, ROOT);
+    }
+
+    @Test
+    public void shouldNotTruncateShortStackTrace() {
+        // when
+        StackTraceElement[] stackTrace =
+                ThreadProfile.truncate(new StackTraceElement[] {LEAF, MIDDLE, ROOT}, 3);
+
+        // then
+        assertThat(stackTrace).containsExactly(LEAF, MIDDLE, ROOT);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeakClassLoaderMapTest {
+
+    @Test
+    public void shouldCompareClassLoadersByIdentity() {
+        // given
+        WeakClassLoaderMap<String> map = new WeakClassLoaderMap<String>();
+        ClassLoader loader1 = new URLClassLoader(new URL[0]);
+        ClassLoader loader2 = new URLClassLoader(new URL[0]);
+
+        // when
+        map.putIfAbsent(loader1, "one");
+        map.putIfAbsent(loader2, "two");
+
+        // then
+        assertThat(map.get(loader1)).isEqualTo("one");
+        assertThat(map.get(loader2)).isEqualTo("two");
+        assertThat(map.getKeys()).containsOnly(loader1, loader2);
+        assertThat(map.getValues()).containsOnly("one", "two");
+    }
+
+    @Test
+    public void shouldNotReplaceExistingValue() {
+        // given
+        WeakClassLoaderMap<String> map = new WeakClassLoaderMap<String>();
+        ClassLoader loader = new URLClassLoader(new URL[0]);
+        map.putIfAbsent(loader, "one");
+
+        // when
+        String existing = map.putIfAbsent(loader, "two");
+
+        // then
+        assertThat(existing).isEqualTo("one");
+        assertThat(map.get(loader)).isEqualTo("one");
+    }
+
+    @Test
+    public void shouldRemoveEntriesForCollectedClassLoaders() throws Exception {
+        // given
+        WeakClassLoaderMap<String> map = new WeakClassLoaderMap<String>();
+        ClassLoader loader = new URLClassLoader(new URL[0]);
+        map.putIfAbsent(loader, "one");
+        map.putIfAbsent(new URLClassLoader(new URL[0]), "two");
+
+        // when
+        for (int i = 0; i < 100 && map.getValues().size() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        // then
+        assertThat(map.getValues()).containsOnly("one");
+        assertThat(map.get(loader)).isEqualTo("one");
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BindThrowableAdvice;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingCacheTest {
+
+    private static final byte[] CLASS_BYTES = new byte[] {1, 2, 3, 4};
+
+    private File file;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        file = File.createTempFile("glowroot-test-", ".dat");
+        file.delete();
+    }
+
+    @After
+    public void afterEachTest() {
+        file.delete();
+    }
+
+    @Test
+    public void shouldHitAfterRestart() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build());
+        WeavingCache weavingCache = newWeavingCache(advisors);
+        WeavingCache.Key key = weavingCache.getKey(CLASS_BYTES, advisors, false);
+        weavingCache.put(key, newAnalyzedClass(), ImmutableList.<AnalyzedClass>of(), 1000);
+        weavingCache.flush();
+
+        // when
+        WeavingCache restartedWeavingCache = newWeavingCache(advisors);
+        WeavingCache.Key restartedKey = restartedWeavingCache.getKey(CLASS_BYTES, advisors, false);
+
+        // then
+        assertThat(restartedWeavingCache.addCachedAnalyzedClass(restartedKey, null, null,
+                Ticker.systemTicker().read())).isTrue();
+    }
+
+    @Test
+    public void shouldMissAfterAdvisorsChange() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build());
+        WeavingCache weavingCache = newWeavingCache(advisors);
+        WeavingCache.Key key = weavingCache.getKey(CLASS_BYTES, advisors, false);
+        weavingCache.put(key, newAnalyzedClass(), ImmutableList.<AnalyzedClass>of(), 1000);
+        weavingCache.flush();
+
+        // when
+        List<Advice> changedAdvisors = ImmutableList.of(
+                new AdviceBuilder(BasicAdvice.class).build(),
+                new AdviceBuilder(BindThrowableAdvice.class).build());
+        WeavingCache restartedWeavingCache = newWeavingCache(changedAdvisors);
+        WeavingCache.Key restartedKey =
+                restartedWeavingCache.getKey(CLASS_BYTES, changedAdvisors, false);
+
+        // then
+        assertThat(restartedWeavingCache.addCachedAnalyzedClass(restartedKey, null, null,
+                Ticker.systemTicker().read())).isFalse();
+    }
+
+    @Test
+    public void shouldMissAfterSuperTypesChange() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build());
+        WeavingCache weavingCache = newWeavingCache(advisors);
+        WeavingCache.Key key = weavingCache.getKey(CLASS_BYTES, advisors, false);
+        AnalyzedClass superAnalyzedClass = ImmutableAnalyzedClass.builder()
+                .modifiers(0)
+                .name("org.example.Base")
+                .ejbRemote(false)
+                .build();
+
+        // when
+        weavingCache.put(key, newAnalyzedClass(), ImmutableList.of(superAnalyzedClass), 1000);
+
+        // then
+        assertThat(weavingCache.addCachedAnalyzedClass(key, null, null,
+                Ticker.systemTicker().read())).isFalse();
+    }
+
+    @Test
+    public void shouldReadEntriesBeforePartiallyWrittenEntry() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build());
+        WeavingCache weavingCache = newWeavingCache(advisors);
+        WeavingCache.Key key = weavingCache.getKey(CLASS_BYTES, advisors, false);
+        weavingCache.put(key, newAnalyzedClass(), ImmutableList.<AnalyzedClass>of(), 1000);
+        weavingCache.flush();
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+
+        // when
+        WeavingCache restartedWeavingCache = newWeavingCache(advisors);
+        WeavingCache.Key restartedKey = restartedWeavingCache.getKey(CLASS_BYTES, advisors, false);
+
+        // then
+        assertThat(restartedWeavingCache.addCachedAnalyzedClass(restartedKey, null, null,
+                Ticker.systemTicker().read())).isTrue();
+    }
+
+    private WeavingCache newWeavingCache(List<Advice> advisors) {
+        Supplier<List<Advice>> advisorsSupplier = Suppliers.ofInstance(advisors);
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+        return new WeavingCache(file, advisorsSupplier, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), analyzedWorld, Ticker.systemTicker());
+    }
+
+    private static AnalyzedClass newAnalyzedClass() {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(0)
+                .name("org.example.Foo")
+                .superName("java.lang.Object")
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name("execute")
+                        .returnType("void")
+                        .modifiers(0)
+                        .build())
+                .addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name("getName")
+                        .build())
+                .ejbRemote(false)
+                .build();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.embedded;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.embedded.repo.AggregateDao;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// measures AggregateDao.store() of one aggregate interval (overall aggregate plus one aggregate
+// per transaction name, each with queries) per operation, advancing the capture time by one
+// aggregate interval each operation
+//
+// sample time mode reports latency percentiles (including p0.99), and the growth of the data files
+// is printed at the end of each trial
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class AggregateStoreBenchmark {
+
+    private static final long AGGREGATE_INTERVAL_MILLIS = 60000;
+
+    @Param("8192")
+    private int h2CacheSizeKb;
+
+    // whether rollups and the reaper run in the background (as they do in the embedded agent)
+    @Param({"false", "true"})
+    private boolean background;
+
+    private EmbeddedStorage storage;
+    private AggregateDao aggregateDao;
+    private List<Aggregate> aggregates;
+
+    private long captureTime;
+    private long operationCount;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        storage = new EmbeddedStorage(h2CacheSizeKb, background);
+        aggregateDao = storage.getRepoModule().getAggregateDao();
+        aggregates = SyntheticData.createAggregates(new Random(0));
+        captureTime = (System.currentTimeMillis() / AGGREGATE_INTERVAL_MILLIS)
+                * AGGREGATE_INTERVAL_MILLIS;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.printFileGrowth("aggregates", operationCount);
+        storage.close();
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        captureTime += AGGREGATE_INTERVAL_MILLIS;
+        aggregateDao.store(SyntheticData.createAggregateReader(captureTime, aggregates));
+        operationCount++;
+    }
+}
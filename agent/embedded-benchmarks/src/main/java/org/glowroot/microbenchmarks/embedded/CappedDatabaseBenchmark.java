@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.embedded;
+
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.CappedDatabaseStats;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// measures writing and reading the entries of one trace to/from a capped database, for each capped
+// database codec
+//
+// the compression ratio and the write rate (excluding the sync to disk that follows each write) are
+// printed at the end of each trial
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class CappedDatabaseBenchmark {
+
+    private static final String TYPE = "trace entries";
+
+    // number of blocks that are read round robin
+    private static final int READ_BLOCK_COUNT = 1000;
+
+    @Param({"lzf", "deflate", "lz4"})
+    private String codec;
+
+    private File dir;
+    private CappedDatabase cappedDatabase;
+    private List<Trace.Entry> entries;
+
+    private long[] cappedIds;
+    private int readIndex;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // the codec must be set before the CappedDatabase class is initialized (JMH runs each
+        // benchmark parameter combination in a separate fork)
+        System.setProperty("glowroot.internal.cappedDatabase.codec", codec);
+        dir = Files.createTempDir();
+        cappedDatabase = new CappedDatabase(new File(dir, "benchmark.capped.db"), 100 * 1024,
+                Ticker.systemTicker());
+        entries = SyntheticData.createTraceEntries(new Random(0));
+        cappedIds = new long[READ_BLOCK_COUNT];
+        for (int i = 0; i < READ_BLOCK_COUNT; i++) {
+            cappedIds[i] = cappedDatabase.writeMessages(entries, TYPE);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        CappedDatabaseStats stats = cappedDatabase.getStats(TYPE);
+        double ratio = stats.getTotalBytesAfterCompression() == 0 ? 0
+                : stats.getTotalBytesBeforeCompression()
+                        / (double) stats.getTotalBytesAfterCompression();
+        double megabytesPerSecond = stats.getTotalMillis() == 0 ? 0
+                : stats.getTotalBytesBeforeCompression() / (stats.getTotalMillis() * 1000);
+        System.out.println(String.format(Locale.ENGLISH,
+                "%n%s codec: compression ratio %.2f, write rate %.1f MB/s (over %,d writes)",
+                codec, ratio, megabytesPerSecond, stats.getWriteCount()));
+        cappedDatabase.close();
+        EmbeddedStorage.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long write() throws Exception {
+        return cappedDatabase.writeMessages(entries, TYPE);
+    }
+
+    @Benchmark
+    public List<Trace.Entry> read() throws Exception {
+        long cappedId = cappedIds[readIndex++ % READ_BLOCK_COUNT];
+        return cappedDatabase.readMessages(cappedId, Trace.Entry.parser());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.embedded;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.base.Ticker;
+import com.google.common.io.Files;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.PluginCache;
+import org.glowroot.agent.embedded.repo.ConfigRepositoryImpl;
+import org.glowroot.agent.embedded.repo.SimpleRepoModule;
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// file based embedded storage in a temporary directory, wired the same way as the embedded agent
+class EmbeddedStorage {
+
+    private final File dir;
+    private final File dataDir;
+    private final @Nullable ScheduledExecutorService backgroundExecutor;
+    private final SimpleRepoModule repoModule;
+
+    private final long initialH2FileSize;
+    private final long initialCappedFileSize;
+
+    // h2CacheSizeKb must be passed before the first DataSource is created in the JVM since it is
+    // only read once (JMH runs each benchmark parameter combination in a separate fork)
+    //
+    // the background executor (when enabled) runs rollups and the reaper concurrently with the
+    // benchmark, as they would run in the embedded agent
+    EmbeddedStorage(int h2CacheSizeKb, boolean background) throws Exception {
+        System.setProperty("glowroot.internal.h2.cacheSize", Integer.toString(h2CacheSizeKb));
+        dir = Files.createTempDir();
+        File confDir = new File(dir, "conf");
+        dataDir = new File(dir, "data");
+        if (!confDir.mkdir() || !dataDir.mkdir()) {
+            throw new IOException("Could not create directories under: " + dir);
+        }
+        PluginCache pluginCache = PluginCache.create(null, false);
+        ConfigService configService =
+                ConfigService.create(confDir, pluginCache.pluginDescriptors());
+        ConfigRepositoryImpl configRepository =
+                new ConfigRepositoryImpl(confDir, configService, pluginCache);
+        DataSource dataSource = new DataSource(new File(dataDir, "data.h2.db"));
+        if (background) {
+            backgroundExecutor = Executors.newScheduledThreadPool(2);
+        } else {
+            backgroundExecutor = null;
+        }
+        repoModule = new SimpleRepoModule(dataSource, dataDir, Clock.systemClock(),
+                Ticker.systemTicker(), configRepository, backgroundExecutor);
+        initialH2FileSize = getFileSize(false);
+        initialCappedFileSize = getFileSize(true);
+    }
+
+    SimpleRepoModule getRepoModule() {
+        return repoModule;
+    }
+
+    // the capped database files stop growing once they reach their configured size (and then wrap
+    // around), so they are reported separately from the h2 database file
+    void printFileGrowth(String name, long operationCount) {
+        System.out.println();
+        printFileGrowth(name + " h2 file", getFileSize(false) - initialH2FileSize,
+                operationCount);
+        printFileGrowth(name + " capped files", getFileSize(true) - initialCappedFileSize,
+                operationCount);
+    }
+
+    private long getFileSize(boolean capped) {
+        long size = 0;
+        File[] files = dataDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".capped.db") == capped) {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    void close() throws Exception {
+        repoModule.close();
+        if (backgroundExecutor != null) {
+            backgroundExecutor.shutdown();
+            if (!backgroundExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
+        deleteRecursively(dir);
+    }
+
+    private static void printFileGrowth(String name, long growth, long operationCount) {
+        double growthPerOperation = operationCount == 0 ? 0 : growth / (double) operationCount;
+        System.out.println(String.format(Locale.ENGLISH,
+                "%s: grew %,d bytes over %,d operations (%,.1f bytes/op)", name, growth,
+                operationCount, growthPerOperation));
+    }
+
+    static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete()) {
+            throw new IOException("Could not delete: " + file);
+        }
+    }
+}
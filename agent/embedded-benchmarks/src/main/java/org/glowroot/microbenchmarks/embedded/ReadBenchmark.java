@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.embedded;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.embedded.repo.AggregateDao;
+import org.glowroot.agent.embedded.repo.GaugeValueDao;
+import org.glowroot.agent.embedded.repo.TraceDao;
+import org.glowroot.common.live.ImmutableOverallQuery;
+import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.model.Result;
+import org.glowroot.common.model.TransactionSummaryCollector;
+import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
+import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
+import org.glowroot.common2.repo.ImmutableTraceQuery;
+import org.glowroot.common2.repo.TraceRepository.TraceQuery;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// measures the storage reads behind the main UI pages (transaction list, response time chart,
+// gauge chart and trace point chart) over the given number of hours of synthetic data, which is
+// stored up front
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ReadBenchmark {
+
+    private static final String AGENT_ID = "";
+
+    private static final long AGGREGATE_INTERVAL_MILLIS = 60000;
+    private static final long GAUGE_COLLECTION_INTERVAL_MILLIS = 5000;
+    private static final int TRACES_PER_HOUR = 200;
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    @Param("8192")
+    private int h2CacheSizeKb;
+
+    @Param({"1", "6"})
+    private int hours;
+
+    private EmbeddedStorage storage;
+    private AggregateDao aggregateDao;
+    private TraceDao traceDao;
+    private GaugeValueDao gaugeValueDao;
+
+    private long from;
+    private long to;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        storage = new EmbeddedStorage(h2CacheSizeKb, false);
+        aggregateDao = storage.getRepoModule().getAggregateDao();
+        traceDao = storage.getRepoModule().getTraceDao();
+        gaugeValueDao = storage.getRepoModule().getGaugeValueDao();
+        to = (System.currentTimeMillis() / HOUR_MILLIS) * HOUR_MILLIS;
+        from = to - hours * HOUR_MILLIS;
+
+        Random random = new Random(0);
+        List<Aggregate> aggregates = SyntheticData.createAggregates(random);
+        for (long captureTime = from + AGGREGATE_INTERVAL_MILLIS; captureTime <= to;
+                captureTime += AGGREGATE_INTERVAL_MILLIS) {
+            aggregateDao.store(SyntheticData.createAggregateReader(captureTime, aggregates));
+        }
+        for (long captureTime = from + GAUGE_COLLECTION_INTERVAL_MILLIS; captureTime <= to;
+                captureTime += GAUGE_COLLECTION_INTERVAL_MILLIS) {
+            gaugeValueDao.store(SyntheticData.createGaugeValues(captureTime, random));
+        }
+        List<Trace.Entry> entries = SyntheticData.createTraceEntries(random);
+        int traceCount = hours * TRACES_PER_HOUR;
+        for (int i = 0; i < traceCount; i++) {
+            long captureTime = from + 1 + (long) (random.nextDouble() * (to - from - 1));
+            traceDao.store(SyntheticData.createTraceReader(captureTime, entries, random));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.close();
+    }
+
+    @Benchmark
+    public Result<TransactionSummary> transactionSummaries() throws Exception {
+        OverallQuery query = ImmutableOverallQuery.builder()
+                .transactionType(SyntheticData.TRANSACTION_TYPE)
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+        TransactionSummaryCollector collector = new TransactionSummaryCollector();
+        aggregateDao.mergeTransactionSummariesInto(AGENT_ID, query, SummarySortOrder.TOTAL_TIME,
+                100, collector);
+        return collector.getResult(SummarySortOrder.TOTAL_TIME, 100);
+    }
+
+    @Benchmark
+    public List<OverviewAggregate> overviewAggregates() throws Exception {
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType(SyntheticData.TRANSACTION_TYPE)
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+        return aggregateDao.readOverviewAggregates(AGENT_ID, query);
+    }
+
+    @Benchmark
+    public List<GaugeValue> gaugeValues() throws Exception {
+        return gaugeValueDao.readGaugeValues(AGENT_ID, SyntheticData.getGaugeName(0), from, to,
+                0);
+    }
+
+    @Benchmark
+    public Result<TracePoint> slowPoints() throws Exception {
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType(SyntheticData.TRANSACTION_TYPE)
+                .from(from)
+                .to(to)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .build();
+        return traceDao.readSlowPoints(AGENT_ID, query, filter, 500);
+    }
+}
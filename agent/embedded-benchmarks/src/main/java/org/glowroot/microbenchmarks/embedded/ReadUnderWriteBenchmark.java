@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.embedded;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.embedded.repo.AggregateDao;
+import org.glowroot.agent.embedded.repo.TraceDao;
+import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.model.Result;
+import org.glowroot.common2.repo.ImmutableTraceQuery;
+import org.glowroot.common2.repo.TraceRepository.TraceQuery;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// measures the latency of the storage reads behind the response time chart and the trace point
+// chart while AggregateDao.store() and TraceDao.store() run continuously on another thread (as
+// they do when the UI is used while the agent is under load)
+//
+// readerConnections=0 runs queries on the single writer connection (so they queue behind the
+// stores), which is the baseline for the default of 2 reader connections
+//
+// only the sample time percentiles of the read methods are of interest, the store method is in the
+// group only to generate the write load
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ReadUnderWriteBenchmark {
+
+    private static final String AGENT_ID = "";
+
+    private static final long AGGREGATE_INTERVAL_MILLIS = 60000;
+    private static final int TRACES_PER_HOUR = 200;
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    @Param("8192")
+    private int h2CacheSizeKb;
+
+    @Param({"0", "2"})
+    private int readerConnections;
+
+    private EmbeddedStorage storage;
+    private AggregateDao aggregateDao;
+    private TraceDao traceDao;
+    private List<Aggregate> aggregates;
+    private List<Trace.Entry> entries;
+
+    private long from;
+    private long to;
+
+    // only accessed by the (single) store thread after setup
+    private Random random;
+    private long storeCaptureTime;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // must be set before the first DataSource is created in the JVM since it is only read once
+        // (JMH runs each benchmark parameter combination in a separate fork)
+        System.setProperty("glowroot.internal.h2.readerConnections",
+                Integer.toString(readerConnections));
+        storage = new EmbeddedStorage(h2CacheSizeKb, false);
+        aggregateDao = storage.getRepoModule().getAggregateDao();
+        traceDao = storage.getRepoModule().getTraceDao();
+        to = (System.currentTimeMillis() / HOUR_MILLIS) * HOUR_MILLIS;
+        from = to - HOUR_MILLIS;
+
+        random = new Random(0);
+        aggregates = SyntheticData.createAggregates(random);
+        entries = SyntheticData.createTraceEntries(random);
+        for (long captureTime = from + AGGREGATE_INTERVAL_MILLIS; captureTime <= to;
+                captureTime += AGGREGATE_INTERVAL_MILLIS) {
+            aggregateDao.store(SyntheticData.createAggregateReader(captureTime, aggregates));
+        }
+        for (int i = 0; i < TRACES_PER_HOUR; i++) {
+            long captureTime = from + 1 + (long) (random.nextDouble() * (to - from - 1));
+            traceDao.store(SyntheticData.createTraceReader(captureTime, entries, random));
+        }
+        // stores continue after the queried range, so the query results stay the same throughout
+        storeCaptureTime = to;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.close();
+    }
+
+    @Benchmark
+    @Group("readUnderWrite")
+    @GroupThreads(1)
+    public void store() throws Exception {
+        storeCaptureTime += AGGREGATE_INTERVAL_MILLIS;
+        aggregateDao.store(SyntheticData.createAggregateReader(storeCaptureTime, aggregates));
+        traceDao.store(SyntheticData.createTraceReader(storeCaptureTime, entries, random));
+    }
+
+    @Benchmark
+    @Group("readUnderWrite")
+    @GroupThreads(1)
+    public List<OverviewAggregate> overviewAggregates() throws Exception {
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType(SyntheticData.TRANSACTION_TYPE)
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+        return aggregateDao.readOverviewAggregates(AGENT_ID, query);
+    }
+
+    @Benchmark
+    @Group("readUnderWrite")
+    @GroupThreads(1)
+    public Result<TracePoint> slowPoints() throws Exception {
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType(SyntheticData.TRANSACTION_TYPE)
+                .from(from)
+                .to(to)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .build();
+        return traceDao.readSlowPoints(AGENT_ID, query, filter, 500);
+    }
+}
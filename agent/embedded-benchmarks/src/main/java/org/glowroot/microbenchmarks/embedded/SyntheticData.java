@@ -0,0 +1,259 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.embedded;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.glowroot.agent.collector.Collector.AggregateReader;
+import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.collector.Collector.TraceVisitor;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// synthetic data shaped like what a typical web application sends to the embedded collector
+class SyntheticData {
+
+    static final String TRANSACTION_TYPE = "Web";
+
+    static final int TRANSACTION_NAME_COUNT = 50;
+    static final int QUERY_TEXT_COUNT = 40;
+    static final int QUERIES_PER_TRANSACTION = 8;
+    static final int ENTRIES_PER_TRACE = 100;
+
+    static final int GAUGE_COUNT = 30;
+
+    private static final ImmutableList<String> transactionNames;
+    private static final ImmutableList<String> queryTexts;
+    private static final ImmutableList<String> gaugeNames;
+
+    static {
+        List<String> names = Lists.newArrayList();
+        for (int i = 0; i < TRANSACTION_NAME_COUNT; i++) {
+            names.add("/app/module" + (i % 7) + "/resource" + i + "/{id}");
+        }
+        transactionNames = ImmutableList.copyOf(names);
+        List<String> texts = Lists.newArrayList();
+        for (int i = 0; i < QUERY_TEXT_COUNT; i++) {
+            StringBuilder sb = new StringBuilder("select ");
+            for (int j = 0; j < 20; j++) {
+                if (j > 0) {
+                    sb.append(", ");
+                }
+                sb.append("t").append(i).append(".column_").append(j);
+            }
+            sb.append(" from table_").append(i).append(" t").append(i)
+                    .append(" inner join other_table o on o.id = t").append(i)
+                    .append(".other_id where t").append(i)
+                    .append(".id = ? and o.status in (?, ?)");
+            texts.add(sb.toString());
+        }
+        queryTexts = ImmutableList.copyOf(texts);
+        List<String> gauges = Lists.newArrayList();
+        for (int i = 0; i < GAUGE_COUNT; i++) {
+            gauges.add("java.lang:type=Synthetic,name=gauge" + i + ":Value");
+        }
+        gaugeNames = ImmutableList.copyOf(gauges);
+    }
+
+    private SyntheticData() {}
+
+    static String getGaugeName(int index) {
+        return gaugeNames.get(index);
+    }
+
+    // the first aggregate is the overall aggregate, followed by one aggregate per transaction name
+    //
+    // aggregates are built up front and re-used across capture times so that building them is not
+    // part of the measurement
+    static List<Aggregate> createAggregates(Random random) {
+        List<Aggregate> aggregates = Lists.newArrayList();
+        aggregates.add(createAggregate(random, TRANSACTION_NAME_COUNT * 20));
+        for (int i = 0; i < TRANSACTION_NAME_COUNT; i++) {
+            aggregates.add(createAggregate(random, 20));
+        }
+        return aggregates;
+    }
+
+    static AggregateReader createAggregateReader(final long captureTime,
+            final List<Aggregate> aggregates) {
+        return new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return captureTime;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+                aggregateVisitor.visitOverallAggregate(TRANSACTION_TYPE, queryTexts,
+                        aggregates.get(0));
+                for (int i = 0; i < TRANSACTION_NAME_COUNT; i++) {
+                    aggregateVisitor.visitTransactionAggregate(TRANSACTION_TYPE,
+                            transactionNames.get(i), queryTexts, aggregates.get(i + 1));
+                }
+            }
+        };
+    }
+
+    // entries are built up front and re-used across traces so that building them is not part of
+    // the measurement
+    static List<Trace.Entry> createTraceEntries(Random random) {
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < ENTRIES_PER_TRACE; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(i == 0 ? 0 : 1)
+                    .setStartOffsetNanos(i * 100000L)
+                    .setDurationNanos(50000 + random.nextInt(50000))
+                    .setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                            .setSharedQueryTextIndex(i % QUERIES_PER_TRANSACTION)
+                            .setPrefix("jdbc query: ")
+                            .setSuffix(" => 1 row"))
+                    .build());
+        }
+        return entries;
+    }
+
+    static TraceReader createTraceReader(final long captureTime,
+            final List<Trace.Entry> entries, final Random random) {
+        final String traceId = UUID.randomUUID().toString();
+        return new TraceReader() {
+            @Override
+            public long captureTime() {
+                return captureTime;
+            }
+            @Override
+            public String traceId() {
+                return traceId;
+            }
+            @Override
+            public boolean partial() {
+                return false;
+            }
+            @Override
+            public boolean update() {
+                return false;
+            }
+            @Override
+            public void accept(TraceVisitor traceVisitor) throws Exception {
+                for (Trace.Entry entry : entries) {
+                    traceVisitor.visitEntry(entry);
+                }
+                List<Aggregate.Query> queries = Lists.newArrayList();
+                for (int i = 0; i < QUERIES_PER_TRANSACTION; i++) {
+                    queries.add(createQuery(i, random));
+                }
+                traceVisitor.visitQueries(queries);
+                traceVisitor.visitSharedQueryTexts(
+                        queryTexts.subList(0, QUERIES_PER_TRANSACTION));
+                traceVisitor.visitHeader(createTraceHeader(captureTime, random));
+            }
+        };
+    }
+
+    static List<GaugeValue> createGaugeValues(long captureTime, Random random) {
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        for (String gaugeName : gaugeNames) {
+            gaugeValues.add(GaugeValue.newBuilder()
+                    .setGaugeName(gaugeName)
+                    .setCaptureTime(captureTime)
+                    .setValue(1000 + random.nextInt(100))
+                    .setWeight(1)
+                    .build());
+        }
+        return gaugeValues;
+    }
+
+    private static Aggregate createAggregate(Random random, int transactionCount) {
+        Aggregate.Histogram.Builder histogram = Aggregate.Histogram.newBuilder();
+        double totalDurationNanos = 0;
+        List<Long> durations = Lists.newArrayList();
+        for (int i = 0; i < transactionCount; i++) {
+            durations.add(MILLISECONDS.toNanos(5 + random.nextInt(200)));
+        }
+        Collections.sort(durations);
+        for (long duration : durations) {
+            histogram.addOrderedRawValue(duration);
+            totalDurationNanos += duration;
+        }
+        Aggregate.Builder builder = Aggregate.newBuilder()
+                .setTotalDurationNanos(totalDurationNanos)
+                .setTransactionCount(transactionCount)
+                .setErrorCount(random.nextInt(2))
+                .addMainThreadRootTimer(createRootTimer(totalDurationNanos, transactionCount))
+                .setDurationNanosHistogram(histogram);
+        for (int i = 0; i < QUERIES_PER_TRANSACTION; i++) {
+            builder.addQuery(createQuery(random.nextInt(QUERY_TEXT_COUNT), random));
+        }
+        return builder.build();
+    }
+
+    private static Aggregate.Timer createRootTimer(double totalNanos, long count) {
+        return Aggregate.Timer.newBuilder()
+                .setName("http request")
+                .setTotalNanos(totalNanos)
+                .setCount(count)
+                .addChildTimer(Aggregate.Timer.newBuilder()
+                        .setName("jdbc query")
+                        .setTotalNanos(totalNanos / 2)
+                        .setCount(count * QUERIES_PER_TRANSACTION))
+                .addChildTimer(Aggregate.Timer.newBuilder()
+                        .setName("jdbc get connection")
+                        .setTotalNanos(totalNanos / 20)
+                        .setCount(count))
+                .build();
+    }
+
+    private static Aggregate.Query createQuery(int sharedQueryTextIndex, Random random) {
+        return Aggregate.Query.newBuilder()
+                .setType("SQL")
+                .setSharedQueryTextIndex(sharedQueryTextIndex)
+                .setTotalDurationNanos(MILLISECONDS.toNanos(1 + random.nextInt(20)))
+                .setExecutionCount(1 + random.nextInt(10))
+                .build();
+    }
+
+    private static Trace.Header createTraceHeader(long captureTime, Random random) {
+        long durationNanos = MILLISECONDS.toNanos(2000 + random.nextInt(3000));
+        return Trace.Header.newBuilder()
+                .setSlow(true)
+                .setStartTime(captureTime - MILLISECONDS.convert(durationNanos, NANOSECONDS))
+                .setCaptureTime(captureTime)
+                .setDurationNanos(durationNanos)
+                .setEntryCount(ENTRIES_PER_TRACE)
+                .setTransactionType(TRANSACTION_TYPE)
+                .setTransactionName(
+                        transactionNames.get(random.nextInt(TRANSACTION_NAME_COUNT)))
+                .setHeadline("GET /app/resource")
+                .setUser("user" + random.nextInt(100))
+                .addAttribute(Trace.Attribute.newBuilder()
+                        .setName("Remote address")
+                        .addValue("10.0.0." + random.nextInt(256)))
+                .setMainThreadRootTimer(Trace.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(durationNanos)
+                        .setCount(1))
+                .build();
+    }
+}
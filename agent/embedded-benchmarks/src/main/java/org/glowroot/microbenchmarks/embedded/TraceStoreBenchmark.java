@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.embedded;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.embedded.repo.TraceDao;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// measures TraceDao.store() of one slow trace (with entries, queries and shared query texts) per
+// operation
+//
+// TraceDao.store() returns once the trace has been written, so each operation includes the write
+// (traces from concurrent store() calls are written together in the same batch)
+//
+// sample time mode reports latency percentiles (including p0.99), and the growth of the data files
+// is printed at the end of each trial
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class TraceStoreBenchmark {
+
+    @Param("8192")
+    private int h2CacheSizeKb;
+
+    private EmbeddedStorage storage;
+    private TraceDao traceDao;
+    private List<Trace.Entry> entries;
+    private Random random;
+
+    private long captureTime;
+    private long operationCount;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        storage = new EmbeddedStorage(h2CacheSizeKb, false);
+        traceDao = storage.getRepoModule().getTraceDao();
+        random = new Random(0);
+        entries = SyntheticData.createTraceEntries(random);
+        captureTime = System.currentTimeMillis();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.printFileGrowth("traces", operationCount);
+        storage.close();
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        // multiple traces are often captured in the same millisecond under load
+        captureTime += random.nextInt(2);
+        traceDao.store(SyntheticData.createTraceReader(captureTime, entries, random));
+        operationCount++;
+    }
+}
@@ -76,11 +76,12 @@ class PreInitializeStorageShutdownClasses {
     private static List<String> getGlowrootUsedTypes() {
         List<String> types = Lists.newArrayList();
         types.add("org.glowroot.agent.embedded.util.CappedDatabase");
+        types.add("org.glowroot.agent.embedded.util.CappedDatabase$ReadView");
         types.add("org.glowroot.agent.embedded.util.CappedDatabase$ShutdownHookThread");
         types.add("org.glowroot.agent.embedded.util.CappedDatabaseOutputStream");
         types.add("org.glowroot.agent.embedded.util.DataSource");
+        types.add("org.glowroot.agent.embedded.util.DataSource$ReaderConnection");
         types.add("org.glowroot.agent.embedded.util.DataSource$ShutdownHookThread");
-        types.add("org.glowroot.agent.util.JavaVersion");
         return types;
     }
 
@@ -20,7 +20,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
@@ -33,6 +33,8 @@ import org.immutables.value.Value;
 
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.embedded.repo.TransactionSummaryDao.BucketRange;
+import org.glowroot.agent.embedded.repo.TransactionSummaryDao.TransactionTotals;
 import org.glowroot.agent.embedded.repo.model.Stored;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
@@ -44,6 +46,7 @@ import org.glowroot.agent.embedded.util.RowMappers;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.embedded.util.TimePartitionedTable;
 import org.glowroot.common.ConfigDefaults;
 import org.glowroot.common.Constants;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
@@ -81,6 +84,10 @@ public class AggregateDao implements AggregateRepository {
 
     private static final String AGENT_ID = "";
 
+    // bounds the time that a single rollup holds its rollup level's lock, e.g. when catching up
+    // after downtime
+    private static final int MAX_ROLLUP_INTERVALS_PER_CHUNK = 100;
+
     private static final ImmutableList<Column> overallAggregatePointColumns =
             ImmutableList.<Column>of(
                     ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
@@ -152,9 +159,20 @@ public class AggregateDao implements AggregateRepository {
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
 
-    private final AtomicLongArray lastRollupTimes;
+    // one per rollup level
+    private final ImmutableList<TimePartitionedTable> overallTables;
+    private final ImmutableList<TimePartitionedTable> transactionTables;
+
+    private final TransactionSummaryDao transactionSummaryDao;
+
+    private final LastRollupTimes lastRollupTimes;
+
+    // the max capture time of the (level 0) aggregates stored so far
+    private final AtomicLong lastStoredCaptureTime;
 
-    private final Object rollupLock = new Object();
+    // one per rollup level (level 0 is unused), so that different rollup levels can be rolled up
+    // concurrently
+    private final Object[] rollupLocks;
 
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             ConfigRepositoryImpl configRepository, TransactionTypeDao transactionTypeDao,
@@ -166,28 +184,41 @@ public class AggregateDao implements AggregateRepository {
         this.fullQueryTextDao = fullQueryTextDao;
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        List<TimePartitionedTable> overallTables = Lists.newArrayList();
+        List<TimePartitionedTable> transactionTables = Lists.newArrayList();
         for (int i = 0; i < rollupConfigs.size(); i++) {
+            long partitionMillis =
+                    TimePartitionedTable.getPartitionMillis(rollupConfigs.get(i).intervalMillis());
             String overallTableName = "aggregate_tt_rollup_" + castUntainted(i);
-            dataSource.syncTable(overallTableName, overallAggregatePointColumns);
-            dataSource.syncIndexes(overallTableName, ImmutableList.<Index>of(
-                    ImmutableIndex.of(overallTableName + "_idx", overallAggregateIndexColumns)));
+            overallTables.add(new TimePartitionedTable(dataSource, overallTableName,
+                    overallAggregatePointColumns, ImmutableList.<Index>of(ImmutableIndex
+                            .of(overallTableName + "_idx", overallAggregateIndexColumns)),
+                    partitionMillis));
             String transactionTableName = "aggregate_tn_rollup_" + castUntainted(i);
-            dataSource.syncTable(transactionTableName, transactionAggregateColumns);
-            dataSource.syncIndexes(transactionTableName, ImmutableList.<Index>of(ImmutableIndex
-                    .of(transactionTableName + "_idx", transactionAggregateIndexColumns)));
+            transactionTables.add(new TimePartitionedTable(dataSource, transactionTableName,
+                    transactionAggregateColumns, ImmutableList.<Index>of(ImmutableIndex
+                            .of(transactionTableName + "_idx", transactionAggregateIndexColumns)),
+                    partitionMillis));
+        }
+        this.overallTables = ImmutableList.copyOf(overallTables);
+        this.transactionTables = ImmutableList.copyOf(transactionTables);
+        transactionSummaryDao =
+                new TransactionSummaryDao(dataSource, rollupConfigs, this.transactionTables);
+
+        // the initial last rollup times are only used when upgrading from prior to the
+        // aggregate_last_rollup_times table, in which case the last rollup time of each level is
+        // its max capture time
+        long[] initialLastRollupTimes = new long[rollupConfigs.size() - 1];
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            initialLastRollupTimes[i - 1] = getMaxCaptureTime(i);
+        }
+        lastRollupTimes = new LastRollupTimes(dataSource, "aggregate_last_rollup_times",
+                initialLastRollupTimes);
+        lastStoredCaptureTime = new AtomicLong(getMaxCaptureTime(0));
+        rollupLocks = new Object[rollupConfigs.size()];
+        for (int i = 0; i < rollupLocks.length; i++) {
+            rollupLocks[i] = new Object();
         }
-
-        // don't need last_rollup_times table like in GaugeValueDao since there is already index
-        // on capture_time so these queries are relatively fast
-        long[] lastRollupTimes = new long[rollupConfigs.size()];
-        lastRollupTimes[0] = 0;
-        for (int i = 1; i < lastRollupTimes.length; i++) {
-            lastRollupTimes[i] = dataSource.queryForLong("select ifnull(max(capture_time), 0)"
-                    + " from aggregate_tt_rollup_" + castUntainted(i));
-        }
-        this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
-
-        // TODO initial rollup in case store is not called in a reasonable time
     }
 
     public void store(AggregateReader aggregateReader) throws Exception {
@@ -196,13 +227,15 @@ public class AggregateDao implements AggregateRepository {
         // large batch
         final CappedDatabase cappedDatabase = rollupCappedDatabases.get(0);
         final List<TruncatedQueryText> truncatedQueryTexts = Lists.newArrayList();
+        final List<TransactionTotals> transactionTotals = Lists.newArrayList();
         aggregateReader.accept(new AggregateVisitor() {
             @Override
             public void visitOverallAggregate(String transactionType, List<String> sharedQueryTexts,
                     Aggregate overallAggregate) throws Exception {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, null, captureTime,
-                        overallAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                        overallAggregate, truncatedQueryTexts,
+                        overallTables.get(0).getTableNameForInsert(captureTime), cappedDatabase));
                 transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
             }
             @Override
@@ -211,7 +244,13 @@ public class AggregateDao implements AggregateRepository {
                     throws Exception {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, transactionName, captureTime,
-                        transactionAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                        transactionAggregate, truncatedQueryTexts,
+                        transactionTables.get(0).getTableNameForInsert(captureTime),
+                        cappedDatabase));
+                transactionTotals.add(ImmutableTransactionTotals.of(transactionType,
+                        transactionName, transactionAggregate.getTotalDurationNanos(),
+                        transactionAggregate.getTransactionCount(),
+                        transactionAggregate.getErrorCount()));
             }
             private void addToTruncatedQueryTexts(List<String> sharedQueryTexts)
                     throws SQLException {
@@ -232,18 +271,42 @@ public class AggregateDao implements AggregateRepository {
                 }
             }
         });
-        synchronized (rollupLock) {
-            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
-            for (int i = 1; i < rollupConfigs.size(); i++) {
-                RollupConfig rollupConfig = rollupConfigs.get(i);
-                long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime,
-                        rollupConfig.intervalMillis());
-                long lastRollupTime = lastRollupTimes.get(i);
-                if (safeRollupTime > lastRollupTime) {
-                    rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i, i - 1);
-                    lastRollupTimes.set(i, safeRollupTime);
-                }
+        transactionSummaryDao.add(0, captureTime, transactionTotals);
+        // rollup happens separately (see RollupRunnable), aggregates are always stored in capture
+        // time order so this is the time up to which level 0 is complete
+        lastStoredCaptureTime.set(captureTime);
+    }
+
+    // rolls up the next chunk (at most MAX_ROLLUP_INTERVALS_PER_CHUNK rollup intervals) for the
+    // given rollup level, and returns true if there is more to roll up
+    boolean rollup(int toRollupLevel) throws Exception {
+        synchronized (rollupLocks[toRollupLevel]) {
+            long intervalMillis =
+                    configRepository.getRollupConfigs().get(toRollupLevel).intervalMillis();
+            // the "from" rollup level is only complete up to its own last rollup time
+            long completeTime = toRollupLevel == 1 ? lastStoredCaptureTime.get()
+                    : lastRollupTimes.get(toRollupLevel - 1);
+            long safeRollupTime = RollupLevelService.getSafeRollupTime(completeTime,
+                    intervalMillis);
+            long lastRollupTime = lastRollupTimes.get(toRollupLevel);
+            if (safeRollupTime <= lastRollupTime) {
+                return false;
             }
+            // skipping ahead (e.g. on first startup) needs to stay aligned to the rollup interval
+            // so that chunks never split a rollup interval
+            long from = RollupLevelService.getFloorRollupTime(
+                    overallTables.get(toRollupLevel - 1).skipEmptyRange(lastRollupTime),
+                    intervalMillis);
+            long to;
+            if (from >= safeRollupTime) {
+                to = safeRollupTime;
+            } else {
+                to = Math.min(from + intervalMillis * MAX_ROLLUP_INTERVALS_PER_CHUNK,
+                        safeRollupTime);
+                rollup(from, to, intervalMillis, toRollupLevel, toRollupLevel - 1);
+            }
+            lastRollupTimes.set(toRollupLevel, to);
+            return to < safeRollupTime;
         }
     }
 
@@ -421,8 +484,14 @@ public class AggregateDao implements AggregateRepository {
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
-        dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
-        dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        overallTables.get(rollupLevel).deleteBefore(captureTime);
+        transactionTables.get(rollupLevel).deleteBefore(captureTime);
+        transactionSummaryDao.deleteBefore(captureTime, rollupLevel);
+    }
+
+    void reinitAfterDeletingDatabase() throws Exception {
+        lastRollupTimes.reinitAfterDeletingDatabase();
+        lastStoredCaptureTime.set(0);
     }
 
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
@@ -430,13 +499,36 @@ public class AggregateDao implements AggregateRepository {
         List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
         for (Long rollupTime : rollupTimes) {
+            // remove any partial rollup of this time from prior to JVM termination, so that
+            // re-rollup does not duplicate rows
+            int partialRowCount = dataSource.update("delete from "
+                    + overallTables.get(toRollupLevel).getTableNameForInsert(rollupTime)
+                    + " where capture_time = ?", rollupTime);
+            partialRowCount += dataSource.update("delete from "
+                    + transactionTables.get(toRollupLevel).getTableNameForInsert(rollupTime)
+                    + " where capture_time = ?", rollupTime);
             dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
                     fromRollupLevel, toRollupLevel));
             dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
                     fromRollupLevel, toRollupLevel));
+            if (partialRowCount > 0) {
+                // the prior partial rollup of this time may or may not have already been added to
+                // the pre-computed transaction summaries, so the incremental add above cannot be
+                // trusted, and the whole bucket is recomputed from the transaction table instead
+                transactionSummaryDao.recomputeBucket(toRollupLevel, rollupTime,
+                        transactionTables.get(toRollupLevel));
+            }
+            // persisting progress after each rollup time keeps the window for re-rollup as small
+            // as possible
+            lastRollupTimes.set(toRollupLevel, rollupTime);
         }
     }
 
+    private long getMaxCaptureTime(int rollupLevel) throws SQLException {
+        return dataSource.queryForLong("select ifnull(max(capture_time), 0) from "
+                + overallTables.get(rollupLevel).getTableExpressionForAll());
+    }
+
     private void mergeProfilesInto(ProfileCollector collector, TransactionQuery query,
             @Untainted String cappedIdColumnName) throws Exception {
         // get list of capped ids first since that is done under the data source lock
@@ -567,12 +659,62 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static @Untainted String getTableName(TransactionQuery query) {
+    private @Untainted String getTableExpression(TransactionQuery query) {
         if (query.transactionName() == null) {
-            return "aggregate_tt_rollup_" + castUntainted(query.rollupLevel());
+            return getOverallTableExpression(query.rollupLevel(), query.from(), query.to());
+        } else {
+            return getTransactionTableExpression(query.rollupLevel(), query.from(), query.to());
+        }
+    }
+
+    private @Untainted String getOverallTableExpression(int rollupLevel, long from, long to) {
+        return overallTables.get(rollupLevel).getTableExpression(from, to);
+    }
+
+    private @Untainted String getTransactionTableExpression(int rollupLevel, long from, long to) {
+        return transactionTables.get(rollupLevel).getTableExpression(from, to);
+    }
+
+    // returns the source for reading transaction totals over the query range, which reads the
+    // pre-computed transaction summaries for the full buckets in the range, and only reads the
+    // transaction aggregates for the partial buckets at each end of the range
+    private @Untainted String getTransactionTotalsSource(OverallQuery query,
+            @Nullable BucketRange bucketRange, @Untainted String columns) {
+        int rollupLevel = query.rollupLevel();
+        if (bucketRange == null) {
+            return getTransactionTableExpression(rollupLevel, query.from(), query.to())
+                    + " where transaction_type = ? and capture_time > ? and capture_time <= ?";
+        }
+        return "(select transaction_name, " + columns + ", capture_time from "
+                + getTransactionTableExpression(rollupLevel, query.from(), bucketRange.from())
+                + " where transaction_type = ? and capture_time > ? and capture_time <= ?"
+                + " union all select transaction_name, " + columns + ", max_capture_time from "
+                + transactionSummaryDao.getTableName(rollupLevel)
+                + " where transaction_type = ? and bucket_time > ? and bucket_time <= ?"
+                + " union all select transaction_name, " + columns + ", capture_time from "
+                + getTransactionTableExpression(rollupLevel, bucketRange.to(), query.to())
+                + " where transaction_type = ? and capture_time > ? and capture_time <= ?)";
+    }
+
+    private static int bindTransactionTotalsSource(PreparedStatement preparedStatement,
+            OverallQuery query, @Nullable BucketRange bucketRange) throws SQLException {
+        int i = 1;
+        if (bucketRange == null) {
+            preparedStatement.setString(i++, query.transactionType());
+            preparedStatement.setLong(i++, query.from());
+            preparedStatement.setLong(i++, query.to());
         } else {
-            return "aggregate_tn_rollup_" + castUntainted(query.rollupLevel());
+            preparedStatement.setString(i++, query.transactionType());
+            preparedStatement.setLong(i++, query.from());
+            preparedStatement.setLong(i++, bucketRange.from());
+            preparedStatement.setString(i++, query.transactionType());
+            preparedStatement.setLong(i++, bucketRange.from());
+            preparedStatement.setLong(i++, bucketRange.to());
+            preparedStatement.setString(i++, query.transactionType());
+            preparedStatement.setLong(i++, bucketRange.to());
+            preparedStatement.setLong(i++, query.to());
         }
+        return i;
     }
 
     private static @Untainted String getTransactionNameCriteria(TransactionQuery query) {
@@ -618,7 +760,7 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class OverallSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
+    private class OverallSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
 
         private final OverallSummaryCollector collector;
         private final OverallQuery query;
@@ -633,7 +775,8 @@ public class AggregateDao implements AggregateRepository {
             // it's important that all these columns are in a single index so h2 can return the
             // result set directly from the index without having to reference the table for each row
             return "select sum(total_duration_nanos), sum(transaction_count), max(capture_time)"
-                    + " from aggregate_tt_rollup_" + castUntainted(query.rollupLevel())
+                    + " from " + getOverallTableExpression(query.rollupLevel(), query.from(),
+                            query.to())
                     + " where transaction_type = ? and capture_time > ? and capture_time <= ?";
         }
 
@@ -665,7 +808,7 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class TransactionSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
+    private class TransactionSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
 
         private final OverallQuery query;
         private final SummarySortOrder sortOrder;
@@ -673,12 +816,16 @@ public class AggregateDao implements AggregateRepository {
 
         private final TransactionSummaryCollector collector;
 
+        private final @Nullable BucketRange bucketRange;
+
         private TransactionSummaryQuery(OverallQuery query, SummarySortOrder sortOrder, int limit,
                 TransactionSummaryCollector collector) {
             this.query = query;
             this.sortOrder = sortOrder;
             this.limit = limit;
             this.collector = collector;
+            bucketRange = transactionSummaryDao.getBucketRange(query.rollupLevel(), query.from(),
+                    query.to());
         }
 
         @Override
@@ -687,10 +834,10 @@ public class AggregateDao implements AggregateRepository {
             // result set directly from the index without having to reference the table for each row
             StringBuilder sb = new StringBuilder();
             sb.append("select transaction_name, sum(total_duration_nanos), sum(transaction_count),"
-                    + " max(capture_time) from aggregate_tn_rollup_");
-            sb.append(query.rollupLevel());
-            sb.append(" where transaction_type = ? and capture_time > ? and capture_time <= ?"
-                    + " group by transaction_name order by ");
+                    + " max(capture_time) from ");
+            sb.append(getTransactionTotalsSource(query, bucketRange,
+                    "total_duration_nanos, transaction_count"));
+            sb.append(" group by transaction_name order by ");
             sb.append(getSortClause(sortOrder));
             sb.append(", transaction_name limit ?");
             return castUntainted(sb.toString());
@@ -698,10 +845,7 @@ public class AggregateDao implements AggregateRepository {
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws SQLException {
-            int i = 1;
-            preparedStatement.setString(i++, query.transactionType());
-            preparedStatement.setLong(i++, query.from());
-            preparedStatement.setLong(i++, query.to());
+            int i = bindTransactionTotalsSource(preparedStatement, query, bucketRange);
             // limit + 100 since this result still needs to be merged with other results
             preparedStatement.setInt(i++, limit + 100);
         }
@@ -739,7 +883,7 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class OverallErrorSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
+    private class OverallErrorSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
 
         private final OverallErrorSummaryCollector collector;
         private final OverallQuery query;
@@ -753,7 +897,8 @@ public class AggregateDao implements AggregateRepository {
         @Override
         public @Untainted String getSql() {
             return "select sum(error_count), sum(transaction_count), max(capture_time)"
-                    + " from aggregate_tt_rollup_" + castUntainted(query.rollupLevel())
+                    + " from " + getOverallTableExpression(query.rollupLevel(), query.from(),
+                            query.to())
                     + " where transaction_type = ? and capture_time > ? and capture_time <= ?";
         }
 
@@ -785,7 +930,7 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class TransactionErrorSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
+    private class TransactionErrorSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
 
         private final OverallQuery query;
         private final ErrorSummarySortOrder sortOrder;
@@ -793,12 +938,16 @@ public class AggregateDao implements AggregateRepository {
 
         private final TransactionErrorSummaryCollector collector;
 
+        private final @Nullable BucketRange bucketRange;
+
         private TransactionErrorSummaryQuery(OverallQuery query, ErrorSummarySortOrder sortOrder,
                 int limit, TransactionErrorSummaryCollector collector) {
             this.query = query;
             this.sortOrder = sortOrder;
             this.limit = limit;
             this.collector = collector;
+            bucketRange = transactionSummaryDao.getBucketRange(query.rollupLevel(), query.from(),
+                    query.to());
         }
 
         @Override
@@ -807,10 +956,10 @@ public class AggregateDao implements AggregateRepository {
             // result set directly from the index without having to reference the table for each row
             StringBuilder sb = new StringBuilder();
             sb.append("select transaction_name, sum(error_count), sum(transaction_count),");
-            sb.append(" max(capture_time) from aggregate_tn_rollup_");
-            sb.append(castUntainted(query.rollupLevel()));
-            sb.append(" where transaction_type = ? and capture_time > ? and capture_time <= ?"
-                    + " group by transaction_name having sum(error_count) > 0 order by ");
+            sb.append(" max(capture_time) from ");
+            sb.append(getTransactionTotalsSource(query, bucketRange,
+                    "error_count, transaction_count"));
+            sb.append(" group by transaction_name having sum(error_count) > 0 order by ");
             sb.append(getSortClause(sortOrder));
             sb.append(", transaction_name limit ?");
             return castUntainted(sb.toString());
@@ -818,10 +967,7 @@ public class AggregateDao implements AggregateRepository {
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws SQLException {
-            int i = 1;
-            preparedStatement.setString(i++, query.transactionType());
-            preparedStatement.setLong(i++, query.from());
-            preparedStatement.setLong(i++, query.to());
+            int i = bindTransactionTotalsSource(preparedStatement, query, bucketRange);
             // limit + 100 since this result still needs to be merged with other results
             preparedStatement.setInt(i++, limit + 100);
         }
@@ -856,7 +1002,7 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class OverviewAggregateQuery implements JdbcRowQuery<OverviewAggregate> {
+    private class OverviewAggregateQuery implements JdbcRowQuery<OverviewAggregate> {
 
         private final TransactionQuery query;
 
@@ -866,7 +1012,7 @@ public class AggregateDao implements AggregateRepository {
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
+            String tableName = getTableExpression(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
             return "select capture_time, total_duration_nanos, transaction_count,"
                     + " async_transactions, main_thread_root_timers, aux_thread_root_timers,"
@@ -922,7 +1068,7 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class PercentileAggregateQuery implements JdbcRowQuery<PercentileAggregate> {
+    private class PercentileAggregateQuery implements JdbcRowQuery<PercentileAggregate> {
 
         private final TransactionQuery query;
 
@@ -932,7 +1078,7 @@ public class AggregateDao implements AggregateRepository {
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
+            String tableName = getTableExpression(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
             return "select capture_time, total_duration_nanos, transaction_count,"
                     + " duration_nanos_histogram from " + tableName + " where transaction_type = ?"
@@ -959,7 +1105,7 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class ThroughputAggregateQuery implements JdbcRowQuery<ThroughputAggregate> {
+    private class ThroughputAggregateQuery implements JdbcRowQuery<ThroughputAggregate> {
 
         private final TransactionQuery query;
 
@@ -969,7 +1115,7 @@ public class AggregateDao implements AggregateRepository {
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
+            String tableName = getTableExpression(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
             return "select capture_time, transaction_count, error_count from " + tableName
                     + " where transaction_type = ?" + transactionNameCriteria
@@ -1018,9 +1164,10 @@ public class AggregateDao implements AggregateRepository {
                     + " main_thread_total_waited_nanos, main_thread_total_allocated_bytes,"
                     + " aux_thread_total_cpu_nanos, aux_thread_total_blocked_nanos,"
                     + " aux_thread_total_waited_nanos, aux_thread_total_allocated_bytes,"
-                    + " duration_nanos_histogram from aggregate_tt_rollup_"
-                    + castUntainted(fromRollupLevel) + " where capture_time > ?"
-                    + " and capture_time <= ? order by transaction_type";
+                    + " duration_nanos_histogram from "
+                    + getOverallTableExpression(fromRollupLevel,
+                            rollupCaptureTime - fixedIntervalMillis, rollupCaptureTime)
+                    + " where capture_time > ? and capture_time <= ? order by transaction_type";
         }
 
         @Override
@@ -1034,14 +1181,16 @@ public class AggregateDao implements AggregateRepository {
             int maxQueryAggregates = getMaxQueryAggregates();
             int maxServiceCallAggregates = getMaxServiceCallAggregates();
             CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
+            String toTableName =
+                    overallTables.get(toRollupLevel).getTableNameForInsert(rollupCaptureTime);
             MutableOverallAggregate curr = null;
             while (resultSet.next()) {
                 String transactionType = checkNotNull(resultSet.getString(1));
                 if (curr == null || !transactionType.equals(curr.transactionType())) {
                     if (curr != null) {
                         dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                                rollupCaptureTime, curr.aggregate(), toRollupLevel,
-                                cappedDatabase, scratchBuffer));
+                                rollupCaptureTime, curr.aggregate(), toTableName, cappedDatabase,
+                                scratchBuffer));
                     }
                     curr = ImmutableMutableOverallAggregate.of(transactionType,
                             new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates));
@@ -1050,7 +1199,7 @@ public class AggregateDao implements AggregateRepository {
             }
             if (curr != null) {
                 dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                        rollupCaptureTime, curr.aggregate(), toRollupLevel, cappedDatabase,
+                        rollupCaptureTime, curr.aggregate(), toTableName, cappedDatabase,
                         scratchBuffer));
             }
             return null;
@@ -1088,7 +1237,8 @@ public class AggregateDao implements AggregateRepository {
                     + " main_thread_total_allocated_bytes, aux_thread_total_cpu_nanos,"
                     + " aux_thread_total_blocked_nanos, aux_thread_total_waited_nanos,"
                     + " aux_thread_total_allocated_bytes, duration_nanos_histogram"
-                    + " from aggregate_tn_rollup_" + castUntainted(fromRollupLevel)
+                    + " from " + getTransactionTableExpression(fromRollupLevel,
+                            rollupCaptureTime - fixedIntervalMillis, rollupCaptureTime)
                     + " where capture_time > ? and capture_time <= ? order by transaction_type,"
                     + " transaction_name";
         }
@@ -1105,6 +1255,9 @@ public class AggregateDao implements AggregateRepository {
             int maxServiceCallAggregates = getMaxServiceCallAggregates();
             CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
             ScratchBuffer scratchBuffer = new ScratchBuffer();
+            String toTableName =
+                    transactionTables.get(toRollupLevel).getTableNameForInsert(rollupCaptureTime);
+            List<TransactionTotals> transactionTotals = Lists.newArrayList();
             MutableTransactionAggregate curr = null;
             while (resultSet.next()) {
                 int i = 1;
@@ -1115,7 +1268,8 @@ public class AggregateDao implements AggregateRepository {
                     if (curr != null) {
                         dataSource.update(new AggregateInsert(curr.transactionType(),
                                 curr.transactionName(), rollupCaptureTime, curr.aggregate(),
-                                toRollupLevel, cappedDatabase, scratchBuffer));
+                                toTableName, cappedDatabase, scratchBuffer));
+                        transactionTotals.add(getTransactionTotals(curr));
                     }
                     curr = ImmutableMutableTransactionAggregate.of(transactionType, transactionName,
                             new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates));
@@ -1124,12 +1278,21 @@ public class AggregateDao implements AggregateRepository {
             }
             if (curr != null) {
                 dataSource.update(new AggregateInsert(curr.transactionType(),
-                        curr.transactionName(), rollupCaptureTime, curr.aggregate(), toRollupLevel,
+                        curr.transactionName(), rollupCaptureTime, curr.aggregate(), toTableName,
                         cappedDatabase, scratchBuffer));
+                transactionTotals.add(getTransactionTotals(curr));
             }
+            transactionSummaryDao.add(toRollupLevel, rollupCaptureTime, transactionTotals);
             return null;
         }
 
+        private TransactionTotals getTransactionTotals(MutableTransactionAggregate curr) {
+            MutableAggregate aggregate = curr.aggregate();
+            return ImmutableTransactionTotals.of(curr.transactionType(), curr.transactionName(),
+                    aggregate.getTotalDurationNanos(), aggregate.getTransactionCount(),
+                    aggregate.getErrorCount());
+        }
+
         @Override
         public @Nullable Void valueIfDataSourceClosed() {
             return null;
@@ -1151,7 +1314,7 @@ public class AggregateDao implements AggregateRepository {
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
+            String tableName = getTableExpression(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
             return "select capture_time, " + cappedIdColumnName + " from " + tableName
                     + " where transaction_type = ?" + transactionNameCriteria
@@ -1180,7 +1343,7 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class ShouldHaveSomethingQuery implements JdbcQuery<Boolean> {
+    private class ShouldHaveSomethingQuery implements JdbcQuery<Boolean> {
 
         private final TransactionQuery query;
         private final @Untainted String cappedIdColumnName;
@@ -1193,7 +1356,7 @@ public class AggregateDao implements AggregateRepository {
 
         @Override
         public @Untainted String getSql() {
-            String tableName = getTableName(query);
+            String tableName = getTableExpression(query);
             String transactionNameCriteria = getTransactionNameCriteria(query);
             return "select 1 from " + tableName + " where transaction_type = ?"
                     + transactionNameCriteria + " and capture_time > ? and capture_time <= ?"
@@ -1223,7 +1386,7 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private static class RollupTimeRowMapper implements JdbcRowQuery<Long> {
+    private class RollupTimeRowMapper implements JdbcRowQuery<Long> {
 
         private final int rollupLevel;
         private final long fixedIntervalMillis;
@@ -1243,8 +1406,9 @@ public class AggregateDao implements AggregateRepository {
             // need ".0" to force double result
             String captureTimeSql = castUntainted(
                     "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
-            return "select distinct " + captureTimeSql + " from aggregate_tt_rollup_"
-                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?";
+            return "select distinct " + captureTimeSql + " from "
+                    + getOverallTableExpression(rollupLevel, lastRollupTime, curentRollupTime)
+                    + " where capture_time > ? and capture_time <= ? order by 1";
         }
 
         @Override
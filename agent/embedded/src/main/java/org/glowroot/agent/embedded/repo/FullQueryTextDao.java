@@ -22,7 +22,6 @@ import java.sql.SQLException;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
-import com.google.common.hash.Hashing;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 
@@ -33,8 +32,8 @@ import org.glowroot.agent.embedded.util.ImmutableIndex;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.model.QueryTextStore;
 
-import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.DAYS;
 
@@ -69,7 +68,7 @@ class FullQueryTextDao {
     }
 
     String updateLastCaptureTime(String fullText, long captureTime) throws SQLException {
-        String fullTextSha1 = Hashing.sha1().hashString(fullText, UTF_8).toString();
+        String fullTextSha1 = QueryTextStore.sha1(fullText);
         if (lastCaptureTimeUpdatedInThePastDay.getIfPresent(fullTextSha1) != null) {
             return fullTextSha1;
         }
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.Arrays;
+
+// columnar encoding of a single gauge's values over a time window, using delta-of-delta encoding
+// for the capture times and weights (which are typically at a fixed interval and constant,
+// respectively, and so typically take a single bit each), and xor encoding for the values (which
+// typically change slowly, and so share sign, exponent and high order mantissa bits), see
+// "Gorilla: A Fast, Scalable, In-Memory Time Series Database" (VLDB 2015)
+//
+// the encoding is part of the storage format and must never be changed
+class GaugeValueBlock {
+
+    private final int size;
+    private final long[] captureTimes;
+    private final double[] values;
+    private final long[] weights;
+
+    private GaugeValueBlock(int size, long[] captureTimes, double[] values, long[] weights) {
+        this.size = size;
+        this.captureTimes = captureTimes;
+        this.values = values;
+        this.weights = weights;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getCaptureTime(int index) {
+        return captureTimes[index];
+    }
+
+    double getValue(int index) {
+        return values[index];
+    }
+
+    long getWeight(int index) {
+        return weights[index];
+    }
+
+    static GaugeValueBlock decode(byte[] bytes) {
+        BitReader in = new BitReader(bytes);
+        int size = (int) in.readBits(32);
+        long[] captureTimes = new long[size];
+        double[] values = new double[size];
+        long[] weights = new long[size];
+        if (size == 0) {
+            return new GaugeValueBlock(size, captureTimes, values, weights);
+        }
+        DeltaOfDeltaDecoder captureTimeDecoder = new DeltaOfDeltaDecoder(in.readBits(64));
+        XorDecoder valueDecoder = new XorDecoder(in.readBits(64));
+        DeltaOfDeltaDecoder weightDecoder = new DeltaOfDeltaDecoder(in.readBits(64));
+        captureTimes[0] = captureTimeDecoder.prior;
+        values[0] = Double.longBitsToDouble(valueDecoder.prior);
+        weights[0] = weightDecoder.prior;
+        for (int i = 1; i < size; i++) {
+            captureTimes[i] = captureTimeDecoder.next(in);
+            values[i] = Double.longBitsToDouble(valueDecoder.next(in));
+            weights[i] = weightDecoder.next(in);
+        }
+        return new GaugeValueBlock(size, captureTimes, values, weights);
+    }
+
+    // values must be added in capture time order
+    static class Encoder {
+
+        private final BitWriter out = new BitWriter();
+
+        private int size;
+
+        private final DeltaOfDeltaEncoder captureTimeEncoder = new DeltaOfDeltaEncoder();
+        private final XorEncoder valueEncoder = new XorEncoder();
+        private final DeltaOfDeltaEncoder weightEncoder = new DeltaOfDeltaEncoder();
+
+        Encoder() {
+            // placeholder for the size, which is filled in by toByteArray()
+            out.writeBits(0, 32);
+        }
+
+        void add(long captureTime, double value, long weight) {
+            long valueBits = Double.doubleToRawLongBits(value);
+            if (size == 0) {
+                out.writeBits(captureTime, 64);
+                out.writeBits(valueBits, 64);
+                out.writeBits(weight, 64);
+                captureTimeEncoder.prior = captureTime;
+                valueEncoder.prior = valueBits;
+                weightEncoder.prior = weight;
+            } else {
+                captureTimeEncoder.next(captureTime, out);
+                valueEncoder.next(valueBits, out);
+                weightEncoder.next(weight, out);
+            }
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = out.toByteArray();
+            bytes[0] = (byte) (size >>> 24);
+            bytes[1] = (byte) (size >>> 16);
+            bytes[2] = (byte) (size >>> 8);
+            bytes[3] = (byte) size;
+            return bytes;
+        }
+    }
+
+    private static class DeltaOfDeltaEncoder {
+
+        private long prior;
+        private long priorDelta;
+
+        private void next(long value, BitWriter out) {
+            long delta = value - prior;
+            long deltaOfDelta = delta - priorDelta;
+            if (deltaOfDelta == 0) {
+                out.writeBits(0, 1);
+            } else if (deltaOfDelta >= -64 && deltaOfDelta < 64) {
+                out.writeBits(0x2, 2);
+                out.writeBits(deltaOfDelta, 7);
+            } else if (deltaOfDelta >= -256 && deltaOfDelta < 256) {
+                out.writeBits(0x6, 3);
+                out.writeBits(deltaOfDelta, 9);
+            } else if (deltaOfDelta >= -2048 && deltaOfDelta < 2048) {
+                out.writeBits(0xE, 4);
+                out.writeBits(deltaOfDelta, 12);
+            } else {
+                out.writeBits(0xF, 4);
+                out.writeBits(deltaOfDelta, 64);
+            }
+            prior = value;
+            priorDelta = delta;
+        }
+    }
+
+    private static class DeltaOfDeltaDecoder {
+
+        private long prior;
+        private long priorDelta;
+
+        private DeltaOfDeltaDecoder(long first) {
+            prior = first;
+        }
+
+        private long next(BitReader in) {
+            long deltaOfDelta;
+            if (in.readBits(1) == 0) {
+                deltaOfDelta = 0;
+            } else if (in.readBits(1) == 0) {
+                deltaOfDelta = in.readSignedBits(7);
+            } else if (in.readBits(1) == 0) {
+                deltaOfDelta = in.readSignedBits(9);
+            } else if (in.readBits(1) == 0) {
+                deltaOfDelta = in.readSignedBits(12);
+            } else {
+                deltaOfDelta = in.readBits(64);
+            }
+            priorDelta += deltaOfDelta;
+            prior += priorDelta;
+            return prior;
+        }
+    }
+
+    private static class XorEncoder {
+
+        private long prior;
+        // -1 until the first non-zero xor
+        private int priorLeadingZeros = -1;
+        private int priorTrailingZeros;
+
+        private void next(long value, BitWriter out) {
+            long xor = value ^ prior;
+            prior = value;
+            if (xor == 0) {
+                out.writeBits(0, 1);
+                return;
+            }
+            out.writeBits(1, 1);
+            int leadingZeros = Long.numberOfLeadingZeros(xor);
+            int trailingZeros = Long.numberOfTrailingZeros(xor);
+            if (priorLeadingZeros != -1 && leadingZeros >= priorLeadingZeros
+                    && trailingZeros >= priorTrailingZeros) {
+                // meaningful bits fall within the prior meaningful bits
+                out.writeBits(0, 1);
+                out.writeBits(xor >>> priorTrailingZeros,
+                        64 - priorLeadingZeros - priorTrailingZeros);
+            } else {
+                int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                out.writeBits(1, 1);
+                out.writeBits(leadingZeros, 6);
+                // meaningful bits is between 1 and 64, so subtract one to fit in 6 bits
+                out.writeBits(meaningfulBits - 1, 6);
+                out.writeBits(xor >>> trailingZeros, meaningfulBits);
+                priorLeadingZeros = leadingZeros;
+                priorTrailingZeros = trailingZeros;
+            }
+        }
+    }
+
+    private static class XorDecoder {
+
+        private long prior;
+        private int priorLeadingZeros;
+        private int priorTrailingZeros;
+
+        private XorDecoder(long first) {
+            prior = first;
+        }
+
+        private long next(BitReader in) {
+            if (in.readBits(1) == 0) {
+                return prior;
+            }
+            if (in.readBits(1) == 1) {
+                priorLeadingZeros = (int) in.readBits(6);
+                int meaningfulBits = (int) in.readBits(6) + 1;
+                priorTrailingZeros = 64 - priorLeadingZeros - meaningfulBits;
+            }
+            long xor = in.readBits(64 - priorLeadingZeros - priorTrailingZeros)
+                    << priorTrailingZeros;
+            prior ^= xor;
+            return prior;
+        }
+    }
+
+    private static class BitWriter {
+
+        private byte[] bytes = new byte[64];
+        private int bitLength;
+
+        // writes the low order bits of the value
+        private void writeBits(long value, int bitCount) {
+            ensureCapacity(bitLength + bitCount);
+            for (int i = bitCount - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    bytes[bitLength >>> 3] |= (byte) (0x80 >>> (bitLength & 7));
+                }
+                bitLength++;
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, (bitLength + 7) >>> 3);
+        }
+
+        private void ensureCapacity(int bitCapacity) {
+            int byteCapacity = (bitCapacity + 7) >>> 3;
+            if (byteCapacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, byteCapacity));
+            }
+        }
+    }
+
+    private static class BitReader {
+
+        private final byte[] bytes;
+        private int bitIndex;
+
+        private BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private long readBits(int bitCount) {
+            long value = 0;
+            for (int i = 0; i < bitCount; i++) {
+                int bit = (bytes[bitIndex >>> 3] >>> (7 - (bitIndex & 7))) & 1;
+                value = (value << 1) | bit;
+                bitIndex++;
+            }
+            return value;
+        }
+
+        private long readSignedBits(int bitCount) {
+            int shift = 64 - bitCount;
+            return (readBits(bitCount) << shift) >> shift;
+        }
+    }
+}
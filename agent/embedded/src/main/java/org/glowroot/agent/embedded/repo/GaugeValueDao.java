@@ -21,14 +21,13 @@ import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.primitives.Longs;
 import org.checkerframework.checker.tainting.qual.Untainted;
+import org.immutables.value.Value;
 
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
@@ -39,13 +38,16 @@ import org.glowroot.agent.embedded.util.ImmutableIndex;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.embedded.util.TimePartitionedTable;
 import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common2.repo.GaugeValueRepository;
 import org.glowroot.common2.repo.util.Gauges;
 import org.glowroot.common2.repo.util.RollupLevelService;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
@@ -60,16 +62,36 @@ public class GaugeValueDao implements GaugeValueRepository {
             // for counters, it is the interval of time that the (averaged) value represents
             ImmutableColumn.of("weight", ColumnType.BIGINT));
 
+    // each block holds the raw gauge values of a single gauge for capture times in the range
+    // (block_time - blockMillis, block_time], see GaugeValueBlock for the encoding
+    private static final ImmutableList<Column> blockColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("gauge_id", ColumnType.BIGINT),
+            ImmutableColumn.of("block_time", ColumnType.BIGINT),
+            ImmutableColumn.of("data", ColumnType.VARBINARY));
+
     private final GaugeIdDao gaugeIdDao;
     private final GaugeNameDao gaugeNameDao;
     private final DataSource dataSource;
     private final Clock clock;
     private final ImmutableList<RollupConfig> rollupConfigs;
 
-    // AtomicLongArray used for visibility
-    private final AtomicLongArray lastRollupTimes;
+    // one per rollup level (including level 0 which holds the raw gauge values)
+    private final ImmutableList<TimePartitionedTable> tables;
+
+    private final LastRollupTimes lastRollupTimes;
+
+    // the max capture time of the raw gauge values stored so far
+    private final AtomicLong lastStoredCaptureTime;
+
+    // one per rollup level (excluding level 0), so that different rollup levels can be rolled up
+    // concurrently
+    private final Object[] rollupLocks;
+
+    // raw gauge values are compacted into blocks one level 0 partition at a time
+    private final long blockMillis;
 
-    private final Object rollupLock = new Object();
+    // raw gauge values up to this capture time (inclusive) have been compacted into blocks
+    private volatile long lastCompactedTime;
 
     GaugeValueDao(DataSource dataSource, GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao,
             Clock clock) throws Exception {
@@ -79,9 +101,13 @@ public class GaugeValueDao implements GaugeValueRepository {
         this.clock = clock;
         this.rollupConfigs = ImmutableList.copyOf(RollupConfig.buildRollupConfigs());
 
+        List<TimePartitionedTable> tables = Lists.newArrayList();
         for (int i = 0; i <= rollupConfigs.size(); i++) {
-            dataSource.syncTable("gauge_value_rollup_" + castUntainted(i), columns);
-            dataSource.syncIndexes("gauge_value_rollup_" + castUntainted(i),
+            // level 0 holds raw gauge values which are not at a fixed interval
+            long partitionMillis = TimePartitionedTable.getPartitionMillis(
+                    i == 0 ? 1 : rollupConfigs.get(i - 1).intervalMillis());
+            tables.add(new TimePartitionedTable(dataSource,
+                    "gauge_value_rollup_" + castUntainted(i), columns,
                     ImmutableList.<Index>of(
                             ImmutableIndex.of(
                                     "gauge_value_rollup_" + castUntainted(i) + "_idx",
@@ -92,17 +118,25 @@ public class GaugeValueDao implements GaugeValueRepository {
                                     "gauge_value_rollup_" + castUntainted(i)
                                             + "_by_capture_time_idx",
                                     ImmutableList.of("capture_time", "gauge_id", "value",
-                                            "weight"))));
+                                            "weight"))),
+                    partitionMillis));
         }
-        List<Column> columns = Lists.newArrayList();
-        for (int i = 1; i <= rollupConfigs.size(); i++) {
-            columns.add(ImmutableColumn.of("last_rollup_" + i + "_time", ColumnType.BIGINT));
+        this.tables = ImmutableList.copyOf(tables);
+        lastRollupTimes = new LastRollupTimes(dataSource, "gauge_value_last_rollup_times",
+                new long[rollupConfigs.size()]);
+        lastStoredCaptureTime = new AtomicLong(dataSource.queryForLong(
+                "select ifnull(max(capture_time), 0) from "
+                        + this.tables.get(0).getTableExpressionForAll()));
+        rollupLocks = new Object[rollupConfigs.size()];
+        for (int i = 0; i < rollupLocks.length; i++) {
+            rollupLocks[i] = new Object();
         }
-        dataSource.syncTable("gauge_value_last_rollup_times", columns);
 
-        lastRollupTimes = initData(rollupConfigs, dataSource);
-
-        // TODO initial rollup in case store is not called in a reasonable time
+        dataSource.syncTable("gauge_value_block", blockColumns);
+        dataSource.syncIndexes("gauge_value_block", ImmutableList.<Index>of(ImmutableIndex
+                .of("gauge_value_block_idx", ImmutableList.of("gauge_id", "block_time"))));
+        blockMillis = TimePartitionedTable.getPartitionMillis(1);
+        lastCompactedTime = initLastCompactedTime();
     }
 
     @Override
@@ -127,6 +161,7 @@ public class GaugeValueDao implements GaugeValueRepository {
             return;
         }
         Map<GaugeValue, Long> gaugeValueIdMap = Maps.newLinkedHashMap();
+        long maxCaptureTime = 0;
         for (GaugeValue gaugeValue : gaugeValues) {
             long gaugeId = gaugeIdDao.updateLastCaptureTime(gaugeValue.getGaugeName(),
                     gaugeValue.getCaptureTime());
@@ -138,31 +173,92 @@ public class GaugeValueDao implements GaugeValueRepository {
             }
             gaugeNameDao.insert(gaugeValue.getCaptureTime(), gaugeValue.getGaugeName());
             gaugeValueIdMap.put(gaugeValue, gaugeId);
+            maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
         }
-        dataSource.batchUpdate(new GaugeValuesBinder(gaugeValueIdMap));
-        synchronized (rollupLock) {
-            // clock can never go backwards and future gauge captures will wait until this method
-            // completes since ScheduledExecutorService.scheduleAtFixedRate() guarantees that future
-            // invocations of GaugeCollector will wait until prior invocations complete
-            long safeCurrentTime = clock.currentTimeMillis() - 1;
-            for (int i = 0; i < rollupConfigs.size(); i++) {
-                long intervalMillis = rollupConfigs.get(i).intervalMillis();
-                long safeRollupTime =
-                        RollupLevelService.getSafeRollupTime(safeCurrentTime, intervalMillis);
-                long lastRollupTime = lastRollupTimes.get(i);
-                if (safeRollupTime > lastRollupTime) {
-                    rollup(lastRollupTime, safeRollupTime, intervalMillis, i + 1, i);
-                    // JVM termination here will cause last_rollup_*_time to be out of sync, which
-                    // will cause a re-rollup of this time after the next startup, but this is ok
-                    // since it will just overwrite prior rollup
-                    dataSource.update("update gauge_value_last_rollup_times set last_rollup_"
-                            + castUntainted(i + 1) + "_time = ?", safeRollupTime);
-                    lastRollupTimes.set(i, safeRollupTime);
-                }
+        // gauge values in a single store are typically all captured at the same time, but not
+        // necessarily, so they are grouped by partition
+        Map</*@Untainted*/ String, Map<GaugeValue, Long>> tableGaugeValueIdMaps =
+                Maps.newLinkedHashMap();
+        for (Map.Entry<GaugeValue, Long> entry : gaugeValueIdMap.entrySet()) {
+            String tableName =
+                    tables.get(0).getTableNameForInsert(entry.getKey().getCaptureTime());
+            Map<GaugeValue, Long> tableGaugeValueIdMap = tableGaugeValueIdMaps.get(tableName);
+            if (tableGaugeValueIdMap == null) {
+                tableGaugeValueIdMap = Maps.newLinkedHashMap();
+                tableGaugeValueIdMaps.put(tableName, tableGaugeValueIdMap);
+            }
+            tableGaugeValueIdMap.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry</*@Untainted*/ String, Map<GaugeValue, Long>> entry : tableGaugeValueIdMaps
+                .entrySet()) {
+            dataSource.batchUpdate(new GaugeValuesBinder(entry.getKey(), entry.getValue()));
+        }
+        // rollup happens separately (see RollupRunnable), and future gauge captures always have a
+        // later capture time since ScheduledExecutorService.scheduleAtFixedRate() guarantees that
+        // future invocations of GaugeCollector will wait until prior invocations complete
+        updateLastStoredCaptureTime(maxCaptureTime);
+    }
+
+    // rolls up the next chunk (at most one partition of the "to" table) for the given rollup
+    // level, and returns true if there is more to roll up
+    boolean rollup(int toRollupLevel) throws Exception {
+        synchronized (rollupLocks[toRollupLevel - 1]) {
+            long intervalMillis = rollupConfigs.get(toRollupLevel - 1).intervalMillis();
+            // the "from" rollup level is only complete up to its own last rollup time
+            long completeTime = toRollupLevel == 1 ? lastStoredCaptureTime.get()
+                    : lastRollupTimes.get(toRollupLevel - 1);
+            long safeRollupTime = RollupLevelService.getSafeRollupTime(completeTime,
+                    intervalMillis);
+            long lastRollupTime = lastRollupTimes.get(toRollupLevel);
+            if (safeRollupTime <= lastRollupTime) {
+                return false;
+            }
+            TimePartitionedTable fromTable = tables.get(toRollupLevel - 1);
+            TimePartitionedTable toTable = tables.get(toRollupLevel);
+            long from = fromTable.skipEmptyRange(lastRollupTime);
+            long to;
+            if (from >= safeRollupTime) {
+                to = safeRollupTime;
+            } else {
+                // rollup one partition of the "to" table at a time, since the partition ranges are
+                // a multiple of the rollup interval this is also one rollup range at a time
+                to = Math.min(toTable.getPartitionEnd(from + 1), safeRollupTime);
+                rollup(from, to, intervalMillis, fromTable, toTable);
             }
+            // re-rollup of this range after JVM termination is ok since it will just overwrite
+            // prior rollup
+            lastRollupTimes.set(toRollupLevel, to);
+            return to < safeRollupTime;
         }
     }
 
+    // packs the raw gauge values of the next level 0 partition that has been fully rolled up into
+    // a single block per gauge, and returns true if there is more to compact
+    //
+    // the rows of the compacted partition are only dropped after the next partition is compacted,
+    // so that a concurrent readGaugeValues() that has not yet seen the new last compacted time will
+    // still find them, and so that the last compacted partition can be re-compacted after restart
+    // in case JVM termination occurred part way through storing its blocks
+    boolean compact() throws Exception {
+        TimePartitionedTable table = tables.get(0);
+        long from = table.skipEmptyRange(lastCompactedTime);
+        if (from == Long.MAX_VALUE) {
+            return false;
+        }
+        long to = table.getPartitionEnd(from + 1);
+        if (to > lastRollupTimes.get(1)) {
+            // the raw gauge values are still needed by rollup
+            return false;
+        }
+        dataSource.update("delete from gauge_value_block where block_time = ?", to);
+        List<GaugeValueBlockRow> blockRows = dataSource.query(
+                new CompactQuery(table.getTableExpression(from, to), from, to));
+        dataSource.batchUpdate(new GaugeValueBlockInsert(to, blockRows));
+        lastCompactedTime = to;
+        table.deleteBefore(from);
+        return true;
+    }
+
     // from is INCLUSIVE
     @Override
     public List<GaugeValue> readGaugeValues(String agentRollupId, String gaugeName, long from,
@@ -172,65 +268,96 @@ public class GaugeValueDao implements GaugeValueRepository {
             // not necessarily an error, gauge id not created until first store
             return ImmutableList.of();
         }
-        return dataSource.query(new GaugeValueQuery(gaugeId, from, to, rollupLevel));
+        if (rollupLevel != 0) {
+            return dataSource.query(new GaugeValueQuery(gaugeId, from, to,
+                    tables.get(rollupLevel).getTableExpression(from, to)));
+        }
+        // raw gauge values up to the last compacted time are read from blocks, and the rest are
+        // read from rows
+        long compactedTime = lastCompactedTime;
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        if (from <= compactedTime) {
+            gaugeValues.addAll(dataSource.query(new GaugeValueBlockQuery(gaugeId, from,
+                    Math.min(to, compactedTime), blockMillis)));
+        }
+        if (to > compactedTime) {
+            long rowsFrom = Math.max(from, compactedTime + 1);
+            gaugeValues.addAll(dataSource.query(new GaugeValueQuery(gaugeId, rowsFrom, to,
+                    tables.get(0).getTableExpression(rowsFrom, to))));
+        }
+        return gaugeValues;
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
-        dataSource.deleteBefore("gauge_value_rollup_" + castUntainted(rollupLevel), captureTime);
+        tables.get(rollupLevel).deleteBefore(captureTime);
+        if (rollupLevel == 0) {
+            // blocks cover capture times in the range (block_time - blockMillis, block_time]
+            dataSource.deleteBefore("gauge_value_block", "block_time", captureTime + 1);
+        }
     }
 
     void reinitAfterDeletingDatabase() throws Exception {
-        AtomicLongArray lastRollupTimes = initData(rollupConfigs, dataSource);
-        for (int i = 0; i < lastRollupTimes.length(); i++) {
-            this.lastRollupTimes.set(i, lastRollupTimes.get(i));
-        }
+        lastRollupTimes.reinitAfterDeletingDatabase();
+        lastStoredCaptureTime.set(0);
+        lastCompactedTime = 0;
     }
 
-    private void rollup(long lastRollupTime, long safeRollupTime, long fixedIntervalMillis,
-            int toRollupLevel, int fromRollupLevel) throws Exception {
+    private void rollup(long from, long to, long fixedIntervalMillis,
+            TimePartitionedTable fromTable, TimePartitionedTable toTable) throws Exception {
         // need ".0" to force double result
         String captureTimeSql = castUntainted(
                 "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
-        dataSource.update("merge into gauge_value_rollup_" + castUntainted(toRollupLevel)
+        dataSource.update("merge into " + toTable.getTableNameForInsert(to)
                 + " (gauge_id, capture_time, value, weight) key (gauge_id, capture_time)"
                 + " select gauge_id, " + captureTimeSql + " ceil_capture_time,"
-                + " sum(value * weight) / sum(weight), sum(weight) from gauge_value_rollup_"
-                + castUntainted(fromRollupLevel) + " gp where gp.capture_time > ?"
+                + " sum(value * weight) / sum(weight), sum(weight) from "
+                + fromTable.getTableExpression(from, to) + " gp where gp.capture_time > ?"
                 + " and gp.capture_time <= ? group by gp.gauge_id, ceil_capture_time",
-                lastRollupTime, safeRollupTime);
+                from, to);
     }
 
-    private static AtomicLongArray initData(ImmutableList<RollupConfig> rollupConfigs,
-            DataSource dataSource) throws Exception {
-        List<String> columnNames = Lists.newArrayList();
-        for (int i = 1; i <= rollupConfigs.size(); i++) {
-            columnNames.add("last_rollup_" + i + "_time");
-        }
-        Joiner joiner = Joiner.on(", ");
-        String selectClause = castUntainted(joiner.join(columnNames));
-        long[] lastRollupTimes = dataSource.query(new LastRollupTimesQuery(selectClause));
-        if (lastRollupTimes.length == 0) {
-            long[] values = new long[rollupConfigs.size()];
-            String valueClause = castUntainted(joiner.join(Longs.asList(values)));
-            dataSource.update("insert into gauge_value_last_rollup_times (" + selectClause
-                    + ") values (" + valueClause + ")");
-            return new AtomicLongArray(values);
-        } else {
-            return new AtomicLongArray(lastRollupTimes);
+    private long initLastCompactedTime() throws SQLException {
+        Long maxBlockTime =
+                dataSource.queryForOptionalLong("select max(block_time) from gauge_value_block");
+        if (maxBlockTime != null) {
+            // re-compact the last compacted partition, see compact()
+            return maxBlockTime - blockMillis;
+        }
+        // start at the partition containing the oldest raw gauge value, otherwise compaction would
+        // need to step through every (empty) partition since the epoch when there are still raw
+        // gauge values from prior to partitioning
+        long minCaptureTime = dataSource.queryForLong("select ifnull(min(capture_time), 0) from "
+                + tables.get(0).getTableExpressionForAll());
+        if (minCaptureTime == 0) {
+            return 0;
         }
+        return ((minCaptureTime - 1) / blockMillis) * blockMillis;
+    }
+
+    private void updateLastStoredCaptureTime(long captureTime) {
+        long priorCaptureTime;
+        do {
+            priorCaptureTime = lastStoredCaptureTime.get();
+            if (captureTime <= priorCaptureTime) {
+                return;
+            }
+        } while (!lastStoredCaptureTime.compareAndSet(priorCaptureTime, captureTime));
     }
 
     private static class GaugeValuesBinder implements JdbcUpdate {
 
+        private final @Untainted String tableName;
         private final Map<GaugeValue, Long> gaugeValueIdMap;
 
-        private GaugeValuesBinder(Map<GaugeValue, Long> gaugeValueIdMap) {
+        private GaugeValuesBinder(@Untainted String tableName,
+                Map<GaugeValue, Long> gaugeValueIdMap) {
+            this.tableName = tableName;
             this.gaugeValueIdMap = gaugeValueIdMap;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "insert into gauge_value_rollup_0 (gauge_id, capture_time, value, weight)"
+            return "insert into " + tableName + " (gauge_id, capture_time, value, weight)"
                     + " values (?, ?, ?, ?)";
         }
 
@@ -249,38 +376,140 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
-    private static class LastRollupTimesQuery implements JdbcQuery<long[]> {
+    private static class CompactQuery implements JdbcQuery<List<GaugeValueBlockRow>> {
 
-        private final @Untainted String selectClause;
+        private final @Untainted String tableExpression;
+        private final long from;
+        private final long to;
 
-        public LastRollupTimesQuery(@Untainted String selectClause) {
-            this.selectClause = selectClause;
+        private CompactQuery(@Untainted String tableExpression, long from, long to) {
+            this.tableExpression = tableExpression;
+            this.from = from;
+            this.to = to;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "select " + selectClause + " from gauge_value_last_rollup_times";
+            return "select gauge_id, capture_time, value, weight from " + tableExpression
+                    + " where capture_time > ? and capture_time <= ? order by gauge_id,"
+                    + " capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, from);
+            preparedStatement.setLong(2, to);
+        }
+
+        @Override
+        public List<GaugeValueBlockRow> processResultSet(ResultSet resultSet) throws Exception {
+            List<GaugeValueBlockRow> blockRows = Lists.newArrayList();
+            long currGaugeId = 0;
+            GaugeValueBlock.Encoder encoder = null;
+            while (resultSet.next()) {
+                int i = 1;
+                long gaugeId = resultSet.getLong(i++);
+                if (encoder == null || gaugeId != currGaugeId) {
+                    if (encoder != null) {
+                        blockRows.add(ImmutableGaugeValueBlockRow.of(currGaugeId,
+                                encoder.toByteArray()));
+                    }
+                    currGaugeId = gaugeId;
+                    encoder = new GaugeValueBlock.Encoder();
+                }
+                encoder.add(resultSet.getLong(i++), resultSet.getDouble(i++),
+                        resultSet.getLong(i++));
+            }
+            if (encoder != null) {
+                blockRows.add(ImmutableGaugeValueBlockRow.of(currGaugeId, encoder.toByteArray()));
+            }
+            return blockRows;
         }
 
         @Override
-        public void bind(PreparedStatement preparedStatement) throws Exception {}
+        public List<GaugeValueBlockRow> valueIfDataSourceClosed() {
+            return ImmutableList.of();
+        }
+    }
+
+    private static class GaugeValueBlockInsert implements JdbcUpdate {
+
+        private final long blockTime;
+        private final List<GaugeValueBlockRow> blockRows;
+
+        private GaugeValueBlockInsert(long blockTime, List<GaugeValueBlockRow> blockRows) {
+            this.blockTime = blockTime;
+            this.blockRows = blockRows;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "insert into gauge_value_block (gauge_id, block_time, data) values (?, ?, ?)";
+        }
 
         @Override
-        public long[] processResultSet(ResultSet resultSet) throws Exception {
-            if (!resultSet.next()) {
-                return new long[0];
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (GaugeValueBlockRow blockRow : blockRows) {
+                int i = 1;
+                preparedStatement.setLong(i++, blockRow.gaugeId());
+                preparedStatement.setLong(i++, blockTime);
+                preparedStatement.setBytes(i++, blockRow.data());
+                preparedStatement.addBatch();
             }
-            int columns = resultSet.getMetaData().getColumnCount();
-            long[] values = new long[columns];
-            for (int i = 0; i < columns; i++) {
-                values[i] = resultSet.getLong(i + 1);
+        }
+    }
+
+    // decodes whole blocks, instead of reading row by row
+    private static class GaugeValueBlockQuery implements JdbcQuery<List<GaugeValue>> {
+
+        private final long gaugeId;
+        private final long from;
+        private final long to;
+        private final long blockMillis;
+
+        private GaugeValueBlockQuery(long gaugeId, long from, long to, long blockMillis) {
+            this.gaugeId = gaugeId;
+            this.from = from;
+            this.to = to;
+            this.blockMillis = blockMillis;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select data from gauge_value_block where gauge_id = ? and block_time >= ?"
+                    + " and block_time < ? order by block_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setLong(i++, gaugeId);
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to + blockMillis);
+        }
+
+        @Override
+        public List<GaugeValue> processResultSet(ResultSet resultSet) throws Exception {
+            List<GaugeValue> gaugeValues = Lists.newArrayList();
+            while (resultSet.next()) {
+                GaugeValueBlock block = GaugeValueBlock.decode(checkNotNull(resultSet.getBytes(1)));
+                for (int i = 0; i < block.size(); i++) {
+                    long captureTime = block.getCaptureTime(i);
+                    if (captureTime >= from && captureTime <= to) {
+                        gaugeValues.add(GaugeValue.newBuilder()
+                                .setCaptureTime(captureTime)
+                                .setValue(block.getValue(i))
+                                .setWeight(block.getWeight(i))
+                                .build());
+                    }
+                }
             }
-            return values;
+            return gaugeValues;
         }
 
         @Override
-        public long[] valueIfDataSourceClosed() {
-            return new long[0];
+        public List<GaugeValue> valueIfDataSourceClosed() {
+            return ImmutableList.of();
         }
     }
 
@@ -289,20 +518,21 @@ public class GaugeValueDao implements GaugeValueRepository {
         private final long gaugeId;
         private final long from;
         private final long to;
-        private final int rollupLevel;
+        private final @Untainted String tableExpression;
 
-        private GaugeValueQuery(long gaugeId, long from, long to, int rollupLevel) {
+        private GaugeValueQuery(long gaugeId, long from, long to,
+                @Untainted String tableExpression) {
             this.gaugeId = gaugeId;
             this.from = from;
             this.to = to;
-            this.rollupLevel = rollupLevel;
+            this.tableExpression = tableExpression;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "select capture_time, value, weight from gauge_value_rollup_"
-                    + castUntainted(rollupLevel) + " where gauge_id = ? and capture_time >= ?"
-                    + " and capture_time <= ? order by capture_time";
+            return "select capture_time, value, weight from " + tableExpression
+                    + " where gauge_id = ? and capture_time >= ? and capture_time <= ?"
+                    + " order by capture_time";
         }
 
         @Override
@@ -323,4 +553,11 @@ public class GaugeValueDao implements GaugeValueRepository {
                     .build();
         }
     }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface GaugeValueBlockRow {
+        long gaugeId();
+        byte[] data();
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.tainting.qual.Untainted;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+import org.glowroot.agent.embedded.util.ImmutableColumn;
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+
+import static org.glowroot.agent.util.Checkers.castUntainted;
+
+// the last rollup time of each rollup level (starting at rollup level 1), persisted in a single row
+// table so that rollups resume where they left off after restart
+class LastRollupTimes {
+
+    private final DataSource dataSource;
+    private final @Untainted String tableName;
+    private final @Untainted String selectClause;
+
+    // AtomicLongArray used for visibility
+    private final AtomicLongArray values;
+
+    // initial values are only used if there is not already a persisted row
+    LastRollupTimes(DataSource dataSource, @Untainted String tableName, long[] initialValues)
+            throws Exception {
+        this.dataSource = dataSource;
+        this.tableName = tableName;
+        List<Column> columns = Lists.newArrayList();
+        List<String> columnNames = Lists.newArrayList();
+        for (int i = 1; i <= initialValues.length; i++) {
+            String columnName = "last_rollup_" + i + "_time";
+            columns.add(ImmutableColumn.of(columnName, ColumnType.BIGINT));
+            columnNames.add(columnName);
+        }
+        selectClause = castUntainted(Joiner.on(", ").join(columnNames));
+        dataSource.syncTable(tableName, columns);
+        values = new AtomicLongArray(initData(initialValues));
+    }
+
+    long get(int toRollupLevel) {
+        return values.get(toRollupLevel - 1);
+    }
+
+    void set(int toRollupLevel, long lastRollupTime) throws SQLException {
+        // JVM termination after the rollup and before this update will cause a re-rollup of this
+        // time after the next startup, so rollups need to be idempotent
+        dataSource.update("update " + tableName + " set last_rollup_" + castUntainted(toRollupLevel)
+                + "_time = ?", lastRollupTime);
+        values.set(toRollupLevel - 1, lastRollupTime);
+    }
+
+    void reinitAfterDeletingDatabase() throws Exception {
+        long[] values = initData(new long[this.values.length()]);
+        for (int i = 0; i < values.length; i++) {
+            this.values.set(i, values[i]);
+        }
+    }
+
+    private long[] initData(long[] initialValues) throws Exception {
+        long[] values = dataSource.query(new LastRollupTimesQuery(tableName, selectClause));
+        if (values.length == 0) {
+            String valueClause = castUntainted(Joiner.on(", ").join(Longs.asList(initialValues)));
+            dataSource.update("insert into " + tableName + " (" + selectClause + ") values ("
+                    + valueClause + ")");
+            return initialValues;
+        } else {
+            return values;
+        }
+    }
+
+    private static class LastRollupTimesQuery implements JdbcQuery<long[]> {
+
+        private final @Untainted String tableName;
+        private final @Untainted String selectClause;
+
+        private LastRollupTimesQuery(@Untainted String tableName,
+                @Untainted String selectClause) {
+            this.tableName = tableName;
+            this.selectClause = selectClause;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select " + selectClause + " from " + tableName;
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws Exception {}
+
+        @Override
+        public long[] processResultSet(ResultSet resultSet) throws Exception {
+            if (!resultSet.next()) {
+                return new long[0];
+            }
+            int columns = resultSet.getMetaData().getColumnCount();
+            long[] values = new long[columns];
+            for (int i = 0; i < columns; i++) {
+                values[i] = resultSet.getLong(i + 1);
+            }
+            return values;
+        }
+
+        @Override
+        public long[] valueIfDataSourceClosed() {
+            return new long[0];
+        }
+    }
+}
@@ -46,6 +46,7 @@ class RepoAdminImpl implements RepoAdmin {
     private final CappedDatabase traceCappedDatabase;
     private final ConfigRepositoryImpl configRepository;
     private final EnvironmentDao environmentDao;
+    private final AggregateDao aggregateDao;
     private final GaugeIdDao gaugeIdDao;
     private final GaugeNameDao gaugeNameDao;
     private final GaugeValueDao gaugeValueDao;
@@ -56,15 +57,16 @@ class RepoAdminImpl implements RepoAdmin {
 
     RepoAdminImpl(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             CappedDatabase traceCappedDatabase, ConfigRepositoryImpl configRepository,
-            EnvironmentDao environmentDao, GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao,
-            GaugeValueDao gaugeValueDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
-            Clock clock) {
+            EnvironmentDao environmentDao, AggregateDao aggregateDao, GaugeIdDao gaugeIdDao,
+            GaugeNameDao gaugeNameDao, GaugeValueDao gaugeValueDao,
+            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
+            TraceAttributeNameDao traceAttributeNameDao, Clock clock) {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.traceCappedDatabase = traceCappedDatabase;
         this.configRepository = configRepository;
         this.environmentDao = environmentDao;
+        this.aggregateDao = aggregateDao;
         this.gaugeIdDao = gaugeIdDao;
         this.gaugeNameDao = gaugeNameDao;
         this.gaugeValueDao = gaugeValueDao;
@@ -86,6 +88,7 @@ class RepoAdminImpl implements RepoAdmin {
         Environment environment = environmentDao.read("");
         dataSource.deleteAll();
         environmentDao.reinitAfterDeletingDatabase();
+        aggregateDao.reinitAfterDeletingDatabase();
         gaugeIdDao.invalidateCache();
         gaugeNameDao.invalidateCache();
         gaugeValueDao.reinitAfterDeletingDatabase();
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import org.glowroot.common.util.ScheduledRunnable;
+
+// rolls up aggregates and gauge values for a single rollup config, outside of the threads that
+// store them, so that a long catch up rollup (e.g. after downtime) never blocks storing
+//
+// each rollup call processes a bounded chunk and persists its progress, so this can be cancelled
+// (or the JVM terminated) between chunks, and rollup resumes where it left off
+class RollupRunnable extends ScheduledRunnable {
+
+    private final AggregateDao aggregateDao;
+    private final GaugeValueDao gaugeValueDao;
+    private final int rollupConfigIndex;
+
+    private volatile boolean cancelled;
+
+    RollupRunnable(AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
+            int rollupConfigIndex) {
+        this.aggregateDao = aggregateDao;
+        this.gaugeValueDao = gaugeValueDao;
+        this.rollupConfigIndex = rollupConfigIndex;
+    }
+
+    @Override
+    protected void runInternal() throws Exception {
+        boolean more = true;
+        while (more && !cancelled) {
+            more = false;
+            // aggregate rollup config 0 is the level stored directly, while gauge value rollup
+            // config 0 is rolled up from the raw gauge values
+            if (rollupConfigIndex > 0) {
+                more = aggregateDao.rollup(rollupConfigIndex);
+            }
+            more |= gaugeValueDao.rollup(rollupConfigIndex + 1);
+            if (rollupConfigIndex == 0) {
+                // raw gauge values are compacted once they have been rolled up
+                more |= gaugeValueDao.compact();
+            }
+        }
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        super.cancel();
+    }
+}
@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
 import com.google.common.base.Ticker;
@@ -32,6 +33,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.H2DatabaseStats;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common2.config.EmbeddedStorageConfig;
@@ -46,6 +48,7 @@ import org.glowroot.common2.repo.util.MailService;
 import org.glowroot.common2.repo.util.RollupLevelService;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class SimpleRepoModule {
 
@@ -54,6 +57,8 @@ public class SimpleRepoModule {
 
     private static final long SNAPSHOT_REAPER_PERIOD_MINUTES = 5;
 
+    private static final long ROLLUP_PERIOD_SECONDS = 10;
+
     private final DataSource dataSource;
     private final ImmutableList<CappedDatabase> rollupCappedDatabases;
     private final CappedDatabase traceCappedDatabase;
@@ -70,6 +75,8 @@ public class SimpleRepoModule {
     private final AlertingService alertingService;
     private final HttpClient httpClient;
     private final @Nullable ReaperRunnable reaperRunnable;
+    private final @Nullable ScheduledExecutorService rollupExecutor;
+    private final List<RollupRunnable> rollupRunnables;
 
     public SimpleRepoModule(DataSource dataSource, File dataDir, Clock clock, Ticker ticker,
             ConfigRepositoryImpl configRepository,
@@ -118,8 +125,8 @@ public class SimpleRepoModule {
         }
 
         repoAdmin = new RepoAdminImpl(dataSource, rollupCappedDatabases, traceCappedDatabase,
-                configRepository, environmentDao, gaugeIdDao, gaugeNameDao, gaugeValueDao,
-                transactionTypeDao, fullQueryTextDao, traceAttributeNameDao, clock);
+                configRepository, environmentDao, aggregateDao, gaugeIdDao, gaugeNameDao,
+                gaugeValueDao, transactionTypeDao, fullQueryTextDao, traceAttributeNameDao, clock);
 
         httpClient = new HttpClient(configRepository);
 
@@ -128,12 +135,28 @@ public class SimpleRepoModule {
                 newLockSet(), clock);
         if (backgroundExecutor == null) {
             reaperRunnable = null;
+            rollupExecutor = null;
+            rollupRunnables = ImmutableList.of();
         } else {
             reaperRunnable = new ReaperRunnable(configRepository, aggregateDao, traceDao,
                     gaugeIdDao, gaugeNameDao, gaugeValueDao, transactionTypeDao, fullQueryTextDao,
                     incidentDao, clock);
             reaperRunnable.scheduleWithFixedDelay(backgroundExecutor,
                     SNAPSHOT_REAPER_PERIOD_MINUTES, MINUTES);
+            // one thread per rollup level so that a long catch up rollup of one level (e.g. after
+            // downtime) does not hold up the other levels
+            int rollupLevelCount = configRepository.getRollupConfigs().size();
+            rollupExecutor = Executors.newScheduledThreadPool(rollupLevelCount,
+                    ThreadFactories.create("Glowroot-Rollup-%d"));
+            List<RollupRunnable> rollupRunnables = Lists.newArrayList();
+            for (int i = 0; i < rollupLevelCount; i++) {
+                RollupRunnable rollupRunnable = new RollupRunnable(aggregateDao, gaugeValueDao, i);
+                // initial delay of zero to catch up at startup, even if nothing is stored
+                rollupRunnable.scheduleWithFixedDelay(rollupExecutor, 0, ROLLUP_PERIOD_SECONDS,
+                        SECONDS);
+                rollupRunnables.add(rollupRunnable);
+            }
+            this.rollupRunnables = ImmutableList.copyOf(rollupRunnables);
         }
     }
 
@@ -203,7 +226,17 @@ public class SimpleRepoModule {
         if (reaperRunnable != null) {
             reaperRunnable.cancel();
         }
+        for (RollupRunnable rollupRunnable : rollupRunnables) {
+            rollupRunnable.cancel();
+        }
+        if (rollupExecutor != null) {
+            rollupExecutor.shutdown();
+            if (!rollupExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
         alertingService.close();
+        traceDao.close();
         for (CappedDatabase cappedDatabase : rollupCappedDatabases) {
             cappedDatabase.close();
         }
@@ -22,10 +22,22 @@ import java.sql.SQLException;
 import java.sql.Types;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.slf4j.Logger;
@@ -35,6 +47,8 @@ import org.glowroot.agent.collector.Collector.TraceReader;
 import org.glowroot.agent.collector.Collector.TraceVisitor;
 import org.glowroot.agent.embedded.repo.TracePointQueryBuilder.ParameterizedSql;
 import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.CappedDatabase.Batch;
+import org.glowroot.agent.embedded.util.CappedDatabase.BatchWriter;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
@@ -45,6 +59,7 @@ import org.glowroot.agent.embedded.util.RowMappers;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.Constants;
 import org.glowroot.common.live.ImmutableEntries;
 import org.glowroot.common.live.ImmutableEntriesAndQueries;
@@ -68,6 +83,7 @@ import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class TraceDao implements TraceRepository {
@@ -77,6 +93,14 @@ public class TraceDao implements TraceRepository {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    // traces are stored in batches by a dedicated thread (group commit), each batch gathering the
+    // traces that were queued while the prior batch was being stored
+    private static final int MAX_BATCH_SIZE = 100;
+
+    // store() blocks until its trace has been stored, so this only bounds the number of concurrent
+    // store() callers that can be waiting on the same batch
+    private static final int PENDING_LIMIT = 500;
+
     private static final ImmutableList<Column> traceColumns = ImmutableList.<Column>of(
             ImmutableColumn.of("id", ColumnType.VARCHAR),
             ImmutableColumn.of("partial", ColumnType.BOOLEAN),
@@ -139,6 +163,17 @@ public class TraceDao implements TraceRepository {
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
 
+    private final BlockingQueue<PendingTrace> pendingTraces =
+            new ArrayBlockingQueue<PendingTrace>(PENDING_LIMIT);
+    private final ExecutorService storeExecutor;
+
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final Object storedLock = new Object();
+    @GuardedBy("storedLock")
+    private long storedCount;
+
+    private volatile boolean closed;
+
     TraceDao(DataSource dataSource, CappedDatabase traceCappedDatabase,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
             TraceAttributeNameDao traceAttributeNameDao) throws Exception {
@@ -167,8 +202,12 @@ public class TraceDao implements TraceRepository {
         dataSource.syncIndexes("trace", traceIndexes);
         dataSource.syncTable("trace_attribute", traceAttributeColumns);
         dataSource.syncIndexes("trace_attribute", traceAttributeIndexes);
+        storeExecutor = Executors
+                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Trace-Store"));
+        storeExecutor.execute(new TraceStoreLoop());
     }
 
+    // returns after the trace has been stored, so the trace is readable as soon as this returns
     public void store(TraceReader traceReader) throws Exception {
         final long captureTime = traceReader.captureTime();
         final Trace.Builder builder = Trace.newBuilder()
@@ -177,22 +216,38 @@ public class TraceDao implements TraceRepository {
 
         TraceVisitorImpl traceVisitor = new TraceVisitorImpl(captureTime, builder);
         traceReader.accept(traceVisitor);
-        Trace trace = builder.build();
-        Trace.Header header = trace.getHeader();
+        if (closed) {
+            return;
+        }
+        PendingTrace pendingTrace = new PendingTrace(builder.build());
+        queuedCount.getAndIncrement();
+        pendingTraces.put(pendingTrace);
+        try {
+            pendingTrace.stored.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            Throwables.propagateIfPossible(cause, Exception.class);
+            throw e;
+        }
+    }
 
-        dataSource.update(new TraceMerge(trace));
-        if (header.getAttributeCount() > 0) {
-            if (trace.getUpdate()) {
-                dataSource.update("delete from trace_attribute where trace_id = ?", trace.getId());
-            }
-            dataSource.batchUpdate(new TraceAttributeInsert(trace));
-            for (Trace.Attribute attribute : header.getAttributeList()) {
-                traceAttributeNameDao.updateLastCaptureTime(header.getTransactionType(),
-                        attribute.getName(), header.getCaptureTime());
+    // waits until all traces passed to store() prior to calling this method have been stored
+    private void flush() throws InterruptedException {
+        long target = queuedCount.get();
+        synchronized (storedLock) {
+            while (storedCount < target) {
+                storedLock.wait();
             }
         }
-        transactionTypeDao.updateLastCaptureTime(header.getTransactionType(),
-                header.getCaptureTime());
+    }
+
+    void close() throws InterruptedException {
+        closed = true;
+        flush();
+        storeExecutor.shutdownNow();
+        if (!storeExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
     }
 
     @Override
@@ -307,6 +362,49 @@ public class TraceDao implements TraceRepository {
         return traceCappedDatabase.readMessage(cappedId, Profile.parser());
     }
 
+    private void storeBatch(List<PendingTrace> pendingTraces) throws Exception {
+        // a partial trace and its update (or multiple updates) can be in the same batch, in which
+        // case only the last one needs to be stored
+        final Map<String, Trace> tracesById = Maps.newLinkedHashMap();
+        for (PendingTrace pendingTrace : pendingTraces) {
+            Trace trace = pendingTrace.trace;
+            tracesById.remove(trace.getId());
+            tracesById.put(trace.getId(), trace);
+        }
+        final List<TraceMerge> traceMerges = Lists.newArrayList();
+        traceCappedDatabase.writeBatch(new BatchWriter() {
+            @Override
+            public void write(Batch batch) throws IOException {
+                for (Trace trace : tracesById.values()) {
+                    traceMerges.add(new TraceMerge(trace, batch));
+                }
+            }
+        });
+        dataSource.batchUpdate(new TraceMergeBatch(traceMerges));
+        List<Trace> tracesWithAttributes = Lists.newArrayList();
+        for (Trace trace : tracesById.values()) {
+            if (trace.getHeader().getAttributeCount() > 0) {
+                if (trace.getUpdate()) {
+                    dataSource.update("delete from trace_attribute where trace_id = ?",
+                            trace.getId());
+                }
+                tracesWithAttributes.add(trace);
+            }
+        }
+        if (!tracesWithAttributes.isEmpty()) {
+            dataSource.batchUpdate(new TraceAttributeInsert(tracesWithAttributes));
+        }
+        for (Trace trace : tracesById.values()) {
+            Trace.Header header = trace.getHeader();
+            for (Trace.Attribute attribute : header.getAttributeList()) {
+                traceAttributeNameDao.updateLastCaptureTime(header.getTransactionType(),
+                        attribute.getName(), header.getCaptureTime());
+            }
+            transactionTypeDao.updateLastCaptureTime(header.getTransactionType(),
+                    header.getCaptureTime());
+        }
+    }
+
     void deleteBefore(long captureTime) throws Exception {
         traceAttributeNameDao.deleteBefore(captureTime);
         dataSource.deleteBefore("trace", captureTime);
@@ -440,7 +538,85 @@ public class TraceDao implements TraceRepository {
         }
     }
 
-    private class TraceMerge implements JdbcUpdate {
+    private class TraceStoreLoop implements Runnable {
+
+        @Override
+        public void run() {
+            List<PendingTrace> batch = Lists.newArrayList();
+            while (true) {
+                try {
+                    batch.add(pendingTraces.take());
+                } catch (InterruptedException e) {
+                    // shutdown requested (close() waits for pending traces to be stored first)
+                    return;
+                }
+                pendingTraces.drainTo(batch, MAX_BATCH_SIZE - 1);
+                Throwable failure = null;
+                try {
+                    storeBatch(batch);
+                } catch (Throwable t) {
+                    // the error is thrown from each store() call in the batch
+                    failure = t;
+                }
+                for (PendingTrace pendingTrace : batch) {
+                    if (failure == null) {
+                        pendingTrace.stored.set(null);
+                    } else {
+                        pendingTrace.stored.setException(failure);
+                    }
+                }
+                markStored(batch.size());
+                batch.clear();
+            }
+        }
+
+        private void markStored(int count) {
+            synchronized (storedLock) {
+                storedCount += count;
+                storedLock.notifyAll();
+            }
+        }
+    }
+
+    private static class PendingTrace {
+
+        private final Trace trace;
+        private final SettableFuture</*@Nullable*/ Void> stored = SettableFuture.create();
+
+        private PendingTrace(Trace trace) {
+            this.trace = trace;
+        }
+    }
+
+    private static class TraceMergeBatch implements JdbcUpdate {
+
+        private final List<TraceMerge> traceMerges;
+
+        private TraceMergeBatch(List<TraceMerge> traceMerges) {
+            this.traceMerges = traceMerges;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "merge into trace (id, partial, slow, error, start_time, capture_time,"
+                    + " duration_nanos, transaction_type, transaction_name, headline, user,"
+                    + " error_message, header, entries_capped_id, queries_capped_id,"
+                    + " shared_query_texts_capped_id, main_thread_profile_capped_id,"
+                    + " aux_thread_profile_capped_id) key (id) values (?, ?, ?, ?, ?, ?, ?, ?, ?,"
+                    + " ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        }
+
+        // minimal work inside this method as it is called with active connection
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (TraceMerge traceMerge : traceMerges) {
+                traceMerge.bind(preparedStatement);
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
+    private static class TraceMerge {
 
         private final String traceId;
         private final Trace.Header header;
@@ -450,7 +626,7 @@ public class TraceDao implements TraceRepository {
         private final @Nullable Long mainThreadProfileId;
         private final @Nullable Long auxThreadProfileId;
 
-        private TraceMerge(Trace trace) throws IOException {
+        private TraceMerge(Trace trace, Batch batch) throws IOException {
             this.traceId = trace.getId();
             this.header = trace.getHeader();
 
@@ -458,50 +634,38 @@ public class TraceDao implements TraceRepository {
             if (entries.isEmpty()) {
                 entriesCappedId = null;
             } else {
-                entriesCappedId = traceCappedDatabase.writeMessages(entries,
+                entriesCappedId = batch.writeMessages(entries,
                         TraceCappedDatabaseStats.TRACE_ENTRIES);
             }
             List<Aggregate.Query> queries = trace.getQueryList();
             if (queries.isEmpty()) {
                 queriesCappedId = null;
             } else {
-                queriesCappedId = traceCappedDatabase.writeMessages(queries,
+                queriesCappedId = batch.writeMessages(queries,
                         TraceCappedDatabaseStats.TRACE_QUERIES);
             }
             List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
             if (sharedQueryTexts.isEmpty()) {
                 sharedQueryTextsCappedId = null;
             } else {
-                sharedQueryTextsCappedId = traceCappedDatabase.writeMessages(sharedQueryTexts,
+                sharedQueryTextsCappedId = batch.writeMessages(sharedQueryTexts,
                         TraceCappedDatabaseStats.TRACE_SHARED_QUERY_TEXTS);
             }
             if (trace.hasMainThreadProfile()) {
-                mainThreadProfileId = traceCappedDatabase.writeMessage(trace.getMainThreadProfile(),
+                mainThreadProfileId = batch.writeMessage(trace.getMainThreadProfile(),
                         TraceCappedDatabaseStats.TRACE_PROFILES);
             } else {
                 mainThreadProfileId = null;
             }
             if (trace.hasAuxThreadProfile()) {
-                auxThreadProfileId = traceCappedDatabase.writeMessage(trace.getAuxThreadProfile(),
+                auxThreadProfileId = batch.writeMessage(trace.getAuxThreadProfile(),
                         TraceCappedDatabaseStats.TRACE_PROFILES);
             } else {
                 auxThreadProfileId = null;
             }
         }
 
-        @Override
-        public @Untainted String getSql() {
-            return "merge into trace (id, partial, slow, error, start_time, capture_time,"
-                    + " duration_nanos, transaction_type, transaction_name, headline, user,"
-                    + " error_message, header, entries_capped_id, queries_capped_id,"
-                    + " shared_query_texts_capped_id, main_thread_profile_capped_id,"
-                    + " aux_thread_profile_capped_id) key (id) values (?, ?, ?, ?, ?, ?, ?, ?, ?,"
-                    + " ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-        }
-
-        // minimal work inside this method as it is called with active connection
-        @Override
-        public void bind(PreparedStatement preparedStatement) throws SQLException {
+        private void bind(PreparedStatement preparedStatement) throws SQLException {
             int i = 1;
             preparedStatement.setString(i++, traceId);
             preparedStatement.setBoolean(i++, header.getPartial());
@@ -538,10 +702,10 @@ public class TraceDao implements TraceRepository {
 
     private static class TraceAttributeInsert implements JdbcUpdate {
 
-        private final Trace trace;
+        private final List<Trace> traces;
 
-        private TraceAttributeInsert(Trace trace) {
-            this.trace = trace;
+        private TraceAttributeInsert(List<Trace> traces) {
+            this.traces = traces;
         }
 
         @Override
@@ -552,18 +716,19 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws SQLException {
-            Trace.Header header = trace.getHeader();
-            for (Trace.Attribute attribute : header.getAttributeList()) {
-                for (String value : attribute.getValueList()) {
-                    int i = 1;
-                    preparedStatement.setString(i++, trace.getId());
-                    preparedStatement.setString(i++, attribute.getName());
-                    preparedStatement.setString(i++, value);
-                    preparedStatement.setLong(i++, header.getCaptureTime());
-                    preparedStatement.addBatch();
+            for (Trace trace : traces) {
+                Trace.Header header = trace.getHeader();
+                for (Trace.Attribute attribute : header.getAttributeList()) {
+                    for (String value : attribute.getValueList()) {
+                        int i = 1;
+                        preparedStatement.setString(i++, trace.getId());
+                        preparedStatement.setString(i++, attribute.getName());
+                        preparedStatement.setString(i++, value);
+                        preparedStatement.setLong(i++, header.getCaptureTime());
+                        preparedStatement.addBatch();
+                    }
                 }
             }
-
         }
     }
 
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.immutables.value.Value;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
+import org.glowroot.agent.embedded.util.ImmutableColumn;
+import org.glowroot.agent.embedded.util.ImmutableIndex;
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.embedded.util.TimePartitionedTable;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+
+import static org.glowroot.agent.util.Checkers.castUntainted;
+
+// pre-computed per transaction name totals over coarse time buckets (one table per rollup level),
+// so that transaction summaries and transaction error summaries over long time ranges can be read
+// without reading every transaction aggregate row in the range
+//
+// the totals are maintained incrementally as transaction aggregates are stored and rolled up, and
+// the partial buckets at each end of a query range are still read from the transaction aggregate
+// tables
+//
+// bucket_time is the end of the bucket, so bucket covers capture times in the range
+// (bucket_time - bucketMillis, bucket_time], which lines up with the (from, to] query ranges
+class TransactionSummaryDao {
+
+    // bucket size is a multiple of the rollup interval so that rolled up capture times never
+    // straddle buckets
+    private static final int INTERVALS_PER_BUCKET = 12;
+
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
+            ImmutableColumn.of("transaction_name", ColumnType.VARCHAR),
+            ImmutableColumn.of("bucket_time", ColumnType.BIGINT),
+            ImmutableColumn.of("total_duration_nanos", ColumnType.DOUBLE),
+            ImmutableColumn.of("transaction_count", ColumnType.BIGINT),
+            ImmutableColumn.of("error_count", ColumnType.BIGINT),
+            ImmutableColumn.of("max_capture_time", ColumnType.BIGINT));
+
+    // this index includes all columns needed for the summary queries so h2 can return the result
+    // set directly from the index without having to reference the table for each row, and it also
+    // serves the lookups by transaction_type, bucket_time and transaction_name when updating totals
+    private static final ImmutableList<String> indexColumns = ImmutableList.of("transaction_type",
+            "bucket_time", "transaction_name", "total_duration_nanos", "transaction_count",
+            "error_count", "max_capture_time");
+
+    private final DataSource dataSource;
+
+    private final long[] bucketMillis;
+
+    // one per rollup level, pre-computed totals are only used for buckets that start at or after
+    // this time, since buckets prior to this may be partially expired
+    private final AtomicLongArray horizons;
+
+    TransactionSummaryDao(DataSource dataSource, List<RollupConfig> rollupConfigs,
+            List<TimePartitionedTable> transactionTables) throws Exception {
+        this.dataSource = dataSource;
+        bucketMillis = new long[rollupConfigs.size()];
+        long[] horizons = new long[rollupConfigs.size()];
+        for (int i = 0; i < rollupConfigs.size(); i++) {
+            bucketMillis[i] = rollupConfigs.get(i).intervalMillis() * INTERVALS_PER_BUCKET;
+            String tableName = getTableName(i);
+            boolean newTable = !dataSource.tableExists(tableName);
+            dataSource.syncTable(tableName, columns);
+            dataSource.syncIndexes(tableName, ImmutableList.<Index>of(
+                    ImmutableIndex.of(tableName + "_idx", indexColumns)));
+            String transactionTableExpression =
+                    transactionTables.get(i).getTableExpressionForAll();
+            if (newTable) {
+                backfill(tableName, transactionTableExpression, bucketMillis[i]);
+            }
+            Long minCaptureTime = dataSource.queryForOptionalLong(
+                    "select min(capture_time) from " + transactionTableExpression);
+            horizons[i] = minCaptureTime == null ? 0 : getBucketTime(minCaptureTime, i);
+        }
+        this.horizons = new AtomicLongArray(horizons);
+    }
+
+    @Untainted
+    String getTableName(int rollupLevel) {
+        return castUntainted("aggregate_tn_summary_rollup_" + rollupLevel);
+    }
+
+    // returns the range of full buckets within the query range (from is non-inclusive), or null if
+    // there are no full buckets within the query range
+    @Nullable
+    BucketRange getBucketRange(int rollupLevel, long from, long to) {
+        long bucketFrom = Math.max(getBucketTime(from, rollupLevel), horizons.get(rollupLevel));
+        long bucketTo = (to / bucketMillis[rollupLevel]) * bucketMillis[rollupLevel];
+        if (bucketTo <= bucketFrom) {
+            return null;
+        }
+        return ImmutableBucketRange.of(bucketFrom, bucketTo);
+    }
+
+    // all of the transaction totals must be for the same capture time
+    void add(int rollupLevel, long captureTime, List<TransactionTotals> transactionTotals)
+            throws Exception {
+        if (transactionTotals.isEmpty()) {
+            return;
+        }
+        String tableName = getTableName(rollupLevel);
+        long bucketTime = getBucketTime(captureTime, rollupLevel);
+        int[] updateCounts = dataSource.batchUpdate(
+                new TotalsUpdate(tableName, bucketTime, captureTime, transactionTotals));
+        if (updateCounts.length != transactionTotals.size()) {
+            // data source is closing
+            return;
+        }
+        List<TransactionTotals> newTransactionTotals = Lists.newArrayList();
+        for (int i = 0; i < updateCounts.length; i++) {
+            if (updateCounts[i] == 0) {
+                newTransactionTotals.add(transactionTotals.get(i));
+            }
+        }
+        if (!newTransactionTotals.isEmpty()) {
+            dataSource.batchUpdate(
+                    new TotalsInsert(tableName, bucketTime, captureTime, newTransactionTotals));
+        }
+    }
+
+    // replaces the totals of the bucket containing the capture time with totals recomputed from the
+    // transaction aggregate table, which (unlike add) is idempotent, and so is safe to use when
+    // re-rolling up a capture time that may already have been (partially) added
+    void recomputeBucket(int rollupLevel, long captureTime, TimePartitionedTable transactionTable)
+            throws Exception {
+        String tableName = getTableName(rollupLevel);
+        long bucketTime = getBucketTime(captureTime, rollupLevel);
+        long bucketFrom = bucketTime - bucketMillis[rollupLevel];
+        dataSource.update("delete from " + tableName + " where bucket_time = ?", bucketTime);
+        dataSource.update("insert into " + tableName + " (transaction_type, transaction_name,"
+                + " bucket_time, total_duration_nanos, transaction_count, error_count,"
+                + " max_capture_time) select transaction_type, transaction_name, "
+                + castUntainted(Long.toString(bucketTime)) + ", sum(total_duration_nanos),"
+                + " sum(transaction_count), sum(error_count), max(capture_time) from "
+                + transactionTable.getTableExpression(bucketFrom, bucketTime)
+                + " where capture_time > ? and capture_time <= ? group by transaction_type,"
+                + " transaction_name", bucketFrom, bucketTime);
+    }
+
+    void deleteBefore(long captureTime, int rollupLevel) throws Exception {
+        long horizon = getBucketTime(captureTime, rollupLevel);
+        long priorHorizon;
+        do {
+            priorHorizon = horizons.get(rollupLevel);
+            if (horizon <= priorHorizon) {
+                break;
+            }
+        } while (!horizons.compareAndSet(rollupLevel, priorHorizon, horizon));
+        // the bucket ending at the horizon is (possibly) partially expired
+        dataSource.deleteBefore(getTableName(rollupLevel), "bucket_time", horizon + 1);
+    }
+
+    // returns the end of the bucket containing the capture time
+    private long getBucketTime(long captureTime, int rollupLevel) {
+        long millis = bucketMillis[rollupLevel];
+        if (captureTime <= 0) {
+            return 0;
+        }
+        return ((captureTime - 1) / millis + 1) * millis;
+    }
+
+    private void backfill(@Untainted String tableName,
+            @Untainted String transactionTableExpression, long bucketMillis) throws Exception {
+        String bucketTimeExpression = castUntainted(
+                "((capture_time - 1) / " + bucketMillis + " + 1) * " + bucketMillis);
+        dataSource.update("insert into " + tableName + " (transaction_type, transaction_name,"
+                + " bucket_time, total_duration_nanos, transaction_count, error_count,"
+                + " max_capture_time) select transaction_type, transaction_name, bucket_time,"
+                + " sum(total_duration_nanos), sum(transaction_count), sum(error_count),"
+                + " max(capture_time) from (select transaction_type, transaction_name, "
+                + bucketTimeExpression + " bucket_time, total_duration_nanos,"
+                + " transaction_count, error_count, capture_time from "
+                + transactionTableExpression + ") group by transaction_type, transaction_name,"
+                + " bucket_time");
+    }
+
+    private static class TotalsUpdate implements JdbcUpdate {
+
+        private final @Untainted String tableName;
+        private final long bucketTime;
+        private final long captureTime;
+        private final List<TransactionTotals> transactionTotals;
+
+        private TotalsUpdate(@Untainted String tableName, long bucketTime, long captureTime,
+                List<TransactionTotals> transactionTotals) {
+            this.tableName = tableName;
+            this.bucketTime = bucketTime;
+            this.captureTime = captureTime;
+            this.transactionTotals = transactionTotals;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "update " + tableName + " set total_duration_nanos = total_duration_nanos + ?,"
+                    + " transaction_count = transaction_count + ?, error_count = error_count + ?,"
+                    + " max_capture_time = greatest(max_capture_time, ?) where transaction_type = ?"
+                    + " and bucket_time = ? and transaction_name = ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (TransactionTotals totals : transactionTotals) {
+                int i = 1;
+                preparedStatement.setDouble(i++, totals.totalDurationNanos());
+                preparedStatement.setLong(i++, totals.transactionCount());
+                preparedStatement.setLong(i++, totals.errorCount());
+                preparedStatement.setLong(i++, captureTime);
+                preparedStatement.setString(i++, totals.transactionType());
+                preparedStatement.setLong(i++, bucketTime);
+                preparedStatement.setString(i++, totals.transactionName());
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
+    private static class TotalsInsert implements JdbcUpdate {
+
+        private final @Untainted String tableName;
+        private final long bucketTime;
+        private final long captureTime;
+        private final List<TransactionTotals> transactionTotals;
+
+        private TotalsInsert(@Untainted String tableName, long bucketTime, long captureTime,
+                List<TransactionTotals> transactionTotals) {
+            this.tableName = tableName;
+            this.bucketTime = bucketTime;
+            this.captureTime = captureTime;
+            this.transactionTotals = transactionTotals;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "insert into " + tableName + " (transaction_type, transaction_name, bucket_time,"
+                    + " total_duration_nanos, transaction_count, error_count, max_capture_time)"
+                    + " values (?, ?, ?, ?, ?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (TransactionTotals totals : transactionTotals) {
+                int i = 1;
+                preparedStatement.setString(i++, totals.transactionType());
+                preparedStatement.setString(i++, totals.transactionName());
+                preparedStatement.setLong(i++, bucketTime);
+                preparedStatement.setDouble(i++, totals.totalDurationNanos());
+                preparedStatement.setLong(i++, totals.transactionCount());
+                preparedStatement.setLong(i++, totals.errorCount());
+                preparedStatement.setLong(i++, captureTime);
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface BucketRange {
+        // non-inclusive
+        long from();
+        long to();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface TransactionTotals {
+        String transactionType();
+        String transactionName();
+        double totalDurationNanos();
+        long transactionCount();
+        long errorCount();
+    }
+}
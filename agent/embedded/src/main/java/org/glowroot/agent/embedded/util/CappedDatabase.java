@@ -24,11 +24,18 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
@@ -41,14 +48,10 @@ import com.google.common.primitives.Longs;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.Parser;
-import com.ning.compress.lzf.LZFInputStream;
-import com.ning.compress.lzf.LZFOutputStream;
-import com.ning.compress.lzf.util.ChunkDecoderFactory;
-import com.ning.compress.lzf.util.ChunkEncoderFactory;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.glowroot.agent.util.JavaVersion;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
@@ -58,35 +61,42 @@ public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
-    private static final boolean USE_SAFE_LZF_ENCODER;
+    // memory mapped files cannot be deleted or renamed on windows (until the mapping is garbage
+    // collected), which is needed for resize()
+    private static final boolean USE_MEMORY_MAPPED_READS = !Boolean.getBoolean(
+            "glowroot.internal.cappedDatabase.disableMemoryMappedReads")
+            && !isWindows();
 
-    static {
-        String arch = StandardSystemProperty.OS_ARCH.value();
-        // see https://github.com/lz4/lz4-java/blob/1.4.1/src/java/net/jpountz/util/Utils.java#L27
-        boolean unalignedAccessAllowed = "i386".equals(arch) || "x86".equals(arch)
-                || "amd64".equals(arch) || "x86_64".equals(arch) || "aarch64".equals(arch)
-                || "ppc64le".equals(arch);
-        USE_SAFE_LZF_ENCODER =
-                !unalignedAccessAllowed || (JavaVersion.isIbmJvm() && JavaVersion.isJava6());
-    }
+    private static final int MAPPED_SEGMENT_SIZE = 64 * 1024 * 1024;
 
     private final File file;
     private final Object lock = new Object();
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
+    // reads do not take the lock above, so that reading traces and profiles does not block (and is
+    // not blocked by) writing, or other reads
+    //
+    // the read view is replaced on resize() since the file is replaced
+    private volatile ReadView readView;
     private volatile boolean closed = false;
 
+    private final CappedDatabaseCodec codec;
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
+        this(file, requestedSizeKb, CappedDatabaseCodec.DEFAULT, ticker);
+    }
+
+    @VisibleForTesting
+    CappedDatabase(File file, int requestedSizeKb, CappedDatabaseCodec codec, Ticker ticker)
+            throws IOException {
         this.file = file;
+        this.codec = codec;
         this.ticker = ticker;
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
-        inFile = new RandomAccessFile(file, "r");
+        readView = new ReadView(file, out.getLastResizeBaseIndex(), out.getSizeBytes());
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -112,6 +122,44 @@ public class CappedDatabase {
         });
     }
 
+    // writes all of the blocks with a single lock acquisition and a single sync to disk, which is
+    // much faster than writing each block separately when there are many blocks to write
+    //
+    // the batch passed to the batch writer must not be used after the batch writer returns
+    @SuppressWarnings("GuardedBy")
+    public void writeBatch(BatchWriter batchWriter) throws IOException {
+        synchronized (lock) {
+            batchWriter.write(new Batch() {
+                @Override
+                public long writeMessage(final AbstractMessage message, String type)
+                        throws IOException {
+                    return writeUnderLock(type, new Copier() {
+                        @Override
+                        public void copyTo(OutputStream writer) throws IOException {
+                            message.writeTo(writer);
+                        }
+                    });
+                }
+
+                @Override
+                public long writeMessages(final List<? extends AbstractMessage> messages,
+                        String type) throws IOException {
+                    return writeUnderLock(type, new Copier() {
+                        @Override
+                        public void copyTo(OutputStream writer) throws IOException {
+                            for (AbstractMessage message : messages) {
+                                message.writeDelimitedTo(writer);
+                            }
+                        }
+                    });
+                }
+            });
+            if (!closed) {
+                out.sync();
+            }
+        }
+    }
+
     public CappedDatabaseStats getStats(String type) {
         CappedDatabaseStats stats = statsByType.get(type);
         if (stats == null) {
@@ -132,41 +180,45 @@ public class CappedDatabase {
 
     private long write(String type, Copier copier) throws IOException {
         synchronized (lock) {
-            if (closed) {
-                return -1;
-            }
-            long startTick = ticker.read();
-            out.startBlock();
-            NonClosingCountingOutputStream countingStreamAfterCompression =
-                    new NonClosingCountingOutputStream(out);
-            CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(newLZFOutputStream(countingStreamAfterCompression));
-            copier.copyTo(countingStreamBeforeCompression);
-            countingStreamBeforeCompression.close();
-            long endTick = ticker.read();
-            CappedDatabaseStats stats = statsByType.get(type);
-            if (stats == null) {
-                stats = new CappedDatabaseStats();
-                statsByType.put(type, stats);
+            long cappedId = writeUnderLock(type, copier);
+            if (!closed) {
+                out.sync();
             }
-            stats.record(countingStreamBeforeCompression.getCount(),
-                    countingStreamAfterCompression.getCount(), endTick - startTick);
-            return out.endBlock();
+            return cappedId;
+        }
+    }
+
+    @GuardedBy("lock")
+    private long writeUnderLock(String type, Copier copier) throws IOException {
+        if (closed) {
+            return -1;
+        }
+        long startTick = ticker.read();
+        out.startBlock();
+        NonClosingCountingOutputStream countingStreamAfterCompression =
+                new NonClosingCountingOutputStream(out);
+        CountingOutputStream countingStreamBeforeCompression =
+                new CountingOutputStream(codec.newOutputStream(countingStreamAfterCompression));
+        copier.copyTo(countingStreamBeforeCompression);
+        countingStreamBeforeCompression.close();
+        long endTick = ticker.read();
+        CappedDatabaseStats stats = statsByType.get(type);
+        if (stats == null) {
+            stats = new CappedDatabaseStats();
+            statsByType.put(type, stats);
         }
+        stats.record(countingStreamBeforeCompression.getCount(),
+                countingStreamAfterCompression.getCount(), endTick - startTick);
+        return out.endBlock(codec.getId());
     }
 
     public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
-        if (overwritten) {
+        ReadView readView = this.readView;
+        if (isOverwritten(readView, cappedId)) {
             return null;
         }
-        if (inTheFuture) {
+        if (cappedId >= out.getCurrIndex()) {
             // this can happen when the glowroot folder is copied for analysis without shutting down
             // the JVM and glowroot.capped.db is copied first, then new data is written to
             // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
@@ -174,38 +226,29 @@ public class CappedDatabase {
             // glowroot.capped.db
             return null;
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        InputStream input = null;
         try {
+            input = newBlockInputStream(new CappedBlockInputStream(readView, cappedId));
             return parser.parseFrom(input);
         } catch (Exception e) {
-            synchronized (lock) {
-                overwritten = out.isOverwritten(cappedId);
-            }
-            if (!overwritten) {
+            if (!isOverwrittenOrResized(readView, cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return null;
         } finally {
-            input.close();
+            if (input != null) {
+                input.close();
+            }
         }
     }
 
     public <T extends /*@NonNull*/ MessageLite> List<T> readMessages(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
-        if (overwritten) {
+        ReadView readView = this.readView;
+        if (isOverwritten(readView, cappedId)) {
             return ImmutableList.of();
         }
-        if (inTheFuture) {
+        if (cappedId >= out.getCurrIndex()) {
             // this can happen when the glowroot folder is copied for analysis without shutting down
             // the JVM and glowroot.capped.db is copied first, then new data is written to
             // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
@@ -213,29 +256,25 @@ public class CappedDatabase {
             // glowroot.capped.db
             return ImmutableList.of();
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
         List<T> messages = Lists.newArrayList();
+        InputStream input = null;
         try {
+            input = newBlockInputStream(new CappedBlockInputStream(readView, cappedId));
             T message;
             while ((message = sizeLimitBypassingParser.parseDelimitedFrom(input)) != null) {
                 messages.add(message);
             }
         } catch (Exception e) {
-            synchronized (lock) {
-                overwritten = out.isOverwritten(cappedId);
-            }
-            if (!overwritten) {
+            if (!isOverwrittenOrResized(readView, cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return ImmutableList.of();
         } finally {
-            input.close();
+            if (input != null) {
+                input.close();
+            }
         }
         return messages;
     }
@@ -246,15 +285,11 @@ public class CappedDatabase {
     }
 
     boolean isExpired(long cappedId) {
-        synchronized (lock) {
-            return out.isOverwritten(cappedId);
-        }
+        return isOverwritten(readView, cappedId);
     }
 
     public long getSmallestNonExpiredId() {
-        synchronized (lock) {
-            return out.getSmallestNonOverwrittenId();
-        }
+        return getSmallestNonOverwrittenId(readView);
     }
 
     public void resize(int newSizeKb) throws IOException {
@@ -262,9 +297,12 @@ public class CappedDatabase {
             if (closed) {
                 return;
             }
-            inFile.close();
             out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            // reads that are in progress on the prior read view may fail (if they hit the closed
+            // file channel) and are then reported as expired instead of logging an error
+            ReadView priorReadView = readView;
+            readView = new ReadView(file, out.getLastResizeBaseIndex(), out.getSizeBytes());
+            priorReadView.close();
         }
     }
 
@@ -273,25 +311,42 @@ public class CappedDatabase {
         synchronized (lock) {
             closed = true;
             out.close();
-            inFile.close();
+            readView.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
-        if (USE_SAFE_LZF_ENCODER) {
-            return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
-        } else {
-            return new LZFOutputStream(outputStream);
-        }
+    private boolean isOverwritten(ReadView readView, long cappedId) {
+        return cappedId < getSmallestNonOverwrittenId(readView);
     }
 
-    private static LZFInputStream newLZFInputStream(InputStream inputStream) throws IOException {
-        if (USE_SAFE_LZF_ENCODER) {
-            return new LZFInputStream(ChunkDecoderFactory.safeInstance(), inputStream);
-        } else {
-            return new LZFInputStream(inputStream);
-        }
+    private boolean isOverwrittenOrResized(ReadView readView, long cappedId) {
+        return isOverwritten(readView, cappedId) || readView != this.readView;
+    }
+
+    // this is the same as CappedDatabaseOutputStream.getSmallestNonOverwrittenId(), except it uses
+    // the pending index so that it can be used outside of the lock to validate reads (bytes are
+    // written after the pending index is updated, so if the pending index read after reading the
+    // bytes doesn't overlap the bytes, then the bytes were not overwritten during the read)
+    private long getSmallestNonOverwrittenId(ReadView readView) {
+        // need to check lastResizeBaseIndex in case it was recently resized larger, in which case
+        // pendingIndex - sizeBytes would be less than lastResizeBaseIndex
+        return Math.max(readView.lastResizeBaseIndex,
+                out.getPendingIndex() - readView.sizeBytes);
+    }
+
+    private static boolean isWindows() {
+        String osName = StandardSystemProperty.OS_NAME.value();
+        return osName != null && osName.toLowerCase(Locale.ENGLISH).startsWith("windows");
+    }
+
+    private static InputStream newBlockInputStream(CappedBlockInputStream blockInputStream)
+            throws IOException {
+        CappedDatabaseCodec codec = blockInputStream.readBlockHeader();
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying file
+        final int bufferSize = 32768;
+        return codec.newInputStream(new BufferedInputStream(blockInputStream, bufferSize));
     }
 
     @OnlyUsedByTests
@@ -305,22 +360,20 @@ public class CappedDatabase {
 
         @Override
         public Reader openStream() throws IOException {
-            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
-            final int bufferSize = 32768;
-            return new InputStreamReader(newLZFInputStream(
-                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
-                    UTF_8);
+            return new InputStreamReader(
+                    newBlockInputStream(new CappedBlockInputStream(readView, cappedId)), UTF_8);
         }
     }
 
     private class CappedBlockInputStream extends InputStream {
 
+        private final ReadView readView;
         private final long cappedId;
         private long blockLength = -1;
         private long blockIndex;
 
-        private CappedBlockInputStream(long cappedId) {
+        private CappedBlockInputStream(ReadView readView, long cappedId) {
+            this.readView = readView;
             this.cappedId = cappedId;
         }
 
@@ -329,25 +382,34 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
-                }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
-                }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
+            if (blockLength == -1) {
+                readBlockHeader();
             }
+            long filePosition = readView.convertToFilePosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+            long blockRemaining = blockLength - blockIndex;
+            long fileRemaining = readView.sizeBytes - filePosition;
+            int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
+            readView.readFully(filePosition, bytes, off, numToRead);
+            // validate after reading, see getSmallestNonOverwrittenId()
+            checkNotOverwritten();
+            blockIndex += numToRead;
+            return numToRead;
+        }
+
+        private CappedDatabaseCodec readBlockHeader() throws IOException {
+            byte[] blockHeader = new byte[CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES];
+            readView.readFully(readView.convertToFilePosition(cappedId), blockHeader, 0,
+                    blockHeader.length);
+            checkNotOverwritten();
+            long header = Longs.fromByteArray(blockHeader);
+            int codecId = CappedDatabaseOutputStream.getBlockCodecId(header);
+            CappedDatabaseCodec codec = CappedDatabaseCodec.forId(codecId);
+            if (codec == null) {
+                throw new IOException("Unexpected capped database codec id: " + codecId);
+            }
+            blockLength = CappedDatabaseOutputStream.getBlockLength(header);
+            return codec;
         }
 
         @Override
@@ -362,6 +424,94 @@ public class CappedDatabase {
             throw new UnsupportedOperationException(
                     "CappedBlockInputStream should always be wrapped in a BufferedInputStream");
         }
+
+        private void checkNotOverwritten() throws CappedBlockRolledOverMidReadException {
+            if (isOverwritten(readView, cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+        }
+    }
+
+    // read-only view of the capped database file, which is safe to use from multiple threads
+    // concurrently
+    //
+    // segments of the file are memory mapped once they have been fully written (which is only a
+    // consideration during the first loop of a new file), and the rest is read using positional
+    // reads which also do not require synchronization
+    private static class ReadView {
+
+        private final long lastResizeBaseIndex;
+        private final long sizeBytes;
+
+        private final RandomAccessFile inFile;
+        private final FileChannel inChannel;
+        private final AtomicReferenceArray</*@Nullable*/ MappedByteBuffer> segments;
+
+        private ReadView(File file, long lastResizeBaseIndex, long sizeBytes)
+                throws IOException {
+            this.lastResizeBaseIndex = lastResizeBaseIndex;
+            this.sizeBytes = sizeBytes;
+            inFile = new RandomAccessFile(file, "r");
+            inChannel = inFile.getChannel();
+            segments = new AtomicReferenceArray</*@Nullable*/ MappedByteBuffer>(
+                    (int) ((sizeBytes + MAPPED_SEGMENT_SIZE - 1) / MAPPED_SEGMENT_SIZE));
+        }
+
+        private long convertToFilePosition(long index) {
+            return (index - lastResizeBaseIndex) % sizeBytes;
+        }
+
+        // filePosition is relative to the end of the file header
+        private void readFully(long filePosition, byte[] bytes, int off, int len)
+                throws IOException {
+            int segmentIndex = (int) (filePosition / MAPPED_SEGMENT_SIZE);
+            int segmentPosition = (int) (filePosition % MAPPED_SEGMENT_SIZE);
+            ByteBuffer segment = getSegment(segmentIndex);
+            if (segment != null && segmentPosition + len <= segment.capacity()) {
+                // duplicate so that position is not shared across threads
+                ByteBuffer buffer = segment.duplicate();
+                buffer.position(segmentPosition);
+                buffer.get(bytes, off, len);
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, off, len);
+            long position = CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition;
+            while (buffer.hasRemaining()) {
+                int n = inChannel.read(buffer, position);
+                if (n == -1) {
+                    throw new IOException("Unexpected end of capped database file");
+                }
+                position += n;
+            }
+        }
+
+        private @Nullable ByteBuffer getSegment(int segmentIndex) throws IOException {
+            if (!USE_MEMORY_MAPPED_READS) {
+                return null;
+            }
+            MappedByteBuffer segment = segments.get(segmentIndex);
+            if (segment != null) {
+                return segment;
+            }
+            long segmentStart = (long) segmentIndex * MAPPED_SEGMENT_SIZE;
+            long segmentSize = Math.min(MAPPED_SEGMENT_SIZE, sizeBytes - segmentStart);
+            long mapStart = CappedDatabaseOutputStream.HEADER_SKIP_BYTES + segmentStart;
+            if (inChannel.size() < mapStart + segmentSize) {
+                // segment has not been fully written yet
+                return null;
+            }
+            segment = inChannel.map(MapMode.READ_ONLY, mapStart, segmentSize);
+            if (segments.compareAndSet(segmentIndex, null, segment)) {
+                return segment;
+            }
+            // another thread mapped the segment at the same time
+            return segments.get(segmentIndex);
+        }
+
+        private void close() throws IOException {
+            // existing mappings remain valid until they are garbage collected
+            inFile.close();
+        }
     }
 
     private class ShutdownHookThread extends Thread {
@@ -374,7 +524,7 @@ public class CappedDatabase {
                 closed = true;
                 synchronized (lock) {
                     out.close();
-                    inFile.close();
+                    readView.close();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -382,6 +532,18 @@ public class CappedDatabase {
         }
     }
 
+    public interface BatchWriter {
+        void write(Batch batch) throws IOException;
+    }
+
+    public interface Batch {
+
+        long writeMessage(AbstractMessage message, String type) throws IOException;
+
+        long writeMessages(List<? extends AbstractMessage> messages, String type)
+                throws IOException;
+    }
+
     private interface Copier {
         void copyTo(OutputStream out) throws IOException;
     }
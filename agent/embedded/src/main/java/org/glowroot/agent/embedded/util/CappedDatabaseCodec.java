@@ -0,0 +1,230 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.base.StandardSystemProperty;
+import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.LZFOutputStream;
+import com.ning.compress.lzf.util.ChunkDecoderFactory;
+import com.ning.compress.lzf.util.ChunkEncoderFactory;
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.xxhash.XXHashFactory;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.JavaVersion;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// the codec id is stored in the block header of each block, so blocks written with different
+// codecs can be read back from the same capped database (and blocks written prior to codecs all
+// have codec id 0, since their block header is just the block length)
+//
+// codec ids (and the deflate dictionary) are part of the file format and must never be changed,
+// only added
+enum CappedDatabaseCodec {
+
+    // fast, this was the only codec prior to codecs being configurable
+    LZF(0) {
+        @Override
+        OutputStream newOutputStream(OutputStream out) {
+            if (USE_SAFE_LZF_ENCODER) {
+                return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), out);
+            } else {
+                return new LZFOutputStream(out);
+            }
+        }
+
+        @Override
+        InputStream newInputStream(InputStream in) throws IOException {
+            if (USE_SAFE_LZF_ENCODER) {
+                return new LZFInputStream(ChunkDecoderFactory.safeInstance(), in);
+            } else {
+                return new LZFInputStream(in);
+            }
+        }
+    },
+
+    // slower, but keeps significantly more history for the same capped database size
+    DEFLATE(1) {
+        @Override
+        OutputStream newOutputStream(OutputStream out) {
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+            deflater.setDictionary(DEFLATE_DICTIONARY);
+            return new EndingDeflaterOutputStream(out, deflater);
+        }
+
+        @Override
+        InputStream newInputStream(InputStream in) {
+            Inflater inflater = new Inflater(true);
+            inflater.setDictionary(DEFLATE_DICTIONARY);
+            return new EndingInflaterInputStream(in, inflater);
+        }
+    },
+
+    // faster than LZF at a similar compression ratio
+    //
+    // only the pure java lz4 implementations are used, since the jni implementation extracts a
+    // native library to the temp directory, and its classes cannot be relocated when shaded
+    LZ4(2) {
+        @Override
+        OutputStream newOutputStream(OutputStream out) {
+            return new LZ4BlockOutputStream(out, LZ4_BLOCK_SIZE,
+                    LZ4Factory.fastestJavaInstance().fastCompressor(),
+                    XXHashFactory.fastestJavaInstance().newStreamingHash32(LZ4_CHECKSUM_SEED)
+                            .asChecksum(),
+                    false);
+        }
+
+        @Override
+        InputStream newInputStream(InputStream in) {
+            return new LZ4BlockInputStream(in,
+                    LZ4Factory.fastestJavaInstance().fastDecompressor(),
+                    XXHashFactory.fastestJavaInstance().newStreamingHash32(LZ4_CHECKSUM_SEED)
+                            .asChecksum());
+        }
+    };
+
+    private static final Logger logger = LoggerFactory.getLogger(CappedDatabaseCodec.class);
+
+    private static final int LZ4_BLOCK_SIZE = 65536;
+
+    // same seed that LZ4BlockOutputStream uses by default
+    private static final int LZ4_CHECKSUM_SEED = 0x9747b28c;
+
+    private static final boolean USE_SAFE_LZF_ENCODER;
+
+    static {
+        String arch = StandardSystemProperty.OS_ARCH.value();
+        // see https://github.com/lz4/lz4-java/blob/1.4.1/src/java/net/jpountz/util/Utils.java#L27
+        boolean unalignedAccessAllowed = "i386".equals(arch) || "x86".equals(arch)
+                || "amd64".equals(arch) || "x86_64".equals(arch) || "aarch64".equals(arch)
+                || "ppc64le".equals(arch);
+        USE_SAFE_LZF_ENCODER =
+                !unalignedAccessAllowed || (JavaVersion.isIbmJvm() && JavaVersion.isJava6());
+    }
+
+    // preset dictionary of strings that are common in stored trace entries, queries and profiles
+    // (deflate favors the end of the dictionary, so the most common strings are at the end)
+    private static final byte[] DEFLATE_DICTIONARY = ("java.util.concurrent.ThreadPoolExecutor"
+            + "$Worker.runjava.util.concurrent.FutureTask.runsun.reflect.NativeMethodAccessorImpl"
+            + ".invoke0sun.reflect.DelegatingMethodAccessorImpl.invokejava.lang.reflect.Method"
+            + ".invokeorg.springframework.web.servlet.DispatcherServlet.doDispatch"
+            + "org.springframework.aop.framework.ReflectiveMethodInvocation.proceed"
+            + "org.hibernate.loader.Loader.doQueryorg.apache.catalina.core"
+            + ".ApplicationFilterChain.internalDoFilterorg.apache.catalina.core"
+            + ".ApplicationFilterChain.doFilterjavax.servlet.http.HttpServlet.service"
+            + "java.net.SocketInputStream.socketRead0java.net.SocketInputStream.read"
+            + "java.lang.Object.waitjava.lang.Thread.sleepjava.lang.Thread.run"
+            + "http client request: GET http://jdbc query: http request: jdbc execute: "
+            + "jdbc commitjdbc get connectionjdbc rollback => 0 rows => 1 row => rows"
+            + "select * from  where  = ? and  in (?, ?) order by  group by  limit ?"
+            + " insert into  values (?, ?) update  set  = ? delete from ").getBytes(UTF_8);
+
+    // the codec used for new blocks
+    static final CappedDatabaseCodec DEFAULT = getDefault();
+
+    private final int id;
+
+    private CappedDatabaseCodec(int id) {
+        this.id = id;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    abstract OutputStream newOutputStream(OutputStream out);
+
+    abstract InputStream newInputStream(InputStream in) throws IOException;
+
+    static @Nullable CappedDatabaseCodec forId(int id) {
+        for (CappedDatabaseCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    private static CappedDatabaseCodec getDefault() {
+        String value = System.getProperty("glowroot.internal.cappedDatabase.codec");
+        if (value == null) {
+            return LZF;
+        }
+        try {
+            return valueOf(value.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            logger.warn("invalid glowroot.internal.cappedDatabase.codec value: {} (valid values"
+                    + " are {}), using {}", value, Arrays.toString(values()), LZF);
+            return LZF;
+        }
+    }
+
+    // Deflater and Inflater hold native memory which is only released promptly if end() is called
+    // (DeflaterOutputStream and InflaterInputStream only call end() when they create the
+    // Deflater/Inflater themselves)
+    private static class EndingDeflaterOutputStream extends DeflaterOutputStream {
+
+        private final Deflater deflater;
+
+        private EndingDeflaterOutputStream(OutputStream out, Deflater deflater) {
+            super(out, deflater, 8192);
+            this.deflater = deflater;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    private static class EndingInflaterInputStream extends InflaterInputStream {
+
+        private final Inflater inflater;
+
+        private EndingInflaterInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater, 8192);
+            this.inflater = inflater;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
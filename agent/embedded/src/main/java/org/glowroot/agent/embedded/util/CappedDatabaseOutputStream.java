@@ -28,6 +28,12 @@ class CappedDatabaseOutputStream extends OutputStream {
     static final int HEADER_SKIP_BYTES = 20;
     static final int BLOCK_HEADER_SKIP_BYTES = 8;
 
+    // the block header holds the codec id in the high byte and the block length in the remaining
+    // bytes (block length is limited by the capped database size, so the high byte was always zero
+    // prior to codecs, which is the codec id for lzf)
+    private static final int BLOCK_HEADER_CODEC_ID_SHIFT = 56;
+    private static final long BLOCK_HEADER_LENGTH_MASK = (1L << BLOCK_HEADER_CODEC_ID_SHIFT) - 1;
+
     private static final int HEADER_CURR_INDEX_POS = 0;
 
     private final File file;
@@ -35,7 +41,14 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
-    private long currIndex;
+    //
+    // currIndex is volatile so it can be read outside of the external synchronization around
+    // startBlock()/write()/endBlock()
+    private volatile long currIndex;
+    // pendingIndex is updated before bytes are written to the file (while currIndex is updated
+    // after), so that readers outside of the external synchronization can validate (after reading)
+    // that the bytes they read were not being overwritten at the same time
+    private volatile long pendingIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
     private long lastResizeBaseIndex;
     // sizeKb is volatile so it can be read outside of the external synchronization around
@@ -66,6 +79,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        pendingIndex = currIndex;
     }
 
     void startBlock() {
@@ -79,12 +93,13 @@ class CappedDatabaseOutputStream extends OutputStream {
         blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         // make space for block size to be written at start position
         currIndex += BLOCK_HEADER_SKIP_BYTES;
+        pendingIndex = currIndex;
     }
 
-    long endBlock() throws IOException {
+    long endBlock(int codecId) throws IOException {
         out.seek(HEADER_SKIP_BYTES + blockStartPosition);
-        out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
-        out.getFD().sync();
+        out.writeLong(((long) codecId << BLOCK_HEADER_CODEC_ID_SHIFT)
+                | (currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES));
         return blockStartIndex;
     }
 
@@ -98,10 +113,24 @@ class CappedDatabaseOutputStream extends OutputStream {
         return Math.max(lastResizeBaseIndex, currIndex - sizeBytes);
     }
 
+    // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
     long getCurrIndex() {
         return currIndex;
     }
 
+    // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
+    long getPendingIndex() {
+        return pendingIndex;
+    }
+
+    long getLastResizeBaseIndex() {
+        return lastResizeBaseIndex;
+    }
+
+    long getSizeBytes() {
+        return sizeBytes;
+    }
+
     // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
     int getSizeKb() {
         return sizeKb;
@@ -175,6 +204,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             throw new IOException(
                     "A single block cannot have more bytes than size of the capped database");
         }
+        pendingIndex = currIndex + len;
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
@@ -219,7 +249,15 @@ class CappedDatabaseOutputStream extends OutputStream {
         return false;
     }
 
-    @OnlyUsedByTests
+    static int getBlockCodecId(long blockHeader) {
+        return (int) (blockHeader >>> BLOCK_HEADER_CODEC_ID_SHIFT);
+    }
+
+    static long getBlockLength(long blockHeader) {
+        return blockHeader & BLOCK_HEADER_LENGTH_MASK;
+    }
+
+    // this is separate from endBlock() so that multiple blocks can be written with a single sync
     void sync() throws IOException {
         out.getFD().sync();
     }
@@ -23,8 +23,10 @@ import java.sql.Statement;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -38,6 +40,7 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.h2.jdbc.JdbcConnection;
@@ -64,6 +67,9 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    private static final int READER_CONNECTIONS =
+            Integer.getInteger("glowroot.internal.h2.readerConnections", 2);
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
@@ -72,6 +78,18 @@ public class DataSource {
     private JdbcConnection connection;
     private volatile boolean closed;
 
+    // queries are executed on a small pool of reader connections, so that the UI does not block
+    // (and is not blocked by) the agent's inserts on the single writer connection above, or other
+    // UI queries
+    //
+    // reader connections are not used with the in-memory database, since each connection to an
+    // unnamed in-memory database is a separate database
+    //
+    // using array instead of list to reduce the classes used during jvm shutdown (see
+    // PreInitializeStorageShutdownClasses)
+    private final ReaderConnection[] readerConnections;
+    private final BlockingQueue<ReaderConnection> idleReaderConnections;
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private final ThreadLocal<Boolean> suppressQueryTimeout = new ThreadLocal<Boolean>() {
         @Override
@@ -99,13 +117,26 @@ public class DataSource {
     public DataSource() throws SQLException {
         dbFile = null;
         connection = createConnection(null);
+        readerConnections = new ReaderConnection[0];
+        idleReaderConnections = new LinkedBlockingQueue<ReaderConnection>();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
+        this(dbFile, READER_CONNECTIONS);
+    }
+
+    @VisibleForTesting
+    DataSource(File dbFile, int readerConnectionCount) throws SQLException {
         this.dbFile = dbFile;
         connection = createConnection(dbFile);
+        readerConnections = new ReaderConnection[readerConnectionCount];
+        idleReaderConnections = new LinkedBlockingQueue<ReaderConnection>();
+        for (int i = 0; i < readerConnectionCount; i++) {
+            readerConnections[i] = new ReaderConnection(createConnection(dbFile));
+            idleReaderConnections.add(readerConnections[i]);
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -119,9 +150,16 @@ public class DataSource {
                 return;
             }
             checkConnectionUnderLock();
-            execute("shutdown defrag");
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
+            // the reader connections are closed by the shutdown anyways, and are reconnected on
+            // next use
+            acquireAndCloseReaderConnectionsUnderLock();
+            try {
+                execute("shutdown defrag");
+                connection = createConnection(dbFile);
+                preparedStatementCache.invalidateAll();
+            } finally {
+                releaseReaderConnectionsUnderLock();
+            }
         }
     }
 
@@ -134,9 +172,16 @@ public class DataSource {
                 return;
             }
             checkConnectionUnderLock();
-            execute("shutdown compact");
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
+            // the reader connections are closed by the shutdown anyways, and are reconnected on
+            // next use
+            acquireAndCloseReaderConnectionsUnderLock();
+            try {
+                execute("shutdown compact");
+                connection = createConnection(dbFile);
+                preparedStatementCache.invalidateAll();
+            } finally {
+                releaseReaderConnectionsUnderLock();
+            }
         }
     }
 
@@ -164,12 +209,19 @@ public class DataSource {
             checkConnectionUnderLock();
             List<String> schemaVersionRows =
                     queryForStringList("select schema_version from schema_version");
-            connection.close();
-            if (!dbFile.delete()) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+            // all connections need to be closed in order to delete the file, the reader
+            // connections are reconnected on next use
+            acquireAndCloseReaderConnectionsUnderLock();
+            try {
+                connection.close();
+                if (!dbFile.delete()) {
+                    throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+                }
+                connection = createConnection(dbFile);
+                preparedStatementCache.invalidateAll();
+            } finally {
+                releaseReaderConnectionsUnderLock();
             }
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
             for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
                     .entrySet()) {
                 syncTable(entry.getKey(), entry.getValue());
@@ -208,52 +260,62 @@ public class DataSource {
     // warning: this method returns 0 when data source is closed
     public long queryForLong(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return 0;
-            }
-            checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor<Long>() {
-                @Override
-                public Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return 0L;
-                    }
-                    long val = resultSet.getLong(1);
-                    if (resultSet.wasNull()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return val;
+        ReaderConnection readerConnection = acquireReaderConnection();
+        try {
+            synchronized (getLock(readerConnection)) {
+                if (closed) {
+                    return 0;
                 }
-            });
+                return queryUnderLock(readerConnection, sql, args, new ResultSetExtractor<Long>() {
+                    @Override
+                    public Long extractData(ResultSet resultSet) throws SQLException {
+                        if (!resultSet.next()) {
+                            return 0L;
+                        }
+                        long val = resultSet.getLong(1);
+                        if (resultSet.wasNull()) {
+                            logger.warn("more than one row returned: {}", sql);
+                        }
+                        if (resultSet.next()) {
+                            logger.warn("more than one row returned: {}", sql);
+                        }
+                        return val;
+                    }
+                });
+            }
+        } finally {
+            releaseReaderConnection(readerConnection);
         }
     }
 
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return null;
-            }
-            checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
-                @Override
-                public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return null;
-                    }
-                    long val = resultSet.getLong(1);
-                    Long value = resultSet.wasNull() ? null : val;
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return value;
+        ReaderConnection readerConnection = acquireReaderConnection();
+        try {
+            synchronized (getLock(readerConnection)) {
+                if (closed) {
+                    return null;
                 }
-            });
+                return queryUnderLock(readerConnection, sql, args,
+                        new ResultSetExtractor</*@Nullable*/ Long>() {
+                            @Override
+                            public @Nullable Long extractData(ResultSet resultSet)
+                                    throws SQLException {
+                                if (!resultSet.next()) {
+                                    return null;
+                                }
+                                long val = resultSet.getLong(1);
+                                Long value = resultSet.wasNull() ? null : val;
+                                if (resultSet.next()) {
+                                    logger.warn("more than one row returned: {}", sql);
+                                }
+                                return value;
+                            }
+                        });
+            }
+        } finally {
+            releaseReaderConnection(readerConnection);
         }
     }
 
@@ -273,24 +335,28 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
-            if (closed) {
-                return jdbcQuery.valueIfDataSourceClosed();
-            }
-            checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
+        ReaderConnection readerConnection = acquireReaderConnection();
+        try {
+            synchronized (getLock(readerConnection)) {
+                if (closed) {
+                    return jdbcQuery.valueIfDataSourceClosed();
+                }
+                PreparedStatement preparedStatement =
+                        prepareQueryStatementUnderLock(readerConnection, jdbcQuery.getSql());
+                jdbcQuery.bind(preparedStatement);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                ResultSetCloser closer = new ResultSetCloser(resultSet);
+                try {
+                    return jdbcQuery.processResultSet(resultSet);
+                } catch (Throwable t) {
+                    throw closer.rethrow(t);
+                } finally {
+                    closer.close();
+                }
+                // don't need to close statement since they are all cached and used under lock
             }
-            // don't need to close statement since they are all cached and used under lock
+        } finally {
+            releaseReaderConnection(readerConnection);
         }
     }
 
@@ -308,28 +374,32 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
-            if (closed) {
-                return ImmutableList.of();
-            }
-            checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                List<T> mappedRows = Lists.newArrayList();
-                while (resultSet.next()) {
-                    mappedRows.add(jdbcQuery.mapRow(resultSet));
+        ReaderConnection readerConnection = acquireReaderConnection();
+        try {
+            synchronized (getLock(readerConnection)) {
+                if (closed) {
+                    return ImmutableList.of();
                 }
-                return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
+                PreparedStatement preparedStatement =
+                        prepareQueryStatementUnderLock(readerConnection, jdbcQuery.getSql());
+                jdbcQuery.bind(preparedStatement);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                ResultSetCloser closer = new ResultSetCloser(resultSet);
+                try {
+                    List<T> mappedRows = Lists.newArrayList();
+                    while (resultSet.next()) {
+                        mappedRows.add(jdbcQuery.mapRow(resultSet));
+                    }
+                    return ImmutableList.copyOf(mappedRows);
+                } catch (Throwable t) {
+                    throw closer.rethrow(t);
+                } finally {
+                    closer.close();
+                }
+                // don't need to close statement since they are all cached and used under lock
             }
-            // don't need to close statement since they are all cached and used under lock
+        } finally {
+            releaseReaderConnection(readerConnection);
         }
     }
 
@@ -441,6 +511,18 @@ public class DataSource {
         }
     }
 
+    public void dropTable(@Untainted String tableName) throws SQLException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            checkConnectionUnderLock();
+            execute("drop table if exists " + tableName);
+            tables.remove(tableName);
+            indexes.remove(tableName);
+        }
+    }
+
     long getDbFileSize() {
         return dbFile == null ? 0 : dbFile.length();
     }
@@ -516,6 +598,7 @@ public class DataSource {
             closed = true;
             connection.close();
         }
+        closeReaderConnections();
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
@@ -531,6 +614,13 @@ public class DataSource {
     @GuardedBy("lock")
     private PreparedStatement prepareStatementUnderLock(@Untainted String sql,
             int queryTimeoutSeconds) throws SQLException {
+        return prepareStatement(preparedStatementCache, sql, queryTimeoutSeconds);
+    }
+
+    // caller must hold the lock of the connection that the prepared statement cache belongs to
+    private PreparedStatement prepareStatement(
+            LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache,
+            @Untainted String sql, int queryTimeoutSeconds) throws SQLException {
         try {
             PreparedStatement preparedStatement = preparedStatementCache.get(sql);
             // setQueryTimeout() affects all statements of this connection (at least with h2)
@@ -550,10 +640,11 @@ public class DataSource {
         }
     }
 
-    @GuardedBy("lock")
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
+    // caller must hold getLock(readerConnection)
+    private <T extends /*@Nullable*/ Object> T queryUnderLock(
+            @Nullable ReaderConnection readerConnection, @Untainted String sql, Object[] args,
             ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS);
+        PreparedStatement preparedStatement = prepareQueryStatementUnderLock(readerConnection, sql);
         for (int i = 0; i < args.length; i++) {
             preparedStatement.setObject(i + 1, args[i]);
         }
@@ -562,6 +653,69 @@ public class DataSource {
         // don't need to close statement since they are all cached and used under lock
     }
 
+    // caller must hold getLock(readerConnection)
+    @SuppressWarnings("GuardedBy")
+    private PreparedStatement prepareQueryStatementUnderLock(
+            @Nullable ReaderConnection readerConnection, @Untainted String sql)
+            throws SQLException {
+        if (readerConnection == null) {
+            checkConnectionUnderLock();
+            return prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS);
+        }
+        readerConnection.checkConnectionUnderLock();
+        return prepareStatement(readerConnection.preparedStatementCache, sql,
+                QUERY_TIMEOUT_SECONDS);
+    }
+
+    // returns null if there are no reader connections, in which case the writer connection is
+    // used
+    private @Nullable ReaderConnection acquireReaderConnection() throws SQLException {
+        if (readerConnections.length == 0) {
+            return null;
+        }
+        try {
+            return idleReaderConnections.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+    }
+
+    private void releaseReaderConnection(@Nullable ReaderConnection readerConnection) {
+        if (readerConnection != null) {
+            idleReaderConnections.add(readerConnection);
+        }
+    }
+
+    private Object getLock(@Nullable ReaderConnection readerConnection) {
+        return readerConnection == null ? lock : readerConnection;
+    }
+
+    // waits for in-flight queries to complete, and then holds all of the reader connections
+    // until releaseReaderConnectionsUnderLock()
+    @GuardedBy("lock")
+    private void acquireAndCloseReaderConnectionsUnderLock() throws SQLException {
+        for (int i = 0; i < readerConnections.length; i++) {
+            Uninterruptibles.takeUninterruptibly(idleReaderConnections);
+        }
+        closeReaderConnections();
+    }
+
+    @GuardedBy("lock")
+    private void releaseReaderConnectionsUnderLock() {
+        for (ReaderConnection readerConnection : readerConnections) {
+            idleReaderConnections.add(readerConnection);
+        }
+    }
+
+    private void closeReaderConnections() throws SQLException {
+        for (ReaderConnection readerConnection : readerConnections) {
+            synchronized (readerConnection) {
+                readerConnection.connection.close();
+            }
+        }
+    }
+
     private List<H2Table> analyzeH2DiskSpaceUnderSuppressQueryTimeout() throws Exception {
         List<H2Table> tables = Lists.newArrayList();
         for (String tableName : getAllTableNames()) {
@@ -692,6 +846,36 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    private class ReaderConnection {
+
+        @GuardedBy("this")
+        private JdbcConnection connection;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
+                CacheBuilder.newBuilder().weakValues()
+                        .build(new CacheLoader</*@Untainted*/ String, PreparedStatement>() {
+                            @Override
+                            @SuppressWarnings("GuardedBy")
+                            public PreparedStatement load(@Untainted String sql)
+                                    throws SQLException {
+                                return connection.prepareStatement(sql);
+                            }
+                        });
+
+        private ReaderConnection(JdbcConnection connection) {
+            this.connection = connection;
+        }
+
+        @GuardedBy("this")
+        private void checkConnectionUnderLock() throws SQLException {
+            // closed connections are from defrag(), compact() and deleteAll()
+            if (connection.isClosed() || connection.getPowerOffCount() == -1) {
+                connection = createConnection(dbFile);
+                preparedStatementCache.invalidateAll();
+            }
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -706,6 +890,7 @@ public class DataSource {
                 synchronized (lock) {
                     connection.close();
                 }
+                closeReaderConnections();
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
             }
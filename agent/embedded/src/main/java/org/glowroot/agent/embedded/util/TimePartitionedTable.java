@@ -0,0 +1,286 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.tainting.qual.Untainted;
+
+import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.glowroot.agent.util.Checkers.castUntainted;
+
+// splits a table with a capture_time column into partition tables that each cover a fixed range of
+// capture times, so that expired data can be removed by dropping whole partition tables instead of
+// deleting row by row, and so that queries only need to visit the partitions in their time range
+//
+// partition number k covers capture times in the range (k * partitionMillis,
+// (k + 1) * partitionMillis], which lines up with the (from, to] ranges used by the rollups
+//
+// the base table itself is kept for data stored prior to partitioning, which is then expired
+// row by row until it is empty
+public class TimePartitionedTable {
+
+    private static final long MIN_PARTITION_MILLIS = HOURS.toMillis(6);
+    private static final long MAX_PARTITION_MILLIS = DAYS.toMillis(7);
+
+    private static final int TARGET_INTERVALS_PER_PARTITION = 360;
+
+    private final DataSource dataSource;
+    private final @Untainted String baseTableName;
+    private final ImmutableList<Column> columns;
+    private final ImmutableList<Index> indexes;
+    private final long partitionMillis;
+
+    private final @Untainted String selectColumns;
+
+    // partition number -> partition table name
+    private final ConcurrentNavigableMap<Long, /*@Untainted*/ String> partitions =
+            new ConcurrentSkipListMap<Long, /*@Untainted*/ String>();
+
+    // partition number -> partition table name, for expired partitions whose table has not been
+    // dropped yet (see deleteBefore)
+    private final ConcurrentNavigableMap<Long, /*@Untainted*/ String> retiredPartitions =
+            new ConcurrentSkipListMap<Long, /*@Untainted*/ String>();
+
+    // whether the base table (possibly) still has rows from prior to partitioning
+    private volatile boolean baseTableHasRows;
+
+    public TimePartitionedTable(DataSource dataSource, @Untainted String baseTableName,
+            List<Column> columns, ImmutableList<Index> indexes, long partitionMillis)
+            throws Exception {
+        this.dataSource = dataSource;
+        this.baseTableName = baseTableName;
+        this.columns = ImmutableList.copyOf(columns);
+        this.indexes = indexes;
+        this.partitionMillis = partitionMillis;
+        List<String> columnNames = Lists.newArrayList();
+        for (Column column : columns) {
+            columnNames.add(column.name());
+        }
+        selectColumns = castUntainted("select " + Joiner.on(", ").join(columnNames) + " from ");
+
+        dataSource.syncTable(baseTableName, columns);
+        dataSource.syncIndexes(baseTableName, indexes);
+        for (String tableName : dataSource.query(new PartitionTableNamesQuery(baseTableName))) {
+            Long partition = getPartition(tableName);
+            if (partition != null) {
+                syncPartition(partition);
+            }
+        }
+        baseTableHasRows = dataSource.queryForOptionalLong(
+                "select capture_time from " + baseTableName + " limit 1") != null;
+    }
+
+    // partition ranges must be a multiple of the rollup interval so that all rows that are rolled
+    // up into a given capture time come from the same partition range
+    public static long getPartitionMillis(long intervalMillis) {
+        long partitionMillis = intervalMillis * TARGET_INTERVALS_PER_PARTITION;
+        partitionMillis = Math.max(partitionMillis, MIN_PARTITION_MILLIS);
+        partitionMillis = Math.min(partitionMillis, MAX_PARTITION_MILLIS);
+        return Math.max(partitionMillis / intervalMillis, 1) * intervalMillis;
+    }
+
+    // creates the partition if it does not already exist
+    public @Untainted String getTableNameForInsert(long captureTime) throws SQLException {
+        long partition = getPartition(captureTime);
+        String tableName = partitions.get(partition);
+        if (tableName == null) {
+            tableName = createPartition(partition);
+        }
+        return tableName;
+    }
+
+    // returns a table name or derived table that can be used in the from clause of a query with
+    // capture_time in the range [from, to] (from is inclusive here to support both types of
+    // queries)
+    public @Untainted String getTableExpression(long from, long to) {
+        List</*@Untainted*/ String> tableNames = Lists.newArrayList();
+        if (baseTableHasRows) {
+            tableNames.add(baseTableName);
+        }
+        tableNames.addAll(partitions.subMap(getPartition(from), true, getPartition(to), true)
+                .values());
+        if (tableNames.isEmpty()) {
+            // base table is empty, and so is an efficient stand in for no partitions
+            return baseTableName;
+        }
+        if (tableNames.size() == 1) {
+            return tableNames.get(0);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append('(');
+        for (int i = 0; i < tableNames.size(); i++) {
+            if (i > 0) {
+                sb.append(" union all ");
+            }
+            sb.append(selectColumns);
+            sb.append(tableNames.get(i));
+        }
+        sb.append(')');
+        return castUntainted(sb.toString());
+    }
+
+    public @Untainted String getTableExpressionForAll() {
+        return getTableExpression(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // returns the end of the partition range containing the capture time
+    public long getPartitionEnd(long captureTime) {
+        return (getPartition(captureTime) + 1) * partitionMillis;
+    }
+
+    // returns the given capture time, or if there is no data after the given capture time up until
+    // the start of the next partition, then returns the start of the next partition (or
+    // Long.MAX_VALUE if there is no next partition)
+    public long skipEmptyRange(long captureTime) {
+        if (baseTableHasRows) {
+            return captureTime;
+        }
+        Long partition = partitions.ceilingKey(getPartition(captureTime));
+        if (partition == null) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(captureTime, partition * partitionMillis);
+    }
+
+    // expired partitions are first removed from the partitions that are returned by
+    // getTableExpression(), and the partition tables are only dropped by a later call once the
+    // capture time has moved past the end of the following partition, since getTableExpression() is
+    // called outside of any lock, and so a query that is already executing (or about to execute)
+    // may still reference a partition table that has just expired
+    public void deleteBefore(long captureTime) throws Exception {
+        for (Map.Entry<Long, /*@Untainted*/ String> entry : retiredPartitions.entrySet()) {
+            long partition = entry.getKey();
+            if ((partition + 2) * partitionMillis > captureTime) {
+                // remaining retired partitions are not ready to be dropped (at least not yet)
+                break;
+            }
+            retiredPartitions.remove(partition);
+            if (!partitions.containsKey(partition)) {
+                // (the partition is re-created if rows are inserted into it after it expired)
+                dataSource.dropTable(entry.getValue());
+            }
+        }
+        for (Map.Entry<Long, /*@Untainted*/ String> entry : partitions.entrySet()) {
+            long partition = entry.getKey();
+            if ((partition + 1) * partitionMillis > captureTime) {
+                // remaining partitions are not fully expired (at least not yet)
+                break;
+            }
+            partitions.remove(partition);
+            retiredPartitions.put(partition, entry.getValue());
+        }
+        if (baseTableHasRows) {
+            dataSource.deleteBefore(baseTableName, captureTime);
+            baseTableHasRows = dataSource.queryForOptionalLong(
+                    "select capture_time from " + baseTableName + " limit 1") != null;
+        }
+    }
+
+    private long getPartition(long captureTime) {
+        if (captureTime <= 0) {
+            return 0;
+        }
+        return (captureTime - 1) / partitionMillis;
+    }
+
+    private synchronized @Untainted String createPartition(long partition) throws SQLException {
+        String tableName = partitions.get(partition);
+        if (tableName != null) {
+            return tableName;
+        }
+        return syncPartition(partition);
+    }
+
+    private @Untainted String syncPartition(long partition) throws SQLException {
+        String tableName = getTableName(partition);
+        dataSource.syncTable(tableName, columns);
+        List<Index> partitionIndexes = Lists.newArrayList();
+        for (Index index : indexes) {
+            // index names must be unique across tables
+            String indexName = index.name();
+            if (indexName.startsWith(baseTableName)) {
+                indexName = indexName.substring(baseTableName.length());
+            }
+            partitionIndexes.add(ImmutableIndex.of(castUntainted(tableName + indexName),
+                    index.columns()));
+        }
+        dataSource.syncIndexes(tableName, ImmutableList.copyOf(partitionIndexes));
+        partitions.put(partition, tableName);
+        return tableName;
+    }
+
+    private @Untainted String getTableName(long partition) {
+        return castUntainted(baseTableName + "_p" + partition);
+    }
+
+    private @Nullable Long getPartition(String tableName) {
+        String prefix = baseTableName + "_p";
+        if (!tableName.startsWith(prefix)) {
+            return null;
+        }
+        try {
+            return Long.parseLong(tableName.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class PartitionTableNamesQuery implements JdbcRowQuery<String> {
+
+        private final String baseTableName;
+
+        private PartitionTableNamesQuery(String baseTableName) {
+            this.baseTableName = baseTableName;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select table_name from information_schema.tables where table_schema = 'PUBLIC'"
+                    + " and table_name like ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            // h2 stores unquoted identifiers as upper case, and underscore is escaped since it is
+            // the single character wildcard in like patterns
+            preparedStatement.setString(1,
+                    (baseTableName + "_p").toUpperCase(Locale.ENGLISH).replace("_", "\\_") + "%");
+        }
+
+        @Override
+        public String mapRow(ResultSet resultSet) throws SQLException {
+            return checkNotNull(resultSet.getString(1)).toLowerCase(Locale.ENGLISH);
+        }
+    }
+}
@@ -72,17 +72,7 @@ public class AggregateDaoTest {
         }
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
-        ConfigRepositoryImpl configRepository = mock(ConfigRepositoryImpl.class);
-        when(configRepository.getAdvancedConfig(AGENT_ID))
-                .thenReturn(AdvancedConfig.getDefaultInstance());
-        ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
-                ImmutableRollupConfig.of(1000, 0), ImmutableRollupConfig.of(15000, 3600000),
-                ImmutableRollupConfig.of(900000000, 8 * 3600000));
-        when(configRepository.getRollupConfigs()).thenReturn(rollupConfigs);
-        aggregateDao = new AggregateDao(
-                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
-                        cappedDatabase, cappedDatabase),
-                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+        aggregateDao = newAggregateDao();
     }
 
     @After
@@ -132,6 +122,141 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldReadTransactionsWithPartialSummaryBuckets() throws Exception {
+        // given
+        populateAggregates();
+
+        // when
+        OverallQuery query = ImmutableOverallQuery.builder()
+                .transactionType("a type")
+                .from(11000)
+                .to(30000)
+                .rollupLevel(0)
+                .build();
+        TransactionSummaryCollector collector = new TransactionSummaryCollector();
+        aggregateDao.mergeTransactionSummariesInto(AGENT_ID, query, SummarySortOrder.TOTAL_TIME,
+                10, collector);
+        Result<TransactionSummary> queryResult =
+                collector.getResult(SummarySortOrder.TOTAL_TIME, 10);
+
+        // then
+        assertThat(collector.getLastCaptureTime()).isEqualTo(20000);
+        assertThat(queryResult.records()).hasSize(3);
+        assertThat(queryResult.records().get(0).transactionName()).isEqualTo("seven");
+        assertThat(queryResult.records().get(0).totalDurationNanos()).isEqualTo(1400000);
+        assertThat(queryResult.records().get(0).transactionCount()).isEqualTo(7);
+        assertThat(queryResult.records().get(1).transactionName()).isEqualTo("two");
+        assertThat(queryResult.records().get(1).totalDurationNanos()).isEqualTo(300000);
+        assertThat(queryResult.records().get(1).transactionCount()).isEqualTo(2);
+        assertThat(queryResult.records().get(2).transactionName()).isEqualTo("one");
+        assertThat(queryResult.records().get(2).totalDurationNanos()).isEqualTo(100000);
+        assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldBackfillTransactionSummaries() throws Exception {
+        // given
+        populateAggregates();
+        dataSource.execute("drop table aggregate_tn_summary_rollup_0");
+
+        // when
+        newAggregateDao();
+
+        // then
+        assertThat(dataSource.queryForLong("select sum(transaction_count) from"
+                + " aggregate_tn_summary_rollup_0 where transaction_name = ?", "seven"))
+                        .isEqualTo(14);
+        assertThat(dataSource.queryForLong("select max(max_capture_time) from"
+                + " aggregate_tn_summary_rollup_0")).isEqualTo(20000);
+    }
+
+    @Test
+    public void shouldRollupInChunksAndResume() throws Exception {
+        // given
+        populateAggregates();
+
+        // when
+        boolean more = aggregateDao.rollup(1);
+        AggregateDao reopenedAggregateDao = newAggregateDao();
+        boolean moreAfterReopen = reopenedAggregateDao.rollup(1);
+
+        // then
+        assertThat(more).isFalse();
+        assertThat(moreAfterReopen).isFalse();
+        assertThat(dataSource.queryForLong("select last_rollup_1_time from"
+                + " aggregate_last_rollup_times")).isEqualTo(15000);
+        OverallQuery query = ImmutableOverallQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        TransactionSummaryCollector collector = new TransactionSummaryCollector();
+        reopenedAggregateDao.mergeTransactionSummariesInto(AGENT_ID, query,
+                SummarySortOrder.TOTAL_TIME, 10, collector);
+        Result<TransactionSummary> queryResult =
+                collector.getResult(SummarySortOrder.TOTAL_TIME, 10);
+        // only the first capture time is rolled up since level 0 is not yet complete past 20000
+        assertThat(collector.getLastCaptureTime()).isEqualTo(15000);
+        assertThat(queryResult.records()).hasSize(3);
+        assertThat(queryResult.records().get(0).transactionName()).isEqualTo("seven");
+        assertThat(queryResult.records().get(0).transactionCount()).isEqualTo(7);
+    }
+
+    @Test
+    public void shouldRollupAcrossChunksAndResumeAfterPartialRollup() throws Exception {
+        // given
+        for (int i = 1; i <= 150; i++) {
+            storeAggregate(i * 15000);
+        }
+
+        // when
+        boolean more = aggregateDao.rollup(1);
+        // simulate JVM termination after the last few rollup times of the first chunk were rolled
+        // up (including into the pre-computed transaction summaries), but before progress was
+        // persisted
+        dataSource.update("update aggregate_last_rollup_times set last_rollup_1_time = ?",
+                1455000);
+        AggregateDao reopenedAggregateDao = newAggregateDao();
+        int chunksAfterReopen = 0;
+        boolean moreAfterReopen;
+        do {
+            moreAfterReopen = reopenedAggregateDao.rollup(1);
+            chunksAfterReopen++;
+        } while (moreAfterReopen);
+
+        // then
+        assertThat(more).isTrue();
+        assertThat(chunksAfterReopen).isEqualTo(1);
+        assertThat(dataSource.queryForLong("select last_rollup_1_time from"
+                + " aggregate_last_rollup_times")).isEqualTo(2250000);
+        assertThat(dataSource.queryForLong("select sum(transaction_count) from"
+                + " aggregate_tn_summary_rollup_1")).isEqualTo(150);
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(2250000)
+                .rollupLevel(1)
+                .build();
+        assertThat(reopenedAggregateDao.readOverviewAggregates(AGENT_ID, query)).hasSize(150);
+        OverallQuery query2 = ImmutableOverallQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(2250000)
+                .rollupLevel(1)
+                .build();
+        TransactionSummaryCollector collector = new TransactionSummaryCollector();
+        reopenedAggregateDao.mergeTransactionSummariesInto(AGENT_ID, query2,
+                SummarySortOrder.TOTAL_TIME, 10, collector);
+        Result<TransactionSummary> queryResult =
+                collector.getResult(SummarySortOrder.TOTAL_TIME, 10);
+        assertThat(collector.getLastCaptureTime()).isEqualTo(2250000);
+        assertThat(queryResult.records()).hasSize(1);
+        assertThat(queryResult.records().get(0).transactionCount()).isEqualTo(150);
+        assertThat(queryResult.records().get(0).totalDurationNanos()).isEqualTo(15000000);
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
@@ -211,6 +336,45 @@ public class AggregateDaoTest {
         });
     }
 
+    private void storeAggregate(final long captureTime) throws Exception {
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return captureTime;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+                aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
+                        Aggregate.newBuilder()
+                                .setTotalDurationNanos(100000)
+                                .setErrorCount(0)
+                                .setTransactionCount(1)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .build());
+                aggregateVisitor.visitTransactionAggregate("a type", "one", new ArrayList<String>(),
+                        Aggregate.newBuilder()
+                                .setTotalDurationNanos(100000)
+                                .setErrorCount(0)
+                                .setTransactionCount(1)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .build());
+            }
+        });
+    }
+
+    private AggregateDao newAggregateDao() throws Exception {
+        ConfigRepositoryImpl configRepository = mock(ConfigRepositoryImpl.class);
+        when(configRepository.getAdvancedConfig(AGENT_ID))
+                .thenReturn(AdvancedConfig.getDefaultInstance());
+        ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
+                ImmutableRollupConfig.of(1000, 0), ImmutableRollupConfig.of(15000, 3600000),
+                ImmutableRollupConfig.of(900000000, 8 * 3600000));
+        when(configRepository.getRollupConfigs()).thenReturn(rollupConfigs);
+        return new AggregateDao(dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase,
+                cappedDatabase, cappedDatabase, cappedDatabase), configRepository,
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+    }
+
     // used by TransactionCommonServiceTest
     public AggregateRepository getAggregateRepository() {
         return aggregateDao;
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import com.google.common.hash.Hashing;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.DataSource;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+// this is not an integration test (*IT.java) since then it would run against shaded agent and fail
+// due to shading issues
+public class FullQueryTextDaoTest {
+
+    private DataSource dataSource;
+    private FullQueryTextDao fullQueryTextDao;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+        if (dataSource.tableExists("full_query_text")) {
+            dataSource.execute("drop table full_query_text");
+        }
+        fullQueryTextDao = new FullQueryTextDao(dataSource);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldStoreEqualFullTextsOnce() throws Exception {
+        // given
+        String fullText = new String("select * from abc where xyz = ?");
+        String equalFullText = new String("select * from abc where xyz = ?");
+
+        // when
+        String sha1 = fullQueryTextDao.updateLastCaptureTime(fullText, 1000);
+        String equalSha1 = fullQueryTextDao.updateLastCaptureTime(equalFullText, 2000);
+
+        // then
+        assertThat(sha1).isEqualTo(Hashing.sha1().hashString(fullText, UTF_8).toString());
+        assertThat(equalSha1).isEqualTo(sha1);
+        assertThat(fullQueryTextDao.getFullText(sha1)).isEqualTo(fullText);
+        assertThat(dataSource.queryForLong("select count(*) from full_query_text")).isEqualTo(1);
+    }
+}
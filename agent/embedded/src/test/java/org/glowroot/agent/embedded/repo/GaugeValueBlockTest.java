@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeValueBlockTest {
+
+    @Test
+    public void shouldRoundTripRegularValues() {
+        // given
+        GaugeValueBlock.Encoder encoder = new GaugeValueBlock.Encoder();
+        for (int i = 0; i < 4320; i++) {
+            encoder.add(1500000000000L + i * 5000, 1024 * 1024 * (100 + i % 7), 1);
+        }
+
+        // when
+        byte[] bytes = encoder.toByteArray();
+        GaugeValueBlock block = GaugeValueBlock.decode(bytes);
+
+        // then
+        assertThat(block.size()).isEqualTo(4320);
+        for (int i = 0; i < 4320; i++) {
+            assertThat(block.getCaptureTime(i)).isEqualTo(1500000000000L + i * 5000);
+            assertThat(block.getValue(i)).isEqualTo(1024 * 1024 * (100 + i % 7));
+            assertThat(block.getWeight(i)).isEqualTo(1);
+        }
+        // compared to 24 bytes per value uncompressed
+        assertThat(bytes.length).isLessThan(4320 * 4);
+    }
+
+    @Test
+    public void shouldRoundTripIrregularValues() {
+        // given
+        Random random = new Random(0);
+        long[] captureTimes = new long[1000];
+        double[] values = new double[1000];
+        long[] weights = new long[1000];
+        long captureTime = 1500000000000L;
+        for (int i = 0; i < 1000; i++) {
+            captureTime += random.nextInt(10) == 0 ? random.nextInt(1000000) : 5000;
+            captureTimes[i] = captureTime;
+            switch (i % 5) {
+                case 0:
+                    values[i] = random.nextDouble();
+                    break;
+                case 1:
+                    values[i] = -random.nextLong();
+                    break;
+                case 2:
+                    values[i] = Double.NaN;
+                    break;
+                case 3:
+                    values[i] = 0;
+                    break;
+                default:
+                    values[i] = Double.MAX_VALUE;
+            }
+            weights[i] = random.nextInt(3) == 0 ? random.nextLong() : 5000;
+        }
+        GaugeValueBlock.Encoder encoder = new GaugeValueBlock.Encoder();
+        for (int i = 0; i < 1000; i++) {
+            encoder.add(captureTimes[i], values[i], weights[i]);
+        }
+
+        // when
+        GaugeValueBlock block = GaugeValueBlock.decode(encoder.toByteArray());
+
+        // then
+        assertThat(block.size()).isEqualTo(1000);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(block.getCaptureTime(i)).isEqualTo(captureTimes[i]);
+            assertThat(Double.doubleToRawLongBits(block.getValue(i)))
+                    .isEqualTo(Double.doubleToRawLongBits(values[i]));
+            assertThat(block.getWeight(i)).isEqualTo(weights[i]);
+        }
+    }
+
+    @Test
+    public void shouldRoundTripEmpty() {
+        // when
+        GaugeValueBlock block =
+                GaugeValueBlock.decode(new GaugeValueBlock.Encoder().toByteArray());
+
+        // then
+        assertThat(block.size()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class GaugeValueDaoTest {
+
+    private static final String GAUGE_NAME = "java.lang:type=Memory:HeapMemoryUsage.used";
+
+    private DataSource dataSource;
+    private GaugeValueDao gaugeValueDao;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+        gaugeValueDao = new GaugeValueDao(dataSource, new GaugeIdDao(dataSource),
+                new GaugeNameDao(dataSource), mock(Clock.class));
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldReadCompactedGaugeValues() throws Exception {
+        // given
+        long to = HOURS.toMillis(13);
+        long intervalMillis = MINUTES.toMillis(1);
+        for (long captureTime = intervalMillis; captureTime <= to; captureTime += intervalMillis) {
+            gaugeValueDao.store(ImmutableList.of(GaugeValue.newBuilder()
+                    .setGaugeName(GAUGE_NAME)
+                    .setCaptureTime(captureTime)
+                    .setValue(captureTime % 7)
+                    .setWeight(1)
+                    .build()));
+        }
+        List<GaugeValue> uncompactedGaugeValues =
+                gaugeValueDao.readGaugeValues("", GAUGE_NAME, 0, to, 0);
+
+        // when
+        while (gaugeValueDao.rollup(1)) {
+        }
+        while (gaugeValueDao.compact()) {
+        }
+
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from gauge_value_block"))
+                .isEqualTo(2);
+        // rows of the last compacted partition are retained until the next partition is compacted,
+        // and the table of the expired partition is only dropped once the next partition expires
+        // (see TimePartitionedTable.deleteBefore())
+        assertThat(dataSource.tableExists("gauge_value_rollup_0_p0")).isTrue();
+        assertThat(dataSource.tableExists("gauge_value_rollup_0_p1")).isTrue();
+        assertThat(gaugeValueDao.readGaugeValues("", GAUGE_NAME, 0, to, 0))
+                .isEqualTo(uncompactedGaugeValues);
+        // partial block range, and range spanning blocks and rows
+        long from = HOURS.toMillis(5);
+        assertThat(gaugeValueDao.readGaugeValues("", GAUGE_NAME, from, to, 0)).isEqualTo(
+                uncompactedGaugeValues.subList(5 * 60 - 1, uncompactedGaugeValues.size()));
+    }
+}
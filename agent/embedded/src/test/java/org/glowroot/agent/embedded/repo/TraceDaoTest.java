@@ -16,8 +16,14 @@
 package org.glowroot.agent.embedded.repo;
 
 import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -65,6 +71,7 @@ public class TraceDaoTest {
 
     @AfterClass
     public static void tearDown() throws Exception {
+        traceDao.close();
         dataSource.close();
         cappedDatabase.close();
         cappedFile.delete();
@@ -286,6 +293,31 @@ public class TraceDaoTest {
         assertThat(queryResult.records()).isEmpty();
     }
 
+    @Test
+    public void shouldReadTracesRightAfterConcurrentStores() throws Exception {
+        // given
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Trace.Header>> futures = Lists.newArrayList();
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            futures.add(executor.submit(new Callable<Trace.Header>() {
+                @Override
+                public Trace.Header call() throws Exception {
+                    TraceReader traceReader = TraceTestData.createTraceReader();
+                    traceDao.store(traceReader);
+                    return traceDao.readHeaderPlus(AGENT_ID, traceReader.traceId()).header();
+                }
+            }));
+        }
+
+        // then
+        for (Future<Trace.Header> future : futures) {
+            assertThat(future.get().getHeadline()).isEqualTo("test headline");
+        }
+        executor.shutdown();
+    }
+
     @Test
     public void shouldDeletedTrace() throws Exception {
         // given
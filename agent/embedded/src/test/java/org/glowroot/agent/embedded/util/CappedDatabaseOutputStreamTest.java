@@ -59,7 +59,7 @@ public class CappedDatabaseOutputStreamTest {
         cappedOut.startBlock();
         out.write(text);
         out.flush();
-        long cappedId = cappedOut.endBlock();
+        long cappedId = cappedOut.endBlock(0);
         cappedOut.sync();
 
         // then
@@ -75,7 +75,7 @@ public class CappedDatabaseOutputStreamTest {
         cappedOut.startBlock();
         cappedOut.write(text.getBytes());
         cappedOut.flush();
-        long cappedId = cappedOut.endBlock();
+        long cappedId = cappedOut.endBlock(0);
         cappedOut.sync();
 
         // then
@@ -97,7 +97,7 @@ public class CappedDatabaseOutputStreamTest {
         cappedOut.write('8');
         cappedOut.write('9');
         cappedOut.flush();
-        long cappedId = cappedOut.endBlock();
+        long cappedId = cappedOut.endBlock(0);
         cappedOut.sync();
 
         // then
@@ -116,14 +116,14 @@ public class CappedDatabaseOutputStreamTest {
         cappedOut.startBlock();
         out.write(text);
         out.flush();
-        cappedOut.endBlock();
+        cappedOut.endBlock(0);
 
         // when
         out = new OutputStreamWriter(cappedOut);
         cappedOut.startBlock();
         out.write(text);
         out.flush();
-        long cappedId = cappedOut.endBlock();
+        long cappedId = cappedOut.endBlock(0);
 
         // then
         assertThat(cappedId).isEqualTo(6000 + BLOCK_HEADER_SIZE);
@@ -157,18 +157,18 @@ public class CappedDatabaseOutputStreamTest {
         cappedOut.startBlock();
         out.write(text);
         out.flush();
-        cappedOut.endBlock();
+        cappedOut.endBlock(0);
         cappedOut.startBlock();
         out.write(text);
         out.flush();
-        cappedOut.endBlock();
+        cappedOut.endBlock(0);
 
         // when
         out = new OutputStreamWriter(cappedOut);
         cappedOut.startBlock();
         out.write(text);
         out.flush();
-        long cappedId = cappedOut.endBlock();
+        long cappedId = cappedOut.endBlock(0);
 
         // then
         assertThat(cappedId).isEqualTo(12000 + 2 * BLOCK_HEADER_SIZE);
@@ -200,11 +200,11 @@ public class CappedDatabaseOutputStreamTest {
         cappedOut.startBlock();
         out.write(text);
         out.flush();
-        cappedOut.endBlock();
+        cappedOut.endBlock(0);
         cappedOut.startBlock();
         out.write(text);
         out.flush();
-        long cappedId = cappedOut.endBlock();
+        long cappedId = cappedOut.endBlock(0);
 
         // when
         // have to close in before resizing
@@ -244,12 +244,12 @@ public class CappedDatabaseOutputStreamTest {
             cappedOut.startBlock();
             out.write(text);
             out.flush();
-            cappedOut.endBlock();
+            cappedOut.endBlock(0);
         }
         cappedOut.startBlock();
         out.write(text);
         out.flush();
-        long cappedId = cappedOut.endBlock();
+        long cappedId = cappedOut.endBlock(0);
 
         // when
         // have to close in before resizing
@@ -285,7 +285,7 @@ public class CappedDatabaseOutputStreamTest {
             cappedOut.write(0);
         }
         cappedOut.flush();
-        cappedOut.endBlock();
+        cappedOut.endBlock(0);
 
         // when
         Writer out = new OutputStreamWriter(cappedOut);
@@ -293,7 +293,7 @@ public class CappedDatabaseOutputStreamTest {
         cappedOut.startBlock();
         out.write(text);
         out.flush();
-        long cappedId = cappedOut.endBlock();
+        long cappedId = cappedOut.endBlock(0);
 
         // then
         assertThat(cappedId).isEqualTo(10240);
@@ -18,9 +18,17 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteSource;
 import org.junit.After;
 import org.junit.Before;
@@ -28,6 +36,10 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import org.glowroot.agent.embedded.util.CappedDatabase.Batch;
+import org.glowroot.agent.embedded.util.CappedDatabase.BatchWriter;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
 import static com.google.common.base.Charsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -62,6 +74,29 @@ public class CappedDatabaseTest {
         assertThat(text2).isEqualTo(text);
     }
 
+    @Test
+    public void shouldWriteBatch() throws Exception {
+        // given
+        final List<Long> cappedIds = Lists.newArrayList();
+        final Trace.Header header1 = Trace.Header.newBuilder().setHeadline("one").build();
+        final Trace.Header header2 = Trace.Header.newBuilder().setHeadline("two").build();
+
+        // when
+        cappedDatabase.writeBatch(new BatchWriter() {
+            @Override
+            public void write(Batch batch) throws IOException {
+                cappedIds.add(batch.writeMessage(header1, "test"));
+                cappedIds.add(batch.writeMessages(ImmutableList.of(header1, header2), "test"));
+            }
+        });
+
+        // then
+        assertThat(cappedDatabase.readMessage(cappedIds.get(0), Trace.Header.parser()))
+                .isEqualTo(header1);
+        assertThat(cappedDatabase.readMessages(cappedIds.get(1), Trace.Header.parser()))
+                .containsExactly(header1, header2);
+    }
+
     @Test
     public void shouldReadOneByteAtATime() throws Exception {
         // given
@@ -152,4 +187,115 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldWriteWithDeflate() throws Exception {
+        // given
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 1, CappedDatabaseCodec.DEFLATE,
+                Ticker.systemTicker());
+        String text = "0123456789";
+
+        // when
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // then
+        String text2 = cappedDatabase.read(cappedId).read();
+        assertThat(text2).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldWriteWithLz4() throws Exception {
+        // given
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 1, CappedDatabaseCodec.LZ4,
+                Ticker.systemTicker());
+        String text = "0123456789";
+
+        // when
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // then
+        String text2 = cappedDatabase.read(cappedId).read();
+        assertThat(text2).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldReadBlocksWrittenWithPriorCodec() throws Exception {
+        // given
+        String text = "0123456789";
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 1, CappedDatabaseCodec.DEFLATE,
+                Ticker.systemTicker());
+
+        // when
+        long cappedId2 = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // then
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+        assertThat(cappedDatabase.read(cappedId2).read()).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldReadConcurrentlyWithWritesThatWrap() throws Exception {
+        // given
+        final int writeCount = 2000;
+        final AtomicReferenceArray<String> texts = new AtomicReferenceArray<String>(writeCount);
+        final long[] cappedIds = new long[writeCount];
+        final AtomicReferenceArray<Long> writtenCappedIds =
+                new AtomicReferenceArray<Long>(writeCount);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // when
+        List<Future<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            final int seed = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random(seed);
+                    for (int j = 0; j < 20000; j++) {
+                        int index = random.nextInt(writeCount);
+                        Long cappedId = writtenCappedIds.get(index);
+                        if (cappedId == null) {
+                            continue;
+                        }
+                        String text;
+                        try {
+                            text = cappedDatabase.read(cappedId).read();
+                        } catch (IOException e) {
+                            // block was overwritten during the read
+                            assertThat(e.getClass().getSimpleName())
+                                    .isEqualTo("CappedBlockRolledOverMidReadException");
+                            assertThat(cappedDatabase.isExpired(cappedId)).isTrue();
+                            continue;
+                        }
+                        assertThat(text).isEqualTo(texts.get(index));
+                    }
+                    return null;
+                }
+            }));
+        }
+        Random random = new Random();
+        for (int i = 0; i < writeCount; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < 100 + random.nextInt(200); j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            String text = sb.toString();
+            texts.set(i, text);
+            cappedIds[i] = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+            writtenCappedIds.set(i, cappedIds[i]);
+        }
+
+        // then
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertThat(cappedDatabase.isExpired(cappedIds[0])).isTrue();
+        assertThat(cappedDatabase.read(cappedIds[writeCount - 1]).read())
+                .isEqualTo(texts.get(writeCount - 1));
+    }
 }
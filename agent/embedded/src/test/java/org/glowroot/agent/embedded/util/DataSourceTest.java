@@ -15,11 +15,25 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.io.File;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
+
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -94,4 +108,128 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void shouldNotBlockQueryBehindUpdate() throws Exception {
+        // given
+        File dir = Files.createTempDir();
+        final DataSource dataSource = new DataSource(new File(dir, "test.h2.db"), 2);
+        dataSource.execute("create table test (x bigint)");
+        final CountDownLatch updateStarted = new CountDownLatch(1);
+        final CountDownLatch finishUpdate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Integer> future = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return dataSource.update(new JdbcUpdate() {
+                    @Override
+                    public String getSql() {
+                        return "insert into test (x) values (?)";
+                    }
+                    @Override
+                    public void bind(PreparedStatement preparedStatement) throws SQLException {
+                        preparedStatement.setLong(1, 1);
+                        updateStarted.countDown();
+                        // hold the writer connection
+                        Uninterruptibles.awaitUninterruptibly(finishUpdate);
+                    }
+                });
+            }
+        });
+        updateStarted.await();
+
+        // when
+        long count = dataSource.queryForLong("select count(*) from test");
+
+        // then
+        assertThat(count).isEqualTo(0);
+        finishUpdate.countDown();
+        assertThat(future.get()).isEqualTo(1);
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+
+        // cleanup
+        executor.shutdown();
+        dataSource.close();
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void shouldQueryWhileUpdatesAreExecuting() throws Exception {
+        // given
+        File dir = Files.createTempDir();
+        final DataSource dataSource = new DataSource(new File(dir, "test.h2.db"), 2);
+        dataSource.execute("create table test (x bigint)");
+        final AtomicBoolean stopUpdates = new AtomicBoolean();
+        final AtomicInteger updateCount = new AtomicInteger();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> future = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                // real statements on the writer connection (as opposed to blocking inside bind)
+                while (!stopUpdates.get()) {
+                    dataSource.update("insert into test (x) values (?)", 1);
+                    updateCount.incrementAndGet();
+                }
+                return null;
+            }
+        });
+        while (updateCount.get() == 0) {
+            Thread.sleep(1);
+        }
+
+        // when
+        int updateCountBefore = updateCount.get();
+        long lastCount = 0;
+        for (int i = 0; i < 100; i++) {
+            long count = dataSource.queryForLong("select count(*) from test");
+            // then
+            assertThat(count).isGreaterThanOrEqualTo(lastCount);
+            lastCount = count;
+        }
+        int updateCountAfter = updateCount.get();
+
+        // then
+        // updates kept executing while the queries were executing
+        assertThat(updateCountAfter).isGreaterThan(updateCountBefore);
+        stopUpdates.set(true);
+        future.get();
+        assertThat(dataSource.queryForLong("select count(*) from test"))
+                .isEqualTo(updateCount.get());
+
+        // cleanup
+        executor.shutdown();
+        dataSource.close();
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void shouldQueryAfterDefrag() throws Exception {
+        // given
+        File dir = Files.createTempDir();
+        DataSource dataSource = new DataSource(new File(dir, "test.h2.db"), 2);
+        dataSource.execute("create table test (x bigint)");
+        dataSource.update("insert into test (x) values (?)", 1);
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+
+        // when
+        dataSource.defrag();
+
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+
+        // cleanup
+        dataSource.close();
+        deleteRecursively(dir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
 }
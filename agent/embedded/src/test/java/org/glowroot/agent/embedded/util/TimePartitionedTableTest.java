@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimePartitionedTableTest {
+
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("value", ColumnType.BIGINT));
+
+    private static final ImmutableList<Index> indexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("test_idx", ImmutableList.of("capture_time", "value")));
+
+    private DataSource dataSource;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldQueryAcrossPartitions() throws Exception {
+        // given
+        TimePartitionedTable table = new TimePartitionedTable(dataSource, "test", columns,
+                indexes, 100);
+        insert(table, 50);
+        insert(table, 100);
+        insert(table, 150);
+        insert(table, 250);
+
+        // when
+        long count = count(table, 1, 200);
+        long countAll = count(table, 1, 300);
+
+        // then
+        assertThat(count).isEqualTo(3);
+        assertThat(countAll).isEqualTo(4);
+        assertThat(dataSource.tableExists("test_p0")).isTrue();
+        assertThat(dataSource.tableExists("test_p1")).isTrue();
+        assertThat(dataSource.tableExists("test_p2")).isTrue();
+    }
+
+    @Test
+    public void shouldDropOnlyFullyExpiredPartitions() throws Exception {
+        // given
+        TimePartitionedTable table = new TimePartitionedTable(dataSource, "test", columns,
+                indexes, 100);
+        insert(table, 50);
+        insert(table, 150);
+        insert(table, 250);
+
+        // when
+        table.deleteBefore(250);
+        table.deleteBefore(300);
+
+        // then
+        assertThat(dataSource.tableExists("test_p0")).isFalse();
+        assertThat(dataSource.tableExists("test_p1")).isFalse();
+        assertThat(dataSource.tableExists("test_p2")).isTrue();
+        assertThat(count(table, 1, 300)).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldDelayDropOfExpiredPartitions() throws Exception {
+        // given
+        TimePartitionedTable table = new TimePartitionedTable(dataSource, "test", columns,
+                indexes, 100);
+        insert(table, 50);
+        insert(table, 150);
+        // simulates a query that resolved its table expression before the partition expired
+        String tableExpression = table.getTableExpression(1, 200);
+
+        // when
+        table.deleteBefore(250);
+
+        // then
+        assertThat(count(table, 1, 300)).isEqualTo(0);
+        assertThat(dataSource.queryForLong("select count(*) from " + tableExpression
+                + " where capture_time >= ? and capture_time <= ?", 1, 200)).isEqualTo(2);
+        assertThat(dataSource.tableExists("test_p0")).isTrue();
+        assertThat(dataSource.tableExists("test_p1")).isTrue();
+    }
+
+    @Test
+    public void shouldFindExistingPartitions() throws Exception {
+        // given
+        TimePartitionedTable table = new TimePartitionedTable(dataSource, "test", columns,
+                indexes, 100);
+        insert(table, 50);
+        insert(table, 150);
+
+        // when
+        TimePartitionedTable reopenedTable = new TimePartitionedTable(dataSource, "test",
+                columns, indexes, 100);
+
+        // then
+        assertThat(count(reopenedTable, 1, 200)).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldIncludeRowsFromPriorToPartitioning() throws Exception {
+        // given
+        dataSource.syncTable("test", columns);
+        dataSource.update("insert into test (capture_time, value) values (?, ?)", 50, 1);
+        TimePartitionedTable table = new TimePartitionedTable(dataSource, "test", columns,
+                indexes, 100);
+        insert(table, 150);
+
+        // when
+        long count = count(table, 1, 200);
+        table.deleteBefore(100);
+
+        // then
+        assertThat(count).isEqualTo(2);
+        assertThat(count(table, 1, 200)).isEqualTo(1);
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldSkipEmptyRanges() throws Exception {
+        // given
+        TimePartitionedTable table = new TimePartitionedTable(dataSource, "test", columns,
+                indexes, 100);
+        insert(table, 550);
+
+        // when
+        long captureTime = table.skipEmptyRange(0);
+        long nextCaptureTime = table.skipEmptyRange(650);
+
+        // then
+        assertThat(captureTime).isEqualTo(500);
+        assertThat(nextCaptureTime).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void shouldAlignPartitionsToRollupInterval() {
+        assertThat(TimePartitionedTable.getPartitionMillis(60000) % 60000).isEqualTo(0);
+        assertThat(TimePartitionedTable.getPartitionMillis(300000) % 300000).isEqualTo(0);
+        assertThat(TimePartitionedTable.getPartitionMillis(1800000) % 1800000).isEqualTo(0);
+        assertThat(TimePartitionedTable.getPartitionMillis(14400000) % 14400000).isEqualTo(0);
+    }
+
+    private void insert(TimePartitionedTable table, long captureTime) throws Exception {
+        dataSource.update("insert into " + table.getTableNameForInsert(captureTime)
+                + " (capture_time, value) values (?, ?)", captureTime, 1);
+    }
+
+    private long count(TimePartitionedTable table, long from, long to) throws Exception {
+        return dataSource.queryForLong("select count(*) from " + table.getTableExpression(from, to)
+                + " where capture_time >= ? and capture_time <= ?", from, to);
+    }
+}
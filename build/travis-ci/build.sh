@@ -340,7 +340,7 @@ case "$1" in
                  # the sonar.login system property is set in the pom.xml using the
                  # environment variable SONAR_LOGIN (instead of setting the system
                  # property on the command line which which would make it visible to ps)
-                 mvn clean verify sonar:sonar -pl !build/license-bundle,!build/checker-jdk6,!build/error-prone-jdk6,!build/multi-lib-tests,!agent/shaded/embedded,!agent/shaded/core,!agent/shaded/it-harness,!agent/shaded/central-https-linux,!agent/shaded/central-https-windows,!agent/shaded/central-https-osx,!agent/benchmarks,!agent/ui-sandbox,!agent/dist-maven-plugin,!agent/dist \
+                 mvn clean verify sonar:sonar -pl !build/license-bundle,!build/checker-jdk6,!build/error-prone-jdk6,!build/multi-lib-tests,!agent/shaded/embedded,!agent/shaded/core,!agent/shaded/it-harness,!agent/shaded/central-https-linux,!agent/shaded/central-https-windows,!agent/shaded/central-https-osx,!agent/benchmarks,!agent/embedded-benchmarks,!agent/ui-sandbox,!agent/dist-maven-plugin,!agent/dist \
                                    -Dsonar.host.url=https://sonarcloud.io \
                                    -Dsonar.organization=glowroot \
                                    -Dsonar.jacoco.reportPath=$PWD/jacoco-combined.exec \
@@ -377,7 +377,7 @@ case "$1" in
                                  -B
                # this is just to keep travis ci build from timing out due to "No output has been received in the last 10 minutes, ..."
                while true; do sleep 60; echo ...; done &
-               mvn clean compile -pl !build/checker-jdk6,!wire-api,!agent/benchmarks,!agent/ui-sandbox,!agent/dist \
+               mvn clean compile -pl !build/checker-jdk6,!wire-api,!agent/benchmarks,!agent/embedded-benchmarks,!agent/ui-sandbox,!agent/dist \
                                  -Dglowroot.checker.build \
                                  -Dchecker.stubs.dir=$PWD/build/checker-stubs \
                                  -Dglowroot.ui.skip \
@@ -165,7 +165,10 @@ public class CentralModule {
                 centralConfig = getCentralConfiguration(directories.getConfDir());
             }
             CentralRepoModule repos = new CentralRepoModule(clusterManager, session,
-                    centralConfig.cassandraSymmetricEncryptionKey(), clock);
+                    centralConfig.cassandraSymmetricEncryptionKey(),
+                    centralConfig.rollupPreAggregation(),
+                    centralConfig.rollupPreAggregationMaxMemoryMb(),
+                    centralConfig.cassandraBatchSizeLimitKb(), clock);
 
             if (initialSchemaVersion == null) {
                 schemaUpgrade.updateSchemaVersionToCurent();
@@ -195,7 +198,9 @@ public class CentralModule {
                     directories.getConfDir(), repos.getAgentConfigDao(), repos.getActiveAgentDao(),
                     repos.getEnvironmentDao(), repos.getHeartbeatDao(), repos.getAggregateDao(),
                     repos.getGaugeValueDao(), repos.getTraceDao(), repos.getV09AgentRollupDao(),
-                    centralAlertingService, clusterManager, clock, version);
+                    centralAlertingService, clusterManager, centralConfig.grpcCollectorThreads(),
+                    centralConfig.grpcCollectorQueueSize(),
+                    centralConfig.grpcCollectorQueueSizePerAgent(), clock, version);
             DownstreamServiceImpl downstreamService = grpcServer.getDownstreamService();
             updateAgentConfigIfNeededService = new UpdateAgentConfigIfNeededService(
                     repos.getActiveAgentDao(), repos.getAgentConfigDao(), downstreamService, clock);
@@ -211,7 +216,7 @@ public class CentralModule {
             });
             rollupService = new RollupService(repos.getActiveAgentDao(), repos.getAggregateDao(),
                     repos.getGaugeValueDao(), repos.getSyntheticResultDao(), centralAlertingService,
-                    clock);
+                    clusterManager, centralConfig.rollupWorkerThreads(), clock);
             syntheticMonitorService = new SyntheticMonitorService(repos.getActiveAgentDao(),
                     repos.getConfigRepository(), repos.getIncidentDao(), alertingService,
                     repos.getSyntheticResultDao(), clusterManager, ticker, clock, version);
@@ -374,7 +379,8 @@ public class CentralModule {
             }
             startupLogger.info("creating glowroot central schema...");
             new CentralRepoModule(ClusterManager.create(), session,
-                    centralConfig.cassandraSymmetricEncryptionKey(), Clock.systemClock());
+                    centralConfig.cassandraSymmetricEncryptionKey(), false, 0,
+                    centralConfig.cassandraBatchSizeLimitKb(), Clock.systemClock());
             schemaUpgrade.updateSchemaVersionToCurent();
         } finally {
             if (session != null) {
@@ -446,7 +452,8 @@ public class CentralModule {
                 return;
             }
             CentralRepoModule repos = new CentralRepoModule(ClusterManager.create(), session,
-                    centralConfig.cassandraSymmetricEncryptionKey(), Clock.systemClock());
+                    centralConfig.cassandraSymmetricEncryptionKey(), false, 0,
+                    centralConfig.cassandraBatchSizeLimitKb(), Clock.systemClock());
             if (initialSchemaVersion == null) {
                 schemaUpgrade.updateSchemaVersionToCurent();
                 startupLogger.info("glowroot central schema created");
@@ -515,6 +522,10 @@ public class CentralModule {
         if (!Strings.isNullOrEmpty(cassandraPoolTimeoutMillis)) {
             builder.cassandraPoolTimeoutMillis(Integer.parseInt(cassandraPoolTimeoutMillis));
         }
+        String cassandraBatchSizeLimitKb = properties.get("glowroot.cassandra.batchSizeLimitKb");
+        if (!Strings.isNullOrEmpty(cassandraBatchSizeLimitKb)) {
+            builder.cassandraBatchSizeLimitKb(Integer.parseInt(cassandraBatchSizeLimitKb));
+        }
         String grpcBindAddress = properties.get("glowroot.grpc.bindAddress");
         if (!Strings.isNullOrEmpty(grpcBindAddress)) {
             builder.grpcBindAddress(grpcBindAddress);
@@ -535,6 +546,39 @@ public class CentralModule {
                 builder.grpcHttpsPort(Integer.parseInt(grpcHttpsPortText));
             }
         }
+        String grpcCollectorThreads = properties.get("glowroot.grpc.collectorThreads");
+        if (!Strings.isNullOrEmpty(grpcCollectorThreads)) {
+            builder.grpcCollectorThreads(Integer.parseInt(grpcCollectorThreads));
+        }
+        String grpcCollectorQueueSize = properties.get("glowroot.grpc.collectorQueueSize");
+        if (!Strings.isNullOrEmpty(grpcCollectorQueueSize)) {
+            builder.grpcCollectorQueueSize(Integer.parseInt(grpcCollectorQueueSize));
+        }
+        String grpcCollectorQueueSizePerAgent =
+                properties.get("glowroot.grpc.collectorQueueSizePerAgent");
+        if (!Strings.isNullOrEmpty(grpcCollectorQueueSizePerAgent)) {
+            builder.grpcCollectorQueueSizePerAgent(
+                    Integer.parseInt(grpcCollectorQueueSizePerAgent));
+        }
+        String rollupWorkerThreads = properties.get("glowroot.rollup.workerThreads");
+        if (!Strings.isNullOrEmpty(rollupWorkerThreads)) {
+            int value = Integer.parseInt(rollupWorkerThreads);
+            if (value < 1) {
+                throw new IllegalStateException("Invalid rollup.workerThreads value, it must be"
+                        + " greater than zero");
+            }
+            builder.rollupWorkerThreads(value);
+        }
+        String rollupPreAggregation = properties.get("glowroot.rollup.preAggregation");
+        if (!Strings.isNullOrEmpty(rollupPreAggregation)) {
+            builder.rollupPreAggregation(Boolean.parseBoolean(rollupPreAggregation));
+        }
+        String rollupPreAggregationMaxMemoryMb =
+                properties.get("glowroot.rollup.preAggregationMaxMemoryMb");
+        if (!Strings.isNullOrEmpty(rollupPreAggregationMaxMemoryMb)) {
+            builder.rollupPreAggregationMaxMemoryMb(
+                    Integer.parseInt(rollupPreAggregationMaxMemoryMb));
+        }
         String uiBindAddress = properties.get("glowroot.ui.bindAddress");
         if (!Strings.isNullOrEmpty(uiBindAddress)) {
             builder.uiBindAddress(uiBindAddress);
@@ -865,6 +909,13 @@ public class CentralModule {
             return 10000;
         }
 
+        @Value.Default
+        int cassandraBatchSizeLimitKb() {
+            // writes to the same partition are grouped into unlogged batches up to this size, which
+            // is kept at the cassandra default batch_size_warn_threshold_in_kb
+            return 5;
+        }
+
         @Value.Default
         String grpcBindAddress() {
             return "0.0.0.0";
@@ -882,6 +933,44 @@ public class CentralModule {
             return null;
         }
 
+        @Value.Default
+        int grpcCollectorThreads() {
+            // collection is mostly waiting on cassandra, so this can be much higher than the
+            // number of cores
+            return 32;
+        }
+
+        @Value.Default
+        int grpcCollectorQueueSize() {
+            return 2000;
+        }
+
+        @Value.Default
+        int grpcCollectorQueueSizePerAgent() {
+            return 20;
+        }
+
+        @Value.Default
+        int rollupWorkerThreads() {
+            // rollups are mostly waiting on cassandra, so this can be much higher than the number
+            // of cores
+            return 8;
+        }
+
+        @Value.Default
+        boolean rollupPreAggregation() {
+            // aggregates are merged in memory as they are stored so that 5 minute rollups don't
+            // need to read them back from cassandra (at the cost of central memory)
+            return false;
+        }
+
+        @Value.Default
+        int rollupPreAggregationMaxMemoryMb() {
+            // once the in-memory windows reach this size, further windows fall back to reading
+            // the aggregates back from cassandra
+            return 256;
+        }
+
         @Value.Default
         String uiBindAddress() {
             return "0.0.0.0";
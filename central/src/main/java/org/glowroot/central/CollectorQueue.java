@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.Constants;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// bounded queue of collection requests, processed by a fixed number of worker threads so that gRPC
+// threads are never blocked waiting on cassandra
+//
+// requests are queued per agent and the worker threads take turns across agents (round robin), so
+// that an agent with a large backlog cannot starve other agents, and requests from the same agent
+// are still processed one at a time and in order
+class CollectorQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectorQueue.class);
+
+    static final Metadata.Key<String> RETRY_AFTER_MILLIS_KEY = Metadata.Key
+            .of(Constants.GRPC_RETRY_AFTER_MILLIS_HEADER, Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final long MIN_RETRY_AFTER_MILLIS = 1000;
+    private static final long MAX_RETRY_AFTER_MILLIS = 60000;
+
+    private final int workerThreads;
+    private final int maxPending;
+    private final int maxPendingPerAgent;
+
+    private final ExecutorService workerExecutor;
+
+    private final Object lock = new Object();
+
+    // the following are guarded by lock
+
+    // agent has an entry here while it has queued requests or while one of its requests is being
+    // processed
+    private final Map<String, Queue<PendingRequest>> pendingPerAgent = new HashMap<>();
+    // agents with queued requests that are not currently being processed
+    private final Queue<String> readyAgentIds = new ArrayDeque<>();
+    private int pendingCount;
+    private boolean closed;
+
+    // exponential moving average, used to estimate how long until there will be room in the queue
+    private volatile long averageNanos = SECONDS.toNanos(1);
+
+    CollectorQueue(int workerThreads, int maxPending, int maxPendingPerAgent) {
+        this.workerThreads = workerThreads;
+        this.maxPending = maxPending;
+        this.maxPendingPerAgent = maxPendingPerAgent;
+        workerExecutor = Executors.newFixedThreadPool(workerThreads,
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Collector-Worker-%d")
+                        .build());
+        for (int i = 0; i < workerThreads; i++) {
+            workerExecutor.execute(this::runWorker);
+        }
+    }
+
+    // returns false (without queueing) if the request is rejected due to backlog, in which case the
+    // caller should respond with newRejectedException()
+    //
+    // the runnable is responsible for completing the response observer, unless the queue is closed
+    // before the runnable is run, in which case the response observer is completed with UNAVAILABLE
+    boolean offer(String agentId, StreamObserver<?> responseObserver, Runnable runnable) {
+        synchronized (lock) {
+            if (closed || pendingCount >= maxPending) {
+                return false;
+            }
+            Queue<PendingRequest> pending = pendingPerAgent.get(agentId);
+            if (pending == null) {
+                pending = new ArrayDeque<>();
+                pendingPerAgent.put(agentId, pending);
+                readyAgentIds.add(agentId);
+                lock.notify();
+            } else if (pending.size() >= maxPendingPerAgent) {
+                return false;
+            }
+            pending.add(new PendingRequest(responseObserver, runnable));
+            pendingCount++;
+        }
+        return true;
+    }
+
+    // the agent reads the retry after trailer (see org.glowroot.agent.central.CentralConnection)
+    StatusRuntimeException newRejectedException() {
+        Metadata trailers = new Metadata();
+        trailers.put(RETRY_AFTER_MILLIS_KEY, Long.toString(getRetryAfterMillis()));
+        return Status.RESOURCE_EXHAUSTED
+                .withDescription("collection rejected due to backlog")
+                .asRuntimeException(trailers);
+    }
+
+    long getRetryAfterMillis() {
+        int pendingCount;
+        synchronized (lock) {
+            pendingCount = this.pendingCount;
+        }
+        long estimateMillis =
+                NANOSECONDS.toMillis(averageNanos * (pendingCount / workerThreads + 1));
+        return Math.min(Math.max(estimateMillis, MIN_RETRY_AFTER_MILLIS), MAX_RETRY_AFTER_MILLIS);
+    }
+
+    void close() throws InterruptedException {
+        List<PendingRequest> dropped = new ArrayList<>();
+        synchronized (lock) {
+            closed = true;
+            for (Queue<PendingRequest> pending : pendingPerAgent.values()) {
+                dropped.addAll(pending);
+                pending.clear();
+            }
+            readyAgentIds.clear();
+            pendingCount = 0;
+            lock.notifyAll();
+        }
+        // complete the queued requests so that the agents do not wait until their deadline
+        for (PendingRequest pendingRequest : dropped) {
+            try {
+                pendingRequest.responseObserver.onError(Status.UNAVAILABLE
+                        .withDescription("central is shutting down")
+                        .asRuntimeException());
+            } catch (Throwable t) {
+                logger.debug(t.getMessage(), t);
+            }
+        }
+        // shutdownNow() is needed here to interrupt the workers
+        workerExecutor.shutdownNow();
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            String agentId;
+            PendingRequest pendingRequest;
+            synchronized (lock) {
+                while (readyAgentIds.isEmpty()) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // probably shutdown requested
+                        return;
+                    }
+                }
+                agentId = readyAgentIds.remove();
+                pendingRequest = checkNotNull(pendingPerAgent.get(agentId)).remove();
+                pendingCount--;
+            }
+            long startTick = System.nanoTime();
+            try {
+                pendingRequest.runnable.run();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+            long nanos = System.nanoTime() - startTick;
+            // race condition here is ok, this is only used as an estimate
+            averageNanos = (averageNanos * 7 + nanos) / 8;
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                if (checkNotNull(pendingPerAgent.get(agentId)).isEmpty()) {
+                    pendingPerAgent.remove(agentId);
+                } else {
+                    // go to the back of the line
+                    readyAgentIds.add(agentId);
+                    lock.notify();
+                }
+            }
+        }
+    }
+
+    private static class PendingRequest {
+
+        private final StreamObserver<?> responseObserver;
+        private final Runnable runnable;
+
+        private PendingRequest(StreamObserver<?> responseObserver, Runnable runnable) {
+            this.responseObserver = responseObserver;
+            this.runnable = runnable;
+        }
+    }
+}
@@ -21,12 +21,9 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
@@ -75,7 +72,6 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
-import static java.util.concurrent.TimeUnit.MINUTES;
 
 class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase {
 
@@ -97,19 +93,13 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private volatile long currentMinute;
     private final AtomicInteger nextDelay = new AtomicInteger();
 
-    private final LoadingCache<String, Semaphore> throttlePerAgentId = CacheBuilder.newBuilder()
-            .weakValues()
-            .build(new CacheLoader<String, Semaphore>() {
-                @Override
-                public Semaphore load(String key) throws Exception {
-                    return new Semaphore(1);
-                }
-            });
+    private final CollectorQueue collectorQueue;
 
     CollectorServiceImpl(ActiveAgentDao activeAgentDao, AgentConfigDao agentConfigDao,
             EnvironmentDao environmentDao, HeartbeatDao heartbeatDao, AggregateDao aggregateDao,
             GaugeValueDao gaugeValueDao, TraceDao traceDao, V09AgentRollupDao v09AgentRollupDao,
             GrpcCommon grpcCommon, CentralAlertingService centralAlertingService, Clock clock,
+            int collectorThreads, int collectorQueueSize, int collectorQueueSizePerAgent,
             String version) {
         this.activeAgentDao = activeAgentDao;
         this.agentConfigDao = agentConfigDao;
@@ -123,6 +113,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         this.centralAlertingService = centralAlertingService;
         this.clock = clock;
         this.version = version;
+        collectorQueue = new CollectorQueue(collectorThreads, collectorQueueSize,
+                collectorQueueSizePerAgent);
     }
 
     @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Init",
@@ -287,28 +279,18 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
 
     private <T> void throttle(String agentId, boolean postV09, StreamObserver<T> responseObserver,
             Runnable runnable) {
-        Semaphore semaphore = throttlePerAgentId.getUnchecked(agentId);
-        boolean acquired;
-        try {
-            acquired = semaphore.tryAcquire(1, MINUTES);
-        } catch (InterruptedException e) {
-            // probably shutdown requested
+        if (!collectorQueue.offer(agentId, responseObserver, runnable)) {
+            StatusRuntimeException e = collectorQueue.newRejectedException();
+            logger.warn("{} - collection rejected due to backlog, asking agent to retry after {}"
+                    + " milliseconds", getDisplayForLogging(agentId, postV09),
+                    e.getTrailers().get(CollectorQueue.RETRY_AFTER_MILLIS_KEY));
             responseObserver.onError(e);
-            return;
-        }
-        if (!acquired) {
-            logger.warn("{} - collection rejected due to backlog",
-                    getDisplayForLogging(agentId, postV09));
-            responseObserver.onError(new Exception());
-            return;
-        }
-        try {
-            runnable.run();
-        } finally {
-            semaphore.release();
         }
     }
 
+    @Instrumentation.Transaction(transactionType = "Background",
+            transactionName = "Store aggregates", traceHeadline = "Store aggregates: {{0}}",
+            timer = "store aggregates")
     private void collectAggregatesUnderThrottle(String agentId, boolean postV09, long captureTime,
             List<Aggregate.SharedQueryText> sharedQueryTexts,
             List<OldAggregatesByType> aggregatesByTypeList,
@@ -350,6 +332,9 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         responseObserver.onCompleted();
     }
 
+    @Instrumentation.Transaction(transactionType = "Background",
+            transactionName = "Store gauge values",
+            traceHeadline = "Store gauge values: {{0.agentId}}", timer = "store gauge values")
     private void collectGaugeValuesUnderThrottle(GaugeValueMessage request,
             StreamObserver<GaugeValueResponseMessage> responseObserver) {
         String postV09AgentId;
@@ -410,6 +395,9 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         responseObserver.onCompleted();
     }
 
+    @Instrumentation.Transaction(transactionType = "Background",
+            transactionName = "Store trace", traceHeadline = "Store trace: {{0}}",
+            timer = "store trace")
     private void collectTraceUnderThrottle(String agentId, boolean postV09, Trace trace,
             StreamObserver<EmptyMessage> responseObserver) {
         String postV09AgentId;
@@ -431,6 +419,10 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         responseObserver.onCompleted();
     }
 
+    void close() throws InterruptedException {
+        collectorQueue.close();
+    }
+
     private int getNextDelayMillis() {
         long currentishTimeMillis = clock.currentTimeMillis() + 10000;
         if (currentishTimeMillis > currentMinute) {
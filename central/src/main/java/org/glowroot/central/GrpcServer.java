@@ -45,6 +45,7 @@ class GrpcServer {
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
     private final DownstreamServiceImpl downstreamService;
+    private final CollectorServiceImpl collectorService;
 
     private final @Nullable Server httpServer;
     private final @Nullable Server httpsServer;
@@ -54,14 +55,16 @@ class GrpcServer {
             EnvironmentDao environmentDao, HeartbeatDao heartbeatDao, AggregateDao aggregateDao,
             GaugeValueDao gaugeValueDao, TraceDao traceDao, V09AgentRollupDao v09AgentRollupDao,
             CentralAlertingService centralAlertingService, ClusterManager clusterManager,
+            int collectorThreads, int collectorQueueSize, int collectorQueueSizePerAgent,
             Clock clock, String version) throws IOException {
 
         GrpcCommon grpcCommon = new GrpcCommon(agentConfigDao, v09AgentRollupDao);
         downstreamService = new DownstreamServiceImpl(grpcCommon, clusterManager);
 
-        CollectorServiceImpl collectorService = new CollectorServiceImpl(activeAgentDao,
-                agentConfigDao, environmentDao, heartbeatDao, aggregateDao, gaugeValueDao, traceDao,
-                v09AgentRollupDao, grpcCommon, centralAlertingService, clock, version);
+        collectorService = new CollectorServiceImpl(activeAgentDao, agentConfigDao,
+                environmentDao, heartbeatDao, aggregateDao, gaugeValueDao, traceDao,
+                v09AgentRollupDao, grpcCommon, centralAlertingService, clock, collectorThreads,
+                collectorQueueSize, collectorQueueSizePerAgent, version);
 
         if (httpPort == null) {
             httpServer = null;
@@ -136,6 +139,9 @@ class GrpcServer {
         if (httpServer != null) {
             shutdownNow(httpServer);
         }
+        // collection requests still queued at this point have already been cancelled by the grpc
+        // server shutdown above
+        collectorService.close();
     }
 
     private static File getHttpsConfFile(File confDir, String fileName, String sharedFileName,
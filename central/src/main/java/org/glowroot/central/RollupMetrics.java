@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+// per pass timing of the rollup service, exposed through the org.glowroot.central:type=Rollup mbean
+// so that it can be collected as gauges (e.g. by a glowroot agent monitoring the central collector)
+//
+// times are in milliseconds
+class RollupMetrics implements RollupMetricsMXBean {
+
+    static final String OBJECT_NAME = "org.glowroot.central:type=Rollup";
+
+    // the following are guarded by this
+
+    private long passCount;
+    private long passTime;
+    private long overrunPassCount;
+
+    private long lastPassTime;
+    private int lastPassAgentRollupCount;
+    private long lastPassSlowestAgentRollupTime;
+    private String lastPassSlowestAgentRollupId = "";
+
+    synchronized void recordPass(long passMillis, boolean overrun, int agentRollupCount,
+            String slowestAgentRollupId, long slowestAgentRollupMillis) {
+        passCount++;
+        passTime += passMillis;
+        if (overrun) {
+            overrunPassCount++;
+        }
+        lastPassTime = passMillis;
+        lastPassAgentRollupCount = agentRollupCount;
+        lastPassSlowestAgentRollupId = slowestAgentRollupId;
+        lastPassSlowestAgentRollupTime = slowestAgentRollupMillis;
+    }
+
+    @Override
+    public synchronized long getPassCount() {
+        return passCount;
+    }
+
+    @Override
+    public synchronized long getPassTime() {
+        return passTime;
+    }
+
+    @Override
+    public synchronized long getOverrunPassCount() {
+        return overrunPassCount;
+    }
+
+    @Override
+    public synchronized long getLastPassTime() {
+        return lastPassTime;
+    }
+
+    @Override
+    public synchronized int getLastPassAgentRollupCount() {
+        return lastPassAgentRollupCount;
+    }
+
+    @Override
+    public synchronized long getLastPassSlowestAgentRollupTime() {
+        return lastPassSlowestAgentRollupTime;
+    }
+
+    @Override
+    public synchronized String getLastPassSlowestAgentRollupId() {
+        return lastPassSlowestAgentRollupId;
+    }
+}
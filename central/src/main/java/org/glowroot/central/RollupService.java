@@ -15,13 +15,21 @@
  */
 package org.glowroot.central;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,36 +38,54 @@ import org.glowroot.central.repo.ActiveAgentDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.ActiveAgentRepository.AgentRollup;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class RollupService implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
+    // the rollup service runs a pass once per interval
+    private static final long INTERVAL_MILLIS = MINUTES.toMillis(1);
+
     private final ActiveAgentDao activeAgentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
     private final CentralAlertingService centralAlertingService;
+    private final ClusterManager clusterManager;
     private final Clock clock;
 
     private final ExecutorService executor;
+    private final ExecutorService workerExecutor;
+
+    private final RollupMetrics rollupMetrics = new RollupMetrics();
+    private final boolean rollupMetricsRegistered;
 
     private volatile boolean closed;
 
     RollupService(ActiveAgentDao activeAgentDao, AggregateDao aggregateDao,
             GaugeValueDao gaugeValueDao, SyntheticResultDao syntheticResultDao,
-            CentralAlertingService centralAlertingService, Clock clock) {
+            CentralAlertingService centralAlertingService, ClusterManager clusterManager,
+            int workerThreads, Clock clock) {
         this.activeAgentDao = activeAgentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.syntheticResultDao = syntheticResultDao;
         this.centralAlertingService = centralAlertingService;
+        this.clusterManager = clusterManager;
         this.clock = clock;
+        rollupMetricsRegistered = registerRollupMetrics(rollupMetrics);
+        workerExecutor = Executors.newFixedThreadPool(workerThreads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Glowroot-Rollup-Worker-%d")
+                        .build());
         executor = Executors.newSingleThreadExecutor();
         executor.execute(castInitialized(this));
     }
@@ -87,36 +113,105 @@ class RollupService implements Runnable {
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Timed out waiting for rollup thread to terminate");
         }
+        // shutdownNow() is needed here to send interrupt to RollupService worker threads
+        workerExecutor.shutdownNow();
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException(
+                    "Timed out waiting for rollup worker threads to terminate");
+        }
+        if (rollupMetricsRegistered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(new ObjectName(RollupMetrics.OBJECT_NAME));
+            } catch (JMException e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    RollupMetrics getRollupMetrics() {
+        return rollupMetrics;
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer rollup loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
-    private void runInternal() throws Exception {
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup agentRollup : shuffle(activeAgentDao.readRecentlyActiveAgentRollups(7))) {
-            rollupAggregates(agentRollup);
-            rollupGauges(agentRollup);
-            rollupSyntheticMonitors(agentRollup);
-            // checking aggregate and gauge alerts after rollup since their calculation can depend
-            // on rollups depending on time period length (and alerts on rollups are not checked
-            // anywhere else)
-            //
-            // agent (not rollup) alerts are also checked right after receiving the respective data
-            // (aggregate/gauge/heartbeat) from the agent, but need to also check these once a
-            // minute in case no data has been received from the agent recently
-            checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup);
+    @VisibleForTesting
+    void runInternal() throws Exception {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        // each top level agent rollup (together with its children) is rolled up by a single
+        // central node, and the top level agent rollups are rolled up in parallel
+        //
+        // largest trees are submitted first so that they don't end up running alone at the end of
+        // the pass
+        List<AgentRollup> agentRollups = new ArrayList<>();
+        for (AgentRollup agentRollup : activeAgentDao.readRecentlyActiveAgentRollups(7)) {
+            if (clusterManager.isLocallyOwned(agentRollup.id())) {
+                agentRollups.add(agentRollup);
+            }
+        }
+        agentRollups.sort(Comparator.comparingInt(RollupService::getAgentRollupCount).reversed());
+        List<Future<Long>> futures = new ArrayList<>();
+        for (AgentRollup agentRollup : agentRollups) {
+            futures.add(workerExecutor.submit(() -> rollup(agentRollup)));
+        }
+        String slowestAgentRollupId = null;
+        long slowestNanos = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            long nanos;
+            try {
+                nanos = futures.get(i).get();
+            } catch (ExecutionException e) {
+                logger.error("{} - {}", agentRollups.get(i).id(), e.getMessage(), e);
+                continue;
+            }
+            if (nanos > slowestNanos) {
+                slowestAgentRollupId = agentRollups.get(i).id();
+                slowestNanos = nanos;
+            }
         }
         // FIXME keep this here as fallback, but also resolve alerts immediately when they are
         // deleted (or when their condition is updated)
         centralAlertingService.checkForAllDeletedAlerts();
+        long passMillis = stopwatch.elapsed(MILLISECONDS);
+        long slowestMillis = NANOSECONDS.toMillis(slowestNanos);
+        boolean overrun = passMillis > INTERVAL_MILLIS;
+        rollupMetrics.recordPass(passMillis, overrun, agentRollups.size(),
+                slowestAgentRollupId == null ? "" : slowestAgentRollupId, slowestMillis);
+        if (overrun) {
+            logger.warn("rollup pass took {} ms for {} agent rollups (slowest: {} in {} ms), which"
+                    + " is longer than the rollup interval, consider increasing"
+                    + " glowroot.rollup.workerThreads", passMillis, agentRollups.size(),
+                    slowestAgentRollupId, slowestMillis);
+        } else {
+            logger.debug("rollup pass took {} ms for {} agent rollups (slowest: {} in {} ms)",
+                    passMillis, agentRollups.size(), slowestAgentRollupId, slowestMillis);
+        }
+    }
+
+    // returns the number of nanoseconds it took to roll up the agent rollup (and its children)
+    @Instrumentation.Transaction(transactionType = "Background",
+            transactionName = "Rollup agent rollup",
+            traceHeadline = "Rollup agent rollup: {{0.id}}", timer = "rollup agent rollup")
+    private long rollup(AgentRollup agentRollup) throws Exception {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        rollupAggregates(agentRollup);
+        rollupGauges(agentRollup);
+        rollupSyntheticMonitors(agentRollup);
+        // checking aggregate and gauge alerts after rollup since their calculation can depend
+        // on rollups depending on time period length (and alerts on rollups are not checked
+        // anywhere else)
+        //
+        // agent (not rollup) alerts are also checked right after receiving the respective data
+        // (aggregate/gauge/heartbeat) from the agent, but need to also check these once a
+        // minute in case no data has been received from the agent recently
+        checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup);
+        return stopwatch.elapsed(NANOSECONDS);
     }
 
     private void rollupAggregates(AgentRollup agentRollup) throws InterruptedException {
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup childAgentRollup : shuffle(agentRollup.children())) {
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
             rollupAggregates(childAgentRollup);
         }
         try {
@@ -179,15 +274,28 @@ class RollupService implements Runnable {
                 agentRollup.display(), clock.currentTimeMillis());
     }
 
-    private static <T> List<T> shuffle(List<T> agentRollups) {
-        List<T> mutable = new ArrayList<>(agentRollups);
-        Collections.shuffle(mutable);
-        return mutable;
+    private static int getAgentRollupCount(AgentRollup agentRollup) {
+        int count = 1;
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
+            count += getAgentRollupCount(childAgentRollup);
+        }
+        return count;
     }
 
     @VisibleForTesting
     static long millisUntilNextRollup(long currentTimeMillis) {
-        return 60000 - (currentTimeMillis - 10000) % 60000;
+        return INTERVAL_MILLIS - (currentTimeMillis - 10000) % INTERVAL_MILLIS;
+    }
+
+    private static boolean registerRollupMetrics(RollupMetrics rollupMetrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(rollupMetrics,
+                    new ObjectName(RollupMetrics.OBJECT_NAME));
+            return true;
+        } catch (JMException e) {
+            logger.warn(e.getMessage(), e);
+            return false;
+        }
     }
 
     @SuppressWarnings("return.type.incompatible")
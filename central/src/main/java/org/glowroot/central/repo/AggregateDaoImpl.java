@@ -24,6 +24,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
@@ -38,14 +39,19 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.AbstractMessage;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.central.repo.AggregatePreAggregator.AggregateRollup;
+import org.glowroot.central.repo.AggregatePreAggregator.TransactionTypeRollup;
+import org.glowroot.central.repo.AggregatePreAggregator.Window;
 import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
@@ -202,6 +208,8 @@ public class AggregateDaoImpl implements AggregateDao {
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final ConfigRepositoryImpl configRepository;
+    private final @Nullable AggregatePreAggregator preAggregator;
+    private final int batchSizeLimitBytes;
     private final Clock clock;
 
     // list index is rollupLevel
@@ -219,6 +227,8 @@ public class AggregateDaoImpl implements AggregateDao {
     private final List<PreparedStatement> existsAuxThreadProfileOverallPS;
     private final List<PreparedStatement> existsAuxThreadProfileTransactionPS;
 
+    private final PreparedStatement existsRollup1OverviewPS;
+
     private final List<PreparedStatement> insertNeedsRollup;
     private final List<PreparedStatement> readNeedsRollup;
     private final List<PreparedStatement> deleteNeedsRollup;
@@ -231,12 +241,17 @@ public class AggregateDaoImpl implements AggregateDao {
 
     AggregateDaoImpl(Session session, ActiveAgentDao activeAgentDao,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            ConfigRepositoryImpl configRepository, Clock clock) throws Exception {
+            ConfigRepositoryImpl configRepository, ClusterManager clusterManager,
+            boolean preAggregation, int preAggregationMaxMemoryMb, int batchSizeLimitKb,
+            Clock clock) throws Exception {
         this.session = session;
         this.activeAgentDao = activeAgentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.configRepository = configRepository;
+        preAggregator = preAggregation ? new AggregatePreAggregator(clusterManager,
+                preAggregationMaxMemoryMb * 1024L * 1024, clock) : null;
+        batchSizeLimitBytes = batchSizeLimitKb * 1024;
         this.clock = clock;
 
         int count = configRepository.getRollupConfigs().size();
@@ -353,6 +368,7 @@ public class AggregateDaoImpl implements AggregateDao {
         this.existsMainThreadProfileTransactionPS = existsMainThreadProfileTransactionPS;
         this.existsAuxThreadProfileOverallPS = existsAuxThreadProfileOverallPS;
         this.existsAuxThreadProfileTransactionPS = existsAuxThreadProfileTransactionPS;
+        existsRollup1OverviewPS = session.prepare(existsPS(overviewTable, false, 1));
 
         // since rollup operations are idempotent, any records resurrected after gc_grace_seconds
         // would just create extra work, but not have any other effect
@@ -459,25 +475,31 @@ public class AggregateDaoImpl implements AggregateDao {
         for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
+            // the rows of all transaction names are executed together, so that rows that share a
+            // partition key can be batched together across transaction names
+            List<BoundStatement> aggregateStatements = new ArrayList<>();
+            aggregateStatements.addAll(bindOverallAggregate(agentId, transactionType, captureTime,
                     overallAggregate, sharedQueryTexts, adjustedTTL));
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionAggregate(agentId, transactionType,
+                aggregateStatements.addAll(bindTransactionAggregate(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
                         transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
             }
+            futures.addAll(executeInBatches(aggregateStatements));
             // wait for success before proceeding in order to ensure cannot end up with
             // "no overview table records found" during a transactionName rollup, since
             // transactionName rollups are based on finding transactionName in summary table
             MoreFutures.waitForAll(futures);
             futures.clear();
+            List<BoundStatement> summaryStatements = new ArrayList<>();
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionSummary(agentId, transactionType,
+                summaryStatements.addAll(bindTransactionSummary(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
                         transactionAggregate.getAggregate(), adjustedTTL));
             }
+            futures.addAll(executeInBatches(summaryStatements));
             futures.addAll(transactionTypeDao.store(agentRollupIdsForMeta, transactionType));
         }
         futures.addAll(activeAgentDao.insert(agentIdForMeta, captureTime));
@@ -507,11 +529,18 @@ public class AggregateDaoImpl implements AggregateDao {
         // insert into aggregate_needs_rollup_1
         long intervalMillis = rollupConfigs.get(1).intervalMillis();
         long rollupCaptureTime = CaptureTimes.getRollup(captureTime, intervalMillis);
+        UUID uniqueness = UUIDs.timeBased();
+        if (preAggregator != null && preAggregator.isPreAggregated(agentRollupIds)) {
+            preAggregator.add(agentId, captureTime, rollupCaptureTime, intervalMillis, uniqueness,
+                    aggregatesByTypeList, sharedQueryTexts,
+                    getMaxQueryAggregatesPerTransactionAggregate(agentIdForMeta),
+                    getMaxServiceCallAggregatesPerTransactionAggregate(agentIdForMeta));
+        }
         BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
         int i = 0;
         boundStatement.setString(i++, agentId);
         boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-        boundStatement.setUUID(i++, UUIDs.timeBased());
+        boundStatement.setUUID(i++, uniqueness);
         boundStatement.setSet(i++, transactionTypes);
         boundStatement.setInt(i++, needsRollupAdjustedTTL);
         futures.add(session.executeAsync(boundStatement));
@@ -835,6 +864,11 @@ public class AggregateDaoImpl implements AggregateDao {
         session.execute("truncate aggregate_needs_rollup_from_child");
     }
 
+    @OnlyUsedByTests
+    long getPreAggregationEstimatedMemoryBytes() {
+        return preAggregator == null ? 0 : preAggregator.getEstimatedMemoryBytes();
+    }
+
     private void rollupFromChildren(String agentRollupId, String agentRollupIdForMeta,
             @Nullable String parentAgentRollupId, TTL ttl) throws Exception {
         final int rollupLevel = 0;
@@ -895,9 +929,28 @@ public class AggregateDaoImpl implements AggregateDao {
                     getRollupParams(agentRollupId, agentRollupIdForMeta, rollupLevel, adjustedTTL);
             long from = captureTime - rollupIntervalMillis;
             Set<String> transactionTypes = needsRollup.getKeys();
+            Window window = null;
+            if (rollupLevel == 1 && preAggregator != null) {
+                window = preAggregator.remove(agentRollupId, captureTime,
+                        needsRollup.getUniquenessKeysForDeletion());
+                if (window != null
+                        && isRolledUp(agentRollupId, transactionTypes, captureTime)) {
+                    // some of the data for this window was already rolled up (e.g. the window
+                    // received a late upload), so the window is not complete
+                    window = null;
+                }
+            }
             List<Future<?>> futures = new ArrayList<>();
-            for (String transactionType : transactionTypes) {
-                futures.addAll(rollupOne(rollupParams, transactionType, from, captureTime));
+            if (window == null) {
+                for (String transactionType : transactionTypes) {
+                    futures.addAll(rollupOne(rollupParams, transactionType, from, captureTime));
+                }
+            } else {
+                for (Map.Entry<String, TransactionTypeRollup> entry : window
+                        .getTransactionTypeRollups().entrySet()) {
+                    futures.addAll(rollupOneFromPreAggregation(rollupParams, entry.getKey(), from,
+                            captureTime, entry.getValue()));
+                }
             }
             if (futures.isEmpty()) {
                 // no rollups occurred, warning already logged inside rollupOne() above
@@ -981,6 +1034,116 @@ public class AggregateDaoImpl implements AggregateDao {
         return futures;
     }
 
+    private List<Future<?>> rollupOneFromPreAggregation(RollupParams rollup,
+            String transactionType, long from, long to,
+            TransactionTypeRollup transactionTypeRollup) throws Exception {
+
+        ImmutableTransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType(transactionType)
+                .from(from)
+                .to(to)
+                .rollupLevel(rollup.rollupLevel() - 1)
+                .build();
+        List<Future<?>> futures = new ArrayList<>();
+
+        AggregateRollup overall = transactionTypeRollup.getOverall();
+        MutableAggregate overallAggregate = overall.getAggregate();
+        futures.addAll(insertOverallSummary(rollup, query,
+                overallAggregate.getTotalDurationNanos(), overallAggregate.getTransactionCount()));
+        if (overallAggregate.getErrorCount() > 0) {
+            futures.addAll(insertErrorSummary(rollup, query, overallAggregate.getErrorCount(),
+                    overall.getErrorSummaryTransactionCount()));
+        }
+
+        Map<String, MutableSummary> summaries = new HashMap<>();
+        Map<String, MutableErrorSummary> errorSummaries = new HashMap<>();
+        for (Map.Entry<String, AggregateRollup> entry : transactionTypeRollup.getTransactions()
+                .entrySet()) {
+            MutableAggregate aggregate = entry.getValue().getAggregate();
+            MutableSummary summary = new MutableSummary();
+            summary.totalDurationNanos = aggregate.getTotalDurationNanos();
+            summary.transactionCount = aggregate.getTransactionCount();
+            summaries.put(entry.getKey(), summary);
+            if (aggregate.getErrorCount() > 0) {
+                MutableErrorSummary errorSummary = new MutableErrorSummary();
+                errorSummary.errorCount = aggregate.getErrorCount();
+                errorSummary.transactionCount = entry.getValue().getErrorSummaryTransactionCount();
+                errorSummaries.put(entry.getKey(), errorSummary);
+            }
+        }
+        futures.addAll(insertTransactionSummaries(rollup, query, summaries));
+        futures.addAll(insertTransactionErrorSummaries(rollup, query, errorSummaries));
+
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        futures.addAll(insertOtherParts(rollup, query, overallAggregate, scratchBuffer));
+
+        for (Map.Entry<String, AggregateRollup> entry : transactionTypeRollup.getTransactions()
+                .entrySet()) {
+            futures.addAll(insertOtherParts(rollup, query.withTransactionName(entry.getKey()),
+                    entry.getValue().getAggregate(), scratchBuffer));
+        }
+        return futures;
+    }
+
+    private List<Future<?>> insertOtherParts(RollupParams rollup, TransactionQuery query,
+            MutableAggregate aggregate, ScratchBuffer scratchBuffer) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        futures.addAll(insertOverview(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount(), aggregate.isAsyncTransactions(),
+                aggregate.getMainThreadRootTimersProto(), aggregate.getAuxThreadRootTimersProto(),
+                aggregate.getAsyncTimersProto(), aggregate.getMainThreadStats(),
+                aggregate.getAuxThreadStats()));
+        futures.addAll(insertHistogram(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount(), aggregate.getDurationNanosHistogram(),
+                scratchBuffer));
+        futures.addAll(insertThroughput(rollup, query, aggregate.getTransactionCount(),
+                aggregate.getErrorCount(), false));
+        QueryCollector queries = aggregate.getQueries();
+        if (queries != null) {
+            futures.addAll(insertQueries(queries.getSortedAndTruncatedQueries(),
+                    rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                    query.transactionName(), query.to(), rollup.adjustedTTL()));
+        }
+        ServiceCallCollector serviceCalls = aggregate.getServiceCalls();
+        if (serviceCalls != null) {
+            futures.addAll(insertServiceCalls(serviceCalls.getSortedAndTruncatedServiceCalls(),
+                    rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                    query.transactionName(), query.to(), rollup.adjustedTTL()));
+        }
+        MutableProfile mainThreadProfile = aggregate.getMainThreadProfile();
+        if (mainThreadProfile != null) {
+            futures.addAll(
+                    insertThreadProfile(rollup, query, mainThreadProfile, mainThreadProfileTable));
+        }
+        MutableProfile auxThreadProfile = aggregate.getAuxThreadProfile();
+        if (auxThreadProfile != null) {
+            futures.addAll(
+                    insertThreadProfile(rollup, query, auxThreadProfile, auxThreadProfileTable));
+        }
+        return futures;
+    }
+
+    // checks for existing level 1 rollup, this is much cheaper than reading back the level 0 data
+    private boolean isRolledUp(String agentRollupId, Set<String> transactionTypes,
+            long captureTime) throws Exception {
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (String transactionType : transactionTypes) {
+            BoundStatement boundStatement = existsRollup1OverviewPS.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            futures.add(session.executeAsync(boundStatement));
+        }
+        for (ListenableFuture<ResultSet> future : futures) {
+            if (!future.get().isExhausted()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private List<Future<?>> rollupOtherParts(RollupParams rollup, TransactionQuery query,
             ScratchBuffer scratchBuffer) throws Exception {
         List<Future<?>> futures = new ArrayList<>();
@@ -1044,6 +1207,11 @@ public class AggregateDaoImpl implements AggregateDao {
             totalDurationNanos += row.getDouble(0);
             transactionCount += row.getLong(1);
         }
+        return insertOverallSummary(rollup, query, totalDurationNanos, transactionCount);
+    }
+
+    private List<Future<?>> insertOverallSummary(RollupParams rollup, TransactionQuery query,
+            double totalDurationNanos, long transactionCount) throws Exception {
         BoundStatement boundStatement =
                 getInsertOverallPS(summaryTable, rollup.rollupLevel()).bind();
         int i = 0;
@@ -1083,6 +1251,11 @@ public class AggregateDaoImpl implements AggregateDao {
             errorCount += row.getLong(0);
             transactionCount += row.getLong(1);
         }
+        return insertErrorSummary(rollup, query, errorCount, transactionCount);
+    }
+
+    private List<Future<?>> insertErrorSummary(RollupParams rollup, TransactionQuery query,
+            long errorCount, long transactionCount) throws Exception {
         BoundStatement boundStatement =
                 getInsertOverallPS(errorSummaryTable, rollup.rollupLevel()).bind();
         int i = 0;
@@ -1130,7 +1303,6 @@ public class AggregateDaoImpl implements AggregateDao {
     private List<Future<?>> rollupTransactionSummaryFromRows(RollupParams rollup,
             TransactionQuery query, Iterable<Row> rows, List<String> transactionNames)
             throws Exception {
-        BoundStatement boundStatement;
         Map<String, MutableSummary> summaries = new HashMap<>();
         for (Row row : rows) {
             int i = 0;
@@ -1143,12 +1315,18 @@ public class AggregateDaoImpl implements AggregateDao {
             summary.totalDurationNanos += row.getDouble(i++);
             summary.transactionCount += row.getLong(i++);
         }
+        transactionNames.addAll(summaries.keySet());
+        return insertTransactionSummaries(rollup, query, summaries);
+    }
+
+    private List<Future<?>> insertTransactionSummaries(RollupParams rollup,
+            TransactionQuery query, Map<String, MutableSummary> summaries) throws Exception {
         List<Future<?>> futures = new ArrayList<>();
         PreparedStatement preparedStatement =
                 getInsertTransactionPS(summaryTable, rollup.rollupLevel());
         for (Map.Entry<String, MutableSummary> entry : summaries.entrySet()) {
             MutableSummary summary = entry.getValue();
-            boundStatement = preparedStatement.bind();
+            BoundStatement boundStatement = preparedStatement.bind();
             int i = 0;
             boundStatement.setString(i++, rollup.agentRollupId());
             boundStatement.setString(i++, query.transactionType());
@@ -1159,7 +1337,6 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setInt(i++, rollup.adjustedTTL().generalTTL());
             futures.add(session.executeAsync(boundStatement));
         }
-        transactionNames.addAll(summaries.keySet());
         return futures;
     }
 
@@ -1189,7 +1366,6 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private List<Future<?>> rollupTransactionErrorSummaryFromRows(RollupParams rollup,
             TransactionQuery query, Iterable<Row> rows) throws Exception {
-        BoundStatement boundStatement;
         Map<String, MutableErrorSummary> summaries = new HashMap<>();
         for (Row row : rows) {
             int i = 0;
@@ -1202,12 +1378,17 @@ public class AggregateDaoImpl implements AggregateDao {
             summary.errorCount += row.getLong(i++);
             summary.transactionCount += row.getLong(i++);
         }
+        return insertTransactionErrorSummaries(rollup, query, summaries);
+    }
+
+    private List<Future<?>> insertTransactionErrorSummaries(RollupParams rollup,
+            TransactionQuery query, Map<String, MutableErrorSummary> summaries) throws Exception {
         PreparedStatement preparedStatement =
                 getInsertTransactionPS(errorSummaryTable, rollup.rollupLevel());
         List<Future<?>> futures = new ArrayList<>();
         for (Map.Entry<String, MutableErrorSummary> entry : summaries.entrySet()) {
             MutableErrorSummary summary = entry.getValue();
-            boundStatement = preparedStatement.bind();
+            BoundStatement boundStatement = preparedStatement.bind();
             int i = 0;
             boundStatement.setString(i++, rollup.agentRollupId());
             boundStatement.setString(i++, query.transactionType());
@@ -1280,6 +1461,17 @@ public class AggregateDaoImpl implements AggregateDao {
             auxThreadStats.addTotalWaitedNanos(getNextThreadStat(row, i++));
             auxThreadStats.addTotalAllocatedBytes(getNextThreadStat(row, i++));
         }
+        return insertOverview(rollup, query, totalDurationNanos, transactionCount,
+                asyncTransactions, MutableAggregate.toProto(mainThreadRootTimers),
+                MutableAggregate.toProto(auxThreadRootTimers),
+                MutableAggregate.toProto(asyncTimers), mainThreadStats, auxThreadStats);
+    }
+
+    private List<Future<?>> insertOverview(RollupParams rollup, TransactionQuery query,
+            double totalDurationNanos, long transactionCount, boolean asyncTransactions,
+            List<Aggregate.Timer> mainThreadRootTimers, List<Aggregate.Timer> auxThreadRootTimers,
+            List<Aggregate.Timer> asyncTimers, MutableThreadStats mainThreadStats,
+            MutableThreadStats auxThreadStats) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(overviewTable, rollup.rollupLevel()).bind();
@@ -1299,20 +1491,17 @@ public class AggregateDaoImpl implements AggregateDao {
         if (mainThreadRootTimers.isEmpty()) {
             boundStatement.setToNull(i++);
         } else {
-            boundStatement.setBytes(i++,
-                    Messages.toByteBuffer(MutableAggregate.toProto(mainThreadRootTimers)));
+            boundStatement.setBytes(i++, Messages.toByteBuffer(mainThreadRootTimers));
         }
         if (auxThreadRootTimers.isEmpty()) {
             boundStatement.setToNull(i++);
         } else {
-            boundStatement.setBytes(i++,
-                    Messages.toByteBuffer(MutableAggregate.toProto(auxThreadRootTimers)));
+            boundStatement.setBytes(i++, Messages.toByteBuffer(auxThreadRootTimers));
         }
         if (asyncTimers.isEmpty()) {
             boundStatement.setToNull(i++);
         } else {
-            boundStatement.setBytes(i++,
-                    Messages.toByteBuffer(MutableAggregate.toProto(asyncTimers)));
+            boundStatement.setBytes(i++, Messages.toByteBuffer(asyncTimers));
         }
         boundStatement.setDouble(i++, mainThreadStats.getTotalCpuNanos());
         boundStatement.setDouble(i++, mainThreadStats.getTotalBlockedNanos());
@@ -1362,6 +1551,13 @@ public class AggregateDaoImpl implements AggregateDao {
             ByteBuffer bytes = checkNotNull(row.getBytes(i++));
             durationNanosHistogram.merge(Aggregate.Histogram.parseFrom(bytes));
         }
+        return insertHistogram(rollup, query, totalDurationNanos, transactionCount,
+                durationNanosHistogram, scratchBuffer);
+    }
+
+    private List<Future<?>> insertHistogram(RollupParams rollup, TransactionQuery query,
+            double totalDurationNanos, long transactionCount,
+            LazyHistogram durationNanosHistogram, ScratchBuffer scratchBuffer) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(histogramTable, rollup.rollupLevel()).bind();
@@ -1421,6 +1617,13 @@ public class AggregateDaoImpl implements AggregateDao {
                 errorCount += row.getLong(1);
             }
         }
+        return insertThroughput(rollup, query, transactionCount, errorCount,
+                hasMissingErrorCount);
+    }
+
+    private List<Future<?>> insertThroughput(RollupParams rollup, TransactionQuery query,
+            long transactionCount, long errorCount, boolean hasMissingErrorCount)
+            throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(throughputTable, rollup.rollupLevel()).bind();
@@ -1546,6 +1749,11 @@ public class AggregateDaoImpl implements AggregateDao {
             ByteBuffer bytes = checkNotNull(row.getBytes(0));
             profile.merge(Profile.parseFrom(bytes));
         }
+        return insertThreadProfile(rollup, query, profile, table);
+    }
+
+    private List<Future<?>> insertThreadProfile(RollupParams rollup, TransactionQuery query,
+            MutableProfile profile, Table table) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(table, rollup.rollupLevel()).bind();
@@ -1587,13 +1795,13 @@ public class AggregateDaoImpl implements AggregateDao {
         return rows;
     }
 
-    private List<Future<?>> storeOverallAggregate(String agentRollupId, String transactionType,
-            long captureTime, Aggregate aggregate, List<Aggregate.SharedQueryText> sharedQueryTexts,
-            TTL adjustedTTL) throws Exception {
+    private List<BoundStatement> bindOverallAggregate(String agentRollupId,
+            String transactionType, long captureTime, Aggregate aggregate,
+            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<Future<?>> futures = new ArrayList<>();
+        List<BoundStatement> boundStatements = new ArrayList<>();
         BoundStatement boundStatement = getInsertOverallPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1602,7 +1810,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -1613,7 +1821,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL.generalTTL());
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -1622,7 +1830,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setString(i++, transactionType);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1633,7 +1841,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1643,7 +1851,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setLong(i++, aggregate.getErrorCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1654,7 +1862,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1665,22 +1873,22 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        futures.addAll(insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
+        boundStatements.addAll(bindQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
                 agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel,
+        boundStatements.addAll(bindServiceCalls(getServiceCalls(aggregate), rollupLevel,
                 agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        return futures;
+        return boundStatements;
     }
 
-    private List<Future<?>> storeTransactionAggregate(String agentRollupId, String transactionType,
-            String transactionName, long captureTime, Aggregate aggregate,
+    private List<BoundStatement> bindTransactionAggregate(String agentRollupId,
+            String transactionType, String transactionName, long captureTime, Aggregate aggregate,
             List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<Future<?>> futures = new ArrayList<>();
+        List<BoundStatement> boundStatements = new ArrayList<>();
         BoundStatement boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1688,7 +1896,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setString(i++, transactionName);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1700,7 +1908,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1711,7 +1919,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setLong(i++, aggregate.getErrorCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1723,7 +1931,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1735,22 +1943,22 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        futures.addAll(insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
+        boundStatements.addAll(bindQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
                 agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel,
+        boundStatements.addAll(bindServiceCalls(getServiceCalls(aggregate), rollupLevel,
                 agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        return futures;
+        return boundStatements;
     }
 
-    private List<Future<?>> storeTransactionSummary(String agentRollupId, String transactionType,
-            String transactionName, long captureTime, Aggregate aggregate, TTL adjustedTTL)
-            throws Exception {
+    private List<BoundStatement> bindTransactionSummary(String agentRollupId,
+            String transactionType, String transactionName, long captureTime, Aggregate aggregate,
+            TTL adjustedTTL) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<Future<?>> futures = new ArrayList<>();
+        List<BoundStatement> boundStatements = new ArrayList<>();
         BoundStatement boundStatement = getInsertTransactionPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1760,7 +1968,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        boundStatements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -1772,16 +1980,16 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL.generalTTL());
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        return futures;
+        return boundStatements;
     }
 
-    private List<Future<?>> insertQueries(List<Aggregate.Query> queries,
+    private List<BoundStatement> bindQueries(List<Aggregate.Query> queries,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int rollupLevel, String agentRollupId,
             String transactionType, @Nullable String transactionName, long captureTime,
             TTL adjustedTTL) throws Exception {
-        List<Future<?>> futures = new ArrayList<>();
+        List<BoundStatement> boundStatements = new ArrayList<>();
         for (Aggregate.Query query : queries) {
             Aggregate.SharedQueryText sharedQueryText =
                     sharedQueryTexts.get(query.getSharedQueryTextIndex());
@@ -1816,15 +2024,15 @@ public class AggregateDaoImpl implements AggregateDao {
                 boundStatement.setToNull(i++);
             }
             boundStatement.setInt(i++, adjustedTTL.queryTTL());
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        return futures;
+        return boundStatements;
     }
 
     private List<Future<?>> insertQueries(List<MutableQuery> queries, int rollupLevel,
             String agentRollupId, String transactionType, @Nullable String transactionName,
             long captureTime, TTL adjustedTTL) throws Exception {
-        List<Future<?>> futures = new ArrayList<>();
+        List<BoundStatement> boundStatements = new ArrayList<>();
         for (MutableQuery query : queries) {
             BoundStatement boundStatement;
             if (transactionName == null) {
@@ -1852,15 +2060,15 @@ public class AggregateDaoImpl implements AggregateDao {
                 boundStatement.setToNull(i++);
             }
             boundStatement.setInt(i++, adjustedTTL.queryTTL());
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        return futures;
+        return executeInBatches(boundStatements);
     }
 
-    private List<Future<?>> insertServiceCallsProto(List<Aggregate.ServiceCall> serviceCalls,
+    private List<BoundStatement> bindServiceCalls(List<Aggregate.ServiceCall> serviceCalls,
             int rollupLevel, String agentRollupId, String transactionType,
             @Nullable String transactionName, long captureTime, TTL adjustedTTL) throws Exception {
-        List<Future<?>> futures = new ArrayList<>();
+        List<BoundStatement> boundStatements = new ArrayList<>();
         for (Aggregate.ServiceCall serviceCall : serviceCalls) {
             BoundStatement boundStatement;
             if (transactionName == null) {
@@ -1880,15 +2088,15 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
             boundStatement.setLong(i++, serviceCall.getExecutionCount());
             boundStatement.setInt(i++, adjustedTTL.serviceCallTTL());
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        return futures;
+        return boundStatements;
     }
 
     private List<Future<?>> insertServiceCalls(List<MutableServiceCall> serviceCalls,
             int rollupLevel, String agentRollupId, String transactionType,
             @Nullable String transactionName, long captureTime, TTL adjustedTTL) throws Exception {
-        List<Future<?>> futures = new ArrayList<>();
+        List<BoundStatement> boundStatements = new ArrayList<>();
         for (MutableServiceCall serviceCall : serviceCalls) {
             BoundStatement boundStatement;
             if (transactionName == null) {
@@ -1908,9 +2116,15 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
             boundStatement.setLong(i++, serviceCall.getExecutionCount());
             boundStatement.setInt(i++, adjustedTTL.serviceCallTTL());
-            futures.add(session.executeAsync(boundStatement));
+            boundStatements.add(boundStatement);
         }
-        return futures;
+        return executeInBatches(boundStatements);
+    }
+
+    // statements in the same partition are grouped into unlogged batches
+    private List<Future<?>> executeInBatches(List<BoundStatement> boundStatements)
+            throws Exception {
+        return new ArrayList<>(session.executeInBatchesAsync(boundStatements, batchSizeLimitBytes));
     }
 
     private PreparedStatement getInsertOverallPS(Table table, int rollupLevel) {
@@ -2107,7 +2321,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static List<Aggregate.Query> getQueries(Aggregate aggregate) {
+    static List<Aggregate.Query> getQueries(Aggregate aggregate) {
         List<Aggregate.OldQueriesByType> queriesByTypeList = aggregate.getOldQueriesByTypeList();
         if (queriesByTypeList.isEmpty()) {
             return aggregate.getQueryList();
@@ -2127,7 +2341,7 @@ public class AggregateDaoImpl implements AggregateDao {
         return queries;
     }
 
-    private static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
+    static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
         List<Aggregate.OldServiceCallsByType> serviceCallsByTypeList =
                 aggregate.getOldServiceCallsByTypeList();
         if (serviceCallsByTypeList.isEmpty()) {
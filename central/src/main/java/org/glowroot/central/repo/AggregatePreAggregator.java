@@ -0,0 +1,374 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterables;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.MutableAggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+// merges 1-minute aggregates in memory into their (level 1) rollup window as they are stored, so
+// that the level 1 rollup can be written without reading the 1-minute aggregates back from
+// cassandra
+//
+// only agents whose top level agent rollup is rolled up by this central node are pre-aggregated,
+// since agents can upload to any central node
+//
+// the in-memory window is only used when it was built from exactly the same uploads as the
+// "needs rollup" records being processed, otherwise (e.g. after a restart, or when some uploads
+// for the window were received by another central node) the rollup falls back to reading the
+// 1-minute aggregates back from cassandra
+//
+// the memory held by all windows is capped (estimated from the serialized size of the uploads that
+// have been merged into them), and a window whose next upload would exceed the cap is discarded so
+// that its rollup falls back to reading back from cassandra
+class AggregatePreAggregator {
+
+    // windows that are not rolled up within this many rollup intervals (e.g. because the agent is
+    // now rolled up by another central node) are discarded
+    private static final int MAX_WINDOW_AGE_INTERVALS = 3;
+
+    private final ClusterManager clusterManager;
+    private final long maxMemoryBytes;
+    private final Clock clock;
+
+    private final ConcurrentMap<WindowKey, Window> windows = new ConcurrentHashMap<>();
+
+    private final AtomicLong estimatedMemoryBytes = new AtomicLong();
+
+    private volatile long lastEvictionTime;
+
+    AggregatePreAggregator(ClusterManager clusterManager, long maxMemoryBytes, Clock clock) {
+        this.clusterManager = clusterManager;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.clock = clock;
+    }
+
+    boolean isPreAggregated(List<String> agentRollupIds) {
+        return clusterManager.isLocallyOwned(Iterables.getLast(agentRollupIds));
+    }
+
+    // this needs to be called after the 1-minute aggregates have been stored, but before the
+    // "needs rollup" record is stored, so that a "needs rollup" record is never visible to the
+    // rollup without its aggregates having been merged into the window
+    void add(String agentId, long captureTime, long rollupCaptureTime, long rollupIntervalMillis,
+            UUID uniqueness, List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts, int maxQueryAggregates,
+            int maxServiceCallAggregates) {
+        evictOldWindows(rollupIntervalMillis);
+        Window window = windows.computeIfAbsent(ImmutableWindowKey.of(agentId, rollupCaptureTime),
+                key -> new Window(maxQueryAggregates, maxServiceCallAggregates));
+        synchronized (window) {
+            if (window.removed) {
+                // lost race with the rollup of this window, the "needs rollup" record for this
+                // upload will not match any window, so its rollup will read back from cassandra
+                return;
+            }
+            window.uniquenessKeys.add(uniqueness);
+            if (!window.captureTimes.add(captureTime)) {
+                // the same 1-minute aggregates were stored twice (e.g. the agent retried after
+                // not receiving the response), which is idempotent in cassandra but would be
+                // double counted here
+                window.poisoned = true;
+            }
+            if (window.poisoned) {
+                release(window);
+                return;
+            }
+            long sizeBytes = getEstimatedSizeBytes(aggregatesByTypeList, sharedQueryTexts);
+            if (!reserve(sizeBytes)) {
+                // over the memory cap, so this window's rollup will read back from cassandra
+                window.poisoned = true;
+                release(window);
+                return;
+            }
+            window.estimatedBytes += sizeBytes;
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                window.merge(aggregatesByType, sharedQueryTexts);
+            }
+        }
+    }
+
+    // returns null if the window is not available or does not exactly match the "needs rollup"
+    // uniqueness keys, in which case the rollup needs to read back from cassandra
+    //
+    // the window is removed either way, since it is of no further use after its rollup
+    @Nullable
+    Window remove(String agentRollupId, long rollupCaptureTime, Set<UUID> uniquenessKeys) {
+        Window window = windows.remove(ImmutableWindowKey.of(agentRollupId, rollupCaptureTime));
+        if (window == null) {
+            return null;
+        }
+        synchronized (window) {
+            window.removed = true;
+            // the window is released from the memory cap here, even though the caller still holds
+            // on to it while writing its rollup
+            release(window);
+            if (window.poisoned || !window.uniquenessKeys.equals(uniquenessKeys)) {
+                return null;
+            }
+            return window;
+        }
+    }
+
+    @VisibleForTesting
+    long getEstimatedMemoryBytes() {
+        return estimatedMemoryBytes.get();
+    }
+
+    private boolean reserve(long sizeBytes) {
+        // compare and set loop so that concurrent uploads cannot overshoot the cap
+        while (true) {
+            long current = estimatedMemoryBytes.get();
+            if (current + sizeBytes > maxMemoryBytes) {
+                return false;
+            }
+            if (estimatedMemoryBytes.compareAndSet(current, current + sizeBytes)) {
+                return true;
+            }
+        }
+    }
+
+    // caller must hold the window lock
+    private void release(Window window) {
+        if (window.estimatedBytes > 0) {
+            estimatedMemoryBytes.addAndGet(-window.estimatedBytes);
+            window.estimatedBytes = 0;
+        }
+        if (window.poisoned) {
+            // the merged data will not be used
+            window.transactionTypeRollups.clear();
+        }
+    }
+
+    private void evictOldWindows(long rollupIntervalMillis) {
+        long currentTime = clock.currentTimeMillis();
+        if (currentTime - lastEvictionTime < rollupIntervalMillis) {
+            return;
+        }
+        // race condition here is ok, worst case is an extra sweep
+        lastEvictionTime = currentTime;
+        long evictBefore = currentTime - MAX_WINDOW_AGE_INTERVALS * rollupIntervalMillis;
+        Iterator<Map.Entry<WindowKey, Window>> i = windows.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<WindowKey, Window> entry = i.next();
+            if (entry.getKey().rollupCaptureTime() < evictBefore) {
+                i.remove();
+                Window window = entry.getValue();
+                synchronized (window) {
+                    window.removed = true;
+                    release(window);
+                }
+            }
+        }
+    }
+
+    private static long getEstimatedSizeBytes(List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) {
+        long sizeBytes = 0;
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            sizeBytes += aggregatesByType.getSerializedSize();
+        }
+        for (Aggregate.SharedQueryText sharedQueryText : sharedQueryTexts) {
+            sizeBytes += sharedQueryText.getSerializedSize();
+        }
+        return sizeBytes;
+    }
+
+    static class Window {
+
+        private final int maxQueryAggregates;
+        private final int maxServiceCallAggregates;
+
+        // the following are guarded by the window itself
+        private final Set<UUID> uniquenessKeys = new HashSet<>();
+        private final Set<Long> captureTimes = new HashSet<>();
+        // key is transaction type
+        private final Map<String, TransactionTypeRollup> transactionTypeRollups = new HashMap<>();
+        private boolean poisoned;
+        private boolean removed;
+        // the portion of estimatedMemoryBytes that is held by this window
+        private long estimatedBytes;
+
+        private Window(int maxQueryAggregates, int maxServiceCallAggregates) {
+            this.maxQueryAggregates = maxQueryAggregates;
+            this.maxServiceCallAggregates = maxServiceCallAggregates;
+        }
+
+        // this is only called after the window has been removed, so no need to synchronize
+        Map<String, TransactionTypeRollup> getTransactionTypeRollups() {
+            return transactionTypeRollups;
+        }
+
+        private void merge(OldAggregatesByType aggregatesByType,
+                List<Aggregate.SharedQueryText> sharedQueryTexts) {
+            String transactionType = aggregatesByType.getTransactionType();
+            TransactionTypeRollup transactionTypeRollup =
+                    transactionTypeRollups.get(transactionType);
+            if (transactionTypeRollup == null) {
+                transactionTypeRollup = new TransactionTypeRollup(
+                        new AggregateRollup(maxQueryAggregates, maxServiceCallAggregates));
+                transactionTypeRollups.put(transactionType, transactionTypeRollup);
+            }
+            transactionTypeRollup.overall.merge(aggregatesByType.getOverallAggregate(),
+                    sharedQueryTexts);
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                String transactionName = transactionAggregate.getTransactionName();
+                AggregateRollup aggregateRollup =
+                        transactionTypeRollup.transactions.get(transactionName);
+                if (aggregateRollup == null) {
+                    aggregateRollup =
+                            new AggregateRollup(maxQueryAggregates, maxServiceCallAggregates);
+                    transactionTypeRollup.transactions.put(transactionName, aggregateRollup);
+                }
+                aggregateRollup.merge(transactionAggregate.getAggregate(), sharedQueryTexts);
+            }
+        }
+    }
+
+    static class TransactionTypeRollup {
+
+        private final AggregateRollup overall;
+        // key is transaction name
+        private final Map<String, AggregateRollup> transactions = new HashMap<>();
+
+        private TransactionTypeRollup(AggregateRollup overall) {
+            this.overall = overall;
+        }
+
+        AggregateRollup getOverall() {
+            return overall;
+        }
+
+        Map<String, AggregateRollup> getTransactions() {
+            return transactions;
+        }
+    }
+
+    static class AggregateRollup {
+
+        private final MutableAggregate aggregate;
+        // error summary rows are only stored for 1-minute aggregates that have errors, so the
+        // transaction count of the error summary rollup only includes those 1-minute aggregates
+        private long errorSummaryTransactionCount;
+
+        private AggregateRollup(int maxQueryAggregates, int maxServiceCallAggregates) {
+            aggregate = new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates);
+        }
+
+        MutableAggregate getAggregate() {
+            return aggregate;
+        }
+
+        long getErrorSummaryTransactionCount() {
+            return errorSummaryTransactionCount;
+        }
+
+        // this needs to match what is stored at rollup level 0 (see AggregateDaoImpl)
+        private void merge(Aggregate toBeMerged,
+                List<Aggregate.SharedQueryText> sharedQueryTexts) {
+            aggregate.addTotalDurationNanos(toBeMerged.getTotalDurationNanos());
+            aggregate.addTransactionCount(toBeMerged.getTransactionCount());
+            aggregate.addErrorCount(toBeMerged.getErrorCount());
+            if (toBeMerged.getErrorCount() > 0) {
+                errorSummaryTransactionCount += toBeMerged.getTransactionCount();
+            }
+            aggregate.addAsyncTransactions(toBeMerged.getAsyncTransactions());
+            aggregate.mergeMainThreadRootTimers(toBeMerged.getMainThreadRootTimerList());
+            aggregate.mergeAuxThreadRootTimers(toBeMerged.getAuxThreadRootTimerList());
+            aggregate.mergeAsyncTimers(toBeMerged.getAsyncTimerList());
+            if (toBeMerged.hasOldMainThreadStats()) {
+                // data from agent prior to 0.10.9
+                Aggregate.OldThreadStats threadStats = toBeMerged.getOldMainThreadStats();
+                aggregate.addMainThreadTotalCpuNanos(threadStats.getTotalCpuNanos().getValue());
+                aggregate.addMainThreadTotalBlockedNanos(
+                        threadStats.getTotalBlockedNanos().getValue());
+                aggregate.addMainThreadTotalWaitedNanos(
+                        threadStats.getTotalWaitedNanos().getValue());
+                aggregate.addMainThreadTotalAllocatedBytes(
+                        threadStats.getTotalAllocatedBytes().getValue());
+            } else {
+                aggregate.mergeMainThreadStats(toBeMerged.getMainThreadStats());
+            }
+            if (toBeMerged.hasOldAuxThreadStats()) {
+                Aggregate.OldThreadStats threadStats = toBeMerged.getOldAuxThreadStats();
+                aggregate.addAuxThreadTotalCpuNanos(threadStats.getTotalCpuNanos().getValue());
+                aggregate.addAuxThreadTotalBlockedNanos(
+                        threadStats.getTotalBlockedNanos().getValue());
+                aggregate.addAuxThreadTotalWaitedNanos(
+                        threadStats.getTotalWaitedNanos().getValue());
+                aggregate.addAuxThreadTotalAllocatedBytes(
+                        threadStats.getTotalAllocatedBytes().getValue());
+            } else {
+                aggregate.mergeAuxThreadStats(toBeMerged.getAuxThreadStats());
+            }
+            aggregate.mergeDurationNanosHistogram(toBeMerged.getDurationNanosHistogram());
+            for (Aggregate.Query query : AggregateDaoImpl.getQueries(toBeMerged)) {
+                Aggregate.SharedQueryText sharedQueryText =
+                        sharedQueryTexts.get(query.getSharedQueryTextIndex());
+                String fullTextSha1 = sharedQueryText.getFullTextSha1();
+                String truncatedText;
+                if (fullTextSha1.isEmpty()) {
+                    truncatedText = sharedQueryText.getFullText();
+                } else {
+                    truncatedText = sharedQueryText.getTruncatedText();
+                }
+                aggregate.mergeQuery(query.getType(), truncatedText,
+                        fullTextSha1.isEmpty() ? null : fullTextSha1,
+                        query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.hasTotalRows(), query.getTotalRows().getValue());
+            }
+            for (Aggregate.ServiceCall serviceCall : AggregateDaoImpl
+                    .getServiceCalls(toBeMerged)) {
+                aggregate.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                        serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+            }
+            if (toBeMerged.hasMainThreadProfile()) {
+                aggregate.mergeMainThreadProfile(toBeMerged.getMainThreadProfile());
+            }
+            if (toBeMerged.hasAuxThreadProfile()) {
+                aggregate.mergeAuxThreadProfile(toBeMerged.getAuxThreadProfile());
+            }
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface WindowKey {
+        String agentRollupId();
+        long rollupCaptureTime();
+    }
+}
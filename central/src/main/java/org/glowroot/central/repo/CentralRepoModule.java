@@ -53,7 +53,9 @@ public class CentralRepoModule {
     private final V09AgentRollupDao v09AgentRollupDao;
 
     public CentralRepoModule(ClusterManager clusterManager, Session session,
-            String cassandraSymmetricEncryptionKey, Clock clock) throws Exception {
+            String cassandraSymmetricEncryptionKey, boolean rollupPreAggregation,
+            int rollupPreAggregationMaxMemoryMb, int cassandraBatchSizeLimitKb, Clock clock)
+            throws Exception {
         CentralConfigDao centralConfigDao = new CentralConfigDao(session, clusterManager);
         agentConfigDao = new AgentConfigDao(session, clusterManager);
         userDao = new UserDao(session, clusterManager);
@@ -103,7 +105,9 @@ public class CentralRepoModule {
         }
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
         AggregateDaoImpl aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao,
-                transactionTypeDao, fullQueryTextDao, configRepository, clock);
+                transactionTypeDao, fullQueryTextDao, configRepository, clusterManager,
+                rollupPreAggregation, rollupPreAggregationMaxMemoryMb, cassandraBatchSizeLimitKb,
+                clock);
         GaugeValueDaoImpl gaugeValueDaoImpl =
                 new GaugeValueDaoImpl(session, configRepository, clock);
         SyntheticResultDaoImpl syntheticResultDaoImpl =
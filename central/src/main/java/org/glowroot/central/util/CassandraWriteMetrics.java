@@ -16,6 +16,7 @@ private * Copyright 2018 the original author or authors.
 package org.glowroot.central.util;
 
 import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
@@ -25,6 +26,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.ColumnDefinitions;
 import com.datastax.driver.core.ColumnMetadata;
@@ -56,9 +58,13 @@ public class CassandraWriteMetrics {
 
     private final Session session;
     private final String keyspace;
+    private final ConcurrencyLimiter concurrencyLimiter;
 
     private final Map<String, WriteMetrics> writeMetrics = new ConcurrentHashMap<>();
 
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedStatementCount = new AtomicLong();
+
     private final ThreadLocal</*@Nullable*/ String> currTransactionType = new ThreadLocal<>();
     private final ThreadLocal</*@Nullable*/ String> currTransactionName = new ThreadLocal<>();
 
@@ -70,9 +76,11 @@ public class CassandraWriteMetrics {
         }
     };
 
-    CassandraWriteMetrics(Session session, String keyspace) {
+    CassandraWriteMetrics(Session session, String keyspace,
+            ConcurrencyLimiter concurrencyLimiter) {
         this.session = session;
         this.keyspace = keyspace;
+        this.concurrencyLimiter = concurrencyLimiter;
         long millisSinceLastMidnightUTC = System.currentTimeMillis() % DAYS.toMillis(1);
         long millisUntilNextMidnightUTC = DAYS.toMillis(1) - millisSinceLastMidnightUTC;
         // clear metrics once a day (midnight UTC) to make sure the map of agent rollup ids doesn't
@@ -141,9 +149,43 @@ public class CassandraWriteMetrics {
         return getCassandraDataWritten(perTableMetrics.nestedWriteMetricsMap, limit);
     }
 
+    // current adaptive limit on concurrent async queries (see ConcurrencyLimiter)
+    public int getConcurrencyLimit() {
+        return concurrencyLimiter.getLimit();
+    }
+
+    public int getConcurrencyInFlight() {
+        return concurrencyLimiter.getInFlight();
+    }
+
+    // number of times the concurrency limit has been reduced due to cassandra congestion
+    public long getConcurrencyBackoffCount() {
+        return concurrencyLimiter.getBackoffCount();
+    }
+
+    // number of unlogged batches written (see Session.executeInBatchesAsync())
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    // number of statements written as part of unlogged batches, so the average batch size is
+    // getBatchedStatementCount() / getBatchCount()
+    public long getBatchedStatementCount() {
+        return batchedStatementCount.get();
+    }
+
     void recordMetrics(Statement statement) {
         try {
-            recordMetricsInternal(statement);
+            if (statement instanceof BatchStatement) {
+                Collection<Statement> statements = ((BatchStatement) statement).getStatements();
+                batchCount.incrementAndGet();
+                batchedStatementCount.addAndGet(statements.size());
+                for (Statement innerStatement : statements) {
+                    recordMetricsInternal(innerStatement);
+                }
+            } else {
+                recordMetricsInternal(statement);
+            }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
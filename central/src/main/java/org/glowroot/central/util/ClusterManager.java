@@ -18,6 +18,7 @@ package org.glowroot.central.util;
 import java.io.File;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
@@ -29,8 +30,11 @@ import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.infinispan.configuration.cache.CacheMode;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
@@ -48,7 +52,9 @@ import org.glowroot.central.util.Cache.CacheLoader;
 import org.glowroot.common2.repo.util.LockSet;
 import org.glowroot.common2.repo.util.LockSet.LockSetImpl;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -56,6 +62,8 @@ public abstract class ClusterManager {
 
     private static final Logger logger = LoggerFactory.getLogger(ClusterManager.class);
 
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
     public static ClusterManager create() {
         return new NonClusterManager();
     }
@@ -91,8 +99,41 @@ public abstract class ClusterManager {
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
             String cacheName);
 
+    // partitions work across the central cluster nodes, returns true if this node is currently
+    // responsible for the given key
+    //
+    // the answer can change when nodes join or leave the cluster, so this should only be used for
+    // work that is safe to occasionally perform on more than one node (or to skip for one round)
+    public abstract boolean isLocallyOwned(String key);
+
     public abstract void close() throws InterruptedException;
 
+    // rendezvous (highest random weight) hashing, so that when a member joins or leaves the
+    // cluster, only the keys owned by that member move (instead of nearly all keys as with modulo
+    // hashing)
+    //
+    // member identity is based on toString() (the node name for infinispan addresses), so all nodes
+    // pick the same owner regardless of the order in which they see the members
+    @VisibleForTesting
+    static <T> T getOwner(String key, List<T> members) {
+        checkArgument(!members.isEmpty());
+        T owner = members.get(0);
+        long ownerWeight = Long.MIN_VALUE;
+        for (T member : members) {
+            long weight = HASH_FUNCTION.newHasher()
+                    .putString(key, UTF_8)
+                    .putByte((byte) 0)
+                    .putString(member.toString(), UTF_8)
+                    .hash()
+                    .asLong();
+            if (weight > ownerWeight) {
+                owner = member;
+                ownerWeight = weight;
+            }
+        }
+        return owner;
+    }
+
     private static class ClusterManagerImpl extends ClusterManager {
 
         private final EmbeddedCacheManager cacheManager;
@@ -152,6 +193,15 @@ public abstract class ClusterManager {
             return new DistributedExecutionMapImpl<K, V>(cacheManager.getCache(cacheName));
         }
 
+        @Override
+        public boolean isLocallyOwned(String key) {
+            List<Address> members = cacheManager.getMembers();
+            if (members == null || members.isEmpty()) {
+                return true;
+            }
+            return getOwner(key, members).equals(cacheManager.getAddress());
+        }
+
         @Override
         public void close() throws InterruptedException {
             cacheManager.stop();
@@ -239,6 +289,11 @@ public abstract class ClusterManager {
                     .asMap();
         }
 
+        @Override
+        public boolean isLocallyOwned(String key) {
+            return true;
+        }
+
         @Override
         public void close() {}
     }
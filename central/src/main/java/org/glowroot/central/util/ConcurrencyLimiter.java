@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import com.datastax.driver.core.exceptions.BusyPoolException;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.google.common.base.Ticker;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// adaptive limit on the number of concurrent async queries, using additive increase /
+// multiplicative decrease (AIMD)
+//
+// the limit grows by one for every "limit" number of queries that complete without sign of
+// congestion (but only while at least half of the limit is actually in use), and shrinks by 10%
+// when a query times out or is rejected as overloaded, or when a write takes much longer than the
+// recent minimum write latency, which is an earlier sign of congestion than timeouts
+class ConcurrencyLimiter {
+
+    static final int MIN_LIMIT = 32;
+    private static final int MAX_LIMIT = 8192;
+
+    private static final int INITIAL_LIMIT = 1024;
+
+    private static final double BACKOFF_RATIO = 0.9;
+    // a burst of timeouts is typically the result of a single congestion event, so only back off
+    // once per interval
+    private static final long BACKOFF_INTERVAL_NANOS = MILLISECONDS.toNanos(100);
+
+    private static final int LATENCY_TOLERANCE = 5;
+    // prevents backing off due to jitter when writes are fast
+    private static final long MIN_CONGESTED_LATENCY_NANOS = MILLISECONDS.toNanos(50);
+    // minimum write latency is tracked over two windows so that it can recover (e.g. after the
+    // cassandra cluster has been scaled up)
+    private static final long MIN_LATENCY_WINDOW_NANOS = SECONDS.toNanos(60);
+
+    private final Ticker ticker;
+
+    private final Object lock = new Object();
+
+    // the following are guarded by lock
+    private double limit = INITIAL_LIMIT;
+    private int inFlight;
+    private long backoffCount;
+    private long lastBackoffTick;
+    private long minLatencyNanos = Long.MAX_VALUE;
+    private long priorMinLatencyNanos = Long.MAX_VALUE;
+    private long minLatencyWindowStartTick;
+
+    ConcurrencyLimiter(Ticker ticker) {
+        this.ticker = ticker;
+        long currTick = ticker.read();
+        lastBackoffTick = currTick - BACKOFF_INTERVAL_NANOS;
+        minLatencyWindowStartTick = currTick;
+    }
+
+    // force is used to not block cassandra driver threads that kick off more async work from
+    // inside of a completion callback, since blocking those threads could prevent the completions
+    // that are needed in order to release permits
+    //
+    // returns the start tick, which needs to be passed back to release()
+    long acquire(boolean force) throws InterruptedException {
+        synchronized (lock) {
+            while (!force && inFlight >= (int) limit) {
+                lock.wait();
+            }
+            inFlight++;
+        }
+        return ticker.read();
+    }
+
+    void release(long startTick, boolean write, @Nullable Throwable t) {
+        long currTick = ticker.read();
+        synchronized (lock) {
+            inFlight--;
+            boolean congested;
+            if (t == null) {
+                congested = write && isCongestedLatency(currTick - startTick, currTick);
+            } else {
+                congested = isCongestion(t);
+            }
+            if (congested) {
+                if (currTick - lastBackoffTick >= BACKOFF_INTERVAL_NANOS) {
+                    limit = Math.max(limit * BACKOFF_RATIO, MIN_LIMIT);
+                    lastBackoffTick = currTick;
+                    backoffCount++;
+                }
+            } else if (t == null && inFlight + 1 >= limit / 2) {
+                limit = Math.min(limit + 1 / limit, MAX_LIMIT);
+            }
+            lock.notify();
+        }
+    }
+
+    int getLimit() {
+        synchronized (lock) {
+            return (int) limit;
+        }
+    }
+
+    int getInFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    long getBackoffCount() {
+        synchronized (lock) {
+            return backoffCount;
+        }
+    }
+
+    // must be called under lock
+    private boolean isCongestedLatency(long latencyNanos, long currTick) {
+        if (currTick - minLatencyWindowStartTick >= MIN_LATENCY_WINDOW_NANOS) {
+            priorMinLatencyNanos = minLatencyNanos;
+            minLatencyNanos = Long.MAX_VALUE;
+            minLatencyWindowStartTick = currTick;
+        }
+        minLatencyNanos = Math.min(minLatencyNanos, latencyNanos);
+        long baselineNanos = Math.min(minLatencyNanos, priorMinLatencyNanos);
+        return latencyNanos > MIN_CONGESTED_LATENCY_NANOS
+                && latencyNanos > baselineNanos * LATENCY_TOLERANCE;
+    }
+
+    private static boolean isCongestion(Throwable t) {
+        if (t instanceof WriteTimeoutException || t instanceof ReadTimeoutException
+                || t instanceof OverloadedException || t instanceof OperationTimedOutException
+                || t instanceof BusyPoolException) {
+            return true;
+        }
+        if (t instanceof NoHostAvailableException) {
+            for (Throwable error : ((NoHostAvailableException) t).getErrors().values()) {
+                if (isCongestion(error)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
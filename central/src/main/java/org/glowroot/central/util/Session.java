@@ -15,23 +15,37 @@
  */
 package org.glowroot.central.util;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Configuration;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.TableMetadata;
 import com.datastax.driver.core.exceptions.InvalidConfigurationInQueryException;
 import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -39,9 +53,11 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -49,12 +65,13 @@ public class Session {
 
     private static final Logger logger = LoggerFactory.getLogger(Session.class);
 
-    // limit concurrent async queries per thread (mainly so the rollup thread doesn't hog them all)
+    // set while completing a query future, so that async work kicked off from inside of the
+    // completion callback (on a cassandra driver thread) does not block on the concurrency limiter
     @SuppressWarnings("nullness:type.argument.type.incompatible")
-    private static final ThreadLocal<Semaphore> perThreadSemaphores = new ThreadLocal<Semaphore>() {
+    private static final ThreadLocal<Boolean> inCompletionCallback = new ThreadLocal<Boolean>() {
         @Override
-        protected Semaphore initialValue() {
-            return new Semaphore(512);
+        protected Boolean initialValue() {
+            return false;
         }
     };
 
@@ -63,13 +80,18 @@ public class Session {
 
     private final Queue<String> allTableNames = new ConcurrentLinkedQueue<>();
 
+    // limit concurrent async queries across all threads, adapting to cassandra latency and timeouts
+    private final ConcurrencyLimiter concurrencyLimiter =
+            new ConcurrencyLimiter(Ticker.systemTicker());
+
     private final CassandraWriteMetrics cassandraWriteMetrics;
 
     public Session(com.datastax.driver.core.Session wrappedSession, String keyspaceName)
             throws InterruptedException {
         this.wrappedSession = wrappedSession;
         this.keyspaceName = keyspaceName;
-        cassandraWriteMetrics = new CassandraWriteMetrics(wrappedSession, keyspaceName);
+        cassandraWriteMetrics =
+                new CassandraWriteMetrics(wrappedSession, keyspaceName, concurrencyLimiter);
 
         updateSchemaWithRetry(wrappedSession, "create keyspace if not exists " + keyspaceName
                 + " with replication = { 'class' : 'SimpleStrategy', 'replication_factor' : 1 }");
@@ -105,7 +127,7 @@ public class Session {
     }
 
     public ListenableFuture<ResultSet> executeAsync(Statement statement) throws Exception {
-        return throttle(() -> {
+        return throttle(isWrite(statement), () -> {
             // for now, need to record metrics in the same method because CassandraWriteMetrics
             // relies on some thread locals
             cassandraWriteMetrics.recordMetrics(statement);
@@ -114,7 +136,38 @@ public class Session {
     }
 
     private ListenableFuture<ResultSet> executeAsync(String query) throws Exception {
-        return throttle(() -> wrappedSession.executeAsync(query));
+        return throttle(false, () -> wrappedSession.executeAsync(query));
+    }
+
+    // groups the statements into unlogged batches by table and partition key, which saves round
+    // trips and coordinator work compared to executing each statement separately, without the batch
+    // log overhead of logged batches (a single partition batch is applied atomically anyways)
+    //
+    // batches are keyed by table, and not just by partition key, since several tables share the
+    // same partition key values and a batch that spans tables is a multi-partition batch
+    //
+    // statements without a known partition key, and statements that are bigger than the batch size
+    // limit by themselves, are executed separately
+    public List<ListenableFuture<ResultSet>> executeInBatchesAsync(
+            List<BoundStatement> statements, int batchSizeLimitBytes) throws Exception {
+        Configuration configuration = wrappedSession.getCluster().getConfiguration();
+        ProtocolVersion protocolVersion =
+                configuration.getProtocolOptions().getProtocolVersion();
+        CodecRegistry codecRegistry = configuration.getCodecRegistry();
+        List<List<BoundStatement>> batches = groupIntoBatches(statements,
+                statement -> getBatchKey(statement, protocolVersion, codecRegistry),
+                Session::getApproximateSizeBytes, batchSizeLimitBytes);
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (List<BoundStatement> batch : batches) {
+            if (batch.size() == 1) {
+                futures.add(executeAsync(batch.get(0)));
+            } else {
+                BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+                batchStatement.addAll(batch);
+                futures.add(executeAsync(batchStatement));
+            }
+        }
+        return futures;
     }
 
     public Cluster getCluster() {
@@ -250,34 +303,117 @@ public class Session {
         updateSchemaWithRetry(createTableQuery);
     }
 
-    private static ListenableFuture<ResultSet> throttle(DoUnderThrottle doUnderThrottle)
+    private ListenableFuture<ResultSet> throttle(boolean write, DoUnderThrottle doUnderThrottle)
             throws Exception {
-        Semaphore perThreadSemaphore = perThreadSemaphores.get();
-        perThreadSemaphore.acquire();
+        long startTick = concurrencyLimiter.acquire(inCompletionCallback.get());
         SettableFuture<ResultSet> outerFuture = SettableFuture.create();
         ResultSetFuture innerFuture;
         try {
             innerFuture = doUnderThrottle.execute();
         } catch (Throwable t) {
-            perThreadSemaphore.release();
+            concurrencyLimiter.release(startTick, write, t);
             Throwables.propagateIfPossible(t, Exception.class);
             throw new Exception(t);
         }
         Futures.addCallback(innerFuture, new FutureCallback<ResultSet>() {
             @Override
             public void onSuccess(ResultSet result) {
-                perThreadSemaphore.release();
-                outerFuture.set(result);
+                concurrencyLimiter.release(startTick, write, null);
+                complete(() -> outerFuture.set(result));
             }
             @Override
             public void onFailure(Throwable t) {
-                perThreadSemaphore.release();
-                outerFuture.setException(t);
+                concurrencyLimiter.release(startTick, write, t);
+                complete(() -> outerFuture.setException(t));
             }
         }, MoreExecutors.directExecutor());
         return outerFuture;
     }
 
+    private static void complete(Runnable completion) {
+        boolean priorInCompletionCallback = inCompletionCallback.get();
+        inCompletionCallback.set(true);
+        try {
+            completion.run();
+        } finally {
+            inCompletionCallback.set(priorInCompletionCallback);
+        }
+    }
+
+    private static boolean isWrite(Statement statement) {
+        if (statement instanceof BatchStatement) {
+            return true;
+        }
+        return statement instanceof BoundStatement && ((BoundStatement) statement)
+                .preparedStatement().getQueryString().startsWith("insert ");
+    }
+
+    // items with a null batch key, and items that are over the size limit by themselves, are
+    // returned as single item batches
+    @VisibleForTesting
+    static <T> List<List<T>> groupIntoBatches(List<T> items,
+            Function<T, /*@Nullable*/ Object> batchKeyFunction, ToIntFunction<T> sizeFunction,
+            int batchSizeLimitBytes) {
+        List<List<T>> batches = new ArrayList<>();
+        Map<Object, PendingBatch<T>> pendingBatches = new LinkedHashMap<>();
+        for (T item : items) {
+            Object batchKey = batchKeyFunction.apply(item);
+            int sizeBytes = sizeFunction.applyAsInt(item);
+            if (batchKey == null || sizeBytes >= batchSizeLimitBytes) {
+                batches.add(ImmutableList.of(item));
+                continue;
+            }
+            PendingBatch<T> pendingBatch = pendingBatches.get(batchKey);
+            if (pendingBatch == null) {
+                pendingBatch = new PendingBatch<T>();
+                pendingBatches.put(batchKey, pendingBatch);
+            } else if (pendingBatch.sizeBytes + sizeBytes > batchSizeLimitBytes) {
+                batches.add(pendingBatch.items);
+                pendingBatch = new PendingBatch<T>();
+                pendingBatches.put(batchKey, pendingBatch);
+            }
+            pendingBatch.items.add(item);
+            pendingBatch.sizeBytes += sizeBytes;
+        }
+        for (PendingBatch<T> pendingBatch : pendingBatches.values()) {
+            batches.add(pendingBatch.items);
+        }
+        return batches;
+    }
+
+    private static @Nullable Object getBatchKey(BoundStatement statement,
+            ProtocolVersion protocolVersion, CodecRegistry codecRegistry) {
+        ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+        if (routingKey == null) {
+            return null;
+        }
+        ColumnDefinitions variables = statement.preparedStatement().getVariables();
+        if (variables.size() == 0) {
+            return null;
+        }
+        return ImmutableBatchKey.builder()
+                .keyspaceName(variables.getKeyspace(0))
+                .tableName(variables.getTable(0))
+                .routingKey(routingKey)
+                .build();
+    }
+
+    // this is only used to keep batches under the cassandra batch size thresholds, so it doesn't
+    // need to be exact, but it does need to cover every column type (bound statements hold their
+    // values in serialized form, so this is close to the size cassandra sees)
+    private static int getApproximateSizeBytes(BoundStatement statement) {
+        int sizeBytes = 0;
+        ColumnDefinitions variables = statement.preparedStatement().getVariables();
+        for (int i = 0; i < variables.size(); i++) {
+            if (statement.isNull(i)) {
+                continue;
+            }
+            // 4 bytes for the value length prefix
+            sizeBytes += 4 + checkNotNull(statement.getBytesUnsafe(i)).remaining();
+        }
+        return sizeBytes;
+    }
+
     private static @Nullable String getTableName(String createTableQuery, String prefix) {
         if (createTableQuery.startsWith(prefix)) {
             String suffix = createTableQuery.substring(prefix.length());
@@ -347,6 +483,19 @@ public class Session {
         return getTwcsCompactionClause("HOURS", getCompactionWindowSizeHours(expirationHours));
     }
 
+    @Value.Immutable
+    interface BatchKey {
+        String keyspaceName();
+        String tableName();
+        ByteBuffer routingKey();
+    }
+
+    private static class PendingBatch<T> {
+
+        private final List<T> items = new ArrayList<>();
+        private int sizeBytes;
+    }
+
     private interface DoUnderThrottle {
         ResultSetFuture execute();
     }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class CollectorQueueTest {
+
+    private CollectorQueue collectorQueue;
+    private final CountDownLatch blockerStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseBlocker = new CountDownLatch(1);
+    private final StreamObserver<?> responseObserver = mock(StreamObserver.class);
+
+    @After
+    public void afterEachTest() throws Exception {
+        releaseBlocker.countDown();
+        collectorQueue.close();
+    }
+
+    @Test
+    public void shouldTakeTurnsAcrossAgents() throws Exception {
+        // given
+        collectorQueue = new CollectorQueue(1, 100, 20);
+        blockWorker();
+        List<String> processed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(5);
+
+        // when
+        offer("a", "a1", processed, done);
+        offer("a", "a2", processed, done);
+        offer("a", "a3", processed, done);
+        offer("b", "b1", processed, done);
+        offer("b", "b2", processed, done);
+        releaseBlocker.countDown();
+
+        // then
+        assertThat(done.await(10, SECONDS)).isTrue();
+        assertThat(processed).containsExactly("a1", "b1", "a2", "b2", "a3");
+    }
+
+    @Test
+    public void shouldRejectOverPerAgentLimit() throws Exception {
+        // given
+        collectorQueue = new CollectorQueue(1, 100, 3);
+        blockWorker();
+
+        // when
+        boolean accepted1 = offer("a");
+        boolean accepted2 = offer("a");
+        boolean accepted3 = offer("a");
+        boolean accepted4 = offer("a");
+        boolean acceptedOtherAgent = offer("b");
+
+        // then
+        assertThat(accepted1).isTrue();
+        assertThat(accepted2).isTrue();
+        assertThat(accepted3).isTrue();
+        assertThat(accepted4).isFalse();
+        assertThat(acceptedOtherAgent).isTrue();
+    }
+
+    @Test
+    public void shouldRejectOverGlobalLimit() throws Exception {
+        // given
+        collectorQueue = new CollectorQueue(1, 3, 20);
+        blockWorker();
+
+        // when
+        boolean accepted1 = offer("a");
+        boolean accepted2 = offer("b");
+        boolean accepted3 = offer("c");
+        boolean accepted4 = offer("d");
+
+        // then
+        assertThat(accepted1).isTrue();
+        assertThat(accepted2).isTrue();
+        assertThat(accepted3).isTrue();
+        assertThat(accepted4).isFalse();
+    }
+
+    @Test
+    public void shouldReturnResourceExhaustedWithRetryAfter() throws Exception {
+        // given
+        collectorQueue = new CollectorQueue(1, 100, 20);
+        blockWorker();
+        for (int i = 0; i < 5; i++) {
+            offer("agent" + i);
+        }
+
+        // when
+        StatusRuntimeException e = collectorQueue.newRejectedException();
+
+        // then
+        assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+        // no requests have completed yet, so the initial estimate of 1 second per request is used
+        // for the 5 queued requests plus the one in progress
+        assertThat(e.getTrailers().get(CollectorQueue.RETRY_AFTER_MILLIS_KEY)).isEqualTo("6000");
+    }
+
+    @Test
+    public void shouldCapRetryAfter() throws Exception {
+        // given
+        collectorQueue = new CollectorQueue(1, 1000, 20);
+        blockWorker();
+        for (int i = 0; i < 100; i++) {
+            offer("agent" + i);
+        }
+
+        // when
+        long retryAfterMillis = collectorQueue.getRetryAfterMillis();
+
+        // then
+        assertThat(retryAfterMillis).isEqualTo(60000);
+    }
+
+    @Test
+    public void shouldLowerRetryAfterAsRequestsCompleteQuickly() throws Exception {
+        // given
+        collectorQueue = new CollectorQueue(1, 1000, 1000);
+        CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            collectorQueue.offer("a", responseObserver, done::countDown);
+        }
+        assertThat(done.await(10, SECONDS)).isTrue();
+
+        // when
+        long retryAfterMillis = collectorQueue.getRetryAfterMillis();
+
+        // then
+        assertThat(retryAfterMillis).isEqualTo(1000);
+    }
+
+    @Test
+    public void shouldCompleteQueuedRequestsOnClose() throws Exception {
+        // given
+        collectorQueue = new CollectorQueue(1, 100, 20);
+        blockWorker();
+        StreamObserver<?> queuedResponseObserver1 = mock(StreamObserver.class);
+        StreamObserver<?> queuedResponseObserver2 = mock(StreamObserver.class);
+        collectorQueue.offer("a", queuedResponseObserver1, () -> {});
+        collectorQueue.offer("b", queuedResponseObserver2, () -> {});
+
+        // when
+        collectorQueue.close();
+
+        // then
+        ArgumentCaptor<Throwable> captor = ArgumentCaptor.forClass(Throwable.class);
+        verify(queuedResponseObserver1).onError(captor.capture());
+        assertThat(Status.fromThrowable(captor.getValue()).getCode())
+                .isEqualTo(Status.Code.UNAVAILABLE);
+        verify(queuedResponseObserver2).onError(any(StatusRuntimeException.class));
+        verify(responseObserver, never()).onError(any(Throwable.class));
+    }
+
+    // occupies the (single) worker thread until releaseBlocker is counted down
+    private void blockWorker() throws InterruptedException {
+        collectorQueue.offer("blocker", responseObserver, () -> {
+            blockerStarted.countDown();
+            try {
+                releaseBlocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertThat(blockerStarted.await(10, SECONDS)).isTrue();
+    }
+
+    private boolean offer(String agentId) {
+        return collectorQueue.offer(agentId, responseObserver, () -> {});
+    }
+
+    private void offer(String agentId, String name, List<String> processed,
+            CountDownLatch done) {
+        collectorQueue.offer(agentId, responseObserver, () -> {
+            processed.add(name);
+            done.countDown();
+        });
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,12 +15,57 @@
  */
 package org.glowroot.central;
 
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import org.glowroot.central.repo.ActiveAgentDao;
+import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.ActiveAgentRepository.AgentRollup;
+import org.glowroot.common2.repo.ImmutableAgentRollup;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class RollupServiceTest {
 
+    private ActiveAgentDao activeAgentDao;
+    private AggregateDao aggregateDao;
+    private ClusterManager clusterManager;
+    private RollupService rollupService;
+
+    @Before
+    public void beforeEachTest() {
+        activeAgentDao = mock(ActiveAgentDao.class);
+        aggregateDao = mock(AggregateDao.class);
+        clusterManager = mock(ClusterManager.class);
+        Clock clock = mock(Clock.class);
+        // so that the background loop does not run a pass during the test
+        when(clock.currentTimeMillis()).thenReturn(10000L);
+        rollupService = new RollupService(activeAgentDao, aggregateDao, mock(GaugeValueDao.class),
+                mock(SyntheticResultDao.class), mock(CentralAlertingService.class),
+                clusterManager, 4, clock);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        rollupService.close();
+    }
+
     @Test
     public void test() {
         assertThat(RollupService.millisUntilNextRollup(15000)).isEqualTo(55000);
@@ -28,4 +73,52 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldOnlyRollupLocallyOwnedAgentRollups() throws Exception {
+        // given
+        when(activeAgentDao.readRecentlyActiveAgentRollups(7)).thenReturn(ImmutableList.of(
+                agentRollup("a"), agentRollup("b"), agentRollup("c")));
+        when(clusterManager.isLocallyOwned("a")).thenReturn(true);
+        when(clusterManager.isLocallyOwned("b")).thenReturn(false);
+        when(clusterManager.isLocallyOwned("c")).thenReturn(true);
+
+        // when
+        rollupService.runInternal();
+
+        // then
+        verify(aggregateDao).rollup("a");
+        verify(aggregateDao, never()).rollup("b");
+        verify(aggregateDao).rollup("c");
+        assertThat(rollupService.getRollupMetrics().getPassCount()).isEqualTo(1);
+        assertThat(rollupService.getRollupMetrics().getLastPassAgentRollupCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRollupAgentRollupsInParallel() throws Exception {
+        // given
+        when(activeAgentDao.readRecentlyActiveAgentRollups(7)).thenReturn(ImmutableList.of(
+                agentRollup("a"), agentRollup("b"), agentRollup("c"), agentRollup("d")));
+        when(clusterManager.isLocallyOwned(anyString())).thenReturn(true);
+        // each rollup waits for all four to be in progress at the same time, which can only
+        // happen if they run in parallel
+        CyclicBarrier barrier = new CyclicBarrier(4);
+        AtomicInteger completedCount = new AtomicInteger();
+        doAnswer(invocation -> {
+            barrier.await(10, SECONDS);
+            completedCount.incrementAndGet();
+            return null;
+        }).when(aggregateDao).rollup(anyString());
+
+        // when
+        rollupService.runInternal();
+
+        // then
+        assertThat(completedCount.get()).isEqualTo(4);
+        assertThat(rollupService.getRollupMetrics().getOverrunPassCount()).isEqualTo(0);
+    }
+
+    private static AgentRollup agentRollup(String id) {
+        return ImmutableAgentRollup.of(id, id, id, ImmutableList.<AgentRollup>of());
+    }
 }
@@ -26,6 +26,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import org.glowroot.central.util.CassandraWriteMetrics;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Session;
 import org.glowroot.central.v09support.AggregateDaoWithV09Support;
@@ -77,6 +78,8 @@ public class AggregateDaoIT {
     private static AgentConfigDao agentConfigDao;
     private static ActiveAgentDao activeAgentDao;
     private static AggregateDao aggregateDao;
+    private static AggregateDaoImpl preAggregatingAggregateDaoImpl;
+    private static AggregateDao preAggregatingAggregateDao;
 
     @BeforeClass
     public static void setUp() throws Exception {
@@ -100,7 +103,12 @@ public class AggregateDaoIT {
                 rollupLevelService, Clock.systemClock());
         aggregateDao = new AggregateDaoWithV09Support(ImmutableSet.of(), 0, 0, Clock.systemClock(),
                 new AggregateDaoImpl(session, activeAgentDao, transactionTypeDao, fullQueryTextDao,
-                        configRepository, Clock.systemClock()));
+                        configRepository, clusterManager, false, 0, 5, Clock.systemClock()));
+        preAggregatingAggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao,
+                transactionTypeDao, fullQueryTextDao, configRepository, clusterManager, true, 256,
+                5, Clock.systemClock());
+        preAggregatingAggregateDao = new AggregateDaoWithV09Support(ImmutableSet.of(), 0, 0,
+                Clock.systemClock(), preAggregatingAggregateDaoImpl);
     }
 
     @AfterClass
@@ -288,6 +296,68 @@ public class AggregateDaoIT {
         assertThat(query.getExecutionCount()).isEqualTo(4);
     }
 
+    @Test
+    public void shouldRollupSameWithPreAggregation() throws Exception {
+        // given
+        agentConfigDao.store("one", AgentConfig.newBuilder()
+                .setAdvancedConfig(DEFAULT_ADVANCED_CONFIG)
+                .build());
+        aggregateDao.truncateAll();
+        storeForRollup(aggregateDao);
+        aggregateDao.rollup("one");
+        List<Object> readBackRollup = readRollupLevel1();
+        aggregateDao.truncateAll();
+        storeForRollup(preAggregatingAggregateDao);
+        assertThat(preAggregatingAggregateDaoImpl.getPreAggregationEstimatedMemoryBytes())
+                .isGreaterThan(0);
+
+        // when
+        preAggregatingAggregateDao.rollup("one");
+
+        // then
+        assertThat(preAggregatingAggregateDaoImpl.getPreAggregationEstimatedMemoryBytes())
+                .isEqualTo(0);
+        List<Object> preAggregatedRollup = readRollupLevel1();
+        assertThat(preAggregatedRollup).isEqualTo(readBackRollup);
+    }
+
+    @Test
+    public void shouldBatchSummariesAcrossTransactionNames() throws Exception {
+        // given
+        agentConfigDao.store("one", AgentConfig.newBuilder()
+                .setAdvancedConfig(DEFAULT_ADVANCED_CONFIG)
+                .build());
+        aggregateDao.truncateAll();
+        OldAggregatesByType.Builder aggregatesByType = OldAggregatesByType.newBuilder()
+                .setTransactionType("tt1")
+                .setOverallAggregate(createOverallAggregate());
+        for (int i = 0; i < 100; i++) {
+            aggregatesByType.addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                    .setTransactionName("tn" + i)
+                    .setAggregate(Aggregate.newBuilder()
+                            .setTotalDurationNanos(1234)
+                            .setTransactionCount(1)));
+        }
+        CassandraWriteMetrics cassandraWriteMetrics = session.getCassandraWriteMetrics();
+        long batchCountBefore = cassandraWriteMetrics.getBatchCount();
+        long batchedStatementCountBefore = cassandraWriteMetrics.getBatchedStatementCount();
+
+        // when
+        aggregateDao.store("one", 60000, ImmutableList.of(aggregatesByType.build()),
+                ImmutableList.of(
+                        Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build()));
+
+        // then
+        long batchCount = cassandraWriteMetrics.getBatchCount() - batchCountBefore;
+        long batchedStatementCount =
+                cassandraWriteMetrics.getBatchedStatementCount() - batchedStatementCountBefore;
+        // the summary rows of all transaction names share the (agent_rollup, transaction_type)
+        // partition, and so are batched together (the other transaction rows are partitioned by
+        // transaction name, and so are written as single statements)
+        assertThat(batchedStatementCount).isGreaterThanOrEqualTo(100);
+        assertThat(batchCount).isLessThan(10);
+    }
+
     @Test
     public void shouldRollupFromChildren() throws Exception {
 
@@ -639,6 +709,70 @@ public class AggregateDaoIT {
         assertThat(query.getExecutionCount()).isEqualTo(4);
     }
 
+    private static void storeForRollup(AggregateDao aggregateDao) throws Exception {
+        List<Aggregate.SharedQueryText> sharedQueryText = ImmutableList
+                .of(Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build());
+        aggregateDao.store("one", 60000, createData(), sharedQueryText);
+        aggregateDao.store("one", 120000, createData(), sharedQueryText);
+        aggregateDao.store("one", 360000, createData(), sharedQueryText);
+    }
+
+    private static List<Object> readRollupLevel1() throws Exception {
+        List<Object> rows = new ArrayList<>();
+        for (String transactionType : ImmutableList.of("tt0", "tt1")) {
+            OverallQuery overallQuery = ImmutableOverallQuery.builder()
+                    .transactionType(transactionType)
+                    .from(0)
+                    .to(300000)
+                    .rollupLevel(1)
+                    .build();
+            OverallSummaryCollector overallSummaryCollector = new OverallSummaryCollector();
+            aggregateDao.mergeOverallSummaryInto("one", overallQuery, overallSummaryCollector);
+            rows.add(overallSummaryCollector.getOverallSummary());
+
+            TransactionSummaryCollector transactionSummaryCollector =
+                    new TransactionSummaryCollector();
+            aggregateDao.mergeTransactionSummariesInto("one", overallQuery,
+                    SummarySortOrder.TOTAL_TIME, 10, transactionSummaryCollector);
+            rows.addAll(transactionSummaryCollector.getResult(SummarySortOrder.TOTAL_TIME, 10)
+                    .records());
+
+            OverallErrorSummaryCollector overallErrorSummaryCollector =
+                    new OverallErrorSummaryCollector();
+            aggregateDao.mergeOverallErrorSummaryInto("one", overallQuery,
+                    overallErrorSummaryCollector);
+            rows.add(overallErrorSummaryCollector.getOverallErrorSummary());
+
+            TransactionErrorSummaryCollector errorSummaryCollector =
+                    new TransactionErrorSummaryCollector();
+            aggregateDao.mergeTransactionErrorSummariesInto("one", overallQuery,
+                    ErrorSummarySortOrder.ERROR_COUNT, 10, errorSummaryCollector);
+            rows.addAll(errorSummaryCollector.getResult(ErrorSummarySortOrder.ERROR_COUNT, 10)
+                    .records());
+
+            for (String transactionName : new String[] {null, "tn1", "tn2"}) {
+                TransactionQuery transactionQuery = ImmutableTransactionQuery.builder()
+                        .transactionType(transactionType)
+                        .transactionName(transactionName)
+                        .from(0)
+                        .to(300000)
+                        .rollupLevel(1)
+                        .build();
+                rows.addAll(aggregateDao.readOverviewAggregates("one", transactionQuery));
+                rows.addAll(aggregateDao.readPercentileAggregates("one", transactionQuery));
+                rows.addAll(aggregateDao.readThroughputAggregates("one", transactionQuery));
+                QueryCollector queryCollector = new QueryCollector(1000);
+                aggregateDao.mergeQueriesInto("one", transactionQuery, queryCollector);
+                for (MutableQuery query : queryCollector.getSortedAndTruncatedQueries()) {
+                    rows.add(ImmutableList.of(query.getType(), query.getTruncatedText(),
+                            query.getTotalDurationNanos(), query.getExecutionCount(),
+                            query.hasTotalRows(), query.getTotalRows()));
+                }
+            }
+        }
+        return rows;
+    }
+
     private static List<OldAggregatesByType> createData() {
         List<OldAggregatesByType> aggregatesByType = new ArrayList<>();
         aggregatesByType.add(OldAggregatesByType.newBuilder()
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+import java.util.UUID;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.AggregatePreAggregator.AggregateRollup;
+import org.glowroot.central.repo.AggregatePreAggregator.TransactionTypeRollup;
+import org.glowroot.central.repo.AggregatePreAggregator.Window;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.MutableAggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregatePreAggregatorTest {
+
+    private static final long INTERVAL_MILLIS = 300000;
+
+    private AggregatePreAggregator preAggregator;
+
+    @Before
+    public void beforeEachTest() {
+        preAggregator =
+                new AggregatePreAggregator(ClusterManager.create(), 1024 * 1024,
+                        Clock.systemClock());
+    }
+
+    @Test
+    public void shouldMergeIntoWindow() {
+        // given
+        long rollupCaptureTime = getRollupCaptureTime();
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        add(rollupCaptureTime - 240000, rollupCaptureTime, uniqueness1, 3, 1);
+        add(rollupCaptureTime - 180000, rollupCaptureTime, uniqueness2, 5, 0);
+
+        // when
+        Window window = preAggregator.remove("agent1", rollupCaptureTime,
+                ImmutableSet.of(uniqueness1, uniqueness2));
+
+        // then
+        assertThat(window).isNotNull();
+        TransactionTypeRollup transactionTypeRollup =
+                window.getTransactionTypeRollups().get("Web");
+        MutableAggregate overall = transactionTypeRollup.getOverall().getAggregate();
+        assertThat(overall.getTransactionCount()).isEqualTo(8);
+        assertThat(overall.getErrorCount()).isEqualTo(1);
+        assertThat(overall.getTotalDurationNanos()).isEqualTo(8000);
+        assertThat(overall.getQueries().getSortedAndTruncatedQueries()).hasSize(1);
+        assertThat(overall.getQueries().getSortedAndTruncatedQueries().get(0).getExecutionCount())
+                .isEqualTo(16);
+        AggregateRollup transaction = transactionTypeRollup.getTransactions().get("/abc");
+        assertThat(transaction.getAggregate().getTransactionCount()).isEqualTo(8);
+        // only includes the 1-minute aggregate that had errors
+        assertThat(transaction.getErrorSummaryTransactionCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldNotReturnWindowWithMissingUpload() {
+        // given
+        long rollupCaptureTime = getRollupCaptureTime();
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        add(rollupCaptureTime - 240000, rollupCaptureTime, uniqueness1, 3, 1);
+
+        // when
+        Window window = preAggregator.remove("agent1", rollupCaptureTime,
+                ImmutableSet.of(uniqueness1, uniqueness2));
+
+        // then
+        assertThat(window).isNull();
+    }
+
+    @Test
+    public void shouldNotReturnWindowWithDuplicateUpload() {
+        // given
+        long rollupCaptureTime = getRollupCaptureTime();
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        add(rollupCaptureTime - 240000, rollupCaptureTime, uniqueness1, 3, 1);
+        add(rollupCaptureTime - 240000, rollupCaptureTime, uniqueness2, 3, 1);
+
+        // when
+        Window window = preAggregator.remove("agent1", rollupCaptureTime,
+                ImmutableSet.of(uniqueness1, uniqueness2));
+
+        // then
+        assertThat(window).isNull();
+    }
+
+    @Test
+    public void shouldNotMergeIntoRemovedWindow() {
+        // given
+        long rollupCaptureTime = getRollupCaptureTime();
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        add(rollupCaptureTime - 240000, rollupCaptureTime, uniqueness1, 3, 1);
+        preAggregator.remove("agent1", rollupCaptureTime, ImmutableSet.of(uniqueness1));
+
+        // when
+        add(rollupCaptureTime - 180000, rollupCaptureTime, uniqueness2, 5, 0);
+        Window window = preAggregator.remove("agent1", rollupCaptureTime,
+                ImmutableSet.of(uniqueness1, uniqueness2));
+
+        // then
+        assertThat(window).isNull();
+    }
+
+    @Test
+    public void shouldReleaseMemoryWhenWindowIsRemoved() {
+        // given
+        long rollupCaptureTime = getRollupCaptureTime();
+        UUID uniqueness1 = UUID.randomUUID();
+        add(rollupCaptureTime - 240000, rollupCaptureTime, uniqueness1, 3, 1);
+        assertThat(preAggregator.getEstimatedMemoryBytes()).isGreaterThan(0);
+
+        // when
+        preAggregator.remove("agent1", rollupCaptureTime, ImmutableSet.of(uniqueness1));
+
+        // then
+        assertThat(preAggregator.getEstimatedMemoryBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotReturnWindowOverMemoryCap() {
+        // given
+        long rollupCaptureTime = getRollupCaptureTime();
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        add(rollupCaptureTime - 240000, rollupCaptureTime, uniqueness1, 3, 1);
+        long oneUploadBytes = preAggregator.getEstimatedMemoryBytes();
+        // room for one and a half uploads
+        preAggregator = new AggregatePreAggregator(ClusterManager.create(),
+                oneUploadBytes * 3 / 2, Clock.systemClock());
+        add(rollupCaptureTime - 240000, rollupCaptureTime, uniqueness1, 3, 1);
+
+        // when
+        add(rollupCaptureTime - 180000, rollupCaptureTime, uniqueness2, 3, 1);
+
+        // then
+        assertThat(preAggregator.getEstimatedMemoryBytes()).isEqualTo(0);
+        assertThat(preAggregator.remove("agent1", rollupCaptureTime,
+                ImmutableSet.of(uniqueness1, uniqueness2))).isNull();
+    }
+
+    private void add(long captureTime, long rollupCaptureTime, UUID uniqueness,
+            int transactionCount, int errorCount) {
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(1000 * transactionCount)
+                .setTransactionCount(transactionCount)
+                .setErrorCount(errorCount)
+                .addQuery(Aggregate.Query.newBuilder()
+                        .setType("SQL")
+                        .setSharedQueryTextIndex(0)
+                        .setTotalDurationNanos(100)
+                        .setExecutionCount(2 * transactionCount))
+                .build();
+        List<OldAggregatesByType> aggregatesByTypeList =
+                ImmutableList.of(OldAggregatesByType.newBuilder()
+                        .setTransactionType("Web")
+                        .setOverallAggregate(aggregate)
+                        .addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                                .setTransactionName("/abc")
+                                .setAggregate(aggregate))
+                        .build());
+        List<Aggregate.SharedQueryText> sharedQueryTexts =
+                ImmutableList.of(Aggregate.SharedQueryText.newBuilder()
+                        .setFullText("select 1")
+                        .build());
+        preAggregator.add("agent1", captureTime, rollupCaptureTime, INTERVAL_MILLIS, uniqueness,
+                aggregatesByTypeList, sharedQueryTexts, 500, 500);
+    }
+
+    private static long getRollupCaptureTime() {
+        long currentTime = System.currentTimeMillis();
+        return (currentTime / INTERVAL_MILLIS + 1) * INTERVAL_MILLIS;
+    }
+}
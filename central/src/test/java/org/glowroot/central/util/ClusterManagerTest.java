@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClusterManagerTest {
+
+    private static final int KEY_COUNT = 10000;
+
+    @Test
+    public void shouldPartitionKeysAcrossMembers() {
+        // given
+        List<String> members = ImmutableList.of("node1", "node2", "node3", "node4");
+
+        // when
+        Map<String, Integer> ownedCounts = Maps.newHashMap();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            String owner = ClusterManager.getOwner("agent-" + i, members);
+            Integer count = ownedCounts.get(owner);
+            ownedCounts.put(owner, count == null ? 1 : count + 1);
+        }
+
+        // then
+        assertThat(ownedCounts.keySet()).containsExactlyInAnyOrderElementsOf(members);
+        for (int count : ownedCounts.values()) {
+            // expected 2500 each
+            assertThat(count).isBetween(2000, 3000);
+        }
+    }
+
+    @Test
+    public void shouldNotDependOnMemberOrder() {
+        // given
+        List<String> members = ImmutableList.of("node1", "node2", "node3", "node4");
+
+        // when
+        List<String> reversedMembers = Lists.reverse(members);
+
+        // then
+        for (int i = 0; i < KEY_COUNT; i++) {
+            String key = "agent-" + i;
+            assertThat(ClusterManager.getOwner(key, reversedMembers))
+                    .isEqualTo(ClusterManager.getOwner(key, members));
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveKeysToNewMemberWhenMemberJoins() {
+        // given
+        List<String> members = ImmutableList.of("node1", "node2", "node3", "node4");
+        List<String> membersAfterJoin =
+                ImmutableList.of("node1", "node2", "node3", "node4", "node5");
+
+        // when
+        int movedCount = 0;
+        for (int i = 0; i < KEY_COUNT; i++) {
+            String key = "agent-" + i;
+            String owner = ClusterManager.getOwner(key, members);
+            String ownerAfterJoin = ClusterManager.getOwner(key, membersAfterJoin);
+            if (!ownerAfterJoin.equals(owner)) {
+                assertThat(ownerAfterJoin).isEqualTo("node5");
+                movedCount++;
+            }
+        }
+
+        // then
+        // expected 2000 (one fifth)
+        assertThat(movedCount).isBetween(1500, 2500);
+    }
+
+    @Test
+    public void shouldOnlyMoveKeysOfMemberThatLeaves() {
+        // given
+        List<String> members = ImmutableList.of("node1", "node2", "node3", "node4");
+        List<String> membersAfterLeave = ImmutableList.of("node1", "node2", "node4");
+
+        // then
+        for (int i = 0; i < KEY_COUNT; i++) {
+            String key = "agent-" + i;
+            String owner = ClusterManager.getOwner(key, members);
+            if (!owner.equals("node3")) {
+                assertThat(ClusterManager.getOwner(key, membersAfterLeave)).isEqualTo(owner);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.WriteType;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrencyLimiterTest {
+
+    private FakeTicker ticker;
+    private ConcurrencyLimiter concurrencyLimiter;
+
+    @Before
+    public void beforeEachTest() {
+        ticker = new FakeTicker();
+        concurrencyLimiter = new ConcurrencyLimiter(ticker);
+    }
+
+    @Test
+    public void shouldIncreaseLimitWhileInUse() throws Exception {
+        // given
+        int initialLimit = concurrencyLimiter.getLimit();
+        long[] startTicks = new long[initialLimit];
+        for (int i = 0; i < initialLimit; i++) {
+            startTicks[i] = concurrencyLimiter.acquire(false);
+        }
+
+        // when
+        ticker.advance(MILLISECONDS.toNanos(1));
+        for (int j = 0; j < 2; j++) {
+            for (int i = 0; i < initialLimit; i++) {
+                concurrencyLimiter.release(startTicks[i], true, null);
+                startTicks[i] = concurrencyLimiter.acquire(false);
+            }
+        }
+
+        // then
+        assertThat(concurrencyLimiter.getLimit()).isEqualTo(initialLimit + 1);
+        assertThat(concurrencyLimiter.getInFlight()).isEqualTo(initialLimit);
+        assertThat(concurrencyLimiter.getBackoffCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotIncreaseLimitWhenNotInUse() throws Exception {
+        // given
+        int initialLimit = concurrencyLimiter.getLimit();
+
+        // when
+        for (int i = 0; i < initialLimit * 10; i++) {
+            long startTick = concurrencyLimiter.acquire(false);
+            ticker.advance(MILLISECONDS.toNanos(1));
+            concurrencyLimiter.release(startTick, true, null);
+        }
+
+        // then
+        assertThat(concurrencyLimiter.getLimit()).isEqualTo(initialLimit);
+    }
+
+    @Test
+    public void shouldBackOffOnTimeout() throws Exception {
+        // given
+        int initialLimit = concurrencyLimiter.getLimit();
+        long startTick1 = concurrencyLimiter.acquire(false);
+        long startTick2 = concurrencyLimiter.acquire(false);
+        long startTick3 = concurrencyLimiter.acquire(false);
+
+        // when
+        ticker.advance(SECONDS.toNanos(2));
+        concurrencyLimiter.release(startTick1, true, newWriteTimeoutException());
+        // second timeout from the same congestion event
+        concurrencyLimiter.release(startTick2, true, newWriteTimeoutException());
+        ticker.advance(SECONDS.toNanos(1));
+        concurrencyLimiter.release(startTick3, true, newWriteTimeoutException());
+
+        // then
+        assertThat(concurrencyLimiter.getLimit()).isEqualTo((int) (initialLimit * 0.9 * 0.9));
+        assertThat(concurrencyLimiter.getBackoffCount()).isEqualTo(2);
+        assertThat(concurrencyLimiter.getInFlight()).isZero();
+    }
+
+    @Test
+    public void shouldBackOffOnSlowWrite() throws Exception {
+        // given
+        int initialLimit = concurrencyLimiter.getLimit();
+        long startTick = concurrencyLimiter.acquire(false);
+        ticker.advance(MILLISECONDS.toNanos(2));
+        concurrencyLimiter.release(startTick, true, null);
+
+        // when
+        startTick = concurrencyLimiter.acquire(false);
+        ticker.advance(MILLISECONDS.toNanos(500));
+        concurrencyLimiter.release(startTick, true, null);
+
+        // then
+        assertThat(concurrencyLimiter.getLimit()).isEqualTo((int) (initialLimit * 0.9));
+    }
+
+    @Test
+    public void shouldNotBackOffOnSlowRead() throws Exception {
+        // given
+        int initialLimit = concurrencyLimiter.getLimit();
+        long startTick = concurrencyLimiter.acquire(false);
+        ticker.advance(MILLISECONDS.toNanos(2));
+        concurrencyLimiter.release(startTick, true, null);
+
+        // when
+        startTick = concurrencyLimiter.acquire(false);
+        ticker.advance(MILLISECONDS.toNanos(500));
+        concurrencyLimiter.release(startTick, false, null);
+
+        // then
+        assertThat(concurrencyLimiter.getLimit()).isEqualTo(initialLimit);
+    }
+
+    @Test
+    public void shouldNotBackOffBelowMinLimit() throws Exception {
+        // when
+        for (int i = 0; i < 1000; i++) {
+            long startTick = concurrencyLimiter.acquire(false);
+            ticker.advance(SECONDS.toNanos(1));
+            concurrencyLimiter.release(startTick, true, newWriteTimeoutException());
+        }
+
+        // then
+        assertThat(concurrencyLimiter.getLimit()).isEqualTo(ConcurrencyLimiter.MIN_LIMIT);
+    }
+
+    @Test
+    public void shouldNotBlockWhenForced() throws Exception {
+        // given
+        int initialLimit = concurrencyLimiter.getLimit();
+        for (int i = 0; i < initialLimit; i++) {
+            concurrencyLimiter.acquire(false);
+        }
+
+        // when
+        concurrencyLimiter.acquire(true);
+
+        // then
+        assertThat(concurrencyLimiter.getInFlight()).isEqualTo(initialLimit + 1);
+    }
+
+    private static WriteTimeoutException newWriteTimeoutException() {
+        return new WriteTimeoutException(ConsistencyLevel.ONE, WriteType.SIMPLE, 0, 1);
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private long nanos = 123456789;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        private void advance(long nanos) {
+            this.nanos += nanos;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionTest {
+
+    @Test
+    public void shouldGroupByTableAndPartitionKey() {
+        // given
+        List<Item> items = ImmutableList.of(
+                new Item("overview", "a", 10),
+                new Item("histogram", "a", 10),
+                new Item("overview", "b", 10),
+                new Item("overview", "a", 10),
+                new Item("histogram", "a", 10));
+
+        // when
+        List<List<Item>> batches = group(items, 100);
+
+        // then
+        assertThat(batches).hasSize(3);
+        assertThat(batches.get(0)).containsExactly(items.get(0), items.get(3));
+        assertThat(batches.get(1)).containsExactly(items.get(1), items.get(4));
+        assertThat(batches.get(2)).containsExactly(items.get(2));
+    }
+
+    @Test
+    public void shouldSplitBatchesAtSizeLimit() {
+        // given
+        List<Item> items = ImmutableList.of(
+                new Item("overview", "a", 40),
+                new Item("overview", "a", 40),
+                new Item("overview", "a", 40),
+                new Item("overview", "a", 40),
+                new Item("overview", "a", 20));
+
+        // when
+        List<List<Item>> batches = group(items, 100);
+
+        // then
+        assertThat(batches).hasSize(2);
+        assertThat(batches.get(0)).containsExactly(items.get(0), items.get(1));
+        assertThat(batches.get(1)).containsExactly(items.get(2), items.get(3), items.get(4));
+    }
+
+    @Test
+    public void shouldExecuteOversizeItemsSeparately() {
+        // given
+        List<Item> items = ImmutableList.of(
+                new Item("overview", "a", 10),
+                new Item("overview", "a", 100),
+                new Item("overview", "a", 500),
+                new Item("overview", "a", 10));
+
+        // when
+        List<List<Item>> batches = group(items, 100);
+
+        // then
+        assertThat(batches).hasSize(3);
+        assertThat(batches.get(0)).containsExactly(items.get(1));
+        assertThat(batches.get(1)).containsExactly(items.get(2));
+        assertThat(batches.get(2)).containsExactly(items.get(0), items.get(3));
+    }
+
+    @Test
+    public void shouldExecuteItemsWithoutPartitionKeySeparately() {
+        // given
+        List<Item> items = ImmutableList.of(
+                new Item("overview", null, 10),
+                new Item("overview", null, 10));
+
+        // when
+        List<List<Item>> batches = group(items, 100);
+
+        // then
+        assertThat(batches).hasSize(2);
+        assertThat(batches.get(0)).containsExactly(items.get(0));
+        assertThat(batches.get(1)).containsExactly(items.get(1));
+    }
+
+    private static List<List<Item>> group(List<Item> items, int batchSizeLimitBytes) {
+        return Session.groupIntoBatches(items, item -> item.getBatchKey(),
+                item -> item.sizeBytes, batchSizeLimitBytes);
+    }
+
+    private static class Item {
+
+        private final String tableName;
+        private final /*@Nullable*/ String partitionKey;
+        private final int sizeBytes;
+
+        private Item(String tableName, /*@Nullable*/ String partitionKey, int sizeBytes) {
+            this.tableName = tableName;
+            this.partitionKey = partitionKey;
+            this.sizeBytes = sizeBytes;
+        }
+
+        private /*@Nullable*/ Object getBatchKey() {
+            if (partitionKey == null) {
+                return null;
+            }
+            return ImmutableList.of(tableName, partitionKey);
+        }
+    }
+}
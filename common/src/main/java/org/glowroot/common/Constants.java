@@ -22,5 +22,9 @@ public class Constants {
 
     public static final int RESOLVED_INCIDENT_EXPIRATION_HOURS = 30 * 24;
 
+    // grpc trailer sent by the central collector when it rejects a collection request due to
+    // backlog, telling the agent how long to wait before retrying
+    public static final String GRPC_RETRY_AFTER_MILLIS_HEADER = "glowroot-retry-after-millis";
+
     private Constants() {}
 }
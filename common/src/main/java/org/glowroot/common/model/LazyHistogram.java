@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -30,19 +30,43 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 public class LazyHistogram {
 
+    // "lazy" (the default) stores raw values until there are MAX_VALUES of them, and then converts
+    // to a high precision histogram
+    //
+    // "compact" records directly into a lower precision histogram, which is much smaller both in
+    // memory and when encoded, and is cheaper to merge, at the cost of percentiles only being
+    // accurate to within 1%
+    private static final boolean COMPACT_ENGINE =
+            "compact".equals(System.getProperty("glowroot.internal.histogram.engine"));
+
     private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
+    private static final int COMPACT_HISTOGRAM_SIGNIFICANT_DIGITS = 2;
+    // pre-sized to track up to one minute without resizing (auto resize is still enabled for
+    // longer values)
+    private static final long COMPACT_HISTOGRAM_INITIAL_HIGHEST_VALUE = 60 * 1000000000L;
+
     private static final int MAX_VALUES = 1024;
 
+    private final boolean compact;
+
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
 
     private @MonotonicNonNull Histogram histogram;
 
-    public LazyHistogram() {}
+    public LazyHistogram() {
+        this(COMPACT_ENGINE);
+    }
+
+    @VisibleForTesting
+    LazyHistogram(boolean compact) {
+        this.compact = compact;
+    }
 
     // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
+        compact = false;
         ByteString encodedBytes = hist.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
             List<Long> orderedRawValues = hist.getOrderedRawValueList();
@@ -91,10 +115,21 @@ public class LazyHistogram {
                 add(rawValue);
             }
         } else {
+            Histogram decodedHistogram =
+                    Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+            if (histogram == null && size == 0 && decodedHistogram
+                    .getNumberOfSignificantValueDigits() == getSignificantDigits()) {
+                // nothing to merge into, so adopt the decoded histogram instead of allocating
+                // another one and copying into it (this is the common case when rolling up)
+                decodedHistogram.setAutoResize(true);
+                histogram = decodedHistogram;
+                values = new long[0];
+                return;
+            }
             if (histogram == null) {
                 convertValuesToHistogram();
             }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+            histogram.add(decodedHistogram);
         }
     }
 
@@ -131,6 +166,13 @@ public class LazyHistogram {
 
     @VisibleForTesting
     public void add(long value) {
+        if (compact) {
+            if (histogram == null) {
+                convertValuesToHistogram();
+            }
+            histogram.recordValue(value);
+            return;
+        }
         ensureCapacity(size + 1);
         if (histogram != null) {
             histogram.recordValue(value);
@@ -159,7 +201,12 @@ public class LazyHistogram {
     @EnsuresNonNull("histogram")
     private void convertValuesToHistogram() {
         // tracking nanoseconds, but only at microsecond precision (to save histogram space)
-        histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
+        if (compact) {
+            histogram = new Histogram(1000, COMPACT_HISTOGRAM_INITIAL_HIGHEST_VALUE,
+                    COMPACT_HISTOGRAM_SIGNIFICANT_DIGITS);
+        } else {
+            histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
+        }
         histogram.setAutoResize(true);
         for (int i = 0; i < size; i++) {
             histogram.recordValue(values[i]);
@@ -167,6 +214,10 @@ public class LazyHistogram {
         values = new long[0];
     }
 
+    private int getSignificantDigits() {
+        return compact ? COMPACT_HISTOGRAM_SIGNIFICANT_DIGITS : HISTOGRAM_SIGNIFICANT_DIGITS;
+    }
+
     private void sortValues() {
         Arrays.sort(values, 0, size);
         sorted = true;
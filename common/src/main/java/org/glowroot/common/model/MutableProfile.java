@@ -16,9 +16,7 @@
 package org.glowroot.common.model;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -27,21 +25,18 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.PeekingIterator;
-import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
-import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.ObjectMappers;
-import org.glowroot.common.util.Traverser;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+// the profile tree is stored column-wise in parallel primitive arrays indexed by node id (instead
+// of one object per node with a child list), which keeps large merged profiles compact and makes
+// child lookup a single probe into a hash table keyed on (parent node, frame)
 public class MutableProfile {
 
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
@@ -58,31 +53,70 @@ public class MutableProfile {
     private final List<String> methodNames = Lists.newArrayList();
     private final List<String> fileNames = Lists.newArrayList();
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    private NodeTable nodes = new NodeTable(16);
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
-    // this method is not used that often (only for traces with > 20 stack trace samples) so ok
-    // that it does not have most optimal implementation (converts unnecessarily to profile tree)
     public void merge(MutableProfile profile) {
-        merge(profile.toProto());
+        int[] packageNameIndexMapping =
+                makeIndexMapping(profile.packageNames, packageNameIndexes, packageNames);
+        int[] classNameIndexMapping =
+                makeIndexMapping(profile.classNames, classNameIndexes, classNames);
+        int[] methodNameIndexMapping =
+                makeIndexMapping(profile.methodNames, methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping =
+                makeIndexMapping(profile.fileNames, fileNameIndexes, fileNames);
+        NodeTable from = profile.nodes;
+        // parent node ids are always lower than their child node ids, and sibling node ids are
+        // always in sibling order, so walking node ids in order preserves first-seen child order
+        int[] nodeMapping = new int[from.size];
+        for (int node = 1; node < from.size; node++) {
+            int destinationNode = nodes.getOrAddChild(nodeMapping[from.parents[node]],
+                    packageNameIndexMapping[from.packageNameIndexes[node]],
+                    classNameIndexMapping[from.classNameIndexes[node]],
+                    methodNameIndexMapping[from.methodNameIndexes[node]],
+                    fileNameIndexMapping[from.fileNameIndexes[node]], from.lineNumbers[node],
+                    from.leafThreadStates[node]);
+            nodes.sampleCounts[destinationNode] += from.sampleCounts[node];
+            nodeMapping[node] = destinationNode;
+        }
     }
 
     public void merge(Profile profile) {
-        Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        int[] packageNameIndexMapping =
+                makeIndexMapping(profile.getPackageNameList(), packageNameIndexes, packageNames);
+        int[] classNameIndexMapping =
+                makeIndexMapping(profile.getClassNameList(), classNameIndexes, classNames);
+        int[] methodNameIndexMapping =
+                makeIndexMapping(profile.getMethodNameList(), methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping =
+                makeIndexMapping(profile.getFileNameList(), fileNameIndexes, fileNames);
+        // destinationStack[depth] is the node that flat nodes at the given depth are merged under
+        int[] destinationStack = new int[16];
+        destinationStack[0] = NodeTable.ROOT;
+        for (Profile.ProfileNode flatNode : profile.getNodeList()) {
+            int depth = flatNode.getDepth();
+            if (depth + 1 >= destinationStack.length) {
+                destinationStack = Arrays.copyOf(destinationStack,
+                        Math.max(depth + 2, destinationStack.length * 2));
+            }
+            int destinationNode = nodes.getOrAddChild(destinationStack[depth],
+                    packageNameIndexMapping[flatNode.getPackageNameIndex()],
+                    classNameIndexMapping[flatNode.getClassNameIndex()],
+                    methodNameIndexMapping[flatNode.getMethodNameIndex()],
+                    fileNameIndexMapping[flatNode.getFileNameIndex()], flatNode.getLineNumber(),
+                    flatNode.getLeafThreadStateValue());
+            nodes.sampleCounts[destinationNode] += flatNode.getSampleCount();
+            destinationStack[depth + 1] = destinationNode;
+        }
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
-        PeekingIterator<StackTraceElement> i =
-                Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
-
+        int node = NodeTable.ROOT;
         boolean lookingForMatch = true;
-        while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
+        for (int i = stackTraceElements.size() - 1; i >= 0; i--) {
+            StackTraceElement stackTraceElement = stackTraceElements.get(i);
             String fullClassName = stackTraceElement.getClassName();
             int index = fullClassName.lastIndexOf('.');
             String packageName;
@@ -102,85 +136,78 @@ public class MutableProfile {
             int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
                     fileNameIndexes, fileNames);
             int lineNumber = stackTraceElement.getLineNumber();
-            Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
-
-            ProfileNode node = null;
+            int leafThreadState = i == 0 ? getThreadState(threadState).getNumber()
+                    : Profile.LeafThreadState.NONE_VALUE;
             if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
+                int childNode = nodes.getChild(node, packageNameIndex, classNameIndex,
+                        methodNameIndex, fileNameIndex, lineNumber, leafThreadState);
+                if (childNode == NodeTable.NONE) {
+                    // newly added nodes have no children, so no need to keep looking
+                    lookingForMatch = false;
+                    node = nodes.addChild(node, packageNameIndex, classNameIndex, methodNameIndex,
+                            fileNameIndex, lineNumber, leafThreadState);
+                } else {
+                    node = childNode;
                 }
-            }
-            if (node == null) {
-                lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
+            } else {
+                node = nodes.addChild(node, packageNameIndex, classNameIndex, methodNameIndex,
                         fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
             }
-            node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            nodes.sampleCounts[node]++;
         }
     }
 
     public void filter(List<String> includes, List<String> excludes) {
         unfilteredSampleCount = getSampleCount();
+        ProfileFilterer filterer = new ProfileFilterer();
         for (String include : includes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, include, false).traverse();
-                if (rootNode.matched) {
-                    new ProfileResetMatches(rootNode).traverse();
-                } else {
-                    i.remove();
-                }
-            }
+            filterer.filter(include, false);
         }
         for (String exclude : excludes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, exclude, true).traverse();
-                if (rootNode.matched) {
-                    i.remove();
-                }
-            }
+            filterer.filter(exclude, true);
         }
+        nodes = nodes.compact();
     }
 
     public void truncateBranches(int minSamples) {
-        Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>();
-        for (ProfileNode rootNode : rootNodes) {
-            toBeVisited.add(rootNode);
-        }
-        ProfileNode node;
-        while ((node = toBeVisited.poll()) != null) {
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (childNode.sampleCount < minSamples) {
-                    i.remove();
+        int[] toBeVisited = new int[nodes.size];
+        int head = 0;
+        int tail = 0;
+        for (int rootNode = nodes.firstChilds[NodeTable.ROOT]; rootNode != NodeTable.NONE;
+                rootNode = nodes.nextSiblings[rootNode]) {
+            toBeVisited[tail++] = rootNode;
+        }
+        while (head < tail) {
+            int node = toBeVisited[head++];
+            int prevChildNode = NodeTable.NONE;
+            int childNode = nodes.firstChilds[node];
+            while (childNode != NodeTable.NONE) {
+                int nextChildNode = nodes.nextSiblings[childNode];
+                if (nodes.sampleCounts[childNode] < minSamples) {
+                    nodes.unlink(node, prevChildNode, childNode);
                     // TODO capture sampleCount per timerName of non-ellipsed structure
                     // and use this in UI dropdown filter of timer names
                     // (currently sampleCount per timerName of ellipsed structure is used)
-                    node.ellipsedSampleCount += childNode.sampleCount;
+                    nodes.ellipsedSampleCounts[node] += nodes.sampleCounts[childNode];
                 } else {
-                    toBeVisited.add(childNode);
+                    toBeVisited[tail++] = childNode;
+                    prevChildNode = childNode;
                 }
+                childNode = nextChildNode;
             }
         }
+        nodes = nodes.compact();
     }
 
     public boolean isEmpty() {
-        return rootNodes.isEmpty();
+        return nodes.firstChilds[NodeTable.ROOT] == NodeTable.NONE;
     }
 
     public long getSampleCount() {
         long sampleCount = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            sampleCount += rootNode.sampleCount;
+        for (int rootNode = nodes.firstChilds[NodeTable.ROOT]; rootNode != NodeTable.NONE;
+                rootNode = nodes.nextSiblings[rootNode]) {
+            sampleCount += nodes.sampleCounts[rootNode];
         }
         return sampleCount;
     }
@@ -194,16 +221,29 @@ public class MutableProfile {
     }
 
     public Profile toProto() {
-        List<Profile.ProfileNode> nodes = Lists.newArrayList();
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileNodeCollector(rootNode, nodes).traverse();
-        }
+        final List<Profile.ProfileNode> flatNodes = Lists.newArrayListWithCapacity(nodes.size - 1);
+        new NodeTraverser<RuntimeException>() {
+            @Override
+            boolean visit(int node, int depth) {
+                flatNodes.add(Profile.ProfileNode.newBuilder()
+                        .setDepth(depth)
+                        .setPackageNameIndex(nodes.packageNameIndexes[node])
+                        .setClassNameIndex(nodes.classNameIndexes[node])
+                        .setMethodNameIndex(nodes.methodNameIndexes[node])
+                        .setFileNameIndex(nodes.fileNameIndexes[node])
+                        .setLineNumber(nodes.lineNumbers[node])
+                        .setLeafThreadStateValue(nodes.leafThreadStates[node])
+                        .setSampleCount(nodes.sampleCounts[node])
+                        .build());
+                return true;
+            }
+        }.traverseAll();
         return Profile.newBuilder()
                 .addAllPackageName(packageNames)
                 .addAllClassName(classNames)
                 .addAllMethodName(methodNames)
                 .addAllFileName(fileNames)
-                .addAllNode(nodes)
+                .addAllNode(flatNodes)
                 .build();
     }
 
@@ -219,9 +259,7 @@ public class MutableProfile {
         jg.writeStartObject();
         jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileWriter(rootNode, jg).traverse();
-        }
+        new ProfileWriter(jg).traverseAll();
         jg.writeEndArray();
         jg.writeEndObject();
     }
@@ -233,16 +271,15 @@ public class MutableProfile {
             jg.writeStartObject();
             jg.writeNumberField("totalSampleCount", getSampleCount());
             jg.writeArrayFieldStart("rootNodes");
-            int height = 0;
-            for (ProfileNode rootNode : rootNodes) {
-                if (rootNode.sampleCount > rootNode.ellipsedSampleCount) {
-                    FlameGraphWriter flameGraphWriter = new FlameGraphWriter(rootNode, jg);
-                    flameGraphWriter.traverse();
-                    height = Math.max(height, flameGraphWriter.height);
+            FlameGraphWriter flameGraphWriter = new FlameGraphWriter(jg);
+            for (int rootNode = nodes.firstChilds[NodeTable.ROOT]; rootNode != NodeTable.NONE;
+                    rootNode = nodes.nextSiblings[rootNode]) {
+                if (nodes.sampleCounts[rootNode] > nodes.ellipsedSampleCounts[rootNode]) {
+                    flameGraphWriter.traverse(rootNode);
                 }
             }
             jg.writeEndArray();
-            jg.writeNumberField("height", height);
+            jg.writeNumberField("height", flameGraphWriter.height);
             jg.writeEndObject();
         } finally {
             jg.close();
@@ -250,6 +287,20 @@ public class MutableProfile {
         return sb.toString();
     }
 
+    private String getText(int node) {
+        String packageName = packageNames.get(nodes.packageNameIndexes[node]);
+        String className = classNames.get(nodes.classNameIndexes[node]);
+        String fullClassName;
+        if (packageName.isEmpty()) {
+            fullClassName = className;
+        } else {
+            fullClassName = packageName + '.' + className;
+        }
+        return new StackTraceElement(fullClassName,
+                methodNames.get(nodes.methodNameIndexes[node]),
+                fileNames.get(nodes.fileNameIndexes[node]), nodes.lineNumbers[node]).toString();
+    }
+
     private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
             List<String> names) {
         Integer index = nameIndexes.get(name);
@@ -284,16 +335,10 @@ public class MutableProfile {
         }
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
+    private static Profile.LeafThreadState getLeafThreadState(int leafThreadStateValue) {
+        Profile.LeafThreadState leafThreadState =
+                Profile.LeafThreadState.forNumber(leafThreadStateValue);
+        return leafThreadState == null ? Profile.LeafThreadState.UNRECOGNIZED : leafThreadState;
     }
 
     private static int[] makeIndexMapping(List<String> toBeMergedNames,
@@ -314,227 +359,350 @@ public class MutableProfile {
         return indexMapping;
     }
 
-    private class ProfileNode {
-
-        private final int packageNameIndex;
-        private final int classNameIndex;
-        private final int methodNameIndex;
-        private final int fileNameIndex;
-        private final int lineNumber;
-        private final Profile.LeafThreadState leafThreadState;
-
-        private long sampleCount;
-
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
-
-        // these fields are only used for filtering
-        private @Nullable String text;
-        private @Nullable String textUpper;
-        private boolean matched;
-        private long ellipsedSampleCount;
-
-        private ProfileNode(int packageNameIndex, int classNameIndex, int methodNameIndex,
-                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
-            this.packageNameIndex = packageNameIndex;
-            this.classNameIndex = classNameIndex;
-            this.methodNameIndex = methodNameIndex;
-            this.fileNameIndex = fileNameIndex;
-            this.lineNumber = lineNumber;
-            this.leafThreadState = leafThreadState;
-        }
-
-        private String getText() {
-            if (text == null) {
-                String packageName = packageNames.get(packageNameIndex);
-                String className = classNames.get(classNameIndex);
-                String fullClassName;
-                if (packageName.isEmpty()) {
-                    fullClassName = className;
-                } else {
-                    fullClassName = packageName + '.' + className;
+    // node 0 is a synthetic root whose children are the profile's root nodes, which lets root nodes
+    // be looked up and ordered the same way as any other child nodes
+    private static class NodeTable {
+
+        private static final int ROOT = 0;
+        // the synthetic root is never a child or sibling, so its id doubles as the "no node" marker
+        private static final int NONE = 0;
+
+        private int size = 1;
+
+        private int[] parents;
+        private int[] firstChilds;
+        private int[] lastChilds;
+        private int[] nextSiblings;
+
+        private int[] packageNameIndexes;
+        private int[] classNameIndexes;
+        private int[] methodNameIndexes;
+        private int[] fileNameIndexes;
+        private int[] lineNumbers;
+        private int[] leafThreadStates;
+
+        private long[] sampleCounts;
+        private long[] ellipsedSampleCounts;
+
+        // open-addressing (linear probing) table of node ids, keyed on parent node id plus frame,
+        // kept at most half full
+        private int[] childLookup;
+
+        private NodeTable(int capacity) {
+            parents = new int[capacity];
+            firstChilds = new int[capacity];
+            lastChilds = new int[capacity];
+            nextSiblings = new int[capacity];
+            packageNameIndexes = new int[capacity];
+            classNameIndexes = new int[capacity];
+            methodNameIndexes = new int[capacity];
+            fileNameIndexes = new int[capacity];
+            lineNumbers = new int[capacity];
+            leafThreadStates = new int[capacity];
+            sampleCounts = new long[capacity];
+            ellipsedSampleCounts = new long[capacity];
+            childLookup = new int[tableSizeFor(capacity)];
+        }
+
+        private int getChild(int parent, int packageNameIndex, int classNameIndex,
+                int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+            int mask = childLookup.length - 1;
+            int i = hash(parent, packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                    lineNumber, leafThreadState) & mask;
+            int node;
+            while ((node = childLookup[i]) != NONE) {
+                if (isMatch(node, parent, packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState)) {
+                    return node;
                 }
-                text = new StackTraceElement(fullClassName, methodNames.get(methodNameIndex),
-                        fileNames.get(fileNameIndex), lineNumber).toString();
+                i = (i + 1) & mask;
             }
-            return text;
+            return NONE;
         }
 
-        private String getTextUpper() {
-            if (textUpper == null) {
-                textUpper = getText().toUpperCase(Locale.ENGLISH);
+        private int getOrAddChild(int parent, int packageNameIndex, int classNameIndex,
+                int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+            int node = getChild(parent, packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState);
+            if (node != NONE) {
+                return node;
             }
-            return textUpper;
+            return addChild(parent, packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState);
         }
-    }
-
-    private class Merger {
 
-        private final int[] packageNameIndexMapping;
-        private final int[] classNameIndexMapping;
-        private final int[] methodNameIndexMapping;
-        private final int[] fileNameIndexMapping;
+        // caller must have already checked that there is no matching child
+        private int addChild(int parent, int packageNameIndex, int classNameIndex,
+                int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+            if (size == parents.length) {
+                grow();
+            }
+            int node = size++;
+            parents[node] = parent;
+            packageNameIndexes[node] = packageNameIndex;
+            classNameIndexes[node] = classNameIndex;
+            methodNameIndexes[node] = methodNameIndex;
+            fileNameIndexes[node] = fileNameIndex;
+            lineNumbers[node] = lineNumber;
+            leafThreadStates[node] = leafThreadState;
+            if (firstChilds[parent] == NONE) {
+                firstChilds[parent] = node;
+            } else {
+                nextSiblings[lastChilds[parent]] = node;
+            }
+            lastChilds[parent] = node;
+            if (size > childLookup.length >> 1) {
+                rehash(childLookup.length << 1);
+            } else {
+                insertChildLookup(node);
+            }
+            return node;
+        }
 
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
+        // removes the node (and so its subtree) from traversal, but it is still found by
+        // getChild() until the next compact()
+        private void unlink(int parent, int prevChild, int child) {
+            int nextChild = nextSiblings[child];
+            if (prevChild == NONE) {
+                firstChilds[parent] = nextChild;
+            } else {
+                nextSiblings[prevChild] = nextChild;
+            }
+            if (lastChilds[parent] == child) {
+                lastChilds[parent] = prevChild;
+            }
+        }
 
-        private Merger(Profile toBeMergedProfile) {
-            packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
-                    packageNameIndexes, packageNames);
-            classNameIndexMapping = makeIndexMapping(toBeMergedProfile.getClassNameList(),
-                    classNameIndexes, classNames);
-            methodNameIndexMapping = makeIndexMapping(toBeMergedProfile.getMethodNameList(),
-                    methodNameIndexes, methodNames);
-            fileNameIndexMapping = makeIndexMapping(toBeMergedProfile.getFileNameList(),
-                    fileNameIndexes, fileNames);
+        // returns a new table containing only the nodes that are still reachable from the root,
+        // renumbered in depth-first order
+        private NodeTable compact() {
+            NodeTable compacted = new NodeTable(Math.max(size, 16));
+            int[] nodeMapping = new int[size];
+            int node = firstChilds[ROOT];
+            while (node != NONE) {
+                int compactedNode = compacted.addChild(nodeMapping[parents[node]],
+                        packageNameIndexes[node], classNameIndexes[node], methodNameIndexes[node],
+                        fileNameIndexes[node], lineNumbers[node], leafThreadStates[node]);
+                compacted.sampleCounts[compactedNode] = sampleCounts[node];
+                compacted.ellipsedSampleCounts[compactedNode] = ellipsedSampleCounts[node];
+                nodeMapping[node] = compactedNode;
+                node = nextInPreOrder(node);
+            }
+            return compacted;
         }
 
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
-            PeekingIterator<Profile.ProfileNode> i =
-                    Iterators.peekingIterator(flatNodes.iterator());
-            while (i.hasNext()) {
-                Profile.ProfileNode flatNode = i.next();
-                int destinationDepth = destinationStack.size() - 1;
-                for (int j = 0; j < destinationDepth - flatNode.getDepth(); j++) {
-                    // TODO optimize: faster way to pop multiple elements at once
-                    destinationStack.pop();
-                }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
-                if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
+        private int nextInPreOrder(int node) {
+            if (firstChilds[node] != NONE) {
+                return firstChilds[node];
+            }
+            int curr = node;
+            while (curr != ROOT) {
+                if (nextSiblings[curr] != NONE) {
+                    return nextSiblings[curr];
                 }
+                curr = parents[curr];
             }
+            return NONE;
+        }
+
+        private boolean isMatch(int node, int parent, int packageNameIndex, int classNameIndex,
+                int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+            // checking line number first since most likely to be different
+            return lineNumber == lineNumbers[node]
+                    && parent == parents[node]
+                    && fileNameIndex == fileNameIndexes[node]
+                    && leafThreadState == leafThreadStates[node]
+                    && methodNameIndex == methodNameIndexes[node]
+                    && classNameIndex == classNameIndexes[node]
+                    && packageNameIndex == packageNameIndexes[node];
+        }
+
+        private void insertChildLookup(int node) {
+            int mask = childLookup.length - 1;
+            int i = hash(parents[node], packageNameIndexes[node], classNameIndexes[node],
+                    methodNameIndexes[node], fileNameIndexes[node], lineNumbers[node],
+                    leafThreadStates[node]) & mask;
+            while (childLookup[i] != NONE) {
+                i = (i + 1) & mask;
+            }
+            childLookup[i] = node;
         }
 
-        private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
-                }
+        private void rehash(int tableSize) {
+            childLookup = new int[tableSize];
+            for (int node = 1; node < size; node++) {
+                insertChildLookup(node);
             }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
-            return destinationNode;
         }
 
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
+        private void grow() {
+            int capacity = parents.length << 1;
+            parents = Arrays.copyOf(parents, capacity);
+            firstChilds = Arrays.copyOf(firstChilds, capacity);
+            lastChilds = Arrays.copyOf(lastChilds, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            packageNameIndexes = Arrays.copyOf(packageNameIndexes, capacity);
+            classNameIndexes = Arrays.copyOf(classNameIndexes, capacity);
+            methodNameIndexes = Arrays.copyOf(methodNameIndexes, capacity);
+            fileNameIndexes = Arrays.copyOf(fileNameIndexes, capacity);
+            lineNumbers = Arrays.copyOf(lineNumbers, capacity);
+            leafThreadStates = Arrays.copyOf(leafThreadStates, capacity);
+            sampleCounts = Arrays.copyOf(sampleCounts, capacity);
+            ellipsedSampleCounts = Arrays.copyOf(ellipsedSampleCounts, capacity);
+        }
+
+        private static int hash(int parent, int packageNameIndex, int classNameIndex,
+                int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+            int h = parent;
+            h = 31 * h + packageNameIndex;
+            h = 31 * h + classNameIndex;
+            h = 31 * h + methodNameIndex;
+            h = 31 * h + fileNameIndex;
+            h = 31 * h + lineNumber;
+            h = 31 * h + leafThreadState;
+            // spread higher bits downward since the table size is a power of two
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private static int tableSizeFor(int capacity) {
+            return Integer.highestOneBit(Math.max(capacity, 8) - 1) << 2;
         }
     }
 
-    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
-    private static class ProfileNodeCollector extends Traverser<ProfileNode, RuntimeException> {
+    // iterative (using parent and sibling links) to avoid StackOverflowError on deep stack traces
+    private abstract class NodeTraverser<E extends Exception> {
 
-        private final List<Profile.ProfileNode> nodes;
-
-        public ProfileNodeCollector(ProfileNode rootNode, List<Profile.ProfileNode> nodes) {
-            super(rootNode);
-            this.nodes = nodes;
+        void traverseAll() throws E {
+            int rootNode = nodes.firstChilds[NodeTable.ROOT];
+            while (rootNode != NodeTable.NONE) {
+                // read before traversing in case the root node is unlinked during traversal
+                int nextRootNode = nodes.nextSiblings[rootNode];
+                traverse(rootNode);
+                rootNode = nextRootNode;
+            }
         }
 
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            nodes.add(Profile.ProfileNode.newBuilder()
-                    .setDepth(depth)
-                    .setPackageNameIndex(node.packageNameIndex)
-                    .setClassNameIndex(node.classNameIndex)
-                    .setMethodNameIndex(node.methodNameIndex)
-                    .setFileNameIndex(node.fileNameIndex)
-                    .setLineNumber(node.lineNumber)
-                    .setLeafThreadState(node.leafThreadState)
-                    .setSampleCount(node.sampleCount)
-                    .build());
-            return node.childNodes;
+        void traverse(int subtreeRootNode) throws E {
+            int node = subtreeRootNode;
+            int depth = 0;
+            while (true) {
+                if (visit(node, depth) && nodes.firstChilds[node] != NodeTable.NONE) {
+                    node = nodes.firstChilds[node];
+                    depth++;
+                    continue;
+                }
+                revisitAfterChildren(node);
+                while (true) {
+                    if (node == subtreeRootNode) {
+                        return;
+                    }
+                    int nextSibling = nodes.nextSiblings[node];
+                    if (nextSibling != NodeTable.NONE) {
+                        node = nextSibling;
+                        break;
+                    }
+                    node = nodes.parents[node];
+                    depth--;
+                    revisitAfterChildren(node);
+                }
+            }
         }
+
+        // return false to skip visiting the node's children
+        abstract boolean visit(int node, int depth) throws E;
+
+        void revisitAfterChildren(int node) throws E {}
     }
 
-    private static class ProfileFilterer extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileFilterer extends NodeTraverser<RuntimeException> {
 
-        private final String filterTextUpper;
-        private final boolean exclusion;
+        private final /*@Nullable*/ String[] textUppers = new String[nodes.size];
+        private final boolean[] matched = new boolean[nodes.size];
 
-        private ProfileFilterer(ProfileNode rootNode, String filterText, boolean exclusion) {
-            super(rootNode);
+        private String filterTextUpper = "";
+        private boolean exclusion;
+
+        private void filter(String filterText, boolean exclusion) {
             this.filterTextUpper = filterText.toUpperCase(Locale.ENGLISH);
             this.exclusion = exclusion;
+            int prevRootNode = NodeTable.NONE;
+            int rootNode = nodes.firstChilds[NodeTable.ROOT];
+            while (rootNode != NodeTable.NONE) {
+                int nextRootNode = nodes.nextSiblings[rootNode];
+                traverse(rootNode);
+                if (exclusion == matched[rootNode]) {
+                    nodes.unlink(NodeTable.ROOT, prevRootNode, rootNode);
+                } else {
+                    prevRootNode = rootNode;
+                }
+                rootNode = nextRootNode;
+            }
+            Arrays.fill(matched, false);
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
+        boolean visit(int node, int depth) {
             if (isMatch(node)) {
-                node.matched = true;
+                matched[node] = true;
                 // no need to visit children
-                return ImmutableList.of();
+                return false;
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) {
-            if (node.matched) {
+        void revisitAfterChildren(int node) {
+            if (matched[node]) {
                 // if exclusion then node will be removed by parent
                 // if not exclusion then keep node and all children
                 return;
             }
-            if (node.childNodes.isEmpty()) {
+            if (nodes.firstChilds[node] == NodeTable.NONE) {
                 return;
             }
             if (removeNode(node)) {
                 // node will be removed by parent
                 if (exclusion) {
-                    node.matched = true;
+                    matched[node] = true;
                 }
                 return;
             }
             if (!exclusion) {
-                node.matched = true;
+                matched[node] = true;
             }
             // node is a partial match, need to filter it out
             long filteredSampleCount = 0;
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (exclusion == !childNode.matched) {
-                    filteredSampleCount += childNode.sampleCount;
+            int prevChildNode = NodeTable.NONE;
+            int childNode = nodes.firstChilds[node];
+            while (childNode != NodeTable.NONE) {
+                int nextChildNode = nodes.nextSiblings[childNode];
+                if (exclusion == !matched[childNode]) {
+                    filteredSampleCount += nodes.sampleCounts[childNode];
+                    prevChildNode = childNode;
                 } else {
-                    i.remove();
+                    nodes.unlink(node, prevChildNode, childNode);
                 }
+                childNode = nextChildNode;
             }
-            node.sampleCount = filteredSampleCount;
+            nodes.sampleCounts[node] = filteredSampleCount;
         }
 
-        private boolean isMatch(ProfileNode node) {
-            String textUpper = node.getTextUpper();
+        private boolean isMatch(int node) {
+            String textUpper = textUppers[node];
+            if (textUpper == null) {
+                textUpper = getText(node).toUpperCase(Locale.ENGLISH);
+                textUppers[node] = textUpper;
+            }
             if (textUpper.contains(filterTextUpper)) {
                 return true;
             }
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
-            if (leafThreadState != null) {
-                String leafThreadStateUpper = leafThreadState.name().toUpperCase(Locale.ENGLISH);
-                if (leafThreadStateUpper.contains(filterTextUpper)) {
-                    return true;
-                }
-            }
-            return false;
+            String leafThreadStateUpper = getLeafThreadState(nodes.leafThreadStates[node]).name()
+                    .toUpperCase(Locale.ENGLISH);
+            return leafThreadStateUpper.contains(filterTextUpper);
         }
 
-        private boolean removeNode(ProfileNode node) {
+        private boolean removeNode(int node) {
             if (exclusion) {
                 return hasOnlyMatchedChildren(node);
             } else {
@@ -542,18 +710,20 @@ public class MutableProfile {
             }
         }
 
-        private static boolean hasOnlyMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (!childNode.matched) {
+        private boolean hasOnlyMatchedChildren(int node) {
+            for (int childNode = nodes.firstChilds[node]; childNode != NodeTable.NONE;
+                    childNode = nodes.nextSiblings[childNode]) {
+                if (!matched[childNode]) {
                     return false;
                 }
             }
             return true;
         }
 
-        private static boolean hasNoMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (childNode.matched) {
+        private boolean hasNoMatchedChildren(int node) {
+            for (int childNode = nodes.firstChilds[node]; childNode != NodeTable.NONE;
+                    childNode = nodes.nextSiblings[childNode]) {
+                if (matched[childNode]) {
                     return false;
                 }
             }
@@ -561,82 +731,66 @@ public class MutableProfile {
         }
     }
 
-    private static class ProfileResetMatches extends Traverser<ProfileNode, RuntimeException> {
-
-        private ProfileResetMatches(ProfileNode rootNode) {
-            super(rootNode);
-        }
-
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            node.matched = false;
-            return node.childNodes;
-        }
-    }
-
-    private static class ProfileWriter extends Traverser<ProfileNode, IOException> {
+    private class ProfileWriter extends NodeTraverser<IOException> {
 
         private final JsonGenerator jg;
 
-        private ProfileWriter(ProfileNode rootNode, JsonGenerator jg) {
-            super(rootNode);
+        private ProfileWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             jg.writeStartObject();
-            jg.writeStringField("stackTraceElement", node.getText());
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
-            if (leafThreadState != Profile.LeafThreadState.NONE) {
-                jg.writeStringField("leafThreadState", leafThreadState.name());
+            jg.writeStringField("stackTraceElement", getText(node));
+            int leafThreadState = nodes.leafThreadStates[node];
+            if (leafThreadState != Profile.LeafThreadState.NONE_VALUE) {
+                jg.writeStringField("leafThreadState", getLeafThreadState(leafThreadState).name());
             }
-            jg.writeNumberField("sampleCount", node.sampleCount);
-            long ellipsedSampleCount = node.ellipsedSampleCount;
+            jg.writeNumberField("sampleCount", nodes.sampleCounts[node]);
+            long ellipsedSampleCount = nodes.ellipsedSampleCounts[node];
             if (ellipsedSampleCount > 0) {
                 jg.writeNumberField("ellipsedSampleCount", ellipsedSampleCount);
             }
-            List<ProfileNode> childNodes = node.childNodes;
-            if (!childNodes.isEmpty()) {
+            if (nodes.firstChilds[node] != NodeTable.NONE) {
                 jg.writeArrayFieldStart("childNodes");
             }
-            return childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (nodes.firstChilds[node] != NodeTable.NONE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
         }
     }
 
-    private static class FlameGraphWriter extends Traverser<ProfileNode, IOException> {
+    private class FlameGraphWriter extends NodeTraverser<IOException> {
 
         private final JsonGenerator jg;
         private int height;
 
-        private FlameGraphWriter(ProfileNode rootNode, JsonGenerator jg) {
-            super(rootNode);
+        private FlameGraphWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             height = Math.max(height, depth + 1);
             jg.writeStartObject();
-            jg.writeStringField("name", node.getText());
-            jg.writeNumberField("value", node.sampleCount);
-            if (!node.childNodes.isEmpty()) {
+            jg.writeStringField("name", getText(node));
+            jg.writeNumberField("value", nodes.sampleCounts[node]);
+            if (nodes.firstChilds[node] != NodeTable.NONE) {
                 jg.writeArrayFieldStart("children");
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (nodes.firstChilds[node] != NodeTable.NONE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
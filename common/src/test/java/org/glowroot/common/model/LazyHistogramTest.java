@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -78,6 +78,61 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldTestCompactPercentiles() {
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestCompactPercentiles(i);
+        }
+        shouldTestCompactPercentiles(10000000);
+        shouldTestCompactPercentiles(100000000);
+        // beyond the pre-sized range
+        shouldTestCompactPercentiles(200000000000L);
+    }
+
+    @Test
+    public void shouldTestCompactEncodeDecodeAndMerge() throws Exception {
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestCompactEncodeDecodeAndMerge(i);
+        }
+        shouldTestCompactEncodeDecodeAndMerge(10000000);
+        shouldTestCompactEncodeDecodeAndMerge(100000000);
+    }
+
+    @Test
+    public void shouldMergeHighPrecisionIntoCompact() throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(false);
+        for (int i = 10000000; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        LazyHistogram compactHistogram = new LazyHistogram(true);
+        // when
+        compactHistogram.merge(histogram);
+        compactHistogram.merge(lazyHistogram);
+        // then
+        assertCompactPercentile(compactHistogram, 10000000, 50);
+        assertCompactPercentile(compactHistogram, 10000000, 99);
+    }
+
+    @Test
+    public void shouldEncodeCompactSmaller() throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(false);
+        LazyHistogram compactHistogram = new LazyHistogram(true);
+        for (int i = 10000000; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+            compactHistogram.add(i);
+        }
+        // when
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        Aggregate.Histogram compact = compactHistogram.toProto(new ScratchBuffer());
+        // then
+        assertThat(compact.getOrderedRawValueCount()).isZero();
+        assertThat(compact.getEncodedBytes().size())
+                .isLessThan(histogram.getEncodedBytes().size() / 10);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -153,6 +208,48 @@ public class LazyHistogramTest {
         assertPercentile(lazyHistogram, encodedSize + nonEncodedSize, 99.99);
     }
 
+    private void shouldTestCompactPercentiles(long num) {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(true);
+        // when
+        long step = Math.max(num / 10000, 1000);
+        for (long i = num; i > 0; i -= step) {
+            lazyHistogram.add(i);
+        }
+        // then
+        assertCompactPercentile(lazyHistogram, num, 50);
+        assertCompactPercentile(lazyHistogram, num, 95);
+        assertCompactPercentile(lazyHistogram, num, 99);
+    }
+
+    private void shouldTestCompactEncodeDecodeAndMerge(int num) throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(true);
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        lazyHistogram = new LazyHistogram(true);
+        // when
+        lazyHistogram.merge(histogram);
+        for (int i = 2 * num; i > num; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        // then
+        assertCompactPercentile(lazyHistogram, num * 2, 50);
+        assertCompactPercentile(lazyHistogram, num * 2, 95);
+        assertCompactPercentile(lazyHistogram, num * 2, 99);
+        assertCompactPercentile(new LazyHistogram(histogram), num, 50);
+    }
+
+    // compact histograms are only accurate to within 1%, so allow a wider margin
+    private void assertCompactPercentile(LazyHistogram lazyHistogram, long num,
+            double percentile) {
+        long low = (long) Math.floor(num * percentile * 0.98 / (100 * 1000)) * 1000 - 1000;
+        long high = (long) Math.ceil(num * percentile * 1.02 / (100 * 1000)) * 1000 + 1000;
+        assertThat(lazyHistogram.getValueAtPercentile(percentile)).isBetween(low, high);
+    }
+
     private void assertPercentile(LazyHistogram lazyHistogram, int num, double percentile) {
         long low = (long) Math.floor(num * percentile * 0.99 / (100 * 1000)) * 1000;
         long high = (long) Math.ceil(num * percentile * 1.01 / (100 * 1000)) * 1000;
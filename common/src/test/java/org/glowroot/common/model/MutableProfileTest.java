@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -23,10 +23,13 @@ import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.junit.Test;
 
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class MutableProfileTest {
@@ -164,6 +167,175 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testProtoRoundTrip() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        profile.merge(mainStackTrace(), Thread.State.RUNNABLE);
+        profile.merge(mainStackTrace(), Thread.State.BLOCKED);
+        profile.merge(otherStackTrace(), Thread.State.WAITING);
+        Profile proto = profile.toProto();
+        // when
+        MutableProfile fromProto = new MutableProfile();
+        fromProto.merge(proto);
+        MutableProfile fromMutableProfile = new MutableProfile();
+        fromMutableProfile.merge(profile);
+        // then
+        assertThat(fromProto.toProto()).isEqualTo(proto);
+        assertThat(fromMutableProfile.toProto()).isEqualTo(proto);
+        assertThat(fromProto.toJson()).isEqualTo(profile.toJson());
+    }
+
+    @Test
+    public void testMergingProtoIntoExisting() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        profile.merge(otherStackTrace(), Thread.State.WAITING);
+        MutableProfile other = new MutableProfile();
+        other.merge(mainStackTrace(), Thread.State.RUNNABLE);
+        other.merge(otherStackTrace(), Thread.State.WAITING);
+        // when
+        profile.merge(other.toProto());
+        // then
+        MutableProfile expected = new MutableProfile();
+        expected.merge(otherStackTrace(), Thread.State.WAITING);
+        expected.merge(mainStackTrace(), Thread.State.RUNNABLE);
+        expected.merge(otherStackTrace(), Thread.State.WAITING);
+        assertThat(profile.toJson()).isEqualTo(expected.toJson());
+        assertThat(profile.getSampleCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void testFilter() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        profile.merge(mainStackTrace(), Thread.State.RUNNABLE);
+        profile.merge(otherStackTrace(), Thread.State.WAITING);
+        // when
+        profile.filter(ImmutableList.of("other"), ImmutableList.<String>of());
+        // then
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 2,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"xx.yy.zz.Main.main(Main.java:789)\","
+                + "      \"sampleCount\": 1,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Other.run(Other.java:10)\","
+                + "          \"sampleCount\": 1,"
+                + "          \"childNodes\": ["
+                + "            {"
+                + "              \"stackTraceElement\": \"aa.bb.cc.Other.sleep(Other.java:20)\","
+                + "              \"leafThreadState\": \"WAITING\","
+                + "              \"sampleCount\": 1"
+                + "            }"
+                + "          ]"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+    }
+
+    @Test
+    public void testFilterExclude() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        profile.merge(mainStackTrace(), Thread.State.RUNNABLE);
+        profile.merge(otherStackTrace(), Thread.State.WAITING);
+        // when
+        profile.filter(ImmutableList.<String>of(), ImmutableList.of("waiting"));
+        // then
+        MutableProfile expected = new MutableProfile();
+        expected.merge(mainStackTrace(), Thread.State.RUNNABLE);
+        assertThat(profile.toProto().getNodeList())
+                .isEqualTo(expected.toProto().getNodeList());
+        assertThat(profile.getUnfilteredSampleCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testTruncateBranchesThenMerge() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        profile.merge(mainStackTrace(), Thread.State.RUNNABLE);
+        profile.merge(mainStackTrace(), Thread.State.RUNNABLE);
+        profile.merge(otherStackTrace(), Thread.State.WAITING);
+        // when
+        profile.truncateBranches(2);
+        profile.merge(otherStackTrace(), Thread.State.WAITING);
+        // then
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 4,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"xx.yy.zz.Main.main(Main.java:789)\","
+                + "      \"sampleCount\": 4,"
+                + "      \"ellipsedSampleCount\": 1,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:456)\","
+                + "          \"sampleCount\": 2,"
+                + "          \"childNodes\": ["
+                + "            {"
+                + "              \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:123)\","
+                + "              \"leafThreadState\": \"RUNNABLE\","
+                + "              \"sampleCount\": 2"
+                + "            }"
+                + "          ]"
+                + "        },"
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Other.run(Other.java:10)\","
+                + "          \"sampleCount\": 1,"
+                + "          \"childNodes\": ["
+                + "            {"
+                + "              \"stackTraceElement\": \"aa.bb.cc.Other.sleep(Other.java:20)\","
+                + "              \"leafThreadState\": \"WAITING\","
+                + "              \"sampleCount\": 1"
+                + "            }"
+                + "          ]"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+    }
+
+    @Test
+    public void testDeepStackTrace() {
+        // given
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        for (int i = 0; i < 10000; i++) {
+            stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", i));
+        }
+        // when
+        profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        MutableProfile merged = new MutableProfile();
+        merged.merge(profile.toProto());
+        // then
+        assertThat(merged.toProto()).isEqualTo(profile.toProto());
+        assertThat(merged.toProto().getNodeCount()).isEqualTo(10000);
+        assertThat(merged.toProto().getNode(9999).getSampleCount()).isEqualTo(2);
+    }
+
+    private static List<StackTraceElement> mainStackTrace() {
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456));
+        stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        return stackTraceElements;
+    }
+
+    private static List<StackTraceElement> otherStackTrace() {
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Other", "sleep", "Other.java", 20));
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Other", "run", "Other.java", 10));
+        stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        return stackTraceElements;
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
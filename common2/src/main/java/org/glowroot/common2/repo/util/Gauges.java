@@ -78,6 +78,17 @@ public class Gauges {
                 "bytes"));
         patterns.add(
                 new UnitPattern("org.glowroot:type=FileSystem,name=[^:]+:PercentFull", "percent"));
+        patterns.add(new UnitPattern("org.glowroot:type=AgentOverhead:(AggregationTime"
+                + "|StackTraceCaptureTime|WeavingTime)", "nanoseconds"));
+        patterns.add(new UnitPattern("org.glowroot:type=AgentOverhead:AllocatedBytes", "bytes"));
+        patterns.add(new UnitPattern("org.glowroot:type=AgentOverhead:AggregatedTransactionCount",
+                GROUPING_PREFIX + "transaction-count"));
+        patterns.add(new UnitPattern("org.glowroot:type=AgentOverhead:StackTraceCaptureCount",
+                GROUPING_PREFIX + "capture-count"));
+        patterns.add(new UnitPattern("org.glowroot:type=AgentOverhead:WovenClassCount",
+                GROUPING_PREFIX + "class-count"));
+        patterns.add(new UnitPattern("org.glowroot:type=AgentOverhead:[A-Za-z]+QueueDepth",
+                GROUPING_PREFIX + "queue-depth"));
         patterns.add(new UnitPattern("org.apache.cassandra.metrics:type=ColumnFamily,"
                 + "keyspace=[^,]+,scope=[^,]+,name=LiveDiskSpaceUsed:Count", "bytes"));
         patterns.add(new UnitPattern("org.apache.cassandra.metrics:type=ColumnFamily,"
@@ -29,4 +29,17 @@ public class GaugesTest {
                 + ":CollectionTime[counter]");
         assertThat(gauge.unit()).isEqualTo("milliseconds per second");
     }
+
+    @Test
+    public void testAgentOverhead() {
+        assertThat(Gauges.getGauge("org.glowroot:type=AgentOverhead:AggregationTime[counter]")
+                .unit()).isEqualTo("nanoseconds per second");
+        assertThat(Gauges.getGauge("org.glowroot:type=AgentOverhead:AllocatedBytes[counter]")
+                .unit()).isEqualTo("bytes per second");
+        assertThat(Gauges.getGauge(
+                "org.glowroot:type=AgentOverhead:AggregatedTransactionCount[counter]").unit())
+                        .isEqualTo("per second");
+        assertThat(Gauges.getGauge("org.glowroot:type=AgentOverhead:AggregatorQueueDepth")
+                .unit()).isEmpty();
+    }
 }
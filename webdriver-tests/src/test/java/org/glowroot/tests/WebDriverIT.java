@@ -219,7 +219,8 @@ public abstract class WebDriverIT {
             if (name.equals("java.lang:type=Memory")
                     || name.equals("java.lang:type=GarbageCollector,name=*")
                     || name.equals("java.lang:type=MemoryPool,name=*")
-                    || name.equals("java.lang:type=OperatingSystem")) {
+                    || name.equals("java.lang:type=OperatingSystem")
+                    || name.equals("org.glowroot:type=AgentOverhead")) {
                 continue;
             }
             String version = gauge.get("config").get("version").asText();